@@ -6,14 +6,20 @@ module org.cruk.clarity.api.recorder
     requires transitive org.cruk.clarity.api;
 
     requires transitive org.aspectj.runtime;
+    requires java.management;
+    requires java.xml.bind;
+    requires jdk.jfr;
     requires org.slf4j;
     requires org.apache.commons.io;
     requires org.apache.commons.lang3;
     requires xstream;
 
+    exports org.cruk.clarity.api.hybrid;
+    exports org.cruk.clarity.api.metrics;
     exports org.cruk.clarity.api.playback;
     exports org.cruk.clarity.api.record;
     exports org.cruk.clarity.api.search;
+    exports org.cruk.clarity.api.tools;
 
     opens org.cruk.clarity.api.search to xstream;
 }
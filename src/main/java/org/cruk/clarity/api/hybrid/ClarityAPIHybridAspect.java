@@ -0,0 +1,607 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.hybrid;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Aspect;
+import org.cruk.clarity.api.InvalidURIException;
+import org.cruk.clarity.api.impl.ClarityAPIInternal;
+import org.cruk.clarity.api.playback.ClarityAPIPlaybackAspect;
+import org.cruk.clarity.api.record.ClarityAPIRecordingAspect;
+import org.cruk.clarity.api.record.ListRanges;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.search.SearchTerms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.ResponseEntity;
+
+import com.genologics.ri.Batch;
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.Locatable;
+
+/**
+ * Aspect that plays back server exchanges from a directory of recordings where
+ * they have been recorded, and goes to the real Clarity server and records the
+ * reply where they have not.
+ *
+ * <p>
+ * Entities, searches and lists are served by a {@link ClarityAPIPlaybackAspect}
+ * while their recording files exist and have not expired. On a miss or an expired
+ * recording the call goes through to the server and what comes back is written
+ * by a {@link ClarityAPIRecordingAspect}, so the next call for it is played back.
+ * Both aspects read and write the same message directory.
+ * </p>
+ *
+ * <p>
+ * Recordings never expire unless a time to live is set, either for all entities
+ * with {@link #setDefaultTimeToLive(long)} or for particular entity classes with
+ * {@link #setTimeToLive(Map)}. A recording has expired when its file was last
+ * modified longer ago than the time to live of its entity class. Searches and lists
+ * use the time to live of the class of entity searched for or listed.
+ * </p>
+ *
+ * <p>
+ * Create, update, delete and upload calls are not intercepted, so go to the
+ * server as they would when recording.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+@Aspect
+public class ClarityAPIHybridAspect implements InitializingBean
+{
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(ClarityAPIHybridAspect.class);
+
+    /**
+     * The aspect that plays back recordings.
+     */
+    private ClarityAPIPlaybackAspect playbackAspect;
+
+    /**
+     * The aspect that records what is fetched from the server.
+     */
+    private ClarityAPIRecordingAspect recordingAspect;
+
+    /**
+     * The message directory, if set on this aspect rather than on the playback aspect.
+     */
+    private File messageDirectory;
+
+    /**
+     * The time to live in milliseconds of recordings of entity classes with no
+     * time to live of their own. Zero or less means recordings never expire.
+     */
+    private long defaultTimeToLive = 0L;
+
+    /**
+     * The time to live in milliseconds of recordings of particular entity classes.
+     */
+    private Map<Class<?>, Long> timeToLive = Collections.emptyMap();
+
+    /**
+     * Internal access to the API, to find the batch class for lists.
+     */
+    private ClarityAPIInternal apiInternal;
+
+    /**
+     * The number of calls answered from recordings.
+     */
+    private final LongAdder playedBack = new LongAdder();
+
+    /**
+     * The number of calls that went through to the server.
+     */
+    private final LongAdder fetched = new LongAdder();
+
+    /**
+     * Default constructor.
+     */
+    public ClarityAPIHybridAspect()
+    {
+    }
+
+    /**
+     * Get the aspect that plays back recordings.
+     *
+     * @return The playback aspect.
+     */
+    public ClarityAPIPlaybackAspect getPlaybackAspect()
+    {
+        return playbackAspect;
+    }
+
+    /**
+     * Set the aspect that plays back recordings. This is required.
+     *
+     * @param playbackAspect The playback aspect.
+     */
+    public void setPlaybackAspect(ClarityAPIPlaybackAspect playbackAspect)
+    {
+        this.playbackAspect = playbackAspect;
+    }
+
+    /**
+     * Get the aspect that records what is fetched from the server.
+     *
+     * @return The recording aspect.
+     */
+    public ClarityAPIRecordingAspect getRecordingAspect()
+    {
+        return recordingAspect;
+    }
+
+    /**
+     * Set the aspect that records what is fetched from the server. This is required.
+     *
+     * @param recordingAspect The recording aspect.
+     */
+    public void setRecordingAspect(ClarityAPIRecordingAspect recordingAspect)
+    {
+        this.recordingAspect = recordingAspect;
+    }
+
+    /**
+     * Get the directory the messages are read from and written to.
+     *
+     * @return The message directory.
+     */
+    public File getMessageDirectory()
+    {
+        return playbackAspect == null ? messageDirectory : playbackAspect.getMessageDirectory();
+    }
+
+    /**
+     * Set the directory the messages are read from and written to, for both
+     * the playback and recording aspects. New recordings are written in the
+     * layout the directory already has.
+     *
+     * @param messageDirectory The message directory.
+     */
+    public void setMessageDirectory(File messageDirectory)
+    {
+        this.messageDirectory = messageDirectory;
+        if (playbackAspect != null && recordingAspect != null)
+        {
+            playbackAspect.setMessageDirectory(messageDirectory);
+            recordingAspect.setMessageDirectory(messageDirectory);
+            recordingAspect.setLayout(playbackAspect.getLayout());
+        }
+    }
+
+    /**
+     * Get the time to live of recordings of entity classes that have no time
+     * to live of their own.
+     *
+     * @return The time to live in milliseconds. Zero or less means never expire.
+     */
+    public long getDefaultTimeToLive()
+    {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * Set the time to live of recordings of entity classes that have no time
+     * to live of their own. The default is zero, for recordings that never expire.
+     *
+     * @param defaultTimeToLive The time to live in milliseconds. Zero or less
+     * means never expire.
+     */
+    public void setDefaultTimeToLive(long defaultTimeToLive)
+    {
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    /**
+     * Get the time to live of recordings of particular entity classes.
+     *
+     * @return An unmodifiable map of entity class to time to live in milliseconds.
+     */
+    public Map<Class<?>, Long> getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * Set the time to live of recordings of particular entity classes. A time
+     * of zero or less means that class's recordings never expire, whatever the
+     * default is.
+     *
+     * @param timeToLive A map of entity class to time to live in milliseconds.
+     * Can be null for none.
+     */
+    public void setTimeToLive(Map<Class<?>, Long> timeToLive)
+    {
+        this.timeToLive =
+            timeToLive == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(timeToLive));
+    }
+
+    /**
+     * Set the internal interface access to the API.
+     *
+     * @param internalApi The API bean, but through its internal interface.
+     */
+    @Autowired
+    @Qualifier("clarityAPI")
+    public void setInternalClarityAPI(ClarityAPIInternal internalApi)
+    {
+        this.apiInternal = internalApi;
+    }
+
+    /**
+     * Get the number of calls answered from recordings since the aspect was created.
+     *
+     * @return The number of calls played back.
+     */
+    public long getPlayedBackCount()
+    {
+        return playedBack.sum();
+    }
+
+    /**
+     * Get the number of calls that went through to the server since the aspect was created.
+     *
+     * @return The number of calls fetched from the server.
+     */
+    public long getFetchedCount()
+    {
+        return fetched.sum();
+    }
+
+    /**
+     * Called by Spring once the aspect has been configured. Checks the two aspects
+     * are set and makes them share the message directory. If none was set on this
+     * aspect, the recording aspect writes to the playback aspect's message directory,
+     * in its layout. The playback aspect is set not to use {@code loadAll} manifests.
+     *
+     * @throws IllegalStateException if either aspect is not set.
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (playbackAspect == null)
+        {
+            throw new IllegalStateException("playbackAspect has not been set.");
+        }
+        if (recordingAspect == null)
+        {
+            throw new IllegalStateException("recordingAspect has not been set.");
+        }
+
+        if (messageDirectory != null)
+        {
+            setMessageDirectory(messageDirectory);
+        }
+        else
+        {
+            File directory = playbackAspect.getMessageDirectory();
+            if (!directory.equals(recordingAspect.getMessageDirectory()))
+            {
+                recordingAspect.setMessageDirectory(directory);
+            }
+            recordingAspect.setLayout(playbackAspect.getLayout());
+        }
+
+        // A manifest would answer a loadAll without the entities' expiry being checked.
+        playbackAspect.setUseLoadAllManifests(false);
+    }
+
+    /**
+     * Join point around the Spring REST client's {@code getForObject()} methods.
+     * Plays back the entity's recording if it is there and has not expired,
+     * otherwise fetches the entity from the server and records it. An entity whose
+     * LIMS id is not the id in its URI is also recorded under the URI's id, as that
+     * is the recording the playback aspect reads.
+     *
+     * @param pjp The join point.
+     * @return The entity.
+     *
+     * @throws Throwable if there is anything that fails.
+     *
+     * @see ClarityAPIPlaybackAspect#doGet(ProceedingJoinPoint)
+     * @see ClarityAPIRecordingAspect#doLoad(ProceedingJoinPoint)
+     */
+    public Object doGet(ProceedingJoinPoint pjp) throws Throwable
+    {
+        Class<?> type = (Class<?>)pjp.getArgs()[1];
+        String key = entityFileName(type, pjp.getArgs()[0]);
+
+        if (isLive(key, type))
+        {
+            playedBack.increment();
+            return playbackAspect.doGet(pjp);
+        }
+
+        fetched.increment();
+        Object thing = recordingAspect.doLoad(pjp);
+        if (thing != null && !key.equals(RecordingFileNames.entityFileName(thing)))
+        {
+            recordingAspect.recordEntity(thing, key);
+        }
+        recorded(key);
+        return thing;
+    }
+
+    /**
+     * Join point around the Spring REST client's {@code getForEntity()} methods.
+     * Works as {@link #doGet(ProceedingJoinPoint)}, recording the body of the
+     * response from the server.
+     *
+     * @param pjp The join point.
+     * @return The response holding the entity.
+     *
+     * @throws Throwable if there is anything that fails.
+     *
+     * @see ClarityAPIPlaybackAspect#doGetEntity(ProceedingJoinPoint)
+     */
+    public ResponseEntity<?> doGetEntity(ProceedingJoinPoint pjp) throws Throwable
+    {
+        Class<?> type = (Class<?>)pjp.getArgs()[1];
+        String key = entityFileName(type, pjp.getArgs()[0]);
+
+        if (isLive(key, type))
+        {
+            playedBack.increment();
+            return playbackAspect.doGetEntity(pjp);
+        }
+
+        fetched.increment();
+        ResponseEntity<?> response = (ResponseEntity<?>)pjp.proceed();
+        recordingAspect.recordEntity(response.getBody(), key);
+        recorded(key);
+        return response;
+    }
+
+    /**
+     * Join point around the Clarity client's {@code loadAll()} method. Each entity
+     * is loaded through the API individually, so comes back through
+     * {@link #doGet(ProceedingJoinPoint)} and is played back or fetched on its own.
+     *
+     * @param pjp The join point.
+     * @return The entities.
+     *
+     * @throws Throwable if there is anything that fails.
+     *
+     * @see ClarityAPIPlaybackAspect#doLoadAll(ProceedingJoinPoint)
+     */
+    public List<?> doLoadAll(ProceedingJoinPoint pjp) throws Throwable
+    {
+        return playbackAspect.doLoadAll(pjp);
+    }
+
+    /**
+     * Join point around the Clarity client's {@code find()} method. Plays back
+     * the recorded search if it is there and has not expired, otherwise runs the
+     * search on the server and records it. An expired search is replaced rather
+     * than merged with, so results that no longer match are not kept, but only
+     * once the search has come back from the server.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param pjp The join point.
+     * @return The result of the search (a list of links).
+     *
+     * @throws Throwable if there is anything that fails.
+     *
+     * @see ClarityAPIPlaybackAspect#doFind(ProceedingJoinPoint)
+     * @see ClarityAPIRecordingAspect#doFind(ProceedingJoinPoint)
+     * @see ClarityAPIRecordingAspect#refreshSearch(ProceedingJoinPoint)
+     */
+    public <E extends Locatable> List<LimsLink<E>> doFind(ProceedingJoinPoint pjp) throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Map<String, ?> searchTerms = (Map<String, ?>)pjp.getArgs()[0];
+
+        @SuppressWarnings("unchecked")
+        Class<E> entityClass = (Class<E>)pjp.getArgs()[1];
+
+        String key = Search.getSearchFileName(new SearchTerms<>(searchTerms, entityClass));
+
+        if (isLive(key, entityClass))
+        {
+            playedBack.increment();
+            return playbackAspect.doFind(pjp);
+        }
+
+        fetched.increment();
+        List<LimsLink<E>> results;
+        if (playbackAspect.getRecordingFile(key).exists())
+        {
+            results = recordingAspect.refreshSearch(pjp);
+        }
+        else
+        {
+            results = recordingAspect.doFind(pjp);
+        }
+        recorded(key);
+        return results;
+    }
+
+    /**
+     * Join point around the Clarity client's {@code listAll} and {@code listSome}
+     * methods. Plays back the recorded list if it is there, has not expired and
+     * holds all the links asked for, otherwise lists from the server and writes
+     * the list straight away. The pages fetched are merged with those already in
+     * the list file.
+     *
+     * @param <E> The type of entity to list.
+     * @param <L> The type of link to the entity returned from the API.
+     * @param <BH> The batch class that is used to hold the links returned from the API.
+     *
+     * @param pjp The join point.
+     * @return The list of links.
+     *
+     * @throws Throwable if there is anything that fails.
+     *
+     * @see ClarityAPIPlaybackAspect#doList(ProceedingJoinPoint)
+     * @see ClarityAPIRecordingAspect#doList(ProceedingJoinPoint)
+     */
+    public <E extends Locatable, L extends LimsLink<E>, BH extends Batch<L>>
+    List<L> doList(ProceedingJoinPoint pjp) throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Class<E> entityClass = (Class<E>)pjp.getArgs()[0];
+
+        Class<BH> batchClass = apiInternal.getQueryResultsClassForEntity(entityClass);
+        if (batchClass == null)
+        {
+            return playbackAspect.doList(pjp);
+        }
+
+        String key = RecordingFileNames.listFileName(batchClass);
+
+        if (isLive(key, entityClass) && holdsRange(key, pjp))
+        {
+            playedBack.increment();
+            return playbackAspect.doList(pjp);
+        }
+
+        fetched.increment();
+        List<L> links = recordingAspect.doList(pjp);
+        recordingAspect.flush();
+        recorded(key);
+        return links;
+    }
+
+    /**
+     * Test whether a recording is there and has not expired.
+     *
+     * @param key The name of the recording file.
+     * @param entityClass The class of entity recorded, searched for or listed.
+     *
+     * @return true if the recording can be played back.
+     */
+    private boolean isLive(String key, Class<?> entityClass)
+    {
+        File file = playbackAspect.getRecordingFile(key);
+        long modified = file.lastModified();
+        if (modified == 0L)
+        {
+            return false;
+        }
+
+        long ttl = timeToLive.getOrDefault(entityClass, defaultTimeToLive);
+        return ttl <= 0L || System.currentTimeMillis() - modified < ttl;
+    }
+
+    /**
+     * Test whether a recorded list holds all the links asked for. A {@code listAll}
+     * call needs the whole list; a {@code listSome} call needs the part of the
+     * server's list it asks for.
+     *
+     * @param key The name of the list file.
+     * @param pjp The join point.
+     *
+     * @return true if the list file holds the links.
+     */
+    private boolean holdsRange(String key, ProceedingJoinPoint pjp)
+    {
+        try
+        {
+            ListRanges ranges = ListRanges.readFor(playbackAspect.getRecordingFile(key));
+            if (ranges == null)
+            {
+                return true;
+            }
+
+            Object[] args = pjp.getArgs();
+            if ("listSome".equals(pjp.getSignature().getName()) && args.length >= 3)
+            {
+                return ranges.covers(Math.max(0, (Integer)args[1]), Math.max(0, (Integer)args[2]));
+            }
+            return false;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read the ranges of {}: {}", key, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Bring a recording up to date after its call has gone through to the server.
+     * The file is touched, as the recording aspect leaves a file alone when what
+     * it would write is the same, and the playback aspect is told the recording
+     * is no longer missing.
+     *
+     * @param key The name of the recording file.
+     */
+    private void recorded(String key)
+    {
+        File file = playbackAspect.getRecordingFile(key);
+        if (file.exists() && !file.setLastModified(System.currentTimeMillis()))
+        {
+            logger.debug("Could not update the modification time of {}", file.getName());
+        }
+        playbackAspect.forgetMiss(key);
+    }
+
+    /**
+     * Get the name of the file the target of a URI is recorded in. This is named
+     * from the id in the URI, as the playback aspect names it, which for a few
+     * entity classes is not the LIMS id the recording aspect would use.
+     *
+     * @param type The class of the thing to retrieve.
+     * @param uriObj The untyped URI to the object.
+     *
+     * @return The name of the recording file for the given entity.
+     *
+     * @throws InvalidURIException if the string value of {@code uriObj} cannot form
+     * a valid URI.
+     */
+    private static String entityFileName(Class<?> type, Object uriObj)
+    {
+        URI uri;
+        if (uriObj instanceof URI)
+        {
+            uri = (URI)uriObj;
+        }
+        else
+        {
+            try
+            {
+                uri = new URI(uriObj.toString());
+            }
+            catch (URISyntaxException e)
+            {
+                throw new InvalidURIException(e);
+            }
+        }
+
+        String limsid = RecordingFileNames.limsIdFromUri(type, uri.getPath());
+
+        return RecordingFileNames.entityFileName(type, limsid);
+    }
+}
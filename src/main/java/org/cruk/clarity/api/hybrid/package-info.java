@@ -0,0 +1,5 @@
+/**
+ * The classes necessary to play back recorded entities where they have been recorded,
+ * and to fetch and record them from a Clarity server where they have not.
+ */
+package org.cruk.clarity.api.hybrid;
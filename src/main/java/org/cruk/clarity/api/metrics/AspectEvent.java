@@ -0,0 +1,113 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base of the Java Flight Recorder events for the record and playback aspects.
+ * Each event covers the time taken to read or write one recording, and says
+ * which recording it was, how big it is and how it was found.
+ *
+ * <p>
+ * The aspects create an event, {@code begin()} it, do the work and then only
+ * fill in the fields if {@code shouldCommit()} says the event is wanted. When
+ * no flight recording is running the events cost next to nothing.
+ * </p>
+ *
+ * <p>
+ * The fields here are package-private rather than private because the flight
+ * recorder leaves out private fields inherited from a superclass.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public abstract class AspectEvent extends Event
+{
+    /**
+     * The class of entity read or written.
+     */
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    /**
+     * The LIMS id of the entity or the hash of the search.
+     */
+    @Label("Identifier")
+    @Description("The LIMS id of the entity or the hash of the search")
+    String id;
+
+    /**
+     * The size of the recording file.
+     */
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    /**
+     * How the recording was found.
+     */
+    @Label("Outcome")
+    @Description("HIT if held in memory, LOAD if read from file, MISS if not recorded, ERROR if it failed")
+    String outcome;
+
+
+    /**
+     * Set the class of entity read or written.
+     *
+     * @param entityClass The entity class.
+     */
+    public void setEntityClass(Class<?> entityClass)
+    {
+        this.entityClass = entityClass;
+    }
+
+    /**
+     * Set the LIMS id of the entity or the hash of the search.
+     *
+     * @param id The identifier.
+     */
+    public void setId(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * Set the size of the recording file.
+     *
+     * @param bytes The size in bytes.
+     */
+    public void setBytes(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Set how the recording was found.
+     *
+     * @param outcome The outcome.
+     */
+    public void setOutcome(AspectMetrics.Outcome outcome)
+    {
+        this.outcome = outcome == null ? null : outcome.name();
+    }
+}
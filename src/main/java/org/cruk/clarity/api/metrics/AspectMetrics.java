@@ -0,0 +1,484 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for the calls handled by the record or
+ * playback aspect, the time spent marshalling and unmarshalling each type
+ * of entity, the bytes of recordings read and written, and the depths of the
+ * aspect's background queues.
+ *
+ * <p>
+ * Recording a call only adds to {@code LongAdder}s, so the aspects can be called
+ * from many threads without the metrics becoming a point of contention. An aspect
+ * with metrics switched off holds no metrics object at all, and the only cost is
+ * a null check per call.
+ * </p>
+ *
+ * <p>
+ * Once {@link #register()}ed, the metrics can be seen through JMX under the
+ * domain {@value #DOMAIN}.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public final class AspectMetrics implements AspectMetricsMXBean
+{
+    /**
+     * The JMX domain the metrics are registered under.
+     */
+    public static final String DOMAIN = "org.cruk.clarity.api";
+
+    /**
+     * The operations counted. These are the aspects' join points.
+     */
+    public enum Operation
+    {
+        /**
+         * Playback of {@code load()} and {@code retrieve()}: the REST template's
+         * {@code getForObject()} and {@code getForEntity()}.
+         */
+        GET,
+
+        /**
+         * Recording of {@code load()} and {@code retrieve()}.
+         */
+        LOAD,
+
+        /**
+         * {@code loadAll()}.
+         */
+        LOAD_ALL,
+
+        /**
+         * {@code find()}.
+         */
+        FIND,
+
+        /**
+         * {@code listAll()} and {@code listSome()}.
+         */
+        LIST,
+
+        /**
+         * {@code update()} and {@code updateAll()}.
+         */
+        UPDATE
+    }
+
+    /**
+     * How a call was answered.
+     */
+    public enum Outcome
+    {
+        /**
+         * From a recording already held in memory.
+         */
+        HIT,
+
+        /**
+         * By reading a recording file or, when recording, by calling the server.
+         */
+        LOAD,
+
+        /**
+         * There was no recording.
+         */
+        MISS,
+
+        /**
+         * The call failed.
+         */
+        ERROR
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(AspectMetrics.class);
+
+    /**
+     * The name of the MBean, once registered.
+     */
+    private final ObjectName objectName;
+
+    /**
+     * The counts for each operation and outcome, indexed by operation then outcome.
+     */
+    private final LongAdder[][] counts;
+
+    /**
+     * The latencies for each operation.
+     */
+    private final LatencyHistogram[] latencies;
+
+    /**
+     * Unmarshalling counts and times by class.
+     */
+    private final ConcurrentMap<Class<?>, Timing> unmarshalling = new ConcurrentHashMap<>();
+
+    /**
+     * Marshalling counts and times by class.
+     */
+    private final ConcurrentMap<Class<?>, Timing> marshalling = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes of recordings read.
+     */
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * Bytes of recordings written.
+     */
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * The background queues, by name.
+     */
+    private final Map<String, LongSupplier> queues = new ConcurrentHashMap<>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param owner The object whose calls are being measured, usually an aspect.
+     * Its class and identity name the MBean.
+     */
+    public AspectMetrics(Object owner)
+    {
+        try
+        {
+            objectName = new ObjectName(DOMAIN + ":type=" + owner.getClass().getSimpleName() +
+                                        ",name=" + Integer.toHexString(System.identityHashCode(owner)));
+        }
+        catch (JMException e)
+        {
+            throw new IllegalArgumentException("Cannot name metrics for " + owner.getClass().getName(), e);
+        }
+
+        Operation[] operations = Operation.values();
+        Outcome[] outcomes = Outcome.values();
+        counts = new LongAdder[operations.length][outcomes.length];
+        latencies = new LatencyHistogram[operations.length];
+        for (int op = 0; op < operations.length; op++)
+        {
+            for (int out = 0; out < outcomes.length; out++)
+            {
+                counts[op][out] = new LongAdder();
+            }
+            latencies[op] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Get the name this object is or will be registered under with JMX.
+     *
+     * @return The object name.
+     */
+    public ObjectName getObjectName()
+    {
+        return objectName;
+    }
+
+    /**
+     * Register these metrics with the platform MBean server. Failure to register
+     * is logged but otherwise ignored: the metrics are still collected.
+     */
+    public void register()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(this, objectName);
+            }
+        }
+        catch (JMException e)
+        {
+            logger.warn("Could not register metrics as {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if they are registered.
+     */
+    public void unregister()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            if (server.isRegistered(objectName))
+            {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e)
+        {
+            logger.warn("Could not unregister metrics {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Add a background queue whose depth is reported with the metrics.
+     *
+     * @param name The name of the queue.
+     * @param depth Supplies the current length of the queue.
+     */
+    public void addQueue(String name, LongSupplier depth)
+    {
+        queues.put(name, depth);
+    }
+
+    /**
+     * Remove a background queue from the metrics.
+     *
+     * @param name The name of the queue.
+     */
+    public void removeQueue(String name)
+    {
+        queues.remove(name);
+    }
+
+    /**
+     * Start timing a call.
+     *
+     * @param metrics The metrics. May be null.
+     *
+     * @return The start time to pass to {@link #record(AspectMetrics, Operation, Outcome, long)},
+     * or zero if {@code metrics} is null.
+     */
+    public static long start(AspectMetrics metrics)
+    {
+        return metrics == null ? 0L : System.nanoTime();
+    }
+
+    /**
+     * Record a call, if metrics are being collected.
+     *
+     * @param metrics The metrics. May be null, in which case nothing happens.
+     * @param operation The operation called.
+     * @param outcome How the call was answered.
+     * @param start The time the call started, from {@link #start(AspectMetrics)}.
+     */
+    public static void record(AspectMetrics metrics, Operation operation, Outcome outcome, long start)
+    {
+        if (metrics != null)
+        {
+            metrics.record(operation, outcome, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param operation The operation called.
+     * @param outcome How the call was answered.
+     * @param nanos How long the call took, in nanoseconds.
+     */
+    public void record(Operation operation, Outcome outcome, long nanos)
+    {
+        counts[operation.ordinal()][outcome.ordinal()].increment();
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record a recording having been read and unmarshalled.
+     *
+     * @param type The class of the object read.
+     * @param nanos How long it took to read, in nanoseconds.
+     * @param bytes The size of the recording.
+     */
+    public void unmarshalled(Class<?> type, long nanos, long bytes)
+    {
+        unmarshalling.computeIfAbsent(type, t -> new Timing()).add(nanos);
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Record an object having been marshalled to a recording.
+     *
+     * @param type The class of the object written.
+     * @param nanos How long it took to marshal, in nanoseconds.
+     * @param bytes The size of the recording.
+     */
+    public void marshalled(Class<?> type, long nanos, long bytes)
+    {
+        marshalling.computeIfAbsent(type, t -> new Timing()).add(nanos);
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Get the statistics for one operation.
+     *
+     * @param operation The operation.
+     *
+     * @return A snapshot of the operation's statistics.
+     */
+    public OperationStatistics getStatistics(Operation operation)
+    {
+        LongAdder[] adders = counts[operation.ordinal()];
+        long[] values = new long[adders.length];
+        for (int i = 0; i < adders.length; i++)
+        {
+            values[i] = adders[i].sum();
+        }
+        return new OperationStatistics(operation, values, latencies[operation.ordinal()]);
+    }
+
+    @Override
+    public List<OperationStatistics> getOperations()
+    {
+        List<OperationStatistics> statistics = new ArrayList<>();
+        for (Operation operation : Operation.values())
+        {
+            OperationStatistics s = getStatistics(operation);
+            if (s.getCalls() > 0L)
+            {
+                statistics.add(s);
+            }
+        }
+        return statistics;
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public Map<String, Long> getUnmarshalMicros()
+    {
+        return byClass(unmarshalling, t -> t.nanos.sum() / 1000L);
+    }
+
+    @Override
+    public Map<String, Long> getUnmarshalCounts()
+    {
+        return byClass(unmarshalling, t -> t.count.sum());
+    }
+
+    @Override
+    public Map<String, Long> getMarshalMicros()
+    {
+        return byClass(marshalling, t -> t.nanos.sum() / 1000L);
+    }
+
+    @Override
+    public Map<String, Long> getMarshalCounts()
+    {
+        return byClass(marshalling, t -> t.count.sum());
+    }
+
+    @Override
+    public Map<String, Long> getQueueDepths()
+    {
+        Map<String, Long> depths = new TreeMap<>();
+        queues.forEach((name, depth) -> depths.put(name, depth.getAsLong()));
+        return depths;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LongAdder[] adders : counts)
+        {
+            for (LongAdder adder : adders)
+            {
+                adder.reset();
+            }
+        }
+        for (LatencyHistogram histogram : latencies)
+        {
+            histogram.reset();
+        }
+        unmarshalling.clear();
+        marshalling.clear();
+        bytesRead.reset();
+        bytesWritten.reset();
+    }
+
+    /**
+     * Summarise a map of timings by class with the short class names as keys.
+     *
+     * @param timings The timings.
+     * @param value Gets the value to report from a timing.
+     *
+     * @return A sorted map of short class name to value.
+     */
+    private static Map<String, Long> byClass(Map<Class<?>, Timing> timings, ToLongFunction<Timing> value)
+    {
+        Map<String, Long> summary = new TreeMap<>();
+        timings.forEach((type, timing) -> summary.put(ClassUtils.getShortClassName(type), value.applyAsLong(timing)));
+        return summary;
+    }
+
+    /**
+     * The number of times something was done and the total time taken.
+     */
+    private static final class Timing
+    {
+        /**
+         * The number of times.
+         */
+        final LongAdder count = new LongAdder();
+
+        /**
+         * The total time, in nanoseconds.
+         */
+        final LongAdder nanos = new LongAdder();
+
+        /**
+         * Add one time.
+         *
+         * @param time The time taken, in nanoseconds.
+         */
+        void add(long time)
+        {
+            count.increment();
+            nanos.add(time);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of {@link AspectMetrics}, as seen through JMX
+ * (for example in JConsole or VisualVM).
+ *
+ * @since 2.31.7
+ */
+public interface AspectMetricsMXBean
+{
+    /**
+     * Get the counters and latencies for each kind of operation that has been called.
+     *
+     * @return A snapshot of the statistics for each operation.
+     */
+    List<OperationStatistics> getOperations();
+
+    /**
+     * Get the number of bytes of recordings read.
+     *
+     * @return The bytes read.
+     */
+    long getBytesRead();
+
+    /**
+     * Get the number of bytes of recordings written.
+     *
+     * @return The bytes written.
+     */
+    long getBytesWritten();
+
+    /**
+     * Get the total time spent unmarshalling recordings, by the short name of
+     * the class unmarshalled.
+     *
+     * @return The unmarshalling time in microseconds for each class.
+     */
+    Map<String, Long> getUnmarshalMicros();
+
+    /**
+     * Get the number of recordings unmarshalled, by the short name of the class.
+     *
+     * @return The unmarshalling count for each class.
+     */
+    Map<String, Long> getUnmarshalCounts();
+
+    /**
+     * Get the total time spent marshalling recordings, by the short name of the
+     * class marshalled.
+     *
+     * @return The marshalling time in microseconds for each class.
+     */
+    Map<String, Long> getMarshalMicros();
+
+    /**
+     * Get the number of recordings marshalled, by the short name of the class.
+     *
+     * @return The marshalling count for each class.
+     */
+    Map<String, Long> getMarshalCounts();
+
+    /**
+     * Get the current depths of the aspect's queues of background work.
+     *
+     * @return The length of each queue, by name.
+     */
+    Map<String, Long> getQueueDepths();
+
+    /**
+     * Set all counters and timings back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,54 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cruk.clarity.api.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An entity marshalled and written to its recording file.
+ *
+ * @since 2.31.7
+ */
+@Name("org.cruk.clarity.api.EntityWrite")
+@Label("Entity Write")
+@Category({ "Clarity", "Recording" })
+@Description("Marshalling an entity and writing its recording")
+public final class EntityWriteEvent extends AspectEvent
+{
+    /**
+     * Whether the file was written. It is not if it already held the same XML.
+     */
+    @Label("Written")
+    private boolean written;
+
+
+    /**
+     * Set whether the file was written.
+     *
+     * @param written true if written.
+     */
+    public void setWritten(boolean written)
+    {
+        this.written = written;
+    }
+}
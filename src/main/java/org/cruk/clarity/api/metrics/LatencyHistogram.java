@@ -0,0 +1,165 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with one bucket per power of two nanoseconds. Recording
+ * a duration only adds to {@code LongAdder}s and a {@code LongAccumulator}, so many
+ * threads can record at once without contending. Percentiles are only as precise as the buckets: a factor
+ * of two.
+ *
+ * @since 2.31.7
+ */
+final class LatencyHistogram
+{
+    /**
+     * The number of buckets: one for each possible bit length of a long.
+     */
+    private static final int BUCKETS = 64;
+
+    /**
+     * The count of durations in each bucket. Bucket {@code i} holds durations
+     * less than 2<sup>i</sup> nanoseconds and at least 2<sup>i-1</sup>.
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    /**
+     * The total of the durations, in nanoseconds.
+     */
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * The longest duration, in nanoseconds.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+
+    /**
+     * Constructor.
+     */
+    LatencyHistogram()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    void record(long nanos)
+    {
+        if (nanos < 0L)
+        {
+            nanos = 0L;
+        }
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Get the number of durations recorded.
+     *
+     * @return The count.
+     */
+    long getCount()
+    {
+        long count = 0L;
+        for (LongAdder bucket : buckets)
+        {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Get the total of the durations recorded.
+     *
+     * @return The total, in nanoseconds.
+     */
+    long getTotal()
+    {
+        return total.sum();
+    }
+
+    /**
+     * Get the longest duration recorded.
+     *
+     * @return The maximum, in nanoseconds.
+     */
+    long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the durations.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     *
+     * @return The upper bound of the bucket holding the percentile, in nanoseconds,
+     * or zero if nothing has been recorded.
+     */
+    long getPercentile(double percentile)
+    {
+        long[] counts = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0L)
+        {
+            return 0L;
+        }
+
+        long rank = (long)Math.ceil(count * percentile / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0L)
+            {
+                return i >= 63 ? Long.MAX_VALUE : Math.min(1L << i, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clear the histogram.
+     */
+    void reset()
+    {
+        for (LongAdder bucket : buckets)
+        {
+            bucket.reset();
+        }
+        total.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cruk.clarity.api.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A list of entities played back, from memory or read from its recording file.
+ *
+ * @since 2.31.7
+ */
+@Name("org.cruk.clarity.api.ListLoad")
+@Label("List Load")
+@Category({ "Clarity", "Playback" })
+@Description("Playing back a list: finding it in memory or reading the links from its recording")
+public final class ListLoadEvent extends AspectEvent
+{
+    /**
+     * The number of links returned.
+     */
+    @Label("Links")
+    private int links;
+
+
+    /**
+     * Set the number of links returned.
+     *
+     * @param links The number of links.
+     */
+    public void setLinks(int links)
+    {
+        this.links = links;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * A snapshot of the counters and timings for one kind of aspect operation.
+ * Through JMX it appears as composite data with one item per getter.
+ *
+ * @see AspectMetrics
+ *
+ * @since 2.31.7
+ */
+public final class OperationStatistics
+{
+    /**
+     * The operation.
+     */
+    private final String operation;
+
+    /**
+     * Calls answered from memory.
+     */
+    private final long hits;
+
+    /**
+     * Calls answered by reading a recording or asking the server.
+     */
+    private final long loads;
+
+    /**
+     * Calls that found no recording.
+     */
+    private final long misses;
+
+    /**
+     * Calls that failed.
+     */
+    private final long errors;
+
+    /**
+     * The mean latency, in microseconds.
+     */
+    private final long meanMicros;
+
+    /**
+     * The median latency, in microseconds.
+     */
+    private final long medianMicros;
+
+    /**
+     * The 90th percentile latency, in microseconds.
+     */
+    private final long p90Micros;
+
+    /**
+     * The 99th percentile latency, in microseconds.
+     */
+    private final long p99Micros;
+
+    /**
+     * The longest latency, in microseconds.
+     */
+    private final long maxMicros;
+
+
+    /**
+     * Constructor.
+     *
+     * @param operation The operation.
+     * @param counts The hit, load, miss and error counts.
+     * @param histogram The latencies.
+     */
+    OperationStatistics(AspectMetrics.Operation operation, long[] counts, LatencyHistogram histogram)
+    {
+        this.operation = operation.name();
+        this.hits = counts[AspectMetrics.Outcome.HIT.ordinal()];
+        this.loads = counts[AspectMetrics.Outcome.LOAD.ordinal()];
+        this.misses = counts[AspectMetrics.Outcome.MISS.ordinal()];
+        this.errors = counts[AspectMetrics.Outcome.ERROR.ordinal()];
+
+        long count = histogram.getCount();
+        this.meanMicros = count == 0L ? 0L : histogram.getTotal() / count / 1000L;
+        this.medianMicros = histogram.getPercentile(50.0) / 1000L;
+        this.p90Micros = histogram.getPercentile(90.0) / 1000L;
+        this.p99Micros = histogram.getPercentile(99.0) / 1000L;
+        this.maxMicros = histogram.getMax() / 1000L;
+    }
+
+    /**
+     * Get the name of the operation.
+     *
+     * @return The operation.
+     */
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    /**
+     * Get the total number of calls.
+     *
+     * @return The number of calls.
+     */
+    public long getCalls()
+    {
+        return hits + loads + misses + errors;
+    }
+
+    /**
+     * Get the number of calls answered from recordings held in memory.
+     *
+     * @return The number of hits.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of calls answered by reading a recording file or, when
+     * recording, by calling the server.
+     *
+     * @return The number of loads.
+     */
+    public long getLoads()
+    {
+        return loads;
+    }
+
+    /**
+     * Get the number of calls for which there was no recording.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Get the number of calls that failed.
+     *
+     * @return The number of errors.
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * Get the mean latency.
+     *
+     * @return The mean, in microseconds.
+     */
+    public long getMeanMicros()
+    {
+        return meanMicros;
+    }
+
+    /**
+     * Get the median latency, to within a factor of two.
+     *
+     * @return The median, in microseconds.
+     */
+    public long getMedianMicros()
+    {
+        return medianMicros;
+    }
+
+    /**
+     * Get the 90th percentile latency, to within a factor of two.
+     *
+     * @return The 90th percentile, in microseconds.
+     */
+    public long getP90Micros()
+    {
+        return p90Micros;
+    }
+
+    /**
+     * Get the 99th percentile latency, to within a factor of two.
+     *
+     * @return The 99th percentile, in microseconds.
+     */
+    public long getP99Micros()
+    {
+        return p99Micros;
+    }
+
+    /**
+     * Get the longest latency.
+     *
+     * @return The maximum, in microseconds.
+     */
+    public long getMaxMicros()
+    {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString()
+    {
+        ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+        b.append("operation", operation);
+        b.append("calls", getCalls());
+        b.append("hits", hits);
+        b.append("loads", loads);
+        b.append("misses", misses);
+        b.append("errors", errors);
+        b.append("meanMicros", meanMicros);
+        b.append("p99Micros", p99Micros);
+        return b.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cruk.clarity.api.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A search merged with its existing recording and written under its lock.
+ *
+ * @since 2.31.7
+ */
+@Name("org.cruk.clarity.api.SearchMerge")
+@Label("Search Merge")
+@Category({ "Clarity", "Recording" })
+@Description("Recording a search: taking its lock, merging with the results already recorded and rewriting it")
+public final class SearchMergeEvent extends AspectEvent
+{
+    /**
+     * The number of links in the merged search.
+     */
+    @Label("Results")
+    private int results;
+
+    /**
+     * Whether the file was rewritten. It is not if the merge found nothing new.
+     */
+    @Label("Written")
+    private boolean written;
+
+
+    /**
+     * Set the number of links in the merged search.
+     *
+     * @param results The number of links.
+     */
+    public void setResults(int results)
+    {
+        this.results = results;
+    }
+
+    /**
+     * Set whether the file was rewritten.
+     *
+     * @param written true if written.
+     */
+    public void setWritten(boolean written)
+    {
+        this.written = written;
+    }
+}
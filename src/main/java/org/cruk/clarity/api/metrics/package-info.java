@@ -0,0 +1,5 @@
+/**
+ * Counters and timings for the record and playback aspects, published through JMX,
+ * and the Java Flight Recorder events they emit.
+ */
+package org.cruk.clarity.api.metrics;
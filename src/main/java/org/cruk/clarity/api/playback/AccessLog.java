@@ -0,0 +1,344 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.cruk.clarity.api.metrics.AspectMetrics.Outcome;
+
+/**
+ * A log of the recordings asked for during playback. It keeps a count of the
+ * hits, loads, misses and errors for each recording, and the most recent accesses
+ * in a ring buffer.
+ *
+ * <p>
+ * Logging an access takes no locks. The slot in the ring buffer is claimed with an
+ * atomic increment and the older access in it is overwritten; the counts are
+ * {@code LongAdder}s, created once for each recording.
+ * </p>
+ *
+ * @see ClarityAPIPlaybackAspect#setAccessLogEnabled(boolean)
+ *
+ * @since 2.31.7
+ */
+public final class AccessLog
+{
+    /**
+     * The default number of recent accesses kept.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The outcomes, in ordinal order.
+     */
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    /**
+     * The ring buffer of recent accesses.
+     */
+    private final AtomicReferenceArray<Access> recent;
+
+    /**
+     * The mask giving the slot in the ring buffer for a sequence number.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next access.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * The counts for each recording, indexed by outcome.
+     */
+    private final ConcurrentMap<String, LongAdder[]> counts = new ConcurrentHashMap<>();
+
+
+    /**
+     * Constructor, keeping {@value #DEFAULT_CAPACITY} recent accesses.
+     */
+    public AccessLog()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of recent accesses to keep. Rounded up to
+     * a power of two.
+     */
+    public AccessLog(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        recent = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Log an access to a recording.
+     *
+     * @param key The name of the recording file.
+     * @param outcome How the request was answered.
+     */
+    public void record(String key, Outcome outcome)
+    {
+        long sequence = next.getAndIncrement();
+        recent.lazySet((int)(sequence & mask), new Access(sequence, key, outcome));
+
+        LongAdder[] adders = counts.get(key);
+        if (adders == null)
+        {
+            adders = counts.computeIfAbsent(key, k -> newAdders());
+        }
+        adders[outcome.ordinal()].increment();
+    }
+
+    /**
+     * Get the recent accesses, oldest first. Accesses logged while this runs
+     * may or may not be included.
+     *
+     * @return The accesses still in the ring buffer.
+     */
+    public List<Access> getRecent()
+    {
+        long end = next.get();
+        long start = Math.max(0L, end - recent.length());
+        List<Access> accesses = new ArrayList<>((int)(end - start));
+        for (long sequence = start; sequence < end; sequence++)
+        {
+            Access access = recent.get((int)(sequence & mask));
+            if (access != null && access.getSequence() == sequence)
+            {
+                accesses.add(access);
+            }
+        }
+        return accesses;
+    }
+
+    /**
+     * Get the total number of accesses logged.
+     *
+     * @return The number of accesses.
+     */
+    public long getAccessCount()
+    {
+        return next.get();
+    }
+
+    /**
+     * Get the number of accesses with a given outcome for one recording.
+     *
+     * @param key The name of the recording file.
+     * @param outcome The outcome.
+     *
+     * @return The number of accesses.
+     */
+    public long getCount(String key, Outcome outcome)
+    {
+        LongAdder[] adders = counts.get(key);
+        return adders == null ? 0L : adders[outcome.ordinal()].sum();
+    }
+
+    /**
+     * Get the recordings that were served, with the number of times each was asked for.
+     *
+     * @return A sorted map of recording file name to number of requests.
+     */
+    public Map<String, Long> getServed()
+    {
+        Map<String, Long> served = new TreeMap<>();
+        counts.forEach((key, adders) ->
+        {
+            long hits = adders[Outcome.HIT.ordinal()].sum() + adders[Outcome.LOAD.ordinal()].sum();
+            if (hits > 0L)
+            {
+                served.put(key, total(adders));
+            }
+        });
+        return served;
+    }
+
+    /**
+     * Get the recordings that were asked for but never found, with the number
+     * of times each was asked for.
+     *
+     * @return A sorted map of recording file name to number of misses.
+     */
+    public Map<String, Long> getMissing()
+    {
+        Map<String, Long> missing = new TreeMap<>();
+        counts.forEach((key, adders) ->
+        {
+            long served = adders[Outcome.HIT.ordinal()].sum() + adders[Outcome.LOAD.ordinal()].sum();
+            long misses = adders[Outcome.MISS.ordinal()].sum();
+            if (served == 0L && misses > 0L)
+            {
+                missing.put(key, misses);
+            }
+        });
+        return missing;
+    }
+
+    /**
+     * Forget everything logged.
+     */
+    public void clear()
+    {
+        counts.clear();
+        for (int i = 0; i < recent.length(); i++)
+        {
+            recent.set(i, null);
+        }
+    }
+
+    /**
+     * Create the counters for a recording.
+     *
+     * @return One counter per outcome.
+     */
+    private static LongAdder[] newAdders()
+    {
+        LongAdder[] adders = new LongAdder[OUTCOMES.length];
+        for (int i = 0; i < adders.length; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Add up the counters for a recording.
+     *
+     * @param adders The counters.
+     *
+     * @return The total of all outcomes.
+     */
+    private static long total(LongAdder[] adders)
+    {
+        long total = 0L;
+        for (LongAdder adder : adders)
+        {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+
+    /**
+     * One access to a recording.
+     */
+    public static final class Access
+    {
+        /**
+         * The position of the access in the log.
+         */
+        private final long sequence;
+
+        /**
+         * When the access happened, in milliseconds since the epoch.
+         */
+        private final long time;
+
+        /**
+         * The name of the recording file.
+         */
+        private final String key;
+
+        /**
+         * How the request was answered.
+         */
+        private final Outcome outcome;
+
+        /**
+         * Constructor.
+         *
+         * @param sequence The position of the access in the log.
+         * @param key The name of the recording file.
+         * @param outcome How the request was answered.
+         */
+        Access(long sequence, String key, Outcome outcome)
+        {
+            this.sequence = sequence;
+            this.time = System.currentTimeMillis();
+            this.key = key;
+            this.outcome = outcome;
+        }
+
+        /**
+         * Get the position of the access in the log.
+         *
+         * @return The sequence number, from zero.
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * Get when the access happened.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * Get the name of the recording file asked for.
+         *
+         * @return The key.
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * Get how the request was answered.
+         *
+         * @return The outcome.
+         */
+        public Outcome getOutcome()
+        {
+            return outcome;
+        }
+
+        @Override
+        public String toString()
+        {
+            ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+            b.append("sequence", sequence);
+            b.append("key", key);
+            b.append("outcome", outcome);
+            return b.toString();
+        }
+    }
+}
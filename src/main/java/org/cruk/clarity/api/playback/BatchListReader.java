@@ -0,0 +1,224 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cruk.clarity.api.record.BatchListFormat;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+/**
+ * Reads the links from a recorded {@code Batch} file one element at a time, so
+ * a slice of the list can be read without unmarshalling (or holding) the links
+ * outside it.
+ *
+ * <p>
+ * The element name and link class come from the batch class's
+ * {@link BatchListFormat}. Batch classes whose format cannot be worked out have
+ * no reader, and their files must be unmarshalled whole.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class BatchListReader
+{
+    /**
+     * Factory for the StAX readers. DTDs and external entities are not supported.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    /**
+     * The reader for each batch class, if one can be made.
+     */
+    private static final ClassValue<Optional<BatchListReader>> READERS = new ClassValue<Optional<BatchListReader>>()
+    {
+        @Override
+        protected Optional<BatchListReader> computeValue(Class<?> batchClass)
+        {
+            BatchListFormat format = BatchListFormat.forBatchClass(batchClass);
+            return Optional.ofNullable(format == null ? null : new BatchListReader(format));
+        }
+    };
+
+    static
+    {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * The class of the links in the list.
+     */
+    private final Class<?> linkClass;
+
+    /**
+     * The local name of the link elements.
+     */
+    private final String elementName;
+
+
+    /**
+     * Constructor.
+     *
+     * @param format The structure of the batch's list files.
+     */
+    private BatchListReader(BatchListFormat format)
+    {
+        linkClass = format.getLinkClass();
+        elementName = format.getLinkName().getLocalPart();
+    }
+
+    /**
+     * Get the reader for a batch class.
+     *
+     * @param batchClass The batch class.
+     *
+     * @return The reader for files of this batch, or null if the batch's list
+     * format cannot be worked out.
+     */
+    static BatchListReader forBatchClass(Class<?> batchClass)
+    {
+        return READERS.get(batchClass).orElse(null);
+    }
+
+    /**
+     * Read links from a batch file.
+     *
+     * @param <L> The type of link.
+     *
+     * @param file The batch file.
+     * @param marshaller The JAXB marshaller, whose context is used to unmarshal the links.
+     * @param start The index of the first link to read.
+     * @param count The maximum number of links to read.
+     *
+     * @return The links in the range requested. The list is shorter than {@code count}
+     * if the file holds fewer links.
+     *
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    <L> List<L> read(File file, Jaxb2Marshaller marshaller, int start, int count) throws IOException
+    {
+        @SuppressWarnings("unchecked")
+        Class<L> type = (Class<L>)linkClass;
+
+        List<L> links = new ArrayList<>(Math.min(count, 1024));
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536))
+        {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try
+            {
+                Unmarshaller unmarshaller = marshaller.getJaxbContext().createUnmarshaller();
+
+                // Move past the root element's start.
+                reader.nextTag();
+                reader.next();
+
+                int index = 0;
+                while (links.size() < count && toNextTag(reader) == START_ELEMENT)
+                {
+                    if (!elementName.equals(reader.getLocalName()))
+                    {
+                        skipElement(reader);
+                    }
+                    else if (index++ < start)
+                    {
+                        skipElement(reader);
+                    }
+                    else
+                    {
+                        links.add(unmarshaller.unmarshal(reader, type).getValue());
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException | JAXBException e)
+        {
+            throw new IOException("Cannot read the list from " + file.getName() + ": " + e.getMessage(), e);
+        }
+
+        return links;
+    }
+
+    /**
+     * Move the reader on to the next start or end element, unless it is already on one.
+     *
+     * @param reader The reader.
+     *
+     * @return The event type the reader is on.
+     *
+     * @throws XMLStreamException if the document cannot be read.
+     */
+    private static int toNextTag(XMLStreamReader reader) throws XMLStreamException
+    {
+        int event = reader.getEventType();
+        while (event != START_ELEMENT && event != END_ELEMENT && reader.hasNext())
+        {
+            event = reader.next();
+        }
+        return event;
+    }
+
+    /**
+     * Skip the element the reader is at the start of, leaving the reader on the
+     * event after its end.
+     *
+     * @param reader The reader.
+     *
+     * @throws XMLStreamException if the document cannot be read.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = reader.next();
+            if (event == START_ELEMENT)
+            {
+                depth++;
+            }
+            else if (event == END_ELEMENT)
+            {
+                depth--;
+            }
+        }
+        reader.next();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a binary form of each recording in a cache directory, built the first
+ * time the recording is read. The XML recordings remain the source of truth: each
+ * binary file holds the path, size and modification time of the recording it was
+ * built from, and is only used while those still match. Otherwise the XML is read
+ * and the binary file rebuilt.
+ *
+ * <p>
+ * The binary form is the Java serialised form of the unmarshalled object, which is
+ * much cheaper to read back than parsing and unmarshalling the XML.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class BinaryRecordingCache
+{
+    /**
+     * Interface for the code that reads a recording from its XML.
+     */
+    @FunctionalInterface
+    interface XmlReader
+    {
+        /**
+         * Read the recording.
+         *
+         * @param recording The recording file.
+         *
+         * @return The object read from the file.
+         *
+         * @throws IOException if the file cannot be read.
+         */
+        Object read(File recording) throws IOException;
+    }
+
+    /**
+     * Marker at the start of each binary file.
+     */
+    static final String MAGIC = "CRUK-CI Clarity binary recording";
+
+    /**
+     * The version of the binary file format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Hexadecimal digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Logger.
+     */
+    private final Logger logger = LoggerFactory.getLogger(BinaryRecordingCache.class);
+
+    /**
+     * The directory holding the binary files.
+     */
+    private final File directory;
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to hold the binary files. It is created
+     * if it does not exist.
+     */
+    BinaryRecordingCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the directory holding the binary files.
+     *
+     * @return The cache directory.
+     */
+    File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Read a recording, from its binary form if that is current, otherwise from
+     * the XML (in which case the binary form is rebuilt).
+     *
+     * @param recording The recording file.
+     * @param xmlReader The code to read the recording's XML.
+     *
+     * @return The object read.
+     *
+     * @throws IOException if the recording cannot be read.
+     */
+    Object read(File recording, XmlReader xmlReader) throws IOException
+    {
+        String path = recording.getAbsolutePath();
+        long size = recording.length();
+        long lastModified = recording.lastModified();
+
+        File binary = binaryFileFor(recording, path);
+
+        if (binary.exists())
+        {
+            try
+            {
+                Object thing = readBinary(binary, path, size, lastModified);
+                if (thing != null)
+                {
+                    return thing;
+                }
+            }
+            catch (IOException | ClassNotFoundException e)
+            {
+                logger.debug("Cannot use binary form of {}: {}", recording.getName(), e.getMessage());
+            }
+        }
+
+        Object thing = xmlReader.read(recording);
+
+        try
+        {
+            writeBinary(binary, path, size, lastModified, thing);
+        }
+        catch (NotSerializableException e)
+        {
+            logger.debug("{} cannot be held in binary form.", recording.getName());
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write binary form of {}: {}", recording.getName(), e.getMessage());
+        }
+
+        return thing;
+    }
+
+    /**
+     * Read the object from a binary file if it was built from the recording as it is now.
+     *
+     * @param binary The binary file.
+     * @param path The absolute path of the recording.
+     * @param size The size of the recording.
+     * @param lastModified The modification time of the recording.
+     *
+     * @return The object, or null if the binary file is stale.
+     *
+     * @throws IOException if the binary file cannot be read.
+     * @throws ClassNotFoundException if a class in the binary file is not available.
+     */
+    private Object readBinary(File binary, String path, long size, long lastModified)
+    throws IOException, ClassNotFoundException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binary), 16384)))
+        {
+            if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+            {
+                return null;
+            }
+            if (!path.equals(in.readUTF()) || in.readLong() != size || in.readLong() != lastModified)
+            {
+                return null;
+            }
+            return PlaybackSnapshot.deserialise(in);
+        }
+    }
+
+    /**
+     * Write the binary form of a recording. The file is written under a temporary
+     * name and moved into place, so concurrent readers never see a partial file.
+     *
+     * @param binary The binary file.
+     * @param path The absolute path of the recording.
+     * @param size The size of the recording.
+     * @param lastModified The modification time of the recording.
+     * @param thing The object read from the recording.
+     *
+     * @throws IOException if the binary file cannot be written.
+     */
+    private void writeBinary(File binary, String path, long size, long lastModified, Object thing) throws IOException
+    {
+        byte[] data = PlaybackSnapshot.serialise(thing);
+
+        Files.createDirectories(directory.toPath());
+
+        File temp = Files.createTempFile(directory.toPath(), "." + binary.getName(), ".tmp").toFile();
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16384)))
+            {
+                out.writeUTF(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(path);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+                out.write(data);
+            }
+
+            Files.move(temp.toPath(), binary.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Get the binary file for a recording. The name is the recording's name plus
+     * part of a digest of its absolute path, so recordings of the same name in
+     * different directories do not share a binary file.
+     *
+     * @param recording The recording file.
+     * @param path The absolute path of the recording.
+     *
+     * @return The binary file.
+     */
+    private File binaryFileFor(File recording, String path)
+    {
+        byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256").digest(path.getBytes(UTF_8));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AssertionError("SHA-256 is not available.", e);
+        }
+
+        StringBuilder name = new StringBuilder(recording.getName().length() + 22);
+        name.append(recording.getName()).append('.');
+        for (int i = 0; i < 8; i++)
+        {
+            name.append(HEX[(digest[i] >> 4) & 0xF]).append(HEX[digest[i] & 0xF]);
+        }
+        name.append(".bin");
+
+        return new File(directory, name.toString());
+    }
+}
@@ -19,41 +19,65 @@
 package org.cruk.clarity.api.playback;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-import static org.cruk.clarity.api.record.ClarityAPIRecordingAspect.FILENAME_PATTERN;
-import static org.cruk.clarity.api.record.ClarityAPIRecordingAspect.limsIdFromObject;
-import static org.cruk.clarity.api.record.ClarityAPIRecordingAspect.limsIdFromUri;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.MessageFormat;
-import java.text.NumberFormat;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
-import org.apache.commons.lang3.ClassUtils;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Aspect;
 import org.cruk.clarity.api.ClarityAPI;
 import org.cruk.clarity.api.ClarityException;
 import org.cruk.clarity.api.InvalidURIException;
 import org.cruk.clarity.api.impl.ClarityAPIInternal;
+import org.cruk.clarity.api.metrics.AspectEvent;
+import org.cruk.clarity.api.metrics.AspectMetrics;
+import org.cruk.clarity.api.metrics.AspectMetrics.Operation;
+import org.cruk.clarity.api.metrics.AspectMetrics.Outcome;
+import org.cruk.clarity.api.metrics.EntityLoadEvent;
+import org.cruk.clarity.api.metrics.EntityWriteEvent;
+import org.cruk.clarity.api.metrics.ListLoadEvent;
+import org.cruk.clarity.api.metrics.SearchLoadEvent;
+import org.cruk.clarity.api.record.AccessTrace;
+import org.cruk.clarity.api.record.ClarityAPIRecordingAspect;
+import org.cruk.clarity.api.record.ListRanges;
+import org.cruk.clarity.api.record.LoadAllManifest;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingLayout;
 import org.cruk.clarity.api.search.Search;
 import org.cruk.clarity.api.search.SearchTerms;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
@@ -71,22 +95,23 @@ import com.thoughtworks.xstream.XStreamException;
  * of entities as would be returned from a real Clarity server.
  */
 @Aspect
-public class ClarityAPIPlaybackAspect
+public class ClarityAPIPlaybackAspect implements InitializingBean, DisposableBean
 {
     /**
-     * Formatter for the version of entities saved.
+     * An object to synchronized on while finding a version of a file to use.
      */
-    private static final NumberFormat VERSION_FORMAT = NumberFormat.getIntegerInstance();
+    private static final Object FILE_ALLOCATION_LOCK = new Object();
 
     /**
-     * Template for the file name pattern for updated entities.
+     * The start of the name of every search file.
      */
-    private static final String UPDATE_FILENAME_PATTERN = "{0}-{1}.{2}.xml";
+    private static final String SEARCH_FILE_PREFIX =
+            Search.SEARCH_FILE_PATTERN.substring(0, Search.SEARCH_FILE_PATTERN.indexOf('{'));
 
     /**
-     * An object to synchronized on while finding a version of a file to use.
+     * The most missing recordings remembered before the set of misses is cleared.
      */
-    private static final Object FILE_ALLOCATION_LOCK = new Object();
+    private static final int MAX_REMEMBERED_MISSES = 100000;
 
     /**
      * Logger.
@@ -98,6 +123,13 @@ public class ClarityAPIPlaybackAspect
      */
     private File messageDirectory;
 
+    /**
+     * The layout of the recordings in the message directory.
+     *
+     * @since 2.31.7
+     */
+    private volatile RecordingLayout layout = RecordingLayout.FLAT;
+
     /**
      * The directory to write updated entities to.
      */
@@ -111,6 +143,154 @@ public class ClarityAPIPlaybackAspect
      */
     private boolean failOnMissingSearch = false;
 
+    /**
+     * Whether to remember the recordings found to be missing, so later requests
+     * for them are answered without looking at the file system.
+     *
+     * @since 2.31.7
+     */
+    private boolean rememberMisses = false;
+
+    /**
+     * Whether the exceptions signalling a missing recording are created without
+     * stack traces.
+     *
+     * @since 2.31.7
+     */
+    private boolean stacklessMisses = false;
+
+    /**
+     * Whether {@code loadAll} calls are answered from their manifests when
+     * there are some.
+     *
+     * @since 2.31.7
+     */
+    private boolean useLoadAllManifests = true;
+
+    /**
+     * Whether to load the recordings into the cache when the aspect is
+     * initialised by Spring.
+     *
+     * @since 2.31.7
+     */
+    private boolean warmUpOnStartup = false;
+
+    /**
+     * The types of entity to load when warming up on start up. If null or empty,
+     * all the recordings are loaded.
+     *
+     * @since 2.31.7
+     */
+    private Collection<Class<?>> warmUpTypes;
+
+    /**
+     * A binary image of the cache to restore from on start up and to update
+     * after warming up.
+     *
+     * @since 2.31.7
+     */
+    private File snapshotFile;
+
+    /**
+     * Keeps binary forms of the recordings, built from the XML on first read.
+     * Null when binary caching is off.
+     *
+     * @since 2.31.7
+     */
+    private volatile BinaryRecordingCache binaryCache;
+
+    /**
+     * An access trace written by the recording aspect, used to read recordings
+     * before they are requested.
+     *
+     * @since 2.31.7
+     */
+    private volatile File prefetchTraceFile;
+
+    /**
+     * The number of accesses ahead in the trace to prefetch.
+     *
+     * @since 2.31.7
+     */
+    private int prefetchWindow = 32;
+
+    /**
+     * Whether to start loading the entities returned by a search as soon as
+     * the search is replayed.
+     *
+     * @since 2.31.7
+     */
+    private boolean prefetchSearchResults = false;
+
+    /**
+     * The number of threads used to prefetch recordings.
+     *
+     * @since 2.31.7
+     */
+    private int prefetchThreads = 2;
+
+    /**
+     * The total size of the recording files that may be held in memory
+     * before prefetching stops and recordings read on demand are no longer
+     * kept.
+     *
+     * @since 2.31.7
+     */
+    private long prefetchMaxBytes = 64L * 1024L * 1024L;
+
+    /**
+     * Recordings that have been unmarshalled ahead of being requested.
+     */
+    private final PlaybackCache cache = new PlaybackCache();
+
+    /**
+     * The names of the recording files found to be missing, when misses
+     * are remembered.
+     */
+    private final Set<String> knownMissing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The classes of cached objects found not to be copyable by {@link EntityCopier},
+     * which are copied through XML without trying it again.
+     */
+    private final Set<Class<?>> xmlCopiedClasses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The prefetcher loading recordings ahead along the access trace.
+     */
+    private volatile TracePrefetcher tracePrefetcher;
+
+    /**
+     * The background loader used by the trace prefetcher.
+     */
+    private EntityPrefetcher traceLoader;
+
+    /**
+     * The background loader for the results of searches.
+     */
+    private EntityPrefetcher searchResultLoader;
+
+    /**
+     * The metrics for the calls handled, or null if metrics are off.
+     *
+     * @since 2.31.7
+     */
+    private volatile AspectMetrics metrics;
+
+    /**
+     * The log of the recordings asked for, or null if accesses are not being logged.
+     *
+     * @since 2.31.7
+     */
+    private volatile AccessLog accessLog;
+
+    /**
+     * The file to write the coverage report to when the aspect is destroyed.
+     *
+     * @since 2.31.7
+     */
+    private File coverageReportFile;
+
     /**
      * The JAXB marshaller used to directly unmarshal the XML files into objects.
      */
@@ -134,15 +314,6 @@ public class ClarityAPIPlaybackAspect
     private XStream xstream;
 
 
-    /**
-     * Static initialiser. Set up VERSION_FORMAT.
-     */
-    static
-    {
-        VERSION_FORMAT.setGroupingUsed(false);
-        VERSION_FORMAT.setMinimumIntegerDigits(3);
-    }
-
     /**
      * Constructor.
      */
@@ -180,6 +351,23 @@ public class ClarityAPIPlaybackAspect
     public void setMessageDirectory(File messageDirectory)
     {
         this.messageDirectory = messageDirectory;
+        this.layout = RecordingLayout.detect(messageDirectory);
+        forgetMisses();
+    }
+
+    /**
+     * Get the layout of the recordings in the message directory. This is worked
+     * out when the message directory is set.
+     *
+     * @return The layout.
+     *
+     * @see RecordingLayout#detect(File)
+     *
+     * @since 2.31.7
+     */
+    public RecordingLayout getLayout()
+    {
+        return layout;
     }
 
     /**
@@ -236,362 +424,1977 @@ public class ClarityAPIPlaybackAspect
     }
 
     /**
-     * Inject the JAXB marshaller. This is required.
+     * Whether recordings found to be missing are remembered.
      *
-     * @param jaxbMarshaller The marshaller.
+     * @return true if misses are remembered.
+     *
+     * @since 2.31.7
      */
-    @Autowired
-    @Qualifier("clarityJaxbMarshaller")
-    public void setJaxbMarshaller(Jaxb2Marshaller jaxbMarshaller)
+    public boolean isRememberMisses()
     {
-        this.jaxbMarshaller = jaxbMarshaller;
+        return rememberMisses;
     }
 
     /**
-     * Set the public interface access to the API.
+     * Set whether to remember the recordings found to be missing. When set, an
+     * entity, search or list that has no recording is only looked for on disk once;
+     * later requests for it fail straight away. Recordings added to the message
+     * directory after a miss are not seen until {@link #forgetMiss(String)} or
+     * {@link #forgetMisses()} is called, or the message directory is changed.
      *
-     * @param api The API bean, through its public interface.
+     * @param rememberMisses true to remember misses.
+     *
+     * @since 2.31.7
      */
-    @Autowired
-    @Qualifier("clarityAPI")
-    public void setClarityAPI(ClarityAPI api)
+    public void setRememberMisses(boolean rememberMisses)
     {
-        this.api = api;
+        this.rememberMisses = rememberMisses;
+        if (!rememberMisses)
+        {
+            forgetMisses();
+        }
     }
 
     /**
-     * Set the internal interface access to the API.
+     * Whether the exceptions signalling a missing recording have stack traces.
      *
-     * @param internalApi The API bean, but through its internal interface.
+     * @return true if misses are signalled without stack traces.
+     *
+     * @since 2.31.7
      */
-    @Autowired
-    @Qualifier("clarityAPI")
-    public void setInternalClarityAPI(ClarityAPIInternal internalApi)
+    public boolean isStacklessMisses()
     {
-        this.apiInternal = internalApi;
+        return stacklessMisses;
     }
 
     /**
-     * Join point around the Spring REST client's {@code getForObject()} methods.
-     * Looks for a file named with the required class's short name (no package) plus
-     * either its LIMS id (if there is one) or the identifier given at the end of
-     * the path of the URI.
-     *
-     * @param pjp The join point.
-     * @return The unmarshalled entity from the file found.
+     * Set whether the {@code NoRecordingException}s and not found {@code ClarityException}s
+     * thrown for missing recordings are created without stack traces. This makes
+     * misses much cheaper when a replay expects many of them, at the cost of the
+     * exceptions not showing where they were thrown from.
      *
-     * @throws NoRecordingException if there is no file recorded for the object.
+     * @param stacklessMisses true to create miss exceptions without stack traces.
      *
-     * @throws Throwable if there is anything else that fails.
+     * @since 2.31.7
      */
-    public Object doGet(ProceedingJoinPoint pjp) throws Throwable
+    public void setStacklessMisses(boolean stacklessMisses)
     {
-        Object uriObj = pjp.getArgs()[0];
-        Class<?> type = (Class<?>)pjp.getArgs()[1];
-
-        File file = getFileForEntity(type, uriObj);
-
-        if (!file.exists())
-        {
-            throw new NoRecordingException("There is no file " + file.getName() + " recorded.");
-        }
-
-        Object thing = jaxbMarshaller.unmarshal(new StreamSource(file));
-
-        return thing;
+        this.stacklessMisses = stacklessMisses;
     }
 
     /**
-     * Join point around the Spring REST client's {@code getForEntity()} methods.
-     * Works as {@link #doGet(ProceedingJoinPoint)}, except rather than throwing a
-     * {@code NoRecordingException}, it throws a {@code ClarityException} with a
-     * not found status. This is what would happen if the call was made to a real
-     * API.
+     * Whether {@code loadAll} calls are answered from their manifests when
+     * there are some.
      *
-     * @param pjp The join point.
+     * @return true if manifests are used.
      *
-     * @return A ResponseEntity object containing the unmarshalled entity and an "OK"
-     * code if the file exists.
+     * @since 2.31.7
+     */
+    public boolean isUseLoadAllManifests()
+    {
+        return useLoadAllManifests;
+    }
+
+    /**
+     * Set whether {@code loadAll} calls are answered from their manifests when
+     * there are some. A manifest is only used for exactly the links it was
+     * recorded for; any other call loads the entities one at a time. The
+     * default is to use them.
      *
-     * @throws ClarityException with a "not found" status if there is no recorded
-     * file for the entity.
+     * @param useLoadAllManifests true to use manifests.
      *
-     * @throws Throwable if there is anything that fails.
+     * @see LoadAllManifest
+     *
+     * @since 2.31.7
      */
-    public ResponseEntity<?> doGetEntity(ProceedingJoinPoint pjp) throws Throwable
+    public void setUseLoadAllManifests(boolean useLoadAllManifests)
     {
-        ResponseEntity<?> response;
-        try
-        {
-            Object thing = doGet(pjp);
-
-            response = new ResponseEntity<Object>(thing, HttpStatus.OK);
-        }
-        catch (NoRecordingException e)
-        {
-            com.genologics.ri.exception.Exception ce = new com.genologics.ri.exception.Exception();
-            ce.setCode(HttpStatus.NOT_FOUND.name());
-            ce.setMessage(e.getMessage());
-            throw new ClarityException(ce, HttpStatus.NOT_FOUND);
-        }
-
-        return response;
+        this.useLoadAllManifests = useLoadAllManifests;
     }
 
     /**
-     * Join point around calls to the API's {@code loadAll} method. Iterates
-     * through the links asking the API for them individually, before returning
-     * a collection of the entities.
+     * Whether the recordings will be loaded into memory when the aspect is
+     * initialised, rather than on first access.
      *
-     * <p>
-     * This slightly convoluted route allows the cache to return cache hits
-     * if it is in use. The actual loading, when there is a cache miss, comes
-     * from the call coming through this object again but via the
-     * {@link #doGet(ProceedingJoinPoint)} method, which loads the entity from
-     * file.
-     * </p>
+     * @return true if the aspect warms up on start up, false if not.
      *
-     * @param pjp The join point.
+     * @see #warmUp(Collection)
      *
-     * @return A list of the entities loaded from the links.
+     * @since 2.31.7
+     */
+    public boolean isWarmUpOnStartup()
+    {
+        return warmUpOnStartup;
+    }
+
+    /**
+     * Set whether the recordings will be loaded into memory when the aspect is
+     * initialised by Spring. The message directory must be set in the Spring
+     * configuration for this to be useful.
      *
-     * @throws NoRecordingException if there is no entity file recorded for any of the links.
+     * @param warmUpOnStartup true to warm up on start up, false to not.
      *
-     * @throws Throwable if there is anything else that fails.
+     * @since 2.31.7
      */
-    public List<?> doLoadAll(ProceedingJoinPoint pjp) throws Throwable
+    public void setWarmUpOnStartup(boolean warmUpOnStartup)
     {
-        Collection<?> links = (Collection<?>)pjp.getArgs()[0];
-        List<Object> replies = new ArrayList<Object>(links.size());
-        Iterator<?> iter = links.iterator();
-        while (iter.hasNext())
-        {
-            LimsLink<?> link = (LimsLink<?>)iter.next();
-
-            // Call through to the API again for this link only.
-            // This will come through this class again, but through the doGet interceptors.
-            // It will also go through the cache too.
-            replies.add(api.load(link));
-        }
-        return replies;
+        this.warmUpOnStartup = warmUpOnStartup;
     }
 
     /**
-     * Join point around the Clarity client's {@code find()} method. Tries to find
-     * a prerecorded search in the search directory that matches the search parameters
-     * of this call.
-     *
-     * @param <E> The type of entity being searched for.
+     * Get the types of entity that are loaded when warming up on start up.
      *
-     * @param pjp The join point.
+     * @return The entity types, or null for all recordings.
      *
-     * @return The result of the search (a list of links).
+     * @since 2.31.7
+     */
+    public Collection<Class<?>> getWarmUpTypes()
+    {
+        return warmUpTypes;
+    }
+
+    /**
+     * Set the types of entity that are loaded when warming up on start up.
      *
-     * @throws NoRecordingException if there is no search recorded for the parameters
-     * given and the aspect is set to fail on no recorded search.
+     * @param warmUpTypes The entity types to load. Null or an empty collection
+     * means load all the recordings, including searches and lists.
      *
-     * @throws Throwable if there is anything else that fails.
+     * @since 2.31.7
      */
-    public <E extends Locatable> List<LimsLink<E>> doFind(ProceedingJoinPoint pjp) throws Throwable
+    public void setWarmUpTypes(Collection<Class<?>> warmUpTypes)
     {
-        @SuppressWarnings("unchecked")
-        Map<String, ?> searchTerms = (Map<String, ?>)pjp.getArgs()[0];
-
-        @SuppressWarnings("unchecked")
-        Class<E> entityClass = (Class<E>)pjp.getArgs()[1];
-
-        SearchTerms<E> terms = new SearchTerms<>(searchTerms, entityClass);
-
-        Search<E> search = loadSearch(terms);
-
-        if (search != null)
-        {
-            return search.getResults();
-        }
-
-        if (failOnMissingSearch)
-        {
-            throw new NoRecordingException("There is no recorded search with the parameters given:\n" + searchTerms);
-        }
-        else
-        {
-            return Collections.emptyList();
-        }
+        this.warmUpTypes = warmUpTypes;
     }
 
     /**
-     * Join point around the {@code listAll} and {@code listSome} methods load the list
-     * of links from a serialised {@code Batch} object in XML file in the messages directory.
+     * Get the cache snapshot image file used on start up.
      *
-     * <p>
-     * No reference is made to the numbers in the {@code listSome} parameters. All the links
-     * stored in the file are returned regardless.
-     * </p>
+     * @return The snapshot image file, or null if one is not used.
      *
-     * @param <E> The type of entity to list.
-     * @param <L> The type of link to the entity returned from the API.
-     * @param <BH> The batch class that is used to hold the links returned from the API.
+     * @since 2.31.7
+     */
+    public File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    /**
+     * Set the cache snapshot image file used on start up. If the file exists when
+     * the aspect is initialised, the entries in it that are still current are restored
+     * into the cache. Then, if the aspect warms up on start up and that loads anything
+     * not in the image, the image is rewritten with the full cache.
      *
-     * @param pjp The join point.
-     * @return The result of the search (a list of links). If there was no file recorded
-     * for a list of these entities, an empty list is returned.
+     * @param snapshotFile The snapshot image file. Null for no snapshot.
      *
-     * @throws NoRecordingException if there is no list recorded for this type of entity.
+     * @see #restoreSnapshot(File)
+     * @see #writeSnapshot(File)
      *
-     * @throws Throwable if there is an error invoking the underlying method.
+     * @since 2.31.7
      */
-    public <E extends Locatable, L extends LimsLink<E>, BH extends Batch<L>>
-    List<L> doList(ProceedingJoinPoint pjp) throws Throwable
+    public void setSnapshotFile(File snapshotFile)
     {
-        @SuppressWarnings("unchecked")
-        Class<E> entityClass = (Class<E>)pjp.getArgs()[0];
-
-        Class<BH> batchClass = apiInternal.getQueryResultsClassForEntity(entityClass);
-
-        List<L> list = Collections.emptyList();
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Get the directory holding the binary forms of the recordings.
+     *
+     * @return The binary cache directory, or null if binary caching is off.
+     *
+     * @since 2.31.7
+     */
+    public File getBinaryCacheDirectory()
+    {
+        BinaryRecordingCache current = binaryCache;
+        return current == null ? null : current.getDirectory();
+    }
+
+    /**
+     * Set the directory to hold the binary forms of the recordings. When set, the
+     * first read of a recording stores its unmarshalled object in serialised form
+     * in this directory, and later reads (in this or later runs) use that rather than
+     * parsing the XML. A binary form is only used while the recording's path, size and
+     * modification time match those it was built from, so editing a recording
+     * makes the next read go back to the XML.
+     *
+     * @param binaryCacheDirectory The binary cache directory. Null to turn binary
+     * caching off.
+     *
+     * @since 2.31.7
+     */
+    public void setBinaryCacheDirectory(File binaryCacheDirectory)
+    {
+        binaryCache = binaryCacheDirectory == null ? null : new BinaryRecordingCache(binaryCacheDirectory);
+    }
+
+    /**
+     * Get the access trace used to prefetch recordings.
+     *
+     * @return The trace file, or null if trace driven prefetching is off.
+     *
+     * @since 2.31.7
+     */
+    public File getPrefetchTraceFile()
+    {
+        return prefetchTraceFile;
+    }
+
+    /**
+     * Set an access trace, as written by the recording aspect, to follow during
+     * playback. As each recording is served, those that follow it in the trace (up to
+     * the prefetch window) are unmarshalled on background threads so they are ready
+     * when asked for.
+     *
+     * @param prefetchTraceFile The trace file. Null turns off trace driven prefetching.
+     *
+     * @see ClarityAPIRecordingAspect#setTraceFile(File)
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setPrefetchTraceFile(File prefetchTraceFile)
+    {
+        stopTracePrefetch();
+        this.prefetchTraceFile = prefetchTraceFile;
+    }
+
+    /**
+     * Get the number of accesses ahead in the trace that are prefetched.
+     *
+     * @return The look ahead window.
+     *
+     * @since 2.31.7
+     */
+    public int getPrefetchWindow()
+    {
+        return prefetchWindow;
+    }
+
+    /**
+     * Set the number of accesses ahead in the trace that are prefetched.
+     * Takes effect when the trace is next started.
+     *
+     * @param prefetchWindow The look ahead window. Must be at least one.
+     *
+     * @since 2.31.7
+     */
+    public void setPrefetchWindow(int prefetchWindow)
+    {
+        if (prefetchWindow < 1)
+        {
+            throw new IllegalArgumentException("The prefetch window must be at least one.");
+        }
+        this.prefetchWindow = prefetchWindow;
+    }
+
+    /**
+     * Whether the entities linked from the results of a search start loading
+     * as soon as the search is replayed.
+     *
+     * @return true if search results are prefetched, false if not.
+     *
+     * @since 2.31.7
+     */
+    public boolean isPrefetchSearchResults()
+    {
+        return prefetchSearchResults;
+    }
+
+    /**
+     * Set whether the entities linked from the results of a search start loading
+     * in the background as soon as the search is replayed. Calling code almost always
+     * loads the entities found by a search, so this means those loads find the entities
+     * already unmarshalled. The number of concurrent loads is limited by
+     * {@link #setPrefetchThreads(int)} and the memory used by
+     * {@link #setPrefetchMaxBytes(long)}.
+     *
+     * @param prefetchSearchResults true to prefetch search results, false to not.
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setPrefetchSearchResults(boolean prefetchSearchResults)
+    {
+        this.prefetchSearchResults = prefetchSearchResults;
+        if (!prefetchSearchResults && searchResultLoader != null)
+        {
+            searchResultLoader.shutdown();
+            searchResultLoader = null;
+        }
+    }
+
+    /**
+     * Get the number of threads used for prefetching.
+     *
+     * @return The number of prefetch threads.
+     *
+     * @since 2.31.7
+     */
+    public int getPrefetchThreads()
+    {
+        return prefetchThreads;
+    }
+
+    /**
+     * Set the number of threads used for prefetching.
+     * Takes effect when prefetching next starts.
+     *
+     * @param prefetchThreads The number of prefetch threads. Must be at least one.
+     *
+     * @since 2.31.7
+     */
+    public void setPrefetchThreads(int prefetchThreads)
+    {
+        if (prefetchThreads < 1)
+        {
+            throw new IllegalArgumentException("Prefetching needs at least one thread.");
+        }
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    /**
+     * Get the total size of recording files that may be held in memory before
+     * prefetching stops.
+     *
+     * @return The limit in bytes of source XML.
+     *
+     * @since 2.31.7
+     */
+    public long getPrefetchMaxBytes()
+    {
+        return prefetchMaxBytes;
+    }
+
+    /**
+     * Set the total size of recording files that may be held in memory before
+     * prefetching stops. Recordings read when they are asked for are also kept
+     * in memory, so later requests for them need only copy the held object, until
+     * this limit is reached. The size of the source files is used as a guide to the
+     * memory the unmarshalled objects need.
+     *
+     * @param prefetchMaxBytes The limit in bytes of source XML.
+     *
+     * @since 2.31.7
+     */
+    public void setPrefetchMaxBytes(long prefetchMaxBytes)
+    {
+        this.prefetchMaxBytes = prefetchMaxBytes;
+    }
+
+    /**
+     * Whether metrics are being collected.
+     *
+     * @return true if metrics are on.
+     *
+     * @since 2.31.7
+     */
+    public boolean isMetricsEnabled()
+    {
+        return metrics != null;
+    }
+
+    /**
+     * Set whether to collect metrics on the calls played back and publish them
+     * through JMX. The default is off, which costs nothing beyond a null check
+     * per call.
+     *
+     * @param metricsEnabled true to collect metrics.
+     *
+     * @see AspectMetrics
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setMetricsEnabled(boolean metricsEnabled)
+    {
+        if (metricsEnabled && metrics == null)
+        {
+            AspectMetrics m = new AspectMetrics(this);
+            m.addQueue("tracePrefetch", () -> queueDepth(traceLoader));
+            m.addQueue("searchResultPrefetch", () -> queueDepth(searchResultLoader));
+            m.register();
+            metrics = m;
+        }
+        else if (!metricsEnabled && metrics != null)
+        {
+            metrics.unregister();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Get the metrics being collected.
+     *
+     * @return The metrics, or null if metrics are off.
+     *
+     * @since 2.31.7
+     */
+    public AspectMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Whether the recordings asked for are being logged.
+     *
+     * @return true if accesses are logged.
+     *
+     * @since 2.31.7
+     */
+    public boolean isAccessLogEnabled()
+    {
+        return accessLog != null;
+    }
+
+    /**
+     * Set whether to log the recordings asked for, so a coverage report can be made
+     * at the end of the run. The default is off. Turning the log off discards it.
+     *
+     * @param accessLogEnabled true to log accesses.
+     *
+     * @see #coverageReport()
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setAccessLogEnabled(boolean accessLogEnabled)
+    {
+        if (accessLogEnabled && accessLog == null)
+        {
+            accessLog = new AccessLog();
+        }
+        else if (!accessLogEnabled)
+        {
+            accessLog = null;
+        }
+    }
+
+    /**
+     * Get the log of the recordings asked for.
+     *
+     * @return The access log, or null if accesses are not being logged.
+     *
+     * @since 2.31.7
+     */
+    public AccessLog getAccessLog()
+    {
+        return accessLog;
+    }
+
+    /**
+     * Get the file the coverage report is written to when the aspect is destroyed.
+     *
+     * @return The report file, or null if no report is written.
+     *
+     * @since 2.31.7
+     */
+    public File getCoverageReportFile()
+    {
+        return coverageReportFile;
+    }
+
+    /**
+     * Set the file to write a coverage report to when the aspect is destroyed
+     * (normally when the Spring context closes). Setting a file turns on the
+     * access log.
+     *
+     * @param coverageReportFile The report file. Null for no report.
+     *
+     * @see CoverageReport
+     *
+     * @since 2.31.7
+     */
+    public void setCoverageReportFile(File coverageReportFile)
+    {
+        this.coverageReportFile = coverageReportFile;
+        if (coverageReportFile != null)
+        {
+            setAccessLogEnabled(true);
+        }
+    }
+
+    /**
+     * Inject the JAXB marshaller. This is required.
+     *
+     * @param jaxbMarshaller The marshaller.
+     */
+    @Autowired
+    @Qualifier("clarityJaxbMarshaller")
+    public void setJaxbMarshaller(Jaxb2Marshaller jaxbMarshaller)
+    {
+        this.jaxbMarshaller = jaxbMarshaller;
+    }
+
+    /**
+     * Set the public interface access to the API.
+     *
+     * @param api The API bean, through its public interface.
+     */
+    @Autowired
+    @Qualifier("clarityAPI")
+    public void setClarityAPI(ClarityAPI api)
+    {
+        this.api = api;
+    }
+
+    /**
+     * Set the internal interface access to the API.
+     *
+     * @param internalApi The API bean, but through its internal interface.
+     */
+    @Autowired
+    @Qualifier("clarityAPI")
+    public void setInternalClarityAPI(ClarityAPIInternal internalApi)
+    {
+        this.apiInternal = internalApi;
+    }
+
+    /**
+     * Called by Spring once the aspect has been configured. Warms up the cache
+     * if this aspect is set to do so.
+     *
+     * @see #setWarmUpOnStartup(boolean)
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (snapshotFile != null && snapshotFile.exists())
+        {
+            try
+            {
+                restoreSnapshot(snapshotFile);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot restore cache snapshot {}: {}", snapshotFile.getAbsolutePath(), e.getMessage());
+            }
+        }
+        if (warmUpOnStartup)
+        {
+            WarmUpReport report = warmUp(warmUpTypes);
+
+            if (snapshotFile != null && report.getFilesLoaded() > 0)
+            {
+                try
+                {
+                    writeSnapshot(snapshotFile);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Cannot write cache snapshot {}: {}", snapshotFile.getAbsolutePath(), e.getMessage());
+                }
+            }
+        }
+        if (prefetchTraceFile != null)
+        {
+            startTracePrefetch();
+        }
+    }
+
+    /**
+     * Called by Spring when the context is closed. Stops any background
+     * prefetching, removes the metrics from JMX and writes the coverage report
+     * if one is wanted.
+     */
+    @Override
+    public void destroy()
+    {
+        stopTracePrefetch();
+        setPrefetchSearchResults(false);
+        setMetricsEnabled(false);
+
+        if (coverageReportFile != null && accessLog != null)
+        {
+            try
+            {
+                CoverageReport report = coverageReport();
+                report.write(coverageReportFile);
+                logger.info("Playback used {} of {} recordings. {} asked for were not recorded. Report in {}.",
+                            report.getUsed().size(), report.getRecordingCount(), report.getMissing().size(),
+                            coverageReportFile.getAbsolutePath());
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot write coverage report {}: {}", coverageReportFile.getAbsolutePath(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compare the recordings asked for with those in the message directory.
+     * Requires the access log to be on.
+     *
+     * @return The coverage of the recordings by this run, or null if accesses
+     * are not being logged.
+     *
+     * @throws IOException if the message directory cannot be read.
+     *
+     * @see #setAccessLogEnabled(boolean)
+     *
+     * @since 2.31.7
+     */
+    public CoverageReport coverageReport() throws IOException
+    {
+        AccessLog log = accessLog;
+        if (log == null)
+        {
+            return null;
+        }
+
+        File[] files = listRecordingFiles(Collections.emptySet());
+        if (files == null)
+        {
+            throw new IOException("Cannot read message directory " + messageDirectory.getAbsolutePath());
+        }
+
+        List<String> recordings = new ArrayList<>(files.length);
+        for (File file : files)
+        {
+            recordings.add(file.getName());
+        }
+        return new CoverageReport(recordings, log);
+    }
+
+    /**
+     * Load all the recordings in the message directory into memory.
+     *
+     * @return A report of the time taken and memory used.
+     *
+     * @see #warmUp(Collection)
+     *
+     * @since 2.31.7
+     */
+    public WarmUpReport warmUp()
+    {
+        return warmUp(null);
+    }
+
+    /**
+     * Load recordings in the message directory into memory, so the first requests
+     * for them do not pay the cost of reading and unmarshalling the files. The files
+     * are read in parallel using all the available processors.
+     *
+     * <p>
+     * The objects loaded are kept in memory and each request for one is given
+     * a copy of it, so changes made by the client code are never seen by later
+     * requests. Recordings already in memory (for example from a restored snapshot)
+     * are not read again.
+     * </p>
+     *
+     * @param types The types of entity to load. If null or empty, all the recordings
+     * are loaded, including searches and lists. Otherwise only the entity recordings
+     * of the given types are loaded.
+     *
+     * @return A report of the time taken and memory used.
+     *
+     * @since 2.31.7
+     */
+    public WarmUpReport warmUp(Collection<Class<?>> types)
+    {
+        Set<String> prefixes = new HashSet<>();
+        if (types != null)
+        {
+            for (Class<?> type : types)
+            {
+                prefixes.add(RecordingFileNames.prefixFor(type));
+            }
+        }
+
+        File[] files = listRecordingFiles(prefixes);
+        if (files == null)
+        {
+            logger.warn("Message directory {} cannot be read. Nothing to warm up.", messageDirectory.getAbsolutePath());
+            return new WarmUpReport(0, 0, 0L, 0L, 0L);
+        }
+
+        LongAdder loaded = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder bytes = new LongAdder();
+
+        Runtime runtime = Runtime.getRuntime();
+        long memoryBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(runtime.availableProcessors());
+        try
+        {
+            pool.submit(() -> Arrays.stream(files).parallel().forEach(file ->
+            {
+                if (cache.contains(file.getName()))
+                {
+                    return;
+                }
+                try
+                {
+                    long size = file.length();
+                    long lastModified = file.lastModified();
+                    cache.put(file.getName(), readRecording(file), size, lastModified);
+                    loaded.increment();
+                    bytes.add(size);
+                }
+                catch (Exception e)
+                {
+                    failed.increment();
+                    logger.warn("Could not load {} during warm up: {}", file.getName(), e.getMessage());
+                }
+            })).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Warm up failed: {}", e.getCause().getMessage());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long memoryAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        WarmUpReport report = new WarmUpReport(loaded.intValue(), failed.intValue(), bytes.sum(),
+                                               elapsed, memoryAfter - memoryBefore);
+
+        logger.info("Warmed up {} recordings ({} bytes) in {}ms using about {} bytes of memory. {} failed.",
+                    report.getFilesLoaded(), report.getBytesRead(), report.getElapsedMillis(),
+                    report.getMemoryUsed(), report.getFailures());
+
+        return report;
+    }
+
+    /**
+     * Write the recordings currently held in memory to a binary image file. A later
+     * run can restore the image much faster than unmarshalling the recordings again.
+     * The image records the size and modification time of each recording file so stale
+     * entries are not restored. Typically this is called straight after {@link #warmUp()}.
+     *
+     * @param image The image file to write.
+     *
+     * @return The number of recordings written to the image.
+     *
+     * @throws IOException if the image cannot be written.
+     *
+     * @since 2.31.7
+     */
+    public int writeSnapshot(File image) throws IOException
+    {
+        long start = System.nanoTime();
+        int written = PlaybackSnapshot.write(image, cache);
+        logger.info("Wrote {} recordings to snapshot {} in {}ms.", written, image.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return written;
+    }
+
+    /**
+     * Restore recordings into memory from a binary image file written by
+     * {@link #writeSnapshot(File)}. Entries for recording files that have changed
+     * or been removed since the image was written are ignored.
+     *
+     * @param image The image file to read.
+     *
+     * @return The number of recordings restored.
+     *
+     * @throws IOException if the image cannot be read or is not a snapshot image.
+     *
+     * @since 2.31.7
+     */
+    public int restoreSnapshot(File image) throws IOException
+    {
+        long start = System.nanoTime();
+        int restored = PlaybackSnapshot.restore(image, cache, this::recordingFile);
+        logger.info("Restored {} recordings from snapshot {} in {}ms.", restored, image.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return restored;
+    }
+
+    /**
+     * Discard any recordings held in memory.
+     *
+     * @since 2.31.7
+     */
+    public void clearCache()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Forget that a recording was found to be missing, so the next request for
+     * it looks for the file again.
+     *
+     * @param fileName The name of the recording file.
+     *
+     * @see #setRememberMisses(boolean)
+     *
+     * @since 2.31.7
+     */
+    public void forgetMiss(String fileName)
+    {
+        knownMissing.remove(fileName);
+    }
+
+    /**
+     * Forget all the recordings found to be missing.
+     *
+     * @see #setRememberMisses(boolean)
+     *
+     * @since 2.31.7
+     */
+    public void forgetMisses()
+    {
+        knownMissing.clear();
+    }
+
+    /**
+     * Get the file a recording is read from. In a sharded directory this is
+     * the file in the recording's shard unless the recording is only found
+     * directly in the message directory.
+     *
+     * @param fileName The name of the recording file.
+     *
+     * @return The recording file, which need not exist.
+     *
+     * @since 2.31.7
+     */
+    public File getRecordingFile(String fileName)
+    {
+        return recordingFile(fileName);
+    }
+
+    /**
+     * Join point around the Spring REST client's {@code getForObject()} methods.
+     * Looks for a file named with the required class's short name (no package) plus
+     * either its LIMS id (if there is one) or the identifier given at the end of
+     * the path of the URI.
+     *
+     * @param pjp The join point.
+     * @return The unmarshalled entity from the file found.
+     *
+     * @throws NoRecordingException if there is no file recorded for the object.
+     *
+     * @throws Throwable if there is anything else that fails.
+     */
+    public Object doGet(ProceedingJoinPoint pjp) throws Throwable
+    {
+        Class<?> type = (Class<?>)pjp.getArgs()[1];
+        File file = getFileForEntity(type, pjp.getArgs()[0]);
+
+        Object thing = loadEntity(type, file);
+
+        if (thing == null)
+        {
+            throw noRecording("There is no file " + file.getName() + " recorded.");
+        }
+
+        return thing;
+    }
+
+    /**
+     * Join point around the Spring REST client's {@code getForEntity()} methods.
+     * Works as {@link #doGet(ProceedingJoinPoint)}, except rather than throwing a
+     * {@code NoRecordingException}, it throws a {@code ClarityException} with a
+     * not found status. This is what would happen if the call was made to a real
+     * API.
+     *
+     * @param pjp The join point.
+     *
+     * @return A ResponseEntity object containing the unmarshalled entity and an "OK"
+     * code if the file exists.
+     *
+     * @throws ClarityException with a "not found" status if there is no recorded
+     * file for the entity.
+     *
+     * @throws Throwable if there is anything that fails.
+     */
+    public ResponseEntity<?> doGetEntity(ProceedingJoinPoint pjp) throws Throwable
+    {
+        Class<?> type = (Class<?>)pjp.getArgs()[1];
+        File file = getFileForEntity(type, pjp.getArgs()[0]);
+
+        Object thing = loadEntity(type, file);
+
+        if (thing == null)
+        {
+            com.genologics.ri.exception.Exception ce = new com.genologics.ri.exception.Exception();
+            ce.setCode(HttpStatus.NOT_FOUND.name());
+            ce.setMessage("There is no file " + file.getName() + " recorded.");
+            throw stacklessMisses ? new StacklessClarityException(ce) : new ClarityException(ce, HttpStatus.NOT_FOUND);
+        }
+
+        return new ResponseEntity<Object>(thing, HttpStatus.OK);
+    }
+
+    /**
+     * Load an entity from its recording, from the cache if it is held there.
+     *
+     * @param type The class of the entity.
+     * @param file The entity's recording file.
+     *
+     * @return A copy of the entity, or null if there is no recording for it.
+     *
+     * @throws IOException if the recording cannot be read.
+     */
+    private Object loadEntity(Class<?> type, File file) throws IOException
+    {
+        EntityLoadEvent event = new EntityLoadEvent();
+        event.begin();
+
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            String key = file.getName();
+
+            traceAccess(key);
+
+            Object master = cache.get(key, file);
+            Outcome found = Outcome.HIT;
+
+            if (master == null)
+            {
+                if (isKnownMissing(key) || !file.exists())
+                {
+                    noteMissing(key);
+                    outcome = Outcome.MISS;
+                    return null;
+                }
+
+                long size = file.length();
+                long lastModified = file.lastModified();
+                master = readRecording(file);
+                retain(key, master, size, lastModified);
+                found = Outcome.LOAD;
+            }
+
+            Object copy = copyOf(master);
+            outcome = found;
+            return copy;
+        }
+        finally
+        {
+            AspectMetrics.record(m, Operation.GET, outcome, start);
+            logAccess(file.getName(), outcome);
+
+            if (event.shouldCommit())
+            {
+                describe(event, type, file, outcome);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Join point around calls to the API's {@code loadAll} method. Iterates
+     * through the links asking the API for them individually, before returning
+     * a collection of the entities.
+     *
+     * <p>
+     * This slightly convoluted route allows the cache to return cache hits
+     * if it is in use. The actual loading, when there is a cache miss, comes
+     * from the call coming through this object again but via the
+     * {@link #doGet(ProceedingJoinPoint)} method, which loads the entity from
+     * file.
+     * </p>
+     *
+     * <p>
+     * If a {@link LoadAllManifest} was recorded for exactly these links, the
+     * entities are read from it instead, in one pass through one file, unless
+     * any of the entities has been recorded again since.
+     * </p>
+     *
+     * @param pjp The join point.
+     *
+     * @return A list of the entities loaded from the links.
+     *
+     * @throws NoRecordingException if there is no entity file recorded for any of the links.
+     *
+     * @throws Throwable if there is anything else that fails.
+     */
+    public List<?> doLoadAll(ProceedingJoinPoint pjp) throws Throwable
+    {
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            Collection<?> links = (Collection<?>)pjp.getArgs()[0];
+
+            if (useLoadAllManifests && !links.isEmpty())
+            {
+                List<Object> replies = loadManifest(links);
+                if (replies != null)
+                {
+                    outcome = Outcome.LOAD;
+                    return replies;
+                }
+            }
+
+            List<Object> replies = new ArrayList<Object>(links.size());
+            Iterator<?> iter = links.iterator();
+            while (iter.hasNext())
+            {
+                LimsLink<?> link = (LimsLink<?>)iter.next();
+
+                // Call through to the API again for this link only.
+                // This will come through this class again, but through the doGet interceptors.
+                // It will also go through the cache too.
+                replies.add(api.load(link));
+            }
+            outcome = Outcome.LOAD;
+            return replies;
+        }
+        catch (NoRecordingException e)
+        {
+            outcome = Outcome.MISS;
+            throw e;
+        }
+        finally
+        {
+            AspectMetrics.record(m, Operation.LOAD_ALL, outcome, start);
+        }
+    }
+
+    /**
+     * Read the entities for a {@code loadAll} call from its manifest. The entity
+     * files the manifest stands in for are traced, logged and counted as if each
+     * had been read, so the trace, access log and metrics are the same whether or
+     * not there is a manifest. The manifest is not used if any of those files was
+     * modified after it, as the manifest's copy of the entity is then out of date.
+     *
+     * @param links The links asked for.
+     *
+     * @return The entities, or null if there is no manifest for these links, it is
+     * out of date or it cannot be read.
+     */
+    private List<Object> loadManifest(Collection<?> links)
+    {
+        List<String> keys = LoadAllManifest.keysFor(links);
+        String name = LoadAllManifest.fileName(keys);
+        File file = recordingFile(name);
+        long written = file.lastModified();
+        if (written == 0L)
+        {
+            return null;
+        }
+
+        for (String key : keys)
+        {
+            if (recordingFile(key).lastModified() > written)
+            {
+                logger.debug("Not using loadAll manifest {} as {} has been recorded since.", name, key);
+                return null;
+            }
+        }
+
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        try
+        {
+            for (String key : keys)
+            {
+                traceAccess(key);
+            }
+
+            List<Object> entities = LoadAllManifest.readEntities(file, keys, jaxbMarshaller);
+            if (entities != null)
+            {
+                logAccess(name, Outcome.LOAD);
+                for (String key : keys)
+                {
+                    logAccess(key, Outcome.LOAD);
+                }
+
+                if (m != null)
+                {
+                    // The time taken is shared between the entities read.
+                    long nanos = (System.nanoTime() - start) / keys.size();
+                    for (int i = 0; i < keys.size(); i++)
+                    {
+                        m.record(Operation.GET, Outcome.LOAD, nanos);
+                    }
+                }
+
+                return new ArrayList<>(entities);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read loadAll manifest {}: {}", name, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Join point around the Clarity client's {@code find()} method. Tries to find
+     * a prerecorded search in the search directory that matches the search parameters
+     * of this call.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param pjp The join point.
+     *
+     * @return The result of the search (a list of links).
+     *
+     * @throws NoRecordingException if there is no search recorded for the parameters
+     * given and the aspect is set to fail on no recorded search.
+     *
+     * @throws Throwable if there is anything else that fails.
+     */
+    public <E extends Locatable> List<LimsLink<E>> doFind(ProceedingJoinPoint pjp) throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Map<String, ?> searchTerms = (Map<String, ?>)pjp.getArgs()[0];
+
+        @SuppressWarnings("unchecked")
+        Class<E> entityClass = (Class<E>)pjp.getArgs()[1];
+
+        SearchTerms<E> terms = new SearchTerms<>(searchTerms, entityClass);
+
+        Search<E> search = loadSearch(terms);
+
+        if (search != null)
+        {
+            if (prefetchSearchResults && search.getResults() != null)
+            {
+                prefetchLinks(search.getResults());
+            }
+            return search.getResults();
+        }
+
+        if (failOnMissingSearch)
+        {
+            throw noRecording("There is no recorded search with the parameters given:\n" + searchTerms);
+        }
+        else
+        {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Join point around the {@code listAll} and {@code listSome} methods load the list
+     * of links from a serialised {@code Batch} object in XML file in the messages directory.
+     *
+     * <p>
+     * {@code listSome} returns the links from the start index given, up to the number
+     * asked for. If the list was recorded from {@code listSome} calls, its ranges file
+     * is used to find which of the recorded links come from that part of the server's
+     * list; links from parts that were not recorded are not returned. A ranges file
+     * that does not give the number of links the list file holds (as when the recorder
+     * is part way through replacing them) cannot be used, and the call is treated as
+     * having no recording.
+     * </p>
+     *
+     * <p>
+     * The first call for a type of entity reads the whole list, which is then kept
+     * in memory (subject to {@link #setPrefetchMaxBytes(long)}) so later calls, for
+     * any page, need not read the file again. If the memory limit has been reached,
+     * so the list would not be kept, {@code listSome} on a list without a ranges file
+     * instead reads the file as a stream and unmarshals only the links in the range
+     * asked for.
+     * </p>
+     *
+     * @param <E> The type of entity to list.
+     * @param <L> The type of link to the entity returned from the API.
+     * @param <BH> The batch class that is used to hold the links returned from the API.
+     *
+     * @param pjp The join point.
+     * @return The result of the search (a list of links). If there was no file recorded
+     * for a list of these entities, an empty list is returned.
+     *
+     * @throws NoRecordingException if there is no list recorded for this type of entity.
+     *
+     * @throws Throwable if there is an error invoking the underlying method.
+     */
+    public <E extends Locatable, L extends LimsLink<E>, BH extends Batch<L>>
+    List<L> doList(ProceedingJoinPoint pjp) throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Class<E> entityClass = (Class<E>)pjp.getArgs()[0];
+
+        Class<BH> batchClass = apiInternal.getQueryResultsClassForEntity(entityClass);
+
+        List<L> list = Collections.emptyList();
 
         if (batchClass == null)
         {
-            logger.warn("{} is not returned by any known Batch class.", entityClass.getName());
+            logger.warn("{} is not returned by any known Batch class.", entityClass.getName());
+        }
+        else
+        {
+            ListLoadEvent event = new ListLoadEvent();
+            event.begin();
+
+            AspectMetrics m = metrics;
+            long startTime = AspectMetrics.start(m);
+            Outcome outcome = Outcome.ERROR;
+            String listFileName = RecordingFileNames.listFileName(batchClass);
+            File listFile = recordingFile(listFileName);
+            List<L> links = null;
+            try
+            {
+
+                traceAccess(listFileName);
+
+                Object[] args = pjp.getArgs();
+                boolean some = "listSome".equals(pjp.getSignature().getName()) && args.length >= 3;
+                int start = some ? Math.max(0, (Integer)args[1]) : 0;
+                int count = some ? Math.max(0, (Integer)args[2]) : Integer.MAX_VALUE;
+
+                ListRanges ranges = some ? ListRanges.readFor(listFile) : null;
+                if (ranges != null && !ranges.covers(start, count))
+                {
+                    logger.debug("Not all of {} from {} for {} links was recorded.", listFileName, start, count);
+                }
+
+                List<L> all = linksFrom(cache.get(listFileName, listFile));
+                Outcome found = Outcome.HIT;
+
+                if (all == null)
+                {
+                    if (isKnownMissing(listFileName) || !listFile.exists())
+                    {
+                        noteMissing(listFileName);
+                        outcome = Outcome.MISS;
+                        throw noRecording("There is no list file " + listFile.getName() + " recorded.");
+                    }
+
+                    long readStart = AspectMetrics.start(m);
+
+                    BatchListReader reader = BatchListReader.forBatchClass(batchClass);
+                    if (some && ranges == null && reader != null && !canRetain())
+                    {
+                        // These links are read just for this call, so need not be copied.
+                        links = reader.read(listFile, jaxbMarshaller, start, count);
+                        listRead(m, batchClass, readStart, listFile);
+                        outcome = Outcome.LOAD;
+                        return links;
+                    }
+
+                    long size = listFile.length();
+                    long lastModified = listFile.lastModified();
+                    Object master = readList(listFile, reader);
+                    listRead(m, batchClass, readStart, listFile);
+                    retain(listFileName, master, size, lastModified);
+                    all = linksFrom(master);
+                    found = Outcome.LOAD;
+                }
+
+                if (ranges != null)
+                {
+                    // The list file is written after its ranges, so between the two they can disagree.
+                    if (ranges.getLinkCount() != all.size())
+                    {
+                        outcome = Outcome.MISS;
+                        throw noRecording("The list file " + listFile.getName() + " holds " + all.size()
+                                          + " links but its ranges give " + ranges.getLinkCount() + ".");
+                    }
+
+                    // Map the range of the server's list to positions in the file.
+                    int[] fileRange = ranges.toFileRange(start, count);
+                    start = fileRange[0];
+                    count = fileRange[1];
+                }
+
+                int from = Math.min(start, all.size());
+                int to = (int)Math.min((long)from + count, all.size());
+                list = copyOf(new ArrayList<>(all.subList(from, to)));
+                links = list;
+                outcome = found;
+            }
+            finally
+            {
+                AspectMetrics.record(m, Operation.LIST, outcome, startTime);
+                logAccess(listFileName, outcome);
+
+                if (event.shouldCommit())
+                {
+                    describe(event, entityClass, listFile, outcome);
+                    event.setLinks(links == null ? 0 : links.size());
+                    event.commit();
+                }
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Record the reading of a list file in the metrics, if metrics are on.
+     *
+     * @param m The metrics. May be null.
+     * @param batchClass The batch class of the list.
+     * @param start When the read started.
+     * @param listFile The list file.
+     */
+    private static void listRead(AspectMetrics m, Class<?> batchClass, long start, File listFile)
+    {
+        if (m != null)
+        {
+            m.unmarshalled(batchClass, System.nanoTime() - start, listFile.length());
+        }
+    }
+
+    /**
+     * Read the whole of a list file, streaming the links from it if possible.
+     * Uses the binary form of the list if binary caching is on.
+     *
+     * @param listFile The list file.
+     * @param reader The streaming reader for the batch class. If null, the file
+     * is unmarshalled as a batch object.
+     *
+     * @return The list of links or batch object read.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private Object readList(File listFile, BatchListReader reader) throws IOException
+    {
+        BinaryRecordingCache.XmlReader parser =
+                reader == null ? this::parseRecording : f -> reader.read(f, jaxbMarshaller, 0, Integer.MAX_VALUE);
+
+        BinaryRecordingCache current = binaryCache;
+        return current == null ? parser.read(listFile) : current.read(listFile, parser);
+    }
+
+    /**
+     * Get the links from an object read from a list file. Depending on how it was
+     * read, this is either the batch object or the list of links itself.
+     *
+     * @param <L> The type of link.
+     *
+     * @param listObject The object read from a list file. May be null.
+     *
+     * @return The list of links, or null if {@code listObject} is null.
+     */
+    @SuppressWarnings("unchecked")
+    private static <L> List<L> linksFrom(Object listObject)
+    {
+        if (listObject instanceof Batch)
+        {
+            return ((Batch<L>)listObject).getList();
+        }
+        return (List<L>)listObject;
+    }
+
+    /**
+     * Join point around methods that would cause a change in Clarity
+     * (create, update, delete, upload). These methods are not helpful when running
+     * from prerecorded messages, and should be quietly ignored (a warning is logged).
+     *
+     * @param pjp The join point.
+     */
+    public void blockWrite(ProceedingJoinPoint pjp)
+    {
+        logger.warn("Call to {} blocked.", pjp.getSignature().getName());
+    }
+
+    /**
+     * Join point around the Clarity client's {@code update()} method.
+     * Writes to the message directory this new version of the entity. There will
+     * be versions of the entity written to the directory, incrementing with each
+     * call.
+     *
+     * @param pjp The join point.
+     *
+     * @throws Throwable if there is anything fails.
+     */
+    public void doUpdate(ProceedingJoinPoint pjp) throws Throwable
+    {
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            if (updatesDirectory != null)
+            {
+                Object entity = pjp.getArgs()[0];
+
+                writeEntity(entity);
+            }
+            else
+            {
+                blockWrite(pjp);
+            }
+
+            outcome = Outcome.LOAD;
+        }
+        finally
+        {
+            AspectMetrics.record(m, Operation.UPDATE, outcome, start);
+        }
+    }
+
+    /**
+     * Join point around the Clarity client's {@code updateAll()} method.
+     * Writes to the message directory the new versions of the entities. There will
+     * be versions of each entity written to the directory, incrementing with each
+     * call (numbers per entity, not an overall counter).
+     *
+     * @param pjp The join point.
+     *
+     * @throws Throwable if there is anything fails.
+     */
+    public void doUpdateAll(ProceedingJoinPoint pjp) throws Throwable
+    {
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            if (updatesDirectory != null)
+            {
+                Collection<?> list = (Collection<?>)pjp.getArgs()[0];
+
+                for (Object thing : list)
+                {
+                    writeEntity(thing);
+                }
+            }
+            else
+            {
+                blockWrite(pjp);
+            }
+
+            outcome = Outcome.LOAD;
+        }
+        finally
+        {
+            AspectMetrics.record(m, Operation.UPDATE, outcome, start);
+        }
+    }
+
+    /**
+     * Load the prerecorded searches from the search directory. Finds files in there
+     * that match the expected file name format and brings them all into memory.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param terms The search terms.
+     *
+     * @return The search object loaded from the recorded file, or null if the
+     * search has not been recorded.
+     */
+    @SuppressWarnings("unchecked")
+    private <E extends Locatable> Search<E> loadSearch(SearchTerms<?> terms)
+    {
+        SearchLoadEvent event = new SearchLoadEvent();
+        event.begin();
+
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.MISS;
+        File searchFile = recordingFile(Search.getSearchFileName(terms));
+        Search<E> found = null;
+        try
+        {
+            traceAccess(searchFile.getName());
+
+            Object cached = cache.get(searchFile.getName(), searchFile);
+            if (cached != null)
+            {
+                found = (Search<E>)copyOf(cached);
+                outcome = Outcome.HIT;
+            }
+            else if (!isKnownMissing(searchFile.getName()))
+            {
+                long size = searchFile.length();
+                long lastModified = searchFile.lastModified();
+                Object search = readRecording(searchFile);
+                retain(searchFile.getName(), search, size, lastModified);
+                found = (Search<E>)copyOf(search);
+                outcome = Outcome.LOAD;
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            logger.debug("Search file {} does not exist.", searchFile.getName());
+            noteMissing(searchFile.getName());
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read from {}.", searchFile.getAbsolutePath());
+            outcome = Outcome.ERROR;
         }
-        else
+        finally
         {
-            String listFileName = ClassUtils.getShortClassName(batchClass) + ".xml";
-            File listFile = new File(messageDirectory, listFileName);
+            AspectMetrics.record(m, Operation.FIND, outcome, start);
+            logAccess(searchFile.getName(), outcome);
 
-            if (listFile.exists())
-            {
-                @SuppressWarnings("unchecked")
-                BH batch = (BH)jaxbMarshaller.unmarshal(new StreamSource(listFile));
-                list = batch.getList();
-            }
-            else
+            if (event.shouldCommit())
             {
-                throw new NoRecordingException("There is no list file " + listFile.getName() + " recorded.");
+                describe(event, terms.getEntityClass(), searchFile, outcome);
+                event.setResults(found == null || found.getResults() == null ? 0 : found.getResults().size());
+                event.commit();
             }
         }
 
-        return list;
+        return found;
     }
 
     /**
-     * Join point around methods that would cause a change in Clarity
-     * (create, update, delete, upload). These methods are not helpful when running
-     * from prerecorded messages, and should be quietly ignored (a warning is logged).
+     * Read a search from its recording file with XStream.
      *
-     * @param pjp The join point.
+     * @param searchFile The search file.
+     *
+     * @return The search object.
+     *
+     * @throws IOException if the file cannot be read.
+     * @throws XStreamException if the file's content cannot be deserialised.
      */
-    public void blockWrite(ProceedingJoinPoint pjp)
+    private Search<?> deserialiseSearch(File searchFile) throws IOException
     {
-        logger.warn("Call to {} blocked.", pjp.getSignature().getName());
+        try (Reader reader = new InputStreamReader(new FileInputStream(searchFile), US_ASCII))
+        {
+            return (Search<?>)xstream.fromXML(reader);
+        }
+        catch (XStreamException xse)
+        {
+            Throwable t = xse;
+            while (t.getCause() != null)
+            {
+                t = t.getCause();
+            }
+            try
+            {
+                throw t;
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+            catch (Throwable t2)
+            {
+                throw xse;
+            }
+        }
     }
 
     /**
-     * Join point around the Clarity client's {@code update()} method.
-     * Writes to the message directory this new version of the entity. There will
-     * be versions of the entity written to the directory, incrementing with each
-     * call.
+     * Read any recording file: a search, a list or an entity. Uses the binary
+     * form of the recording if binary caching is on.
      *
-     * @param pjp The join point.
+     * @param file The recording file.
      *
-     * @throws Throwable if there is anything fails.
+     * @return The object read from the file.
+     *
+     * @throws IOException if the file cannot be read.
      */
-    public void doUpdate(ProceedingJoinPoint pjp) throws Throwable
+    private Object readRecording(File file) throws IOException
     {
-        if (updatesDirectory != null)
-        {
-            Object entity = pjp.getArgs()[0];
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
 
-            writeEntity(entity);
-        }
-        else
+        BinaryRecordingCache current = binaryCache;
+        Object recording = current == null ? parseRecording(file) : current.read(file, this::parseRecording);
+
+        if (m != null)
         {
-            blockWrite(pjp);
+            m.unmarshalled(recording.getClass(), System.nanoTime() - start, file.length());
         }
+        return recording;
     }
 
     /**
-     * Join point around the Clarity client's {@code updateAll()} method.
-     * Writes to the message directory the new versions of the entities. There will
-     * be versions of each entity written to the directory, incrementing with each
-     * call (numbers per entity, not an overall counter).
+     * Read any recording file from its XML.
      *
-     * @param pjp The join point.
+     * @param file The recording file.
      *
-     * @throws Throwable if there is anything fails.
+     * @return The object read from the file.
+     *
+     * @throws IOException if the file cannot be read.
      */
-    public void doUpdateAll(ProceedingJoinPoint pjp) throws Throwable
+    private Object parseRecording(File file) throws IOException
     {
-        if (updatesDirectory != null)
+        if (file.getName().startsWith(SEARCH_FILE_PREFIX))
         {
-            Collection<?> list = (Collection<?>)pjp.getArgs()[0];
+            return deserialiseSearch(file);
+        }
+        return jaxbMarshaller.unmarshal(new StreamSource(file));
+    }
+
+    /**
+     * Test whether a recording is known to be missing.
+     *
+     * @param key The name of the recording file.
+     *
+     * @return true if misses are remembered and this recording has been found missing.
+     */
+    private boolean isKnownMissing(String key)
+    {
+        return rememberMisses && knownMissing.contains(key);
+    }
 
-            for (Object thing : list)
+    /**
+     * Note that a recording is missing, if misses are remembered. The set of misses
+     * is cleared if it grows too large, so a replay probing many different missing
+     * recordings cannot use unbounded memory.
+     *
+     * @param key The name of the recording file.
+     */
+    private void noteMissing(String key)
+    {
+        if (rememberMisses)
+        {
+            if (knownMissing.size() >= MAX_REMEMBERED_MISSES)
             {
-                writeEntity(thing);
+                knownMissing.clear();
             }
+            knownMissing.add(key);
         }
-        else
+    }
+
+    /**
+     * Create the exception signalling a missing recording, with or without its stack
+     * trace according to the {@code stacklessMisses} setting.
+     *
+     * @param message The exception message.
+     *
+     * @return The exception to throw.
+     */
+    private NoRecordingException noRecording(String message)
+    {
+        return new NoRecordingException(message, !stacklessMisses);
+    }
+
+    /**
+     * Test whether a recording read now would be kept in memory.
+     *
+     * @return true if the memory limit has not been reached.
+     *
+     * @see #retain(String, Object, long, long)
+     */
+    private boolean canRetain()
+    {
+        return cache.getSourceBytes() < prefetchMaxBytes;
+    }
+
+    /**
+     * Keep an object read on demand in the cache, if the cache is not full. The
+     * file's size and modification time must be taken before the file is read:
+     * taken after, they may be those of a newer file renamed into its place in
+     * the meantime, and the object read would pass as current.
+     *
+     * @param key The name of the recording file.
+     * @param master The object read from the file.
+     * @param size The size of the file before it was read.
+     * @param lastModified The modification time of the file before it was read.
+     */
+    private void retain(String key, Object master, long size, long lastModified)
+    {
+        if (canRetain())
         {
-            blockWrite(pjp);
+            cache.put(key, master, size, lastModified);
         }
     }
 
     /**
-     * Load the prerecorded searches from the search directory. Finds files in there
-     * that match the expected file name format and brings them all into memory.
+     * Make a copy of a cached object to give to the caller. The copy is made with
+     * {@link EntityCopier}, falling back to a round trip through XML (JAXB for entities
+     * and batches, XStream for searches) if the object cannot be copied reflectively.
+     * Whether an object's class can be copied reflectively is found out once for
+     * the class, so an object that cannot be does not cost a failed copy every time.
      *
-     * @param <E> The type of entity being searched for.
+     * @param <T> The type of the object.
      *
-     * @param terms The search terms.
+     * @param master The cached object.
      *
-     * @return The search object loaded from the recorded file, or null if the
-     * search has not been recorded.
+     * @return A copy of the object.
+     *
+     * @throws IOException if the XML round trip fails.
      */
     @SuppressWarnings("unchecked")
-    private <E extends Locatable> Search<E> loadSearch(SearchTerms<?> terms)
+    private <T> T copyOf(T master) throws IOException
     {
-        File searchFile = new File(messageDirectory, Search.getSearchFileName(terms));
-
-        try
+        Class<?> masterClass = master.getClass();
+        if (!xmlCopiedClasses.contains(masterClass))
         {
-            try (Reader reader = new InputStreamReader(new FileInputStream(searchFile), US_ASCII))
+            if (EntityCopier.canCopy(masterClass))
             {
-                return (Search<E>)xstream.fromXML(reader);
-            }
-            catch (XStreamException xse)
-            {
-                Throwable t = xse;
-                while (t.getCause() != null)
-                {
-                    t = t.getCause();
-                }
                 try
                 {
-                    throw t;
+                    return EntityCopier.copy(master);
                 }
-                catch (IOException e)
-                {
-                    throw e;
-                }
-                catch (Throwable t2)
+                catch (UnsupportedOperationException e)
                 {
-                    throw xse;
+                    // Something it refers to cannot be copied.
+                    useXmlCopies(masterClass, e.getMessage());
                 }
             }
+            else
+            {
+                useXmlCopies(masterClass, "it has no reflective copier");
+            }
         }
-        catch (FileNotFoundException e)
+
+        if (master instanceof Search)
         {
-            logger.debug("Search file {} does not exist.", searchFile.getName());
+            return (T)xstream.fromXML(xstream.toXML(master));
         }
-        catch (IOException e)
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        jaxbMarshaller.marshal(master, new StreamResult(bytes));
+        return (T)jaxbMarshaller.unmarshal(new StreamSource(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Note that objects of a class are to be copied through XML, logging it the
+     * first time.
+     *
+     * @param type The class of the objects.
+     * @param reason Why they cannot be copied reflectively.
+     */
+    private void useXmlCopies(Class<?> type, String reason)
+    {
+        if (xmlCopiedClasses.add(type))
         {
-            logger.warn("Cannot read from {}.", searchFile.getAbsolutePath());
+            logger.info("Copying {} objects through XML: {}", type.getSimpleName(), reason);
         }
+    }
 
-        return null;
+    /**
+     * Read the recording with the given key into the cache, if it exists.
+     * This is the loader used by the prefetchers.
+     *
+     * @param key The name of the recording file.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private void loadIntoCache(String key) throws IOException
+    {
+        File file = recordingFile(key);
+        if (file.exists())
+        {
+            long size = file.length();
+            long lastModified = file.lastModified();
+            cache.put(key, readRecording(file), size, lastModified);
+        }
+    }
+
+    /**
+     * Get the file in the message directory holding the recording with the given key.
+     * In a sharded directory, a recording not found in its shard is looked for
+     * directly in the message directory, so a directory part way through being
+     * resharded can still be played back.
+     *
+     * @param key The name of the recording file.
+     *
+     * @return The recording file.
+     */
+    private File recordingFile(String key)
+    {
+        RecordingLayout current = layout;
+        if (current == RecordingLayout.FLAT)
+        {
+            return new File(messageDirectory, key);
+        }
+
+        File file = current.fileFor(messageDirectory, key);
+        if (!file.exists())
+        {
+            File flatFile = new File(messageDirectory, key);
+            if (flatFile.exists())
+            {
+                return flatFile;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * List the recording files that are candidates for warming up, in whichever
+     * layout the message directory has.
+     *
+     * @param prefixes The file name prefixes of the entity types to load. If empty,
+     * all recordings are candidates.
+     *
+     * @return The recording files, or null if the message directory cannot be read.
+     */
+    private File[] listRecordingFiles(Set<String> prefixes)
+    {
+        RecordingLayout current = layout;
+        if (current == RecordingLayout.FLAT)
+        {
+            return messageDirectory.listFiles(f -> f.isFile() && isWarmUpCandidate(f.getName(), prefixes));
+        }
+
+        try (Stream<Path> paths = Files.walk(messageDirectory.toPath(), current.getDepth()))
+        {
+            return paths.filter(Files::isRegularFile)
+                        .map(Path::toFile)
+                        .filter(f -> isWarmUpCandidate(f.getName(), prefixes))
+                        .toArray(File[]::new);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Start loading the entities for the given links in the background. Links
+     * stop being queued once the cache is full.
+     *
+     * @param links The links to the entities.
+     */
+    private void prefetchLinks(Collection<? extends LimsLink<?>> links)
+    {
+        EntityPrefetcher loader;
+        synchronized (this)
+        {
+            if (searchResultLoader == null)
+            {
+                searchResultLoader = new EntityPrefetcher("clarity-search-prefetch", cache, this::loadIntoCache,
+                                                          prefetchThreads, prefetchMaxBytes);
+            }
+            loader = searchResultLoader;
+        }
+
+        for (LimsLink<?> link : links)
+        {
+            if (loader.isFull())
+            {
+                break;
+            }
+            if (link != null && link.getUri() != null)
+            {
+                loader.prefetch(getFileForEntity(link.getEntityClass(), link.getUri()).getName());
+            }
+        }
+    }
+
+    /**
+     * Tell the trace prefetcher, if there is one, that a recording is being served.
+     *
+     * @param key The name of the recording file.
+     */
+    private void traceAccess(String key)
+    {
+        TracePrefetcher prefetcher = tracePrefetcher;
+        if (prefetcher == null && prefetchTraceFile != null)
+        {
+            prefetcher = startTracePrefetch();
+        }
+        if (prefetcher != null)
+        {
+            prefetcher.accessed(key);
+        }
+    }
+
+    /**
+     * Read the access trace and start prefetching from its beginning.
+     * If the trace cannot be read, trace driven prefetching is turned off.
+     *
+     * @return The trace prefetcher, or null if the trace could not be read.
+     */
+    private synchronized TracePrefetcher startTracePrefetch()
+    {
+        if (tracePrefetcher == null && prefetchTraceFile != null)
+        {
+            try
+            {
+                List<AccessTrace.Entry> trace = AccessTrace.read(prefetchTraceFile);
+
+                traceLoader = new EntityPrefetcher("clarity-trace-prefetch", cache, this::loadIntoCache,
+                                                   prefetchThreads, prefetchMaxBytes);
+
+                TracePrefetcher prefetcher = new TracePrefetcher(trace, prefetchWindow, traceLoader);
+                prefetcher.start();
+                tracePrefetcher = prefetcher;
+
+                logger.debug("Prefetching along {} accesses in {}.", trace.size(), prefetchTraceFile.getName());
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot read access trace {}: {}", prefetchTraceFile.getAbsolutePath(), e.getMessage());
+                prefetchTraceFile = null;
+            }
+        }
+        return tracePrefetcher;
+    }
+
+    /**
+     * Stop trace driven prefetching.
+     */
+    private synchronized void stopTracePrefetch()
+    {
+        tracePrefetcher = null;
+        if (traceLoader != null)
+        {
+            traceLoader.shutdown();
+            traceLoader = null;
+        }
+    }
+
+    /**
+     * Add a request for a recording to the access log, if accesses are being logged.
+     *
+     * @param key The name of the recording file.
+     * @param outcome How the request was answered.
+     */
+    private void logAccess(String key, Outcome outcome)
+    {
+        AccessLog log = accessLog;
+        if (log != null)
+        {
+            log.record(key, outcome);
+        }
+    }
+
+    /**
+     * Fill in the fields common to all flight recorder events.
+     *
+     * @param event The event.
+     * @param type The class of entity.
+     * @param file The recording file.
+     * @param outcome How the recording was found.
+     */
+    private static void describe(AspectEvent event, Class<?> type, File file, Outcome outcome)
+    {
+        event.setEntityClass(type);
+        event.setId(RecordingFileNames.idFromFileName(file.getName()));
+        event.setBytes(file.length());
+        event.setOutcome(outcome);
+    }
+
+    /**
+     * Get the number of recordings waiting to be loaded by a background loader.
+     *
+     * @param loader The loader. May be null.
+     *
+     * @return The length of the loader's queue, or zero if there is no loader.
+     */
+    private static long queueDepth(EntityPrefetcher loader)
+    {
+        return loader == null ? 0L : loader.getQueueDepth();
     }
 
+    /**
+     * Test whether a file in the message directory should be loaded when warming up.
+     *
+     * @param fileName The name of the file.
+     * @param prefixes The file name prefixes for the entity types being loaded.
+     * If empty, all recordings are loaded.
+     *
+     * @return true if the file should be loaded, false if not.
+     */
+    private static boolean isWarmUpCandidate(String fileName, Set<String> prefixes)
+    {
+        if (!fileName.endsWith(".xml") || fileName.startsWith(LoadAllManifest.FILE_PREFIX))
+        {
+            return false;
+        }
+        if (prefixes.isEmpty())
+        {
+            return true;
+        }
+        for (String prefix : prefixes)
+        {
+            if (fileName.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /**
      * Convenience method to get the file the target of a URI would be stored in.
@@ -625,11 +2428,9 @@ public class ClarityAPIPlaybackAspect
             }
         }
 
-        String limsid = limsIdFromUri(type, uri.getPath());
+        String limsid = RecordingFileNames.limsIdFromUri(type, uri.getPath());
 
-        String name = MessageFormat.format(FILENAME_PATTERN, ClassUtils.getShortClassName(type), limsid);
-
-        return new File(messageDirectory, name);
+        return recordingFile(RecordingFileNames.entityFileName(type, limsid));
     }
 
     /**
@@ -650,7 +2451,25 @@ public class ClarityAPIPlaybackAspect
                 {
                     File file = getFileForEntity(thing);
 
+                    EntityWriteEvent event = new EntityWriteEvent();
+                    event.begin();
+
+                    AspectMetrics m = metrics;
+                    long start = AspectMetrics.start(m);
+
                     jaxbMarshaller.marshal(thing, new StreamResult(file));
+
+                    if (m != null)
+                    {
+                        m.marshalled(thing.getClass(), System.nanoTime() - start, file.length());
+                    }
+
+                    if (event.shouldCommit())
+                    {
+                        describe(event, thing.getClass(), file, Outcome.LOAD);
+                        event.setWritten(true);
+                        event.commit();
+                    }
                 }
                 catch (Exception e)
                 {
@@ -675,7 +2494,7 @@ public class ClarityAPIPlaybackAspect
      */
     private File getFileForEntity(Object thing) throws IOException
     {
-        String id = limsIdFromObject(thing);
+        String id = RecordingFileNames.limsIdFromObject(thing);
 
         // Want to save each version that is updated.
 
@@ -685,9 +2504,7 @@ public class ClarityAPIPlaybackAspect
             int counter = 0;
             do
             {
-                String fileName = MessageFormat.format(UPDATE_FILENAME_PATTERN,
-                                            ClassUtils.getShortClassName(thing.getClass()),
-                                            id, VERSION_FORMAT.format(counter++));
+                String fileName = RecordingFileNames.updateFileName(thing.getClass(), id, counter++);
                 file = new File(updatesDirectory, fileName);
             }
             while (file.exists());
@@ -697,4 +2514,34 @@ public class ClarityAPIPlaybackAspect
 
         return file;
     }
+
+    /**
+     * The not found exception thrown by {@link ClarityAPIPlaybackAspect#doGetEntity(ProceedingJoinPoint)}
+     * when misses are signalled without stack traces.
+     */
+    private static final class StacklessClarityException extends ClarityException
+    {
+        private static final long serialVersionUID = 4383621962587206390L;
+
+        /**
+         * Constructor.
+         *
+         * @param error The Clarity error.
+         */
+        StacklessClarityException(com.genologics.ri.exception.Exception error)
+        {
+            super(error, HttpStatus.NOT_FOUND);
+        }
+
+        /**
+         * Does not record the stack trace.
+         *
+         * @return This exception.
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Which recordings in a message directory a playback run used, which it never
+ * asked for, and which it asked for that were never recorded.
+ *
+ * @see ClarityAPIPlaybackAspect#coverageReport()
+ *
+ * @since 2.31.7
+ */
+public class CoverageReport
+{
+    /**
+     * The number of recordings in the message directory.
+     */
+    private final int recordingCount;
+
+    /**
+     * The recordings served, with the number of requests for each.
+     */
+    private final Map<String, Long> used;
+
+    /**
+     * The recordings in the directory never asked for.
+     */
+    private final SortedSet<String> unused;
+
+    /**
+     * The recordings asked for but not recorded, with the number of requests for each.
+     */
+    private final Map<String, Long> missing;
+
+
+    /**
+     * Constructor.
+     *
+     * @param recordings The names of the recording files in the message directory.
+     * @param log The access log of the playback run.
+     */
+    public CoverageReport(Collection<String> recordings, AccessLog log)
+    {
+        recordingCount = recordings.size();
+        used = Collections.unmodifiableMap(log.getServed());
+        missing = Collections.unmodifiableMap(log.getMissing());
+
+        SortedSet<String> notUsed = new TreeSet<>(recordings);
+        notUsed.removeAll(used.keySet());
+        unused = Collections.unmodifiableSortedSet(notUsed);
+    }
+
+    /**
+     * Get the number of recordings in the message directory.
+     *
+     * @return The number of recording files.
+     */
+    public int getRecordingCount()
+    {
+        return recordingCount;
+    }
+
+    /**
+     * Get the recordings served, with the number of times each was asked for.
+     *
+     * @return A sorted map of recording file name to number of requests.
+     */
+    public Map<String, Long> getUsed()
+    {
+        return used;
+    }
+
+    /**
+     * Get the recordings in the message directory that were never asked for.
+     *
+     * @return The sorted names of the unused recording files.
+     */
+    public SortedSet<String> getUnused()
+    {
+        return unused;
+    }
+
+    /**
+     * Get the recordings asked for but not recorded.
+     *
+     * @return A sorted map of recording file name to number of misses.
+     */
+    public Map<String, Long> getMissing()
+    {
+        return missing;
+    }
+
+    /**
+     * Write the report as text, in three sections: the recordings used with their
+     * request counts, the unused recordings, and the missing recordings with
+     * their request counts.
+     *
+     * @param file The file to write.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), UTF_8)))
+        {
+            out.printf("# %d of %d recordings used. %d unused. %d asked for but not recorded.%n",
+                       used.size(), recordingCount, unused.size(), missing.size());
+
+            out.println();
+            out.println("[used]");
+            used.forEach((key, count) -> out.println(key + '\t' + count));
+
+            out.println();
+            out.println("[unused]");
+            unused.forEach(out::println);
+
+            out.println();
+            out.println("[missing]");
+            missing.forEach((key, count) -> out.println(key + '\t' + count));
+
+            if (out.checkError())
+            {
+                throw new IOException("Failed to write coverage report " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Read the names of the recordings used from a report written by {@link #write(File)}.
+     *
+     * @param file The report file.
+     *
+     * @return The names of the recording files used.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public static Set<String> readUsed(File file) throws IOException
+    {
+        Set<String> used = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8))
+        {
+            boolean inUsed = false;
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith("["))
+                {
+                    inUsed = "[used]".equals(line);
+                }
+                else if (inUsed && !line.isEmpty())
+                {
+                    int tab = line.indexOf('\t');
+                    used.add(tab < 0 ? line : line.substring(0, tab));
+                }
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public String toString()
+    {
+        ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+        b.append("recordings", recordingCount);
+        b.append("used", used.size());
+        b.append("unused", unused.size());
+        b.append("missing", missing.size());
+        return b.toString();
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Node;
+
+/**
+ * Makes deep copies of the objects unmarshalled from recordings: the API
+ * entities, batches of links and searches.
+ *
+ * <p>
+ * A copier is worked out once for each class and kept. For the JAXB classes this
+ * is a reflective copier that creates a new instance with the class's no argument
+ * constructor and copies each field, recursing into other objects, collections, maps
+ * and arrays. Immutable values such as strings, numbers, enums and URIs are shared
+ * between the original and the copy. The object graph may contain cycles.
+ * </p>
+ *
+ * <p>
+ * This is much faster than marshalling an object to XML and unmarshalling it again.
+ * Classes that cannot be copied reflectively, because they have no no argument
+ * constructor or because their fields are not accessible to this module, cause
+ * {@link #copy(Object)} to throw an {@code UnsupportedOperationException}. The caller
+ * can then fall back to another way of copying.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public final class EntityCopier
+{
+    /**
+     * Classes whose instances cannot be changed and so can be shared.
+     */
+    private static final Set<Class<?>> IMMUTABLE_TYPES = Set.of(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+            Long.class, Float.class, Double.class, BigDecimal.class, BigInteger.class,
+            URI.class, URL.class, UUID.class, Locale.class, Class.class, QName.class);
+
+    /**
+     * The copier that returns the original object.
+     */
+    private static final ObjectCopier SHARE = (original, copies) -> original;
+
+    /**
+     * The copier for each class, worked out on first use.
+     */
+    private static final ClassValue<ObjectCopier> COPIERS = new ClassValue<ObjectCopier>()
+    {
+        @Override
+        protected ObjectCopier computeValue(Class<?> type)
+        {
+            return createCopier(type);
+        }
+    };
+
+
+    /**
+     * Interface for the code that copies an object of a particular class.
+     */
+    @FunctionalInterface
+    private interface ObjectCopier
+    {
+        /**
+         * Copy an object.
+         *
+         * @param original The object to copy.
+         * @param copies The copies made so far in this copy operation, keyed by
+         * their originals. The copy must be added to this before copying the objects
+         * the original refers to.
+         *
+         * @return The copy.
+         *
+         * @throws ReflectiveOperationException if the copy cannot be made.
+         */
+        Object copy(Object original, Map<Object, Object> copies) throws ReflectiveOperationException;
+    }
+
+
+    /**
+     * Private constructor: static methods only.
+     */
+    private EntityCopier()
+    {
+    }
+
+    /**
+     * Make a deep copy of an object.
+     *
+     * @param <T> The type of object.
+     *
+     * @param original The object to copy.
+     *
+     * @return A copy of the object that shares no mutable state with the original.
+     * Null if {@code original} is null.
+     *
+     * @throws UnsupportedOperationException if the object, or an object it refers
+     * to, cannot be copied.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T copy(T original)
+    {
+        try
+        {
+            return (T)copyValue(original, new IdentityHashMap<>());
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new UnsupportedOperationException("Cannot copy " + original.getClass().getName(), e.getCause());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("Cannot copy " + original.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Test whether an object of the given class can be copied reflectively. This
+     * only considers the class itself, not the classes of the objects it refers to.
+     *
+     * @param type The class.
+     *
+     * @return true if the class has a copier, false if not.
+     */
+    public static boolean canCopy(Class<?> type)
+    {
+        return !(COPIERS.get(type) instanceof UnsupportedCopier);
+    }
+
+    /**
+     * Copy a value, returning the copy already made if the value has been seen
+     * before in this copy operation.
+     *
+     * @param value The value to copy.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     *
+     * @throws ReflectiveOperationException if the copy cannot be made.
+     */
+    private static Object copyValue(Object value, Map<Object, Object> copies) throws ReflectiveOperationException
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        ObjectCopier copier = COPIERS.get(value.getClass());
+        if (copier == SHARE)
+        {
+            return value;
+        }
+
+        Object copy = copies.get(value);
+        if (copy == null)
+        {
+            copy = copier.copy(value, copies);
+        }
+        return copy;
+    }
+
+    /**
+     * Work out the copier for a class.
+     *
+     * @param type The class.
+     *
+     * @return The copier for objects of the class.
+     */
+    private static ObjectCopier createCopier(Class<?> type)
+    {
+        if (type.isPrimitive() || Enum.class.isAssignableFrom(type) || IMMUTABLE_TYPES.contains(type) || isImmutableJavaType(type))
+        {
+            return SHARE;
+        }
+        if (type.isArray())
+        {
+            return type.getComponentType().isPrimitive() ? EntityCopier::copyPrimitiveArray : EntityCopier::copyObjectArray;
+        }
+        if (XMLGregorianCalendar.class.isAssignableFrom(type))
+        {
+            return (original, copies) -> register(original, ((XMLGregorianCalendar)original).clone(), copies);
+        }
+        if (Date.class.isAssignableFrom(type))
+        {
+            return (original, copies) -> register(original, ((Date)original).clone(), copies);
+        }
+        if (Node.class.isAssignableFrom(type))
+        {
+            return (original, copies) -> register(original, ((Node)original).cloneNode(true), copies);
+        }
+        if (Collection.class.isAssignableFrom(type))
+        {
+            return EntityCopier::copyCollection;
+        }
+        if (Map.class.isAssignableFrom(type))
+        {
+            return EntityCopier::copyMap;
+        }
+        if (isPlatformClass(type))
+        {
+            return new UnsupportedCopier(type, "it is a platform class");
+        }
+
+        try
+        {
+            return new FieldCopier(type);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return new UnsupportedCopier(type, "it has no no argument constructor");
+        }
+        catch (RuntimeException e)
+        {
+            // InaccessibleObjectException or SecurityException.
+            return new UnsupportedCopier(type, e.getMessage());
+        }
+    }
+
+    /**
+     * Test whether a class is an immutable platform value type that isn't in
+     * the fixed set.
+     *
+     * @param type The class.
+     *
+     * @return true if instances of the class cannot change.
+     */
+    private static boolean isImmutableJavaType(Class<?> type)
+    {
+        return type.getName().startsWith("java.time.") || Duration.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Test whether a class is part of the Java platform, whose fields cannot be
+     * copied reflectively.
+     *
+     * @param type The class.
+     *
+     * @return true for platform classes.
+     */
+    private static boolean isPlatformClass(Class<?> type)
+    {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") ||
+               name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    /**
+     * Record a copy against its original and return it.
+     *
+     * @param original The original object.
+     * @param copy The copy.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     */
+    private static Object register(Object original, Object copy, Map<Object, Object> copies)
+    {
+        copies.put(original, copy);
+        return copy;
+    }
+
+    /**
+     * Copy an array of a primitive type.
+     *
+     * @param original The array.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     */
+    private static Object copyPrimitiveArray(Object original, Map<Object, Object> copies)
+    {
+        int length = Array.getLength(original);
+        Object copy = Array.newInstance(original.getClass().getComponentType(), length);
+        System.arraycopy(original, 0, copy, 0, length);
+        return register(original, copy, copies);
+    }
+
+    /**
+     * Copy an array of objects.
+     *
+     * @param original The array.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     *
+     * @throws ReflectiveOperationException if an element cannot be copied.
+     */
+    private static Object copyObjectArray(Object original, Map<Object, Object> copies) throws ReflectiveOperationException
+    {
+        Object[] source = (Object[])original;
+        Object[] copy = (Object[])Array.newInstance(original.getClass().getComponentType(), source.length);
+        register(original, copy, copies);
+        for (int i = 0; i < source.length; i++)
+        {
+            copy[i] = copyValue(source[i], copies);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy a collection. The copy is of the same class for the common
+     * collection classes, or a general implementation of the same interface
+     * otherwise.
+     *
+     * @param original The collection.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     *
+     * @throws ReflectiveOperationException if an element cannot be copied.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyCollection(Object original, Map<Object, Object> copies) throws ReflectiveOperationException
+    {
+        Collection<Object> source = (Collection<Object>)original;
+        Collection<Object> copy;
+
+        if (source instanceof ArrayList)
+        {
+            copy = new ArrayList<>(source.size());
+        }
+        else if (source instanceof LinkedList)
+        {
+            copy = new LinkedList<>();
+        }
+        else if (source instanceof SortedSet)
+        {
+            copy = new TreeSet<>(((SortedSet<Object>)source).comparator());
+        }
+        else if (source instanceof LinkedHashSet)
+        {
+            copy = new LinkedHashSet<>(source.size() * 4 / 3 + 1);
+        }
+        else if (source instanceof HashSet)
+        {
+            copy = new HashSet<>(source.size() * 4 / 3 + 1);
+        }
+        else if (source instanceof Set)
+        {
+            copy = new LinkedHashSet<>(source.size() * 4 / 3 + 1);
+        }
+        else if (source instanceof List)
+        {
+            copy = new ArrayList<>(source.size());
+        }
+        else
+        {
+            copy = new ArrayList<>(source.size());
+        }
+
+        register(original, copy, copies);
+        for (Object element : source)
+        {
+            copy.add(copyValue(element, copies));
+        }
+        return copy;
+    }
+
+    /**
+     * Copy a map. Both keys and values are copied.
+     *
+     * @param original The map.
+     * @param copies The copies made so far in this copy operation.
+     *
+     * @return The copy.
+     *
+     * @throws ReflectiveOperationException if a key or value cannot be copied.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyMap(Object original, Map<Object, Object> copies) throws ReflectiveOperationException
+    {
+        Map<Object, Object> source = (Map<Object, Object>)original;
+        Map<Object, Object> copy;
+
+        if (source instanceof SortedMap)
+        {
+            copy = new TreeMap<>(((SortedMap<Object, Object>)source).comparator());
+        }
+        else if (source instanceof HashMap && !(source instanceof LinkedHashMap))
+        {
+            copy = new HashMap<>(source.size() * 4 / 3 + 1);
+        }
+        else
+        {
+            copy = new LinkedHashMap<>(source.size() * 4 / 3 + 1);
+        }
+
+        register(original, copy, copies);
+        for (Map.Entry<Object, Object> entry : source.entrySet())
+        {
+            copy.put(copyValue(entry.getKey(), copies), copyValue(entry.getValue(), copies));
+        }
+        return copy;
+    }
+
+
+    /**
+     * Copier for classes that cannot be copied. Throws an exception explaining why.
+     */
+    private static final class UnsupportedCopier implements ObjectCopier
+    {
+        /**
+         * The reason the class cannot be copied.
+         */
+        private final String reason;
+
+        /**
+         * Constructor.
+         *
+         * @param type The class that cannot be copied.
+         * @param reason Why it cannot be copied.
+         */
+        UnsupportedCopier(Class<?> type, String reason)
+        {
+            this.reason = "Cannot copy " + type.getName() + ": " + reason;
+        }
+
+        @Override
+        public Object copy(Object original, Map<Object, Object> copies)
+        {
+            throw new UnsupportedOperationException(reason);
+        }
+    }
+
+    /**
+     * Copier for ordinary classes, which creates a new instance and copies each
+     * instance field declared by the class and its superclasses.
+     */
+    private static final class FieldCopier implements ObjectCopier
+    {
+        /**
+         * The no argument constructor.
+         */
+        private final Constructor<?> constructor;
+
+        /**
+         * The instance fields.
+         */
+        private final Field[] fields;
+
+        /**
+         * The type of each field: the primitive type's descriptor character, 'V' for
+         * fields that hold shared immutable values, or 'L' for references to copy.
+         */
+        private final char[] kinds;
+
+        /**
+         * Constructor. Finds the constructor and fields and makes them accessible.
+         *
+         * @param type The class to copy.
+         *
+         * @throws NoSuchMethodException if the class has no no argument constructor.
+         */
+        FieldCopier(Class<?> type) throws NoSuchMethodException
+        {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+
+            List<Field> instanceFields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+            {
+                for (Field f : c.getDeclaredFields())
+                {
+                    if (!Modifier.isStatic(f.getModifiers()))
+                    {
+                        f.setAccessible(true);
+                        instanceFields.add(f);
+                    }
+                }
+            }
+
+            fields = instanceFields.toArray(new Field[instanceFields.size()]);
+            kinds = new char[fields.length];
+            for (int i = 0; i < fields.length; i++)
+            {
+                kinds[i] = kindOf(fields[i].getType());
+            }
+        }
+
+        /**
+         * Work out how to copy a field of the given declared type.
+         *
+         * @param fieldType The declared type of the field.
+         *
+         * @return The field's kind.
+         */
+        private static char kindOf(Class<?> fieldType)
+        {
+            if (fieldType == int.class)
+            {
+                return 'I';
+            }
+            if (fieldType == long.class)
+            {
+                return 'J';
+            }
+            if (fieldType == boolean.class)
+            {
+                return 'Z';
+            }
+            if (fieldType == double.class)
+            {
+                return 'D';
+            }
+            if (fieldType == float.class)
+            {
+                return 'F';
+            }
+            if (fieldType == short.class)
+            {
+                return 'S';
+            }
+            if (fieldType == byte.class)
+            {
+                return 'B';
+            }
+            if (fieldType == char.class)
+            {
+                return 'C';
+            }
+            if (fieldType.isEnum() || (Modifier.isFinal(fieldType.getModifiers()) && IMMUTABLE_TYPES.contains(fieldType)))
+            {
+                // A final immutable type: no subclass could be mutable.
+                return 'V';
+            }
+            return 'L';
+        }
+
+        @Override
+        public Object copy(Object original, Map<Object, Object> copies) throws ReflectiveOperationException
+        {
+            Object copy = constructor.newInstance();
+            copies.put(original, copy);
+
+            for (int i = 0; i < fields.length; i++)
+            {
+                Field f = fields[i];
+                switch (kinds[i])
+                {
+                    case 'I':
+                        f.setInt(copy, f.getInt(original));
+                        break;
+
+                    case 'J':
+                        f.setLong(copy, f.getLong(original));
+                        break;
+
+                    case 'Z':
+                        f.setBoolean(copy, f.getBoolean(original));
+                        break;
+
+                    case 'D':
+                        f.setDouble(copy, f.getDouble(original));
+                        break;
+
+                    case 'F':
+                        f.setFloat(copy, f.getFloat(original));
+                        break;
+
+                    case 'S':
+                        f.setShort(copy, f.getShort(original));
+                        break;
+
+                    case 'B':
+                        f.setByte(copy, f.getByte(original));
+                        break;
+
+                    case 'C':
+                        f.setChar(copy, f.getChar(original));
+                        break;
+
+                    case 'V':
+                        f.set(copy, f.get(original));
+                        break;
+
+                    default:
+                        f.set(copy, copyValue(f.get(original), copies));
+                        break;
+                }
+            }
+
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads recordings into the playback cache on background threads. Requests
+ * for recordings that are already cached or already being loaded are ignored, as
+ * are all requests once the cache holds more than a set amount of data.
+ *
+ * <p>
+ * The queue of recordings waiting to be loaded is bounded, and requests made
+ * while it is full are dropped. The size of the cache is checked again just before
+ * each recording is read, so once the limit is reached queued recordings are not
+ * loaded. The cache can only go over the limit by the recordings being read at
+ * that moment, at most one per thread.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class EntityPrefetcher
+{
+    /**
+     * Interface for the code that reads a recording into the cache.
+     */
+    @FunctionalInterface
+    interface Loader
+    {
+        /**
+         * Read the recording with the given key and put it in the cache.
+         *
+         * @param key The name of the recording file.
+         *
+         * @throws Exception if the recording cannot be loaded.
+         */
+        void load(String key) throws Exception;
+    }
+
+    /**
+     * Counter for naming the prefetch threads.
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The number of recordings that can wait to be loaded for each thread.
+     */
+    static final int QUEUED_PER_THREAD = 256;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger = LoggerFactory.getLogger(EntityPrefetcher.class);
+
+    /**
+     * The cache being filled.
+     */
+    private final PlaybackCache cache;
+
+    /**
+     * The code that reads the recordings.
+     */
+    private final Loader loader;
+
+    /**
+     * The size of source files the cache may hold before prefetching stops.
+     */
+    private final long maxCachedBytes;
+
+    /**
+     * The threads doing the loading.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The keys currently queued or being loaded.
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * Constructor.
+     *
+     * @param name A name for the prefetcher, used to name its threads.
+     * @param cache The cache to fill.
+     * @param loader The code that reads a recording into the cache.
+     * @param threads The maximum number of recordings to load concurrently.
+     * @param maxCachedBytes The size of source files the cache may hold before
+     * prefetching stops.
+     */
+    EntityPrefetcher(String name, PlaybackCache cache, Loader loader, int threads, long maxCachedBytes)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("Prefetching needs at least one thread.");
+        }
+
+        this.cache = cache;
+        this.loader = loader;
+        this.maxCachedBytes = maxCachedBytes;
+
+        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(threads * QUEUED_PER_THREAD);
+        executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS, queue, r ->
+        {
+            Thread t = new Thread(r, name + "-" + THREAD_COUNTER.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Ask for a recording to be loaded in the background.
+     *
+     * @param key The name of the recording file.
+     *
+     * @return true if the recording has been queued for loading, false if it
+     * is already cached, already queued, the queue is full or the cache is full.
+     */
+    boolean prefetch(String key)
+    {
+        if (cache.contains(key) || isFull() || !inFlight.add(key))
+        {
+            return false;
+        }
+
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    if (!isFull())
+                    {
+                        loader.load(key);
+                    }
+                }
+                catch (Exception e)
+                {
+                    logger.debug("Could not prefetch {}: {}", key, e.getMessage());
+                }
+                finally
+                {
+                    inFlight.remove(key);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            inFlight.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Test whether the cache holds as much as prefetching may put in it.
+     *
+     * @return true if no more recordings will be prefetched.
+     */
+    boolean isFull()
+    {
+        return cache.getSourceBytes() >= maxCachedBytes;
+    }
+
+    /**
+     * Get the number of recordings waiting to be loaded.
+     *
+     * @return The length of the queue.
+     */
+    int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of recordings queued or being loaded.
+     *
+     * @return The number of recordings not yet done with.
+     */
+    int getInFlightCount()
+    {
+        return inFlight.size();
+    }
+
+    /**
+     * Stop the prefetcher. Recordings queued but not started are abandoned.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -39,4 +39,19 @@ public class NoRecordingException extends RuntimeException
     {
         super(message);
     }
+
+    /**
+     * Constructor that can create the exception without a stack trace. Filling in
+     * the stack trace is most of the cost of creating an exception, and playback
+     * that expects many misses can do without it.
+     *
+     * @param message The exception message.
+     * @param withStackTrace Whether to record the stack trace.
+     *
+     * @since 2.31.7
+     */
+    public NoRecordingException(String message, boolean withStackTrace)
+    {
+        super(message, null, false, withStackTrace);
+    }
 }
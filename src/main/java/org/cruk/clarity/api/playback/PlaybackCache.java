@@ -0,0 +1,194 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Holds objects that have been unmarshalled from the recording files. Objects
+ * are keyed by the name of the file they were read from, so entities, searches and
+ * lists can all be held in the one cache.
+ *
+ * <p>
+ * The cached objects are masters that must never be changed or handed to client
+ * code, which is free to change the objects returned from the API. The aspect gives
+ * out copies of them (see {@link EntityCopier}). An entry is only returned while
+ * the file it was read from has the same size and modification time as when it
+ * was read.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class PlaybackCache
+{
+    /**
+     * The cached objects, keyed by file name.
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The total size of the files the cached objects were read from.
+     */
+    private final AtomicLong sourceBytes = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     */
+    PlaybackCache()
+    {
+    }
+
+    /**
+     * Add an object to the cache, replacing any object already held for the key.
+     *
+     * @param key The name of the file the object was read from.
+     * @param value The unmarshalled object.
+     * @param size The size of the file the object was read from.
+     * @param lastModified The modification time of the file the object was read from.
+     */
+    void put(String key, Object value, long size, long lastModified)
+    {
+        assert key != null : "Cannot cache with a null key";
+        assert value != null : "Cannot cache null";
+
+        Entry previous = entries.put(key, new Entry(value, size, lastModified));
+        sourceBytes.addAndGet(previous == null ? size : size - previous.size);
+    }
+
+    /**
+     * Get the object held for the given key, provided the file it was read from
+     * has not changed since. A stale entry is removed.
+     *
+     * @param key The name of the file the object was read from.
+     * @param source The file the object was read from.
+     *
+     * @return The cached master object, or null if there is nothing current held
+     * for the key.
+     */
+    Object get(String key, File source)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (source.length() != entry.size || source.lastModified() != entry.lastModified)
+        {
+            if (entries.remove(key, entry))
+            {
+                sourceBytes.addAndGet(-entry.size);
+            }
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Test whether there is an object held for the given key.
+     *
+     * @param key The name of the file the object was read from.
+     *
+     * @return true if there is an object cached for the key, false if not.
+     */
+    boolean contains(String key)
+    {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Get the number of objects in the cache.
+     *
+     * @return The number of objects held.
+     */
+    int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Get the total size of the files the objects held in the cache were read from.
+     *
+     * @return The size in bytes of the source files.
+     */
+    long getSourceBytes()
+    {
+        return sourceBytes.get();
+    }
+
+    /**
+     * Perform an action on every entry in the cache. Entries added or taken
+     * during the iteration may or may not be seen.
+     *
+     * @param action The action to perform with each key and entry.
+     */
+    void forEach(BiConsumer<String, Entry> action)
+    {
+        entries.forEach(action);
+    }
+
+    /**
+     * Remove everything from the cache.
+     */
+    void clear()
+    {
+        entries.clear();
+        sourceBytes.set(0L);
+    }
+
+
+    /**
+     * A cached object and the size and modification time of the file it came from.
+     */
+    static final class Entry
+    {
+        /**
+         * The cached object.
+         */
+        final Object value;
+
+        /**
+         * The size of the source file.
+         */
+        final long size;
+
+        /**
+         * The modification time of the source file.
+         */
+        final long lastModified;
+
+        /**
+         * Constructor.
+         *
+         * @param value The cached object.
+         * @param size The size of the source file.
+         * @param lastModified The modification time of the source file.
+         */
+        Entry(Object value, long size, long lastModified)
+        {
+            this.value = value;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
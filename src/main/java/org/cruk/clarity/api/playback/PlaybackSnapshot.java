@@ -0,0 +1,336 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Reads and writes the playback cache as a binary image, so a later run can
+ * start with the recordings already unmarshalled.
+ *
+ * <p>
+ * Each entry in the image records the name, size and modification time of the
+ * recording file it came from, followed by the serialised object. On restoring,
+ * an entry is only used if the recording file still has the same size and
+ * modification time; stale entries are skipped without being deserialised.
+ * Entries are deserialised in parallel.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class PlaybackSnapshot
+{
+    /**
+     * Marker at the start of a snapshot image.
+     */
+    static final String MAGIC = "CRUK-CI Clarity playback snapshot";
+
+    /**
+     * The version of the image format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Restricts the classes that can be deserialised from an image to the API
+     * classes, this library's classes and core Java classes.
+     */
+    private static final ObjectInputFilter CLASS_FILTER = ObjectInputFilter.Config.createFilter(
+            "com.genologics.ri.**;org.cruk.clarity.api.**;java.**;javax.xml.datatype.*;" +
+            "com.sun.org.apache.xerces.internal.jaxp.datatype.*;!*");
+
+
+    /**
+     * A serialised entry read from or to be written to an image.
+     */
+    private static final class Record
+    {
+        /**
+         * The name of the recording file.
+         */
+        final String key;
+
+        /**
+         * The size of the recording file.
+         */
+        final long size;
+
+        /**
+         * The modification time of the recording file.
+         */
+        final long lastModified;
+
+        /**
+         * The serialised object.
+         */
+        final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param key The name of the recording file.
+         * @param size The size of the recording file.
+         * @param lastModified The modification time of the recording file.
+         * @param data The serialised object.
+         */
+        Record(String key, long size, long lastModified, byte[] data)
+        {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+
+    /**
+     * Private constructor: static methods only.
+     */
+    private PlaybackSnapshot()
+    {
+    }
+
+    /**
+     * Write the contents of the cache to an image file. The image is written to
+     * a temporary file and moved into place, so a reader never sees a partial image.
+     * Objects that cannot be serialised are left out.
+     *
+     * @param image The image file.
+     * @param cache The cache to write.
+     *
+     * @return The number of entries written.
+     *
+     * @throws IOException if the image cannot be written.
+     */
+    static int write(File image, PlaybackCache cache) throws IOException
+    {
+        List<Record> records = new ArrayList<>(cache.size());
+
+        try
+        {
+            cache.forEach((key, entry) ->
+            {
+                try
+                {
+                    records.add(new Record(key, entry.size, entry.lastModified, serialise(entry.value)));
+                }
+                catch (NotSerializableException e)
+                {
+                    // Left out of the image.
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        File temp = new File(image.getAbsoluteFile().getParentFile(), "." + image.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536)))
+        {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+
+            for (Record record : records)
+            {
+                out.writeUTF(record.key);
+                out.writeLong(record.size);
+                out.writeLong(record.lastModified);
+                out.writeInt(record.data.length);
+                out.write(record.data);
+            }
+        }
+
+        Files.move(temp.toPath(), image.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+
+        return records.size();
+    }
+
+    /**
+     * Restore entries from an image file into the cache. Only entries whose
+     * recording files are unchanged since the image was written are restored.
+     *
+     * @param image The image file.
+     * @param cache The cache to restore into.
+     * @param resolver Function to find the recording file for a key.
+     *
+     * @return The number of entries restored.
+     *
+     * @throws IOException if the image cannot be read or is not a snapshot image.
+     */
+    static int restore(File image, PlaybackCache cache, Function<String, File> resolver) throws IOException
+    {
+        List<Record> fresh = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(image), 65536)))
+        {
+            if (!MAGIC.equals(in.readUTF()))
+            {
+                throw new IOException(image.getName() + " is not a playback snapshot.");
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(image.getName() + " is a version " + version + " snapshot. Expected version " + VERSION);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int length = in.readInt();
+
+                File source = resolver.apply(key);
+                if (source.length() == size && source.lastModified() == lastModified)
+                {
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    fresh.add(new Record(key, size, lastModified, data));
+                }
+                else
+                {
+                    skipFully(in, length);
+                }
+            }
+        }
+
+        AtomicInteger restored = new AtomicInteger();
+
+        fresh.parallelStream().forEach(record ->
+        {
+            try
+            {
+                cache.put(record.key, deserialise(record.data), record.size, record.lastModified);
+                restored.incrementAndGet();
+            }
+            catch (IOException | ClassNotFoundException e)
+            {
+                // Skip this entry. It will be read from its recording when needed.
+            }
+        });
+
+        return restored.get();
+    }
+
+    /**
+     * Serialise an object.
+     *
+     * @param thing The object.
+     *
+     * @return The serialised form of the object.
+     *
+     * @throws IOException if the object cannot be serialised.
+     */
+    static byte[] serialise(Object thing) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(thing);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialise an object, allowing only the expected classes.
+     *
+     * @param data The serialised form of the object.
+     *
+     * @return The object.
+     *
+     * @throws IOException if the data cannot be deserialised.
+     * @throws ClassNotFoundException if a class in the data is not available.
+     */
+    static Object deserialise(byte[] data) throws IOException, ClassNotFoundException
+    {
+        return deserialise(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Deserialise an object from a stream, allowing only the expected classes.
+     *
+     * @param data The stream to read the serialised object from.
+     *
+     * @return The object.
+     *
+     * @throws IOException if the data cannot be deserialised.
+     * @throws ClassNotFoundException if a class in the data is not available.
+     */
+    static Object deserialise(InputStream data) throws IOException, ClassNotFoundException
+    {
+        try (ObjectInputStream in = new ObjectInputStream(data))
+        {
+            in.setObjectInputFilter(CLASS_FILTER);
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Skip a number of bytes in a stream.
+     *
+     * @param in The stream.
+     * @param length The number of bytes to skip.
+     *
+     * @throws IOException if the stream cannot be read or ends early.
+     */
+    private static void skipFully(DataInputStream in, int length) throws IOException
+    {
+        int remaining = length;
+        while (remaining > 0)
+        {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0)
+            {
+                throw new EOFException("Snapshot image ends early.");
+            }
+            remaining -= skipped;
+        }
+    }
+}
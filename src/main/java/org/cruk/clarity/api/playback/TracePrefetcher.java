@@ -0,0 +1,156 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cruk.clarity.api.record.AccessTrace;
+
+/**
+ * Follows the playback along a recorded access trace and asks for the recordings
+ * that come next in the trace to be loaded before they are requested.
+ *
+ * <p>
+ * The position in the trace is the last access that matched it. When a recording
+ * is served, the next occurrence of its key at or after the current position moves
+ * the position on, and the recordings within the look ahead window beyond that are
+ * prefetched. Accesses that do not appear in the rest of the trace leave the position
+ * where it is.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class TracePrefetcher
+{
+    /**
+     * The keys in the trace, in order.
+     */
+    private final String[] keys;
+
+    /**
+     * The positions in the trace of each key, in ascending order.
+     */
+    private final Map<String, int[]> positions;
+
+    /**
+     * The number of accesses ahead of the current position to prefetch.
+     */
+    private final int window;
+
+    /**
+     * The prefetcher doing the loading.
+     */
+    private final EntityPrefetcher prefetcher;
+
+    /**
+     * The position in the trace after the last access matched.
+     */
+    private int cursor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param trace The access trace.
+     * @param window The number of accesses ahead of the current position to prefetch.
+     * @param prefetcher The prefetcher doing the loading.
+     */
+    TracePrefetcher(List<AccessTrace.Entry> trace, int window, EntityPrefetcher prefetcher)
+    {
+        this.window = window;
+        this.prefetcher = prefetcher;
+
+        keys = new String[trace.size()];
+        Map<String, List<Integer>> positionLists = new HashMap<>();
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = trace.get(i).getKey();
+            positionLists.computeIfAbsent(keys[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        positions = new HashMap<>(positionLists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Integer>> entry : positionLists.entrySet())
+        {
+            positions.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    /**
+     * Start prefetching from the beginning of the trace.
+     */
+    synchronized void start()
+    {
+        cursor = 0;
+        requestAhead();
+    }
+
+    /**
+     * Note that a recording has been served and prefetch those that follow it in the trace.
+     *
+     * @param key The name of the recording file served.
+     */
+    synchronized void accessed(String key)
+    {
+        int[] keyPositions = positions.get(key);
+        if (keyPositions == null)
+        {
+            return;
+        }
+
+        int index = Arrays.binarySearch(keyPositions, cursor);
+        if (index < 0)
+        {
+            index = -index - 1;
+        }
+        if (index >= keyPositions.length)
+        {
+            return;
+        }
+
+        cursor = keyPositions[index] + 1;
+        requestAhead();
+    }
+
+    /**
+     * Get the position in the trace after the last matched access.
+     *
+     * @return The trace position.
+     */
+    synchronized int getPosition()
+    {
+        return cursor;
+    }
+
+    /**
+     * Request prefetching of the recordings in the window after the cursor.
+     * The prefetcher ignores those already cached or being loaded.
+     */
+    private void requestAhead()
+    {
+        int end = Math.min(keys.length, cursor + window);
+        for (int i = cursor; i < end; i++)
+        {
+            prefetcher.prefetch(keys[i]);
+        }
+    }
+}
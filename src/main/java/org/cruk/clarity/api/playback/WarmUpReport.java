@@ -0,0 +1,146 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The outcome of warming up the playback aspect's cache: how many recordings
+ * were loaded, how long it took and roughly how much memory they occupy.
+ *
+ * @see ClarityAPIPlaybackAspect#warmUp()
+ *
+ * @since 2.31.7
+ */
+public class WarmUpReport
+{
+    /**
+     * The number of files successfully loaded.
+     */
+    private final int filesLoaded;
+
+    /**
+     * The number of files that could not be loaded.
+     */
+    private final int failures;
+
+    /**
+     * The total size of the files loaded.
+     */
+    private final long bytesRead;
+
+    /**
+     * The time taken to load the files, in milliseconds.
+     */
+    private final long elapsedMillis;
+
+    /**
+     * The change in used heap over the warm up.
+     */
+    private final long memoryUsed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param filesLoaded The number of files successfully loaded.
+     * @param failures The number of files that could not be loaded.
+     * @param bytesRead The total size of the files loaded.
+     * @param elapsedMillis The time taken, in milliseconds.
+     * @param memoryUsed The change in used heap over the warm up.
+     */
+    public WarmUpReport(int filesLoaded, int failures, long bytesRead, long elapsedMillis, long memoryUsed)
+    {
+        this.filesLoaded = filesLoaded;
+        this.failures = failures;
+        this.bytesRead = bytesRead;
+        this.elapsedMillis = elapsedMillis;
+        this.memoryUsed = memoryUsed;
+    }
+
+    /**
+     * Get the number of recordings loaded into the cache.
+     *
+     * @return The number of files loaded.
+     */
+    public int getFilesLoaded()
+    {
+        return filesLoaded;
+    }
+
+    /**
+     * Get the number of recordings that could not be loaded.
+     *
+     * @return The number of failures.
+     */
+    public int getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * Get the total size of the recordings loaded.
+     *
+     * @return The number of bytes read.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Get the time taken to warm up.
+     *
+     * @return The elapsed time in milliseconds.
+     */
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    /**
+     * Get the change in used heap between the start and end of the warm up.
+     * This is only an indication: garbage collection during the warm up will
+     * affect the figure.
+     *
+     * @return The approximate memory used, in bytes.
+     */
+    public long getMemoryUsed()
+    {
+        return memoryUsed;
+    }
+
+    /**
+     * Get a human readable representation of this report.
+     *
+     * @return A printable representation of this object.
+     */
+    @Override
+    public String toString()
+    {
+        ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+        b.append("filesLoaded", filesLoaded);
+        b.append("failures", failures);
+        b.append("bytesRead", bytesRead);
+        b.append("elapsedMillis", elapsedMillis);
+        b.append("memoryUsed", memoryUsed);
+        return b.toString();
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * An ordered record of the entities, searches and lists served while recording.
+ * The trace is a text file with one access per line, giving the operation, the name
+ * of the recording file that holds the result (the key), the entity class and, for
+ * entities, the URI the entity was fetched from. Fields are separated by tabs.
+ * Lines starting with {@code #} are comments.
+ *
+ * @see ClarityAPIRecordingAspect#setTraceFile(File)
+ *
+ * @since 2.31.7
+ */
+public final class AccessTrace
+{
+    /**
+     * The header line written at the top of every trace file.
+     */
+    public static final String HEADER = "# Clarity API access trace";
+
+    /**
+     * The separator between fields on a line.
+     */
+    static final char SEPARATOR = '\t';
+
+
+    /**
+     * The kinds of API call recorded in a trace.
+     */
+    public enum Operation
+    {
+        /**
+         * An entity fetched with {@code load}, {@code retrieve} or {@code loadAll}.
+         */
+        GET('G'),
+
+        /**
+         * A search made with {@code find}.
+         */
+        FIND('F'),
+
+        /**
+         * A list fetched with {@code listAll} or {@code listSome}.
+         */
+        LIST('L');
+
+        /**
+         * The code for the operation in the trace file.
+         */
+        private final char code;
+
+        /**
+         * Constructor.
+         *
+         * @param code The code for the operation in the trace file.
+         */
+        Operation(char code)
+        {
+            this.code = code;
+        }
+
+        /**
+         * Get the code for the operation in the trace file.
+         *
+         * @return The single character code.
+         */
+        public char getCode()
+        {
+            return code;
+        }
+
+        /**
+         * Find the operation for a code in the trace file.
+         *
+         * @param code The code.
+         *
+         * @return The matching operation.
+         *
+         * @throws IllegalArgumentException if there is no operation for the code.
+         */
+        public static Operation fromCode(char code)
+        {
+            for (Operation op : values())
+            {
+                if (op.code == code)
+                {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown trace operation " + code);
+        }
+    }
+
+
+    /**
+     * One access in a trace.
+     */
+    public static final class Entry
+    {
+        /**
+         * The operation.
+         */
+        private final Operation operation;
+
+        /**
+         * The name of the recording file.
+         */
+        private final String key;
+
+        /**
+         * The entity class name.
+         */
+        private final String entityClassName;
+
+        /**
+         * The URI of the entity, for GET operations.
+         */
+        private final String uri;
+
+        /**
+         * Constructor.
+         *
+         * @param operation The operation.
+         * @param key The name of the recording file.
+         * @param entityClassName The entity class name.
+         * @param uri The URI of the entity. Can be null.
+         */
+        public Entry(Operation operation, String key, String entityClassName, String uri)
+        {
+            this.operation = operation;
+            this.key = key;
+            this.entityClassName = entityClassName;
+            this.uri = uri;
+        }
+
+        /**
+         * Get the operation.
+         *
+         * @return The operation.
+         */
+        public Operation getOperation()
+        {
+            return operation;
+        }
+
+        /**
+         * Get the name of the recording file that holds the result of the access.
+         *
+         * @return The file name.
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * Get the fully qualified name of the entity class of the access.
+         *
+         * @return The class name.
+         */
+        public String getEntityClassName()
+        {
+            return entityClassName;
+        }
+
+        /**
+         * Get the URI of the entity fetched.
+         *
+         * @return The URI, or null for searches and lists.
+         */
+        public String getUri()
+        {
+            return uri;
+        }
+
+        /**
+         * Get a human readable representation of this entry.
+         *
+         * @return A printable representation of this object.
+         */
+        @Override
+        public String toString()
+        {
+            ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+            b.append("operation", operation);
+            b.append("key", key);
+            b.append("entityClass", entityClassName);
+            if (uri != null)
+            {
+                b.append("uri", uri);
+            }
+            return b.toString();
+        }
+    }
+
+
+    /**
+     * Private constructor: static methods only.
+     */
+    private AccessTrace()
+    {
+    }
+
+    /**
+     * Format an entry as a line in a trace file (without line ending).
+     *
+     * @param entry The entry.
+     *
+     * @return The line for the trace file.
+     */
+    static String format(Entry entry)
+    {
+        StringBuilder b = new StringBuilder(96);
+        b.append(entry.getOperation().getCode()).append(SEPARATOR);
+        b.append(entry.getKey()).append(SEPARATOR);
+        b.append(entry.getEntityClassName());
+        if (entry.getUri() != null)
+        {
+            b.append(SEPARATOR).append(entry.getUri());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Parse a line from a trace file.
+     *
+     * @param line The line.
+     *
+     * @return The entry from the line, or null if the line is blank or a comment.
+     *
+     * @throws IllegalArgumentException if the line is not in the expected format.
+     */
+    static Entry parse(String line)
+    {
+        if (isBlank(line) || line.charAt(0) == '#')
+        {
+            return null;
+        }
+
+        String[] parts = line.split(String.valueOf(SEPARATOR));
+        if (parts.length < 3 || parts[0].length() != 1)
+        {
+            throw new IllegalArgumentException("Malformed trace line: " + line);
+        }
+
+        return new Entry(Operation.fromCode(parts[0].charAt(0)), parts[1], parts[2], parts.length > 3 ? parts[3] : null);
+    }
+
+    /**
+     * Read a trace file.
+     *
+     * @param traceFile The trace file.
+     *
+     * @return The entries in the trace, in the order they were recorded.
+     *
+     * @throws IOException if the file cannot be read or is not in the expected format.
+     */
+    public static List<Entry> read(File traceFile) throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(traceFile.toPath(), US_ASCII))
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                ++lineNumber;
+                try
+                {
+                    Entry entry = parse(line);
+                    if (entry != null)
+                    {
+                        entries.add(entry);
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IOException(traceFile.getName() + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Appends entries to an access trace file. Writes are serialised so the order
+ * of the lines is the order in which the calls completed.
+ *
+ * @see AccessTrace
+ *
+ * @since 2.31.7
+ */
+final class AccessTraceWriter implements Closeable
+{
+    /**
+     * The trace file.
+     */
+    private final File traceFile;
+
+    /**
+     * The writer to the trace file.
+     */
+    private final BufferedWriter writer;
+
+
+    /**
+     * Create a new trace, replacing any trace file already present.
+     *
+     * @param traceFile The trace file.
+     *
+     * @throws IOException if the file cannot be created.
+     */
+    AccessTraceWriter(File traceFile) throws IOException
+    {
+        this.traceFile = traceFile;
+        writer = Files.newBufferedWriter(traceFile.toPath(), US_ASCII);
+        writer.write(AccessTrace.HEADER);
+        writer.newLine();
+    }
+
+    /**
+     * Get the file being written to.
+     *
+     * @return The trace file.
+     */
+    File getTraceFile()
+    {
+        return traceFile;
+    }
+
+    /**
+     * Add an entry to the trace.
+     *
+     * @param entry The access to record.
+     *
+     * @throws IOException if the entry cannot be written.
+     */
+    synchronized void write(AccessTrace.Entry entry) throws IOException
+    {
+        writer.write(AccessTrace.format(entry));
+        writer.newLine();
+    }
+
+    /**
+     * Push any buffered entries to the file.
+     *
+     * @throws IOException if the entries cannot be written.
+     */
+    synchronized void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    /**
+     * Flush and close the trace file.
+     *
+     * @throws IOException if the file cannot be closed cleanly.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+}
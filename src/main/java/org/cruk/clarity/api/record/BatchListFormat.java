@@ -0,0 +1,244 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlNs;
+import javax.xml.bind.annotation.XmlNsForm;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlSchema;
+import javax.xml.namespace.QName;
+
+/**
+ * The XML structure of a {@code Batch} class's list file, worked out once from
+ * the JAXB annotations on the class: the root element, the namespace prefixes
+ * declared for its package, and the name and class of the link elements.
+ * This lets list files be read and written one link at a time.
+ *
+ * @since 2.31.7
+ */
+public final class BatchListFormat
+{
+    /**
+     * JAXB's marker for a name or namespace taken from the default.
+     */
+    private static final String DEFAULT = "##default";
+
+    /**
+     * The format for each batch class, if it can be worked out.
+     */
+    private static final ClassValue<Optional<BatchListFormat>> FORMATS = new ClassValue<Optional<BatchListFormat>>()
+    {
+        @Override
+        protected Optional<BatchListFormat> computeValue(Class<?> batchClass)
+        {
+            return Optional.ofNullable(createFormat(batchClass));
+        }
+    };
+
+    /**
+     * The root element's name.
+     */
+    private final QName rootName;
+
+    /**
+     * The namespace prefixes declared for the batch's package, prefix to namespace URI.
+     */
+    private final Map<String, String> namespaces;
+
+    /**
+     * The name of the link elements.
+     */
+    private final QName linkName;
+
+    /**
+     * The class of the links.
+     */
+    private final Class<?> linkClass;
+
+
+    /**
+     * Constructor.
+     *
+     * @param rootName The root element's name.
+     * @param namespaces The namespace prefixes declared for the batch's package.
+     * @param linkName The name of the link elements.
+     * @param linkClass The class of the links.
+     */
+    private BatchListFormat(QName rootName, Map<String, String> namespaces, QName linkName, Class<?> linkClass)
+    {
+        this.rootName = rootName;
+        this.namespaces = Collections.unmodifiableMap(namespaces);
+        this.linkName = linkName;
+        this.linkClass = linkClass;
+    }
+
+    /**
+     * Get the format of a batch class's list file.
+     *
+     * @param batchClass The batch class.
+     *
+     * @return The format, or null if the class's annotations do not give it.
+     */
+    public static BatchListFormat forBatchClass(Class<?> batchClass)
+    {
+        return FORMATS.get(batchClass).orElse(null);
+    }
+
+    /**
+     * Get the root element's name.
+     *
+     * @return The root element's qualified name, with the prefix declared for its
+     * namespace.
+     */
+    public QName getRootName()
+    {
+        return rootName;
+    }
+
+    /**
+     * Get the namespace prefixes declared for the batch's package.
+     *
+     * @return An unmodifiable map of prefix to namespace URI.
+     */
+    public Map<String, String> getNamespaces()
+    {
+        return namespaces;
+    }
+
+    /**
+     * Get the name of the link elements.
+     *
+     * @return The link elements' qualified name.
+     */
+    public QName getLinkName()
+    {
+        return linkName;
+    }
+
+    /**
+     * Get the class of the links.
+     *
+     * @return The link class.
+     */
+    public Class<?> getLinkClass()
+    {
+        return linkClass;
+    }
+
+    /**
+     * Work out the format of a batch class from its annotations.
+     *
+     * @param batchClass The batch class.
+     *
+     * @return The format, or null if the class is not annotated as expected or has
+     * no list field.
+     */
+    private static BatchListFormat createFormat(Class<?> batchClass)
+    {
+        XmlRootElement root = batchClass.getAnnotation(XmlRootElement.class);
+        if (root == null)
+        {
+            return null;
+        }
+
+        XmlSchema schema = batchClass.getPackage() == null ? null : batchClass.getPackage().getAnnotation(XmlSchema.class);
+        String schemaNamespace = schema == null ? XMLConstants.NULL_NS_URI : schema.namespace();
+
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        if (schema != null)
+        {
+            for (XmlNs ns : schema.xmlns())
+            {
+                namespaces.put(ns.prefix(), ns.namespaceURI());
+            }
+        }
+
+        String rootNamespace = DEFAULT.equals(root.namespace()) ? schemaNamespace : root.namespace();
+        QName rootName = new QName(rootNamespace, root.name(), prefixFor(rootNamespace, namespaces));
+
+        for (Class<?> c = batchClass; c != null && c != Object.class; c = c.getSuperclass())
+        {
+            for (Field field : c.getDeclaredFields())
+            {
+                if (List.class.isAssignableFrom(field.getType()) && field.getGenericType() instanceof ParameterizedType)
+                {
+                    Type linkType = ((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
+                    if (linkType instanceof Class)
+                    {
+                        XmlElement element = field.getAnnotation(XmlElement.class);
+
+                        String name = element == null || DEFAULT.equals(element.name()) ? field.getName() : element.name();
+
+                        String namespace;
+                        if (element != null && !DEFAULT.equals(element.namespace()))
+                        {
+                            namespace = element.namespace();
+                        }
+                        else if (schema != null && schema.elementFormDefault() == XmlNsForm.QUALIFIED)
+                        {
+                            namespace = schemaNamespace;
+                        }
+                        else
+                        {
+                            namespace = XMLConstants.NULL_NS_URI;
+                        }
+
+                        QName linkName = new QName(namespace, name, prefixFor(namespace, namespaces));
+
+                        return new BatchListFormat(rootName, namespaces, linkName, (Class<?>)linkType);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the prefix declared for a namespace.
+     *
+     * @param namespace The namespace URI.
+     * @param namespaces The declared prefixes.
+     *
+     * @return The prefix for the namespace, or the default (empty) prefix if none
+     * is declared.
+     */
+    private static String prefixFor(String namespace, Map<String, String> namespaces)
+    {
+        for (Map.Entry<String, String> ns : namespaces.entrySet())
+        {
+            if (ns.getValue().equals(namespace))
+            {
+                return ns.getKey();
+            }
+        }
+        return XMLConstants.DEFAULT_NS_PREFIX;
+    }
+}
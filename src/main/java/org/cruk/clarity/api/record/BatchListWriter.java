@@ -0,0 +1,202 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+/**
+ * Writes a list file one link at a time, without building the {@code Batch}
+ * object. The root element and namespace declarations are written directly and
+ * each link is marshalled as a fragment, so the memory needed does not depend on
+ * the length of the list.
+ *
+ * @see BatchListFormat
+ *
+ * @since 2.31.7
+ */
+final class BatchListWriter
+{
+    /**
+     * Factory for the StAX writers.
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * The writer for each batch class, if one can be made.
+     */
+    private static final ClassValue<Optional<BatchListWriter>> WRITERS = new ClassValue<Optional<BatchListWriter>>()
+    {
+        @Override
+        protected Optional<BatchListWriter> computeValue(Class<?> batchClass)
+        {
+            BatchListFormat format = BatchListFormat.forBatchClass(batchClass);
+            return Optional.ofNullable(format == null ? null : new BatchListWriter(format));
+        }
+    };
+
+    /**
+     * The structure of the list file.
+     */
+    private final BatchListFormat format;
+
+
+    /**
+     * Constructor.
+     *
+     * @param format The structure of the list file.
+     */
+    private BatchListWriter(BatchListFormat format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * Get the writer for a batch class.
+     *
+     * @param batchClass The batch class.
+     *
+     * @return The writer for lists of this batch, or null if the batch's list
+     * format cannot be worked out.
+     */
+    static BatchListWriter forBatchClass(Class<?> batchClass)
+    {
+        return WRITERS.get(batchClass).orElse(null);
+    }
+
+    /**
+     * Start writing a list file.
+     *
+     * @param out The stream to the file. It is not closed when the output is.
+     * @param marshaller The JAXB marshaller, whose context is used to marshal the links.
+     *
+     * @return The output to write the links to. It must be closed to complete the file.
+     *
+     * @throws IOException if the start of the file cannot be written.
+     */
+    Output open(OutputStream out, Jaxb2Marshaller marshaller) throws IOException
+    {
+        return new Output(out, marshaller);
+    }
+
+
+    /**
+     * An open list file.
+     */
+    final class Output implements Closeable
+    {
+        /**
+         * The XML writer.
+         */
+        private final XMLStreamWriter writer;
+
+        /**
+         * The marshaller for the links, set to write fragments.
+         */
+        private final Marshaller linkMarshaller;
+
+        /**
+         * Constructor. Writes the document start and the root element.
+         *
+         * @param out The file stream.
+         * @param marshaller The JAXB marshaller.
+         *
+         * @throws IOException if the start of the document cannot be written.
+         */
+        private Output(OutputStream out, Jaxb2Marshaller marshaller) throws IOException
+        {
+            try
+            {
+                linkMarshaller = marshaller.getJaxbContext().createMarshaller();
+                linkMarshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+
+                writer = OUTPUT_FACTORY.createXMLStreamWriter(out, UTF_8.name());
+                writer.writeStartDocument(UTF_8.name(), "1.0");
+
+                QName root = format.getRootName();
+                writer.writeStartElement(root.getPrefix(), root.getLocalPart(), root.getNamespaceURI());
+                for (Map.Entry<String, String> ns : format.getNamespaces().entrySet())
+                {
+                    writer.writeNamespace(ns.getKey(), ns.getValue());
+                }
+            }
+            catch (JAXBException | XMLStreamException e)
+            {
+                throw new IOException("Cannot start list file: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Write a link to the file.
+         *
+         * @param link The link.
+         *
+         * @throws IOException if the link cannot be written.
+         */
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        void write(Object link) throws IOException
+        {
+            try
+            {
+                linkMarshaller.marshal(new JAXBElement(format.getLinkName(), format.getLinkClass(), link), writer);
+            }
+            catch (JAXBException e)
+            {
+                throw new IOException("Cannot write link " + link + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Finish the document. The XML is flushed to the file stream, which is
+         * left open.
+         *
+         * @throws IOException if the document cannot be completed.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.flush();
+                writer.close();
+            }
+            catch (XMLStreamException e)
+            {
+                throw new IOException("Cannot finish list file: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -19,40 +19,47 @@
 package org.cruk.clarity.api.record;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-import static org.apache.commons.lang3.StringUtils.isNotEmpty;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
-import java.lang.reflect.Constructor;
-import java.text.MessageFormat;
+import java.net.URI;
+import java.nio.file.Files;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.lang3.ClassUtils;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Aspect;
 import org.cruk.clarity.api.ClarityAPI;
 import org.cruk.clarity.api.impl.ClarityAPIInternal;
+import org.cruk.clarity.api.metrics.AspectMetrics;
+import org.cruk.clarity.api.metrics.AspectMetrics.Outcome;
+import org.cruk.clarity.api.metrics.EntityWriteEvent;
+import org.cruk.clarity.api.metrics.SearchMergeEvent;
 import org.cruk.clarity.api.playback.ClarityAPIPlaybackAspect;
+import org.cruk.clarity.api.record.AccessTrace.Operation;
 import org.cruk.clarity.api.search.Search;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.oxm.jaxb.Jaxb2Marshaller;
 
 import com.genologics.ri.Batch;
-import com.genologics.ri.ClarityEntity;
-import com.genologics.ri.LimsEntity;
-import com.genologics.ri.LimsEntityLink;
 import com.genologics.ri.LimsLink;
 import com.genologics.ri.Locatable;
 import com.thoughtworks.xstream.XStream;
@@ -63,7 +70,7 @@ import com.thoughtworks.xstream.XStreamException;
  * to a directory on disk.
  */
 @Aspect
-public class ClarityAPIRecordingAspect
+public class ClarityAPIRecordingAspect implements DisposableBean
 {
     /**
      * Template for the file name pattern.
@@ -92,6 +99,84 @@ public class ClarityAPIRecordingAspect
      */
     private boolean recordSearchesWithoutResults = true;
 
+    /**
+     * Whether to also record each {@code loadAll} call as a whole.
+     *
+     * @since 2.31.7
+     */
+    private boolean recordLoadAllManifests = false;
+
+    /**
+     * Writer for the access trace, if one is being recorded.
+     *
+     * @since 2.31.7
+     */
+    private volatile AccessTraceWriter traceWriter;
+
+    /**
+     * The lists recorded but not yet written, by batch class.
+     *
+     * @since 2.31.7
+     */
+    private final ConcurrentMap<Class<?>, ListRecording> lists = new ConcurrentHashMap<>();
+
+    /**
+     * The batch class for each entity class listed, or empty if the entity
+     * cannot be listed.
+     *
+     * @since 2.31.7
+     */
+    private final ConcurrentMap<Class<?>, Optional<Class<?>>> batchClasses = new ConcurrentHashMap<>();
+
+    /**
+     * The layout of the recording files in the message directory.
+     *
+     * @since 2.31.7
+     */
+    private volatile RecordingLayout layout = RecordingLayout.FLAT;
+
+    /**
+     * Whether the message directory has been marked with the layout.
+     *
+     * @since 2.31.7
+     */
+    private volatile boolean layoutMarked;
+
+    /**
+     * Locks for the search files in the message directory.
+     *
+     * @since 2.31.7
+     */
+    private SearchFileLocks searchLocks;
+
+    /**
+     * How recording files are written to disk.
+     *
+     * @since 2.31.7
+     */
+    private RecordingFileWriter.SyncPolicy syncPolicy = RecordingFileWriter.SyncPolicy.NONE;
+
+    /**
+     * The minimum time between syncs with the {@code BATCHED} sync policy, in milliseconds.
+     *
+     * @since 2.31.7
+     */
+    private long syncInterval = 1000L;
+
+    /**
+     * Writer for the recording files, for the current sync policy.
+     *
+     * @since 2.31.7
+     */
+    private volatile RecordingFileWriter fileWriter = new RecordingFileWriter(syncPolicy, syncInterval);
+
+    /**
+     * The metrics for the calls recorded, or null if metrics are off.
+     *
+     * @since 2.31.7
+     */
+    private volatile AspectMetrics metrics;
+
     /**
      * The JAXB marshaller used to directly marshal the API entities into XML files.
      */
@@ -141,12 +226,51 @@ public class ClarityAPIRecordingAspect
     /**
      * Set the directory the messages are being written to.
      * Also sets the search directory if it is not already set.
+     * Any lists not yet written are written to the old directory first.
      *
      * @param messageDirectory The message directory.
      */
-    public void setMessageDirectory(File messageDirectory)
+    public synchronized void setMessageDirectory(File messageDirectory)
     {
+        if (!lists.isEmpty())
+        {
+            flush();
+            lists.clear();
+        }
+        closeSearchLocks();
         this.messageDirectory = messageDirectory;
+        this.searchLocks = new SearchFileLocks(messageDirectory);
+        this.layoutMarked = false;
+    }
+
+    /**
+     * Get the layout the recording files are written in.
+     *
+     * @return The layout.
+     *
+     * @since 2.31.7
+     */
+    public RecordingLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Set the layout the recording files are written in. The default is
+     * {@code FLAT}. With {@code SHARDED}, the message directory is marked as sharded
+     * when the first file is written, and the type and shard directories are
+     * created as needed.
+     *
+     * @param layout The layout.
+     *
+     * @see RecordingLayout
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setLayout(RecordingLayout layout)
+    {
+        this.layout = layout == null ? RecordingLayout.FLAT : layout;
+        this.layoutMarked = false;
     }
 
     /**
@@ -180,6 +304,186 @@ public class ClarityAPIRecordingAspect
         this.recordSearchesWithoutResults = recordSearchesWithoutResults;
     }
 
+    /**
+     * Whether each {@code loadAll} call is also recorded as a whole in a
+     * {@link LoadAllManifest}, as well as its entities in their own files.
+     *
+     * @return true if manifests are written.
+     *
+     * @since 2.31.7
+     */
+    public boolean isRecordLoadAllManifests()
+    {
+        return recordLoadAllManifests;
+    }
+
+    /**
+     * Set whether each {@code loadAll} call is also recorded as a whole in a
+     * {@link LoadAllManifest}. Playback can then answer the same call with one
+     * read. The default is not to.
+     *
+     * @param recordLoadAllManifests true to write manifests.
+     *
+     * @since 2.31.7
+     */
+    public void setRecordLoadAllManifests(boolean recordLoadAllManifests)
+    {
+        this.recordLoadAllManifests = recordLoadAllManifests;
+    }
+
+    /**
+     * Get the file the access trace is being written to.
+     *
+     * @return The trace file, or null if no trace is being written.
+     *
+     * @see AccessTrace
+     *
+     * @since 2.31.7
+     */
+    public File getTraceFile()
+    {
+        AccessTraceWriter writer = traceWriter;
+        return writer == null ? null : writer.getTraceFile();
+    }
+
+    /**
+     * Set the file to write an access trace to. The trace records, in order, the
+     * entities, searches and lists served while recording. The playback aspect can use
+     * it to read recordings ahead of them being asked for. Any trace currently being
+     * written is closed, and an existing file is replaced.
+     *
+     * @param traceFile The trace file. Null turns off tracing.
+     *
+     * @see ClarityAPIPlaybackAspect#setPrefetchTraceFile(File)
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setTraceFile(File traceFile)
+    {
+        closeTrace();
+
+        if (traceFile != null)
+        {
+            try
+            {
+                traceWriter = new AccessTraceWriter(traceFile);
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot write access trace to {}: {}", traceFile.getAbsolutePath(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the policy for getting recording files onto disk.
+     *
+     * @return The sync policy.
+     *
+     * @since 2.31.7
+     */
+    public RecordingFileWriter.SyncPolicy getSyncPolicy()
+    {
+        return syncPolicy;
+    }
+
+    /**
+     * Set the policy for getting recording files onto disk. Whatever the policy,
+     * every file is written to a temporary file that is renamed into place, so
+     * no reader sees a partly written recording. The policy decides whether and
+     * when the files are also forced to disk. The default is {@code NONE}.
+     *
+     * @param syncPolicy The sync policy.
+     *
+     * @see RecordingFileWriter.SyncPolicy
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setSyncPolicy(RecordingFileWriter.SyncPolicy syncPolicy)
+    {
+        this.syncPolicy = syncPolicy == null ? RecordingFileWriter.SyncPolicy.NONE : syncPolicy;
+        replaceFileWriter();
+    }
+
+    /**
+     * Get the minimum time between syncs with the {@code BATCHED} sync policy.
+     *
+     * @return The sync interval, in milliseconds.
+     *
+     * @since 2.31.7
+     */
+    public long getSyncInterval()
+    {
+        return syncInterval;
+    }
+
+    /**
+     * Set the time between syncs with the {@code BATCHED} sync policy. Files written
+     * are synced in the background within this time, and also whenever the aspect
+     * is flushed.
+     *
+     * @param syncInterval The sync interval, in milliseconds.
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setSyncInterval(long syncInterval)
+    {
+        this.syncInterval = syncInterval;
+        replaceFileWriter();
+    }
+
+    /**
+     * Whether metrics are being collected.
+     *
+     * @return true if metrics are on.
+     *
+     * @since 2.31.7
+     */
+    public boolean isMetricsEnabled()
+    {
+        return metrics != null;
+    }
+
+    /**
+     * Set whether to collect metrics on the calls recorded and publish them
+     * through JMX. The default is off, which costs nothing beyond a null check
+     * per call.
+     *
+     * @param metricsEnabled true to collect metrics.
+     *
+     * @see AspectMetrics
+     *
+     * @since 2.31.7
+     */
+    public synchronized void setMetricsEnabled(boolean metricsEnabled)
+    {
+        if (metricsEnabled && metrics == null)
+        {
+            AspectMetrics m = new AspectMetrics(this);
+            m.addQueue("pendingLists", () -> lists.values().stream().filter(ListRecording::isDirty).count());
+            m.addQueue("unsyncedFiles", () -> fileWriter.getUnsyncedCount());
+            m.register();
+            metrics = m;
+        }
+        else if (!metricsEnabled && metrics != null)
+        {
+            metrics.unregister();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Get the metrics being collected.
+     *
+     * @return The metrics, or null if metrics are off.
+     *
+     * @since 2.31.7
+     */
+    public AspectMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     /**
      * Inject the JAXB marshaller. This is required.
      *
@@ -204,6 +508,90 @@ public class ClarityAPIRecordingAspect
         this.apiInternal = internalApi;
     }
 
+    /**
+     * Called by Spring when the context is closed. Writes any lists not yet
+     * written, stops the file writer's background syncs, closes the access trace
+     * if one is being written, releases the search lock file and removes the
+     * metrics from JMX.
+     */
+    @Override
+    public void destroy()
+    {
+        flush();
+        closeFileWriter(fileWriter);
+        closeTrace();
+        closeSearchLocks();
+        setMetricsEnabled(false);
+    }
+
+    /**
+     * Write the lists recorded since the last flush to their files. Each list
+     * file holds all the links seen for its type of entity, and is accompanied by
+     * a ranges file if the links are not simply the start of the server's list.
+     * With the {@code BATCHED} sync policy, everything written since the last sync
+     * is then forced to disk.
+     *
+     * @see ListRanges
+     *
+     * @since 2.31.7
+     */
+    public void flush()
+    {
+        for (ListRecording recording : lists.values())
+        {
+            if (recording.isDirty())
+            {
+                try
+                {
+                    writeList(recording);
+                }
+                catch (Exception e)
+                {
+                    logger.warn("Could not record list {}: {}",
+                                ClassUtils.getShortClassName(recording.getBatchClass()), e.getMessage());
+                }
+            }
+        }
+
+        try
+        {
+            fileWriter.sync();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not sync recordings to disk: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the file writer after its settings have changed. The old writer
+     * is closed, syncing anything it wrote that was not yet synced.
+     */
+    private void replaceFileWriter()
+    {
+        RecordingFileWriter old = fileWriter;
+        fileWriter = new RecordingFileWriter(syncPolicy, syncInterval);
+        closeFileWriter(old);
+    }
+
+    /**
+     * Close a file writer, logging rather than throwing if what it wrote cannot
+     * be synced.
+     *
+     * @param writer The file writer.
+     */
+    private void closeFileWriter(RecordingFileWriter writer)
+    {
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not sync recordings to disk: {}", e.getMessage());
+        }
+    }
+
     /**
      * Join point around the Clarity client's {@code load()} and {@code retrieve()} methods.
      * Simply marshalls the object that has come back from the Clarity server to a file
@@ -218,17 +606,29 @@ public class ClarityAPIRecordingAspect
      */
     public Object doLoad(ProceedingJoinPoint pjp) throws Throwable
     {
-        Object thing = pjp.proceed();
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            Object thing = pjp.proceed();
 
-        writeEntity(thing);
+            writeEntity(thing);
 
-        return thing;
+            outcome = Outcome.LOAD;
+            return thing;
+        }
+        finally
+        {
+            AspectMetrics.record(m, AspectMetrics.Operation.LOAD, outcome, start);
+        }
     }
 
     /**
      * Join point around the Clarity client's {@code loadAll()} method.
      * Marshals all the objects returned from the server to files on disk, as per
-     * {@code doLoad()}.
+     * {@code doLoad()}. If set to, the whole call is also written to a
+     * {@link LoadAllManifest}.
      *
      * @param pjp The join point.
      * @return The entities returned from the server.
@@ -239,19 +639,38 @@ public class ClarityAPIRecordingAspect
      */
     public Object doLoadAll(ProceedingJoinPoint pjp) throws Throwable
     {
-        Collection<?> list = (Collection<?>)pjp.proceed();
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Outcome outcome = Outcome.ERROR;
+        try
+        {
+            Collection<?> list = (Collection<?>)pjp.proceed();
 
-        for (Object thing : list)
+            for (Object thing : list)
+            {
+                writeEntity(thing);
+            }
+
+            if (recordLoadAllManifests)
+            {
+                writeManifest((Collection<?>)pjp.getArgs()[0], list);
+            }
+
+            outcome = Outcome.LOAD;
+            return list;
+        }
+        finally
         {
-            writeEntity(thing);
+            AspectMetrics.record(m, AspectMetrics.Operation.LOAD_ALL, outcome, start);
         }
-
-        return list;
     }
 
     /**
      * Join point around the Clarity client's {@code find()} method. Runs the search
      * and records the search terms and results in a file in the search directory.
+     * The results are merged with any already recorded for the same search while
+     * holding a lock on the search file, so recorders in several threads or processes
+     * can share a message directory without losing results.
      *
      * @param <E> The type of entity being searched for.
      *
@@ -261,6 +680,42 @@ public class ClarityAPIRecordingAspect
      * @throws Throwable if there is an error invoking the underlying method.
      */
     public <E extends Locatable> List<LimsLink<E>> doFind(ProceedingJoinPoint pjp) throws Throwable
+    {
+        return find(pjp, false);
+    }
+
+    /**
+     * Run a search as {@link #doFind(ProceedingJoinPoint)} does, but replace any
+     * results already recorded for it rather than merging with them. Until the
+     * search has come back from the server, what is recorded is left alone.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param pjp The join point.
+     * @return The result of the search (a list of links).
+     *
+     * @throws Throwable if there is an error invoking the underlying method.
+     *
+     * @since 2.31.7
+     */
+    public <E extends Locatable> List<LimsLink<E>> refreshSearch(ProceedingJoinPoint pjp) throws Throwable
+    {
+        return find(pjp, true);
+    }
+
+    /**
+     * Run a search and record it.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param pjp The join point.
+     * @param replace true to replace the recorded results, false to merge with them.
+     *
+     * @return The result of the search (a list of links).
+     *
+     * @throws Throwable if there is an error invoking the underlying method.
+     */
+    private <E extends Locatable> List<LimsLink<E>> find(ProceedingJoinPoint pjp, boolean replace) throws Throwable
     {
         @SuppressWarnings("unchecked")
         Map<String, ?> searchTerms = (Map<String, ?>)pjp.getArgs()[0];
@@ -268,7 +723,18 @@ public class ClarityAPIRecordingAspect
         @SuppressWarnings("unchecked")
         Class<E> entityClass = (Class<E>)pjp.getArgs()[1];
 
-        Object reply = pjp.proceed();
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        Object reply;
+        try
+        {
+            reply = pjp.proceed();
+        }
+        catch (Throwable e)
+        {
+            AspectMetrics.record(m, AspectMetrics.Operation.FIND, Outcome.ERROR, start);
+            throw e;
+        }
 
         @SuppressWarnings("unchecked")
         List<LimsLink<E>> results = (List<LimsLink<E>>)reply;
@@ -278,14 +744,15 @@ public class ClarityAPIRecordingAspect
             Search<E> search = new Search<E>(searchTerms, entityClass);
             search.setResults(results);
 
+            trace(Operation.FIND, search.getSearchFileName(), entityClass, null);
+
             if (recordSearchesWithoutResults || !results.isEmpty())
             {
-                File searchFile = new File(messageDirectory, search.getSearchFileName());
-
-                if (checkAndMergeWithExisting(search, searchFile))
-                {
-                    serialiseSearch(search, searchFile);
-                }
+                recordSearch(search, replace);
+            }
+            else if (replace)
+            {
+                removeSearch(search);
             }
         }
         catch (IOException e)
@@ -293,11 +760,110 @@ public class ClarityAPIRecordingAspect
             logger.warn("Could not record search: {}", e.getMessage());
         }
 
+        AspectMetrics.record(m, AspectMetrics.Operation.FIND, Outcome.LOAD, start);
+
         return results;
     }
 
     /**
-     * Write a search object to file with XStream.
+     * Write a search to its file, merged with the results already recorded for it.
+     * Other threads or recorders may be recording the same search, so the file is
+     * read, merged and written while holding its lock.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param search The search, with its results.
+     *
+     * @throws IOException if the lock cannot be taken or the file cannot be written.
+     *
+     * @since 2.31.7
+     */
+    <E extends Locatable> void recordSearch(Search<E> search) throws IOException
+    {
+        recordSearch(search, false);
+    }
+
+    /**
+     * Write a search to its file while holding its lock, either merged with the
+     * results already recorded for it or replacing them. In the sharded layout, a
+     * search still recorded in the top of the message directory (as playback will
+     * find it) is merged with and then moved to its sharded file.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param search The search, with its results.
+     * @param replace true to write the search as it is, false to merge it with
+     * what is already recorded.
+     *
+     * @throws IOException if the lock cannot be taken or the file cannot be written.
+     *
+     * @since 2.31.7
+     */
+    <E extends Locatable> void recordSearch(Search<E> search, boolean replace) throws IOException
+    {
+        File searchFile = recordingFile(search.getSearchFileName());
+        File flatFile = flatFileFor(searchFile);
+
+        SearchMergeEvent event = new SearchMergeEvent();
+        event.begin();
+
+        boolean written = false;
+        try (SearchFileLocks.Held lock = searchLocks.lock(searchFile.getName()))
+        {
+            File existing = flatFile == null || searchFile.exists() ? searchFile : flatFile;
+
+            if (replace || checkAndMergeWithExisting(search, existing))
+            {
+                serialiseSearch(search, searchFile);
+                written = true;
+
+                if (flatFile != null)
+                {
+                    Files.deleteIfExists(flatFile.toPath());
+                }
+            }
+        }
+        finally
+        {
+            if (event.shouldCommit())
+            {
+                event.setEntityClass(search.getSearchTerms().getEntityClass());
+                event.setId(RecordingFileNames.idFromFileName(searchFile.getName()));
+                event.setBytes(searchFile.length());
+                event.setResults(search.getResults() == null ? 0 : search.getResults().size());
+                event.setWritten(written);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Remove the recording of a search while holding its lock, in whichever
+     * layout it is recorded.
+     *
+     * @param <E> The type of entity being searched for.
+     *
+     * @param search The search.
+     *
+     * @throws IOException if the lock cannot be taken or the file cannot be deleted.
+     */
+    private <E extends Locatable> void removeSearch(Search<E> search) throws IOException
+    {
+        File searchFile = recordingFile(search.getSearchFileName());
+        File flatFile = flatFileFor(searchFile);
+
+        try (SearchFileLocks.Held lock = searchLocks.lock(searchFile.getName()))
+        {
+            Files.deleteIfExists(searchFile.toPath());
+            if (flatFile != null)
+            {
+                Files.deleteIfExists(flatFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Write a search object to file with XStream, through a temporary file.
      *
      * @param <E> The type of entity being searched for.
      *
@@ -308,13 +874,15 @@ public class ClarityAPIRecordingAspect
      */
     <E extends Locatable> void serialiseSearch(Search<E> search, File searchFile) throws IOException
     {
-        try (Writer out = new FileWriter(searchFile, US_ASCII, false))
+        fileWriter.write(searchFile, stream ->
         {
+            Writer out = new OutputStreamWriter(stream, US_ASCII);
             xstream.toXML(search, out);
 
             // Doesn't write a final end of line.
             out.write(EOL);
-        }
+            out.flush();
+        });
     }
 
     /**
@@ -359,7 +927,13 @@ public class ClarityAPIRecordingAspect
                 @SuppressWarnings("unchecked")
                 Search<E> previousTypedSearch = (Search<E>)previousSearch;
 
-                return search.merge(previousTypedSearch);
+                boolean previouslyEmpty = previousSearch.getResults() == null || previousSearch.getResults().isEmpty();
+                boolean nowEmpty = search.getResults() == null || search.getResults().isEmpty();
+
+                // Merging in no results changes nothing, but the file still needs
+                // writing if this search has found something.
+
+                return search.merge(previousTypedSearch) || previouslyEmpty && !nowEmpty;
             }
             catch (XStreamException xse)
             {
@@ -380,15 +954,16 @@ public class ClarityAPIRecordingAspect
     }
 
     /**
-     * Join point around the {@code listAll} and {@code listSome} methods that recreate
-     * the {@code Batch} object that holds the list of links to the real things and
-     * writes that list to an XML file in the messages directory.
+     * Join point around the {@code listAll} and {@code listSome} methods that records
+     * the list of links to the real things and writes that list, in the form of the
+     * {@code Batch} object that holds it, to an XML file in the messages directory.
      *
      * <p>
-     * Only one list is saved for each type, so if there are multiple calls to either
-     * list method in the calling code, the final file will be the latest list. It is
-     * envisaged that most of the time, each thing will be only listed once so this
-     * shouldn't in practice be an issue.
+     * The links are held in memory until {@link #flush()} is called (which happens
+     * when the Spring context closes). Pages from successive {@code listSome} calls
+     * are merged by their position in the server's list, so a paged walk through a
+     * list records every page. Pages already in the list file are merged in too.
+     * A {@code listAll} call replaces whatever has been seen for the type.
      * </p>
      *
      * @param <E> The type of entity to list.
@@ -406,12 +981,24 @@ public class ClarityAPIRecordingAspect
         @SuppressWarnings("unchecked")
         Class<E> entityClass = (Class<E>)pjp.getArgs()[0];
 
-        @SuppressWarnings("unchecked")
-        List<L> links = (List<L>)pjp.proceed();
+        AspectMetrics m = metrics;
+        long start = AspectMetrics.start(m);
+        List<L> links;
+        try
+        {
+            @SuppressWarnings("unchecked")
+            List<L> reply = (List<L>)pjp.proceed();
+            links = reply;
+        }
+        catch (Throwable e)
+        {
+            AspectMetrics.record(m, AspectMetrics.Operation.LIST, Outcome.ERROR, start);
+            throw e;
+        }
 
         try
         {
-            Class<BH> batchClass = apiInternal.getQueryResultsClassForEntity(entityClass);
+            Class<BH> batchClass = batchClassFor(entityClass);
 
             if (batchClass == null)
             {
@@ -419,10 +1006,19 @@ public class ClarityAPIRecordingAspect
             }
             else
             {
-                Constructor<BH> batchConstructor = batchClass.getConstructor();
-                BH batch = batchConstructor.newInstance();
-                batch.getList().addAll(links);
-                writeList(batch);
+                ListRecording recording = lists.computeIfAbsent(batchClass, this::startListRecording);
+
+                Object[] args = pjp.getArgs();
+                if ("listSome".equals(pjp.getSignature().getName()) && args.length >= 3)
+                {
+                    recording.addPage((Integer)args[1], links);
+                }
+                else
+                {
+                    recording.setAll(links);
+                }
+
+                trace(Operation.LIST, RecordingFileNames.listFileName(batchClass), entityClass, null);
             }
         }
         catch (Exception e)
@@ -430,25 +1026,98 @@ public class ClarityAPIRecordingAspect
             logger.warn("Could not record list of {}: {}", ClassUtils.getShortClassName(entityClass), e.getMessage());
         }
 
+        AspectMetrics.record(m, AspectMetrics.Operation.LIST, Outcome.LOAD, start);
+
         return links;
     }
 
     /**
-     * Method that writes the given entity to a suitably named file.
+     * Record an entity fetched from the server other than through the join points
+     * of this aspect, as {@link #doLoad(ProceedingJoinPoint)} would have recorded it.
+     *
+     * @param entity The entity to record. Quietly ignores {@code null}.
+     *
+     * @since 2.31.7
+     */
+    public void recordEntity(Object entity)
+    {
+        writeEntity(entity);
+    }
+
+    /**
+     * Record an entity fetched from the server under a given file name rather than
+     * the one named from its LIMS id. This is for entities whose LIMS id differs
+     * from the id in their URI, such as instruments, where what reads the recording
+     * finds it from the URI.
+     *
+     * @param entity The entity to record. Quietly ignores {@code null}.
+     * @param fileName The name of the recording file.
+     *
+     * @since 2.31.7
+     */
+    public void recordEntity(Object entity, String fileName)
+    {
+        writeEntity(entity, fileName);
+    }
+
+    /**
+     * Method that writes the given entity to a suitably named file, through a
+     * temporary file. The file is left alone if it already holds the same XML,
+     * which makes writing the same entity from several recorders harmless.
      * If there is an error writing the entity to the file, the file will not
      * be written and there is no logging of the error. It is quietly ignored.
      *
      * @param thing The entity to write. Quietly ignores {@code null}.
      */
     private void writeEntity(Object thing)
+    {
+        if (thing != null)
+        {
+            writeEntity(thing, RecordingFileNames.entityFileName(thing));
+        }
+    }
+
+    /**
+     * Write an entity to the named file, as {@link #writeEntity(Object)} does.
+     *
+     * @param thing The entity to write. Quietly ignores {@code null}.
+     * @param fileName The name of the recording file.
+     */
+    private void writeEntity(Object thing, String fileName)
     {
         if (thing != null)
         {
             try
             {
-                File file = getFileForEntity(thing);
+                File file = recordingFile(fileName);
+
+                EntityWriteEvent event = new EntityWriteEvent();
+                event.begin();
+
+                AspectMetrics m = metrics;
+                long start = AspectMetrics.start(m);
+
+                ByteArrayOutputStream xml = new ByteArrayOutputStream(8192);
+                jaxbMarshaller.marshal(thing, new StreamResult(xml));
+
+                if (m != null)
+                {
+                    m.marshalled(thing.getClass(), System.nanoTime() - start, xml.size());
+                }
 
-                jaxbMarshaller.marshal(thing, new StreamResult(file));
+                boolean written = fileWriter.writeIfChanged(file, xml.toByteArray());
+
+                if (event.shouldCommit())
+                {
+                    event.setEntityClass(thing.getClass());
+                    event.setId(RecordingFileNames.idFromFileName(file.getName()));
+                    event.setBytes(xml.size());
+                    event.setWritten(written);
+                    event.commit();
+                }
+
+                URI uri = thing instanceof Locatable ? ((Locatable)thing).getUri() : null;
+                trace(Operation.GET, file.getName(), thing.getClass(), uri);
             }
             catch (Exception e)
             {
@@ -457,6 +1126,92 @@ public class ClarityAPIRecordingAspect
         }
     }
 
+    /**
+     * Write the manifest for a {@code loadAll} call. Failure to write it is logged
+     * but otherwise ignored, as the entities have their own files.
+     *
+     * @param links The links asked for.
+     * @param entities The entities returned.
+     */
+    private void writeManifest(Collection<?> links, Collection<?> entities)
+    {
+        try
+        {
+            List<String> keys = LoadAllManifest.keysFor(links);
+            File file = recordingFile(LoadAllManifest.fileName(keys));
+            fileWriter.write(file, out -> LoadAllManifest.write(out, keys, entities, jaxbMarshaller));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.warn("Could not record loadAll manifest: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Add an access to the trace, if one is being written. Failure to write
+     * to the trace is logged but otherwise ignored.
+     *
+     * @param operation The type of call.
+     * @param key The name of the recording file for the result.
+     * @param entityClass The type of entity.
+     * @param uri The URI of the entity. Can be null.
+     */
+    private void trace(Operation operation, String key, Class<?> entityClass, URI uri)
+    {
+        AccessTraceWriter writer = traceWriter;
+        if (writer != null)
+        {
+            try
+            {
+                String uriString = uri == null ? null : uri.toASCIIString();
+                writer.write(new AccessTrace.Entry(operation, key, entityClass.getName(), uriString));
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not write to access trace: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close the access trace, if one is being written.
+     */
+    private synchronized void closeTrace()
+    {
+        AccessTraceWriter writer = traceWriter;
+        traceWriter = null;
+
+        if (writer != null)
+        {
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not close access trace {}: {}", writer.getTraceFile().getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Release the search lock file.
+     */
+    private synchronized void closeSearchLocks()
+    {
+        if (searchLocks != null)
+        {
+            try
+            {
+                searchLocks.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not close the search lock file: {}", e.getMessage());
+            }
+        }
+    }
+
     /**
      * Shared method to get the LIMS id out of a URI, public to let the playback aspect
      * use it. Removes trailing sections on the URI from classes like Demux and StepDetails.
@@ -465,19 +1220,12 @@ public class ClarityAPIRecordingAspect
      * @param uri The URI in string form.
      *
      * @return The (single) LIMS id from the URI.
+     *
+     * @see RecordingFileNames#limsIdFromUri(Class, String)
      */
     public static String limsIdFromUri(Class<?> clazz, String uri)
     {
-        ClarityEntity anno = clazz.getAnnotation(ClarityEntity.class);
-
-        int fromIndex = uri.length();
-        if (anno != null && isNotEmpty(anno.uriSubsection()))
-        {
-            fromIndex -= anno.uriSubsection().length() + 1;
-        }
-
-        int lastSlash = uri.lastIndexOf('/', fromIndex - 1);
-        return uri.substring(lastSlash + 1, fromIndex);
+        return RecordingFileNames.limsIdFromUri(clazz, uri);
     }
 
     /**
@@ -487,78 +1235,203 @@ public class ClarityAPIRecordingAspect
      * @param thing The entity to get an id for.
      *
      * @return The LIMS id for the object.
+     *
+     * @see RecordingFileNames#limsIdFromObject(Object)
      */
     public static String limsIdFromObject(Object thing)
     {
-        assert thing != null : "Cannot get a name for null";
-
-        // This has got a lot more difficult thanks to Instrument not being consistent
-        // between the URI path and the lims id attribute, requiring a special case.
-        // See Redmine 7273.
+        return RecordingFileNames.limsIdFromObject(thing);
+    }
 
-        String id = null;
-        Class<?> entityType = thing.getClass();
+    /**
+     * Get where a recording file would be in the flat layout, when that is not
+     * where it is written now. Playback falls back to the flat file if there is
+     * no sharded one, so a directory being recorded into in the sharded layout
+     * may still hold recordings made before it was sharded.
+     *
+     * @param file The file the recording is written to.
+     *
+     * @return The file in the top of the message directory with the same name,
+     * or null if that is the file given.
+     */
+    private File flatFileFor(File file)
+    {
+        File flatFile = new File(messageDirectory, file.getName());
+        return flatFile.equals(file) ? null : flatFile;
+    }
 
-        if (thing instanceof LimsEntity<?>)
+    /**
+     * Get the file a recording is written to in the current layout. For the
+     * sharded layout, the message directory is marked and the file's directory
+     * created if need be.
+     *
+     * @param name The name of the recording file.
+     *
+     * @return The file to write.
+     *
+     * @throws IOException if the marker or the file's directory cannot be created.
+     */
+    private File recordingFile(String name) throws IOException
+    {
+        RecordingLayout current = layout;
+        if (current == RecordingLayout.FLAT)
         {
-            LimsEntity<?> entity = (LimsEntity<?>)thing;
-            id = entity.getLimsid();
+            return new File(messageDirectory, name);
         }
-        else if (thing instanceof LimsEntityLink<?>)
+
+        if (!layoutMarked)
         {
-            LimsEntityLink<?> link = (LimsEntityLink<?>)thing;
-            id = link.getLimsid();
-            entityType = link.getEntityClass();
+            current.mark(messageDirectory);
+            layoutMarked = true;
         }
 
-        if (id == null)
+        File file = current.fileFor(messageDirectory, name);
+        File directory = file.getParentFile();
+        if (!directory.isDirectory())
         {
-            Locatable item = (Locatable)thing;
-            id = limsIdFromUri(entityType, item.getUri().getPath());
+            Files.createDirectories(directory.toPath());
         }
-
-        return id;
+        return file;
     }
 
     /**
-     * Convenience method to get the file the given entity would be written to.
+     * Get the batch class that holds lists of the given entity class. The
+     * answer from the API is remembered for each entity class.
+     *
+     * @param <E> The type of entity.
+     * @param <BH> The batch class.
      *
-     * @param thing The entity to store.
+     * @param entityClass The entity class.
      *
-     * @return The file for this entity.
+     * @return The batch class, or null if the entity class cannot be listed.
      */
-    private File getFileForEntity(Object thing)
+    @SuppressWarnings("unchecked")
+    private <E extends Locatable, BH> Class<BH> batchClassFor(Class<E> entityClass)
     {
-        String id = limsIdFromObject(thing);
-
-        String name = MessageFormat.format(FILENAME_PATTERN, ClassUtils.getShortClassName(thing.getClass()), id);
-
-        return new File(messageDirectory, name);
+        Optional<Class<?>> batchClass = batchClasses.get(entityClass);
+        if (batchClass == null)
+        {
+            Class<?> found = apiInternal.getQueryResultsClassForEntity(entityClass);
+            batchClass = Optional.ofNullable(found);
+            batchClasses.put(entityClass, batchClass);
+        }
+        return (Class<BH>)batchClass.orElse(null);
     }
 
     /**
-     * Method that writes a list of links to a suitably named file.
-     * If there is an error writing the batch object to the file, the file will not
-     * be written and there is no logging of the error. It is quietly ignored.
+     * Start the recording of a list, taking in the links already in its list file
+     * (and the ranges of the server's list they come from) so that pages recorded
+     * now add to them. A list file that cannot be read, or whose ranges file does
+     * not give the number of links it holds, is logged and will be replaced: the
+     * positions of its links in the server's list are not known.
      *
-     * @param list The batch object to write. Quietly ignores {@code null}.
+     * @param batchClass The batch class of the list.
+     *
+     * @return The list recording.
      */
-    private void writeList(Batch<?> list)
+    private ListRecording startListRecording(Class<?> batchClass)
     {
-        if (list != null)
+        ListRecording recording = new ListRecording(batchClass);
+
+        try
         {
-            try
+            File file = recordingFile(RecordingFileNames.listFileName(batchClass));
+            if (file.exists())
             {
-                String name = ClassUtils.getShortClassName(list.getClass()) + ".xml";
+                @SuppressWarnings("unchecked")
+                Batch<? extends LimsLink<?>> batch =
+                        (Batch<? extends LimsLink<?>>)jaxbMarshaller.unmarshal(new StreamSource(file));
+                List<? extends LimsLink<?>> recorded = batch.getList();
 
-                File file = new File(messageDirectory, name);
+                ListRanges ranges = ListRanges.readFor(file);
+                if (ranges == null)
+                {
+                    ranges = ListRanges.fromStart(recorded.size());
+                }
 
-                jaxbMarshaller.marshal(list, new StreamResult(file));
+                if (ranges.getLinkCount() == recorded.size())
+                {
+                    recording.addRecorded(ranges.toIndexes(), recorded);
+                }
+                else
+                {
+                    logger.warn("{} holds {} links but its ranges give {}. The list will be recorded afresh.",
+                                file.getName(), recorded.size(), ranges.getLinkCount());
+                }
             }
-            catch (Exception e)
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.warn("Could not read the recorded list {}: {}",
+                        ClassUtils.getShortClassName(batchClass), e.getMessage());
+        }
+
+        return recording;
+    }
+
+    /**
+     * Method that writes a list of links to a suitably named file, along with
+     * the ranges file describing the parts of the server's list it holds. A list
+     * that is simply the start of the server's list has no ranges file.
+     *
+     * <p>
+     * The links are streamed to the file by the batch class's {@link BatchListWriter}.
+     * Only if there isn't one is a {@code Batch} object built and marshalled.
+     * Both files are written through temporary files, the ranges file first. When
+     * the list has become the start of the server's list, its ranges file is
+     * rewritten to say so before the list is written and only removed afterwards.
+     * A reader seeing the new ranges with the old list finds their link counts
+     * differ and does not use them.
+     * </p>
+     *
+     * @param recording The list to write.
+     *
+     * @throws IOException if the list or ranges file cannot be written.
+     * @throws ReflectiveOperationException if a batch object is needed but cannot
+     * be created.
+     */
+    private void writeList(ListRecording recording) throws IOException, ReflectiveOperationException
+    {
+        Class<?> batchClass = recording.getBatchClass();
+
+        File file = recordingFile(RecordingFileNames.listFileName(batchClass));
+
+        File rangesFile = ListRanges.rangesFileFor(file);
+
+        ListRanges[] ranges = new ListRanges[1];
+        List<LimsLink<?>> links = recording.takeLinks(ranges);
+
+        // The ranges go first, so a list file is never left beside ranges from an
+        // older list without their link counts differing.
+        boolean hadRanges = rangesFile.exists();
+        if (hadRanges || !ranges[0].isFromStart())
+        {
+            fileWriter.write(rangesFile, ranges[0]::write);
+        }
+
+        BatchListWriter listWriter = BatchListWriter.forBatchClass(batchClass);
+        if (listWriter != null)
+        {
+            fileWriter.write(file, stream ->
             {
-                // Ignore.
-            }
+                try (BatchListWriter.Output out = listWriter.open(stream, jaxbMarshaller))
+                {
+                    for (LimsLink<?> link : links)
+                    {
+                        out.write(link);
+                    }
+                }
+            });
+        }
+        else
+        {
+            Batch<?> batch = recording.toBatch(links);
+            fileWriter.write(file, out -> jaxbMarshaller.marshal(batch, new StreamResult(out)));
+        }
+
+        if (ranges[0].isFromStart())
+        {
+            Files.deleteIfExists(rangesFile.toPath());
         }
     }
 }
@@ -0,0 +1,396 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The parts of a server list that a recorded list file holds. When a list is
+ * recorded from {@code listSome} calls, the file may hold only some of the server's
+ * list. The links in the file are in list order, and the ranges say which positions
+ * in the server's list they came from: the file's links are the links of each range
+ * in turn.
+ *
+ * <p>
+ * The ranges are kept in a text file next to the list file with the same name
+ * but the suffix {@value #FILE_SUFFIX}. Each line gives the start index of a
+ * range and the number of links in it, separated by a tab. A line starting
+ * {@value #LINKS} gives the number of links the list file holds, which must be
+ * the total of the ranges; it is written first so a list file can be checked
+ * against the ranges written for it. Lines starting with {@code #} are comments.
+ * A list file without a ranges file holds the list from its start.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public final class ListRanges
+{
+    /**
+     * The header line written at the top of every ranges file.
+     */
+    public static final String HEADER = "# Clarity API list ranges";
+
+    /**
+     * The key of the line giving the number of links the list file holds.
+     */
+    public static final String LINKS = "links";
+
+    /**
+     * The suffix of ranges files.
+     */
+    public static final String FILE_SUFFIX = ".ranges";
+
+    /**
+     * The index in the server's list of the start of each range, ascending.
+     */
+    private final int[] starts;
+
+    /**
+     * The number of links in each range.
+     */
+    private final int[] counts;
+
+    /**
+     * The position in the list file of the first link of each range.
+     */
+    private final int[] offsets;
+
+
+    /**
+     * Constructor.
+     *
+     * @param starts The start index of each range, ascending and not overlapping.
+     * @param counts The number of links in each range.
+     */
+    private ListRanges(int[] starts, int[] counts)
+    {
+        this.starts = starts;
+        this.counts = counts;
+
+        offsets = new int[starts.length];
+        for (int i = 1; i < starts.length; i++)
+        {
+            offsets[i] = offsets[i - 1] + counts[i - 1];
+        }
+    }
+
+    /**
+     * Create the ranges for a list that holds the first links of the server's list.
+     *
+     * @param size The number of links.
+     *
+     * @return The ranges.
+     */
+    public static ListRanges fromStart(int size)
+    {
+        return size == 0 ? new ListRanges(new int[0], new int[0]) : new ListRanges(new int[] { 0 }, new int[] { size });
+    }
+
+    /**
+     * Create the ranges for a list from the server list index of each link held.
+     *
+     * @param indexes The index of each link held, in ascending order with no repeats.
+     *
+     * @return The ranges: one for each run of consecutive indexes.
+     */
+    public static ListRanges fromIndexes(int[] indexes)
+    {
+        int[] starts = new int[indexes.length];
+        int[] counts = new int[indexes.length];
+        int runs = 0;
+
+        for (int i = 0; i < indexes.length; i++)
+        {
+            if (runs > 0 && indexes[i] == starts[runs - 1] + counts[runs - 1])
+            {
+                counts[runs - 1]++;
+            }
+            else
+            {
+                starts[runs] = indexes[i];
+                counts[runs] = 1;
+                runs++;
+            }
+        }
+
+        return new ListRanges(Arrays.copyOf(starts, runs), Arrays.copyOf(counts, runs));
+    }
+
+    /**
+     * Get the index in the server's list of each link held, in the order the
+     * links are in the list file. This is the reverse of {@link #fromIndexes(int[])}.
+     *
+     * @return The index of each link held, ascending.
+     */
+    public int[] toIndexes()
+    {
+        int[] indexes = new int[getLinkCount()];
+        for (int range = 0; range < starts.length; range++)
+        {
+            for (int i = 0; i < counts[range]; i++)
+            {
+                indexes[offsets[range] + i] = starts[range] + i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Get the number of ranges.
+     *
+     * @return The number of ranges.
+     */
+    public int getRangeCount()
+    {
+        return starts.length;
+    }
+
+    /**
+     * Get the number of links in all the ranges.
+     *
+     * @return The number of links the list file holds.
+     */
+    public int getLinkCount()
+    {
+        return starts.length == 0 ? 0 : offsets[starts.length - 1] + counts[starts.length - 1];
+    }
+
+    /**
+     * Test whether the list starts at the beginning of the server's list
+     * and has no gaps.
+     *
+     * @return true if the ranges are a single range from zero.
+     */
+    public boolean isFromStart()
+    {
+        return starts.length == 0 || (starts.length == 1 && starts[0] == 0);
+    }
+
+    /**
+     * Test whether all of a range of the server's list is held.
+     *
+     * @param start The index of the first link.
+     * @param count The number of links.
+     *
+     * @return true if every index in the range is held.
+     */
+    public boolean covers(int start, int count)
+    {
+        int[] fileRange = toFileRange(start, count);
+        return fileRange[1] == count;
+    }
+
+    /**
+     * Convert a range of the server's list to the range of positions in the list
+     * file holding the links from it. Links in the range that were not recorded
+     * are left out.
+     *
+     * @param start The index in the server's list of the first link.
+     * @param count The number of links.
+     *
+     * @return A two element array of the position in the file of the first link
+     * and the number of links.
+     */
+    public int[] toFileRange(int start, int count)
+    {
+        int end = (int)Math.min((long)start + count, Integer.MAX_VALUE);
+        int first = filePosition(start);
+        return new int[] { first, filePosition(end) - first };
+    }
+
+    /**
+     * Get the number of recorded links before the given index in the server's list.
+     *
+     * @param index The index in the server's list.
+     *
+     * @return The position in the list file of the first recorded link at or after
+     * the index.
+     */
+    private int filePosition(int index)
+    {
+        int range = Arrays.binarySearch(starts, index);
+        if (range < 0)
+        {
+            range = -range - 2;
+        }
+        if (range < 0)
+        {
+            return 0;
+        }
+        return offsets[range] + Math.min(index - starts[range], counts[range]);
+    }
+
+    /**
+     * Get the ranges file for a list file.
+     *
+     * @param listFile The list file.
+     *
+     * @return The ranges file, which may not exist.
+     */
+    public static File rangesFileFor(File listFile)
+    {
+        return new File(listFile.getParentFile(), StringUtils.removeEnd(listFile.getName(), ".xml") + FILE_SUFFIX);
+    }
+
+    /**
+     * Read the ranges for a list file.
+     *
+     * @param listFile The list file.
+     *
+     * @return The ranges, or null if there is no ranges file, in which case the list
+     * file holds the list from its start.
+     *
+     * @throws IOException if the ranges file cannot be read or is badly formed.
+     */
+    public static ListRanges readFor(File listFile) throws IOException
+    {
+        File rangesFile = rangesFileFor(listFile);
+        return rangesFile.exists() ? read(rangesFile) : null;
+    }
+
+    /**
+     * Read a ranges file.
+     *
+     * @param rangesFile The ranges file.
+     *
+     * @return The ranges.
+     *
+     * @throws IOException if the file cannot be read or is badly formed.
+     */
+    public static ListRanges read(File rangesFile) throws IOException
+    {
+        int[] starts = new int[16];
+        int[] counts = new int[16];
+        int ranges = 0;
+        long links = 0L;
+        Long expectedLinks = null;
+
+        try (BufferedReader reader = Files.newBufferedReader(rangesFile.toPath(), US_ASCII))
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                ++lineNumber;
+                if (isBlank(line) || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                String[] parts = line.trim().split("\t");
+                try
+                {
+                    if (parts.length != 2)
+                    {
+                        throw new NumberFormatException("Expected a start and a count.");
+                    }
+
+                    if (LINKS.equals(parts[0]))
+                    {
+                        expectedLinks = Long.valueOf(parts[1]);
+                        continue;
+                    }
+
+                    int start = Integer.parseInt(parts[0]);
+                    int count = Integer.parseInt(parts[1]);
+                    if (start < 0 || count < 0 || (ranges > 0 && start < starts[ranges - 1] + counts[ranges - 1]))
+                    {
+                        throw new NumberFormatException("Ranges must be ascending and must not overlap.");
+                    }
+
+                    if (ranges == starts.length)
+                    {
+                        starts = Arrays.copyOf(starts, ranges * 2);
+                        counts = Arrays.copyOf(counts, ranges * 2);
+                    }
+                    starts[ranges] = start;
+                    counts[ranges] = count;
+                    ranges++;
+                    links += count;
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException(rangesFile.getName() + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        if (expectedLinks != null && expectedLinks.longValue() != links)
+        {
+            throw new IOException(rangesFile.getName() + " gives " + expectedLinks + " links but its ranges hold "
+                                  + links + ".");
+        }
+
+        return new ListRanges(Arrays.copyOf(starts, ranges), Arrays.copyOf(counts, ranges));
+    }
+
+    /**
+     * Write the ranges to a file.
+     *
+     * @param rangesFile The ranges file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File rangesFile) throws IOException
+    {
+        try (OutputStream out = Files.newOutputStream(rangesFile.toPath()))
+        {
+            write(out);
+        }
+    }
+
+    /**
+     * Write the ranges to a stream, in the ranges file format. The stream is
+     * flushed but not closed.
+     *
+     * @param out The stream to write to.
+     *
+     * @throws IOException if the ranges cannot be written.
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, US_ASCII));
+        writer.write(HEADER);
+        writer.newLine();
+        writer.write(LINKS);
+        writer.write('\t');
+        writer.write(Integer.toString(getLinkCount()));
+        writer.newLine();
+        for (int i = 0; i < starts.length; i++)
+        {
+            writer.write(Integer.toString(starts[i]));
+            writer.write('\t');
+            writer.write(Integer.toString(counts[i]));
+            writer.newLine();
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.genologics.ri.Batch;
+import com.genologics.ri.LimsLink;
+
+/**
+ * The links seen so far from the list calls for one type of entity. Pages
+ * from successive {@code listSome} calls are merged by their position in the
+ * server's list; a {@code listAll} call replaces everything.
+ *
+ * @since 2.31.7
+ */
+final class ListRecording
+{
+    /**
+     * The batch class the list is written as.
+     */
+    private final Class<?> batchClass;
+
+    /**
+     * The links seen, keyed by their index in the server's list.
+     */
+    private final TreeMap<Integer, LimsLink<?>> links = new TreeMap<>();
+
+    /**
+     * Whether links have been added since the list was last written.
+     */
+    private boolean dirty;
+
+
+    /**
+     * Constructor.
+     *
+     * @param batchClass The batch class the list is written as.
+     */
+    ListRecording(Class<?> batchClass)
+    {
+        this.batchClass = batchClass;
+    }
+
+    /**
+     * Get the batch class the list is written as.
+     *
+     * @return The batch class.
+     */
+    Class<?> getBatchClass()
+    {
+        return batchClass;
+    }
+
+    /**
+     * Record the whole list, as returned by {@code listAll}.
+     *
+     * @param all The links in the list.
+     */
+    synchronized void setAll(List<? extends LimsLink<?>> all)
+    {
+        links.clear();
+        addPage(0, all);
+    }
+
+    /**
+     * Record a page of the list, as returned by {@code listSome}. Links already
+     * held for the same positions are replaced.
+     *
+     * @param start The index in the server's list of the first link in the page.
+     * @param page The links in the page.
+     */
+    synchronized void addPage(int start, List<? extends LimsLink<?>> page)
+    {
+        int index = start;
+        for (LimsLink<?> link : page)
+        {
+            links.put(index++, link);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Take in the links already written to the list file, so pages recorded now
+     * are merged with them rather than replacing them. Links already held for
+     * the same positions are kept, and the list is not marked as needing writing.
+     *
+     * @param indexes The index in the server's list of each link in the file.
+     * @param recorded The links in the file, in file order.
+     */
+    synchronized void addRecorded(int[] indexes, List<? extends LimsLink<?>> recorded)
+    {
+        int count = Math.min(indexes.length, recorded.size());
+        for (int i = 0; i < count; i++)
+        {
+            links.putIfAbsent(indexes[i], recorded.get(i));
+        }
+    }
+
+    /**
+     * Test whether links have been added since the list was last written.
+     *
+     * @return true if the list needs writing.
+     */
+    synchronized boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Take the links to write to the list file, with the ranges of the server's
+     * list they come from, and mark the list as written. The links are in list
+     * order. If the same entity appears at more than one position (the server's
+     * list having changed between pages), only its first position is kept.
+     *
+     * <p>
+     * The links and ranges are taken together so they agree even if pages are
+     * added while the files are being written.
+     * </p>
+     *
+     * @param ranges A one element array to receive the ranges.
+     *
+     * @return The links to write.
+     */
+    synchronized List<LimsLink<?>> takeLinks(ListRanges[] ranges)
+    {
+        Set<String> paths = new HashSet<>(links.size() * 4 / 3 + 1);
+        List<LimsLink<?>> kept = new ArrayList<>(links.size());
+        int[] indexes = new int[links.size()];
+
+        for (Map.Entry<Integer, LimsLink<?>> entry : links.entrySet())
+        {
+            if (isFirst(entry.getValue(), paths))
+            {
+                indexes[kept.size()] = entry.getKey();
+                kept.add(entry.getValue());
+            }
+        }
+
+        ranges[0] = ListRanges.fromIndexes(Arrays.copyOf(indexes, kept.size()));
+        dirty = false;
+
+        return kept;
+    }
+
+    /**
+     * Build the batch object holding links taken from the list. This is for
+     * batch classes that {@link BatchListWriter} cannot write.
+     *
+     * @param kept The links, as returned by {@link #takeLinks(ListRanges[])}.
+     *
+     * @return The batch object holding the links.
+     *
+     * @throws ReflectiveOperationException if the batch object cannot be created.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    Batch<?> toBatch(List<LimsLink<?>> kept) throws ReflectiveOperationException
+    {
+        Batch batch = (Batch)batchClass.getConstructor().newInstance();
+        batch.getList().addAll(kept);
+        return batch;
+    }
+
+    /**
+     * Test whether a link is the first seen to its entity.
+     *
+     * @param link The link.
+     * @param paths The URI paths of the links seen so far. The link's path is added.
+     *
+     * @return true if no link with the same URI path has been seen.
+     */
+    private static boolean isFirst(LimsLink<?> link, Set<String> paths)
+    {
+        URI uri = link.getUri();
+        return uri == null || paths.add(uri.getPath());
+    }
+}
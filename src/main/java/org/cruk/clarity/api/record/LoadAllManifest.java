@@ -0,0 +1,364 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.JAXBIntrospector;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import com.genologics.ri.LimsLink;
+
+/**
+ * The recording of a whole {@code loadAll} call in one file: the names of the
+ * entity files for the links asked for, in order, followed by the entities the
+ * server returned. Playback can answer the same call again with one read of the
+ * file rather than one per entity.
+ *
+ * <p>
+ * The file is named from a hash of the entity file names, so is found from the
+ * links alone. As different sets of links can have the same hash, the names in
+ * the file are checked against those asked for before any entity is read.
+ * </p>
+ *
+ * <pre>
+ * &lt;loadall&gt;
+ *     &lt;link key="Sample-GAO9862A146.xml"/&gt;
+ *     &lt;link key="Sample-GAO9862A147.xml"/&gt;
+ *     &lt;smp:sample limsid="GAO9862A146" ...&gt;...&lt;/smp:sample&gt;
+ *     &lt;smp:sample limsid="GAO9862A147" ...&gt;...&lt;/smp:sample&gt;
+ * &lt;/loadall&gt;
+ * </pre>
+ *
+ * @since 2.31.7
+ */
+public final class LoadAllManifest
+{
+    /**
+     * Template for the file name pattern.
+     */
+    public static final String FILE_PATTERN = "loadall_{0}.xml";
+
+    /**
+     * The start of the name of every manifest file.
+     */
+    public static final String FILE_PREFIX = FILE_PATTERN.substring(0, FILE_PATTERN.indexOf('{'));
+
+    /**
+     * The name of the root element.
+     */
+    private static final String ROOT_ELEMENT = "loadall";
+
+    /**
+     * The name of the elements giving the links asked for.
+     */
+    private static final String LINK_ELEMENT = "link";
+
+    /**
+     * The attribute of a link element holding the name of its entity file.
+     */
+    private static final String KEY_ATTRIBUTE = "key";
+
+    /**
+     * Factory for the StAX readers. DTDs and external entities are not supported.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    /**
+     * Factory for the StAX writers.
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static
+    {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * The names of the entity files for the links asked for.
+     */
+    private final List<String> keys;
+
+    /**
+     * The entities returned.
+     */
+    private final List<Object> entities;
+
+
+    /**
+     * Constructor.
+     *
+     * @param keys The names of the entity files for the links asked for.
+     * @param entities The entities returned.
+     */
+    private LoadAllManifest(List<String> keys, List<Object> entities)
+    {
+        this.keys = Collections.unmodifiableList(keys);
+        this.entities = Collections.unmodifiableList(entities);
+    }
+
+    /**
+     * Get the names of the entity files for the links asked for, in the order asked.
+     *
+     * @return The entity file names.
+     */
+    public List<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * Get the entities returned, in the order returned.
+     *
+     * @return The entities.
+     */
+    public List<Object> getEntities()
+    {
+        return entities;
+    }
+
+    /**
+     * Get the names of the entity files for a set of links.
+     *
+     * @param links The links given to {@code loadAll}.
+     *
+     * @return The entity file names, in the order of the links.
+     */
+    public static List<String> keysFor(Collection<?> links)
+    {
+        List<String> keys = new ArrayList<>(links.size());
+        for (Object link : links)
+        {
+            LimsLink<?> l = (LimsLink<?>)link;
+            URI uri = l.getUri();
+            String limsid = RecordingFileNames.limsIdFromUri(l.getEntityClass(), uri.getPath());
+            keys.add(RecordingFileNames.entityFileName(l.getEntityClass(), limsid));
+        }
+        return keys;
+    }
+
+    /**
+     * Get the name of the manifest file for the links asked for.
+     *
+     * @param keys The names of the entity files for the links, in order.
+     *
+     * @return The manifest file name.
+     */
+    public static String fileName(List<String> keys)
+    {
+        return MessageFormat.format(FILE_PATTERN, Integer.toHexString(keys.hashCode()));
+    }
+
+    /**
+     * Write a manifest. The entities are marshalled one at a time straight to the stream.
+     *
+     * @param out The stream to write to. It is not closed.
+     * @param keys The names of the entity files for the links asked for.
+     * @param entities The entities returned.
+     * @param marshaller The JAXB marshaller, whose context is used to marshal the entities.
+     *
+     * @throws IOException if the manifest cannot be written.
+     */
+    public static void write(OutputStream out, List<String> keys, Collection<?> entities, Jaxb2Marshaller marshaller)
+    throws IOException
+    {
+        try
+        {
+            Marshaller entityMarshaller = marshaller.getJaxbContext().createMarshaller();
+            entityMarshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, UTF_8.name());
+            writer.writeStartDocument(UTF_8.name(), "1.0");
+            writer.writeStartElement(ROOT_ELEMENT);
+            for (String key : keys)
+            {
+                writer.writeEmptyElement(LINK_ELEMENT);
+                writer.writeAttribute(KEY_ATTRIBUTE, key);
+            }
+            for (Object entity : entities)
+            {
+                entityMarshaller.marshal(entity, writer);
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        }
+        catch (JAXBException | XMLStreamException e)
+        {
+            throw new IOException("Cannot write loadAll manifest: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param file The manifest file.
+     * @param marshaller The JAXB marshaller, whose context is used to unmarshal the entities.
+     *
+     * @return The manifest.
+     *
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static LoadAllManifest read(File file, Jaxb2Marshaller marshaller) throws IOException
+    {
+        return read(file, null, marshaller);
+    }
+
+    /**
+     * Read the entities from a manifest if it is for the links asked for. The
+     * links in the file are compared with those asked for before any entity is
+     * unmarshalled, so a manifest for other links costs little.
+     *
+     * @param file The manifest file.
+     * @param keys The names of the entity files for the links asked for.
+     * @param marshaller The JAXB marshaller, whose context is used to unmarshal the entities.
+     *
+     * @return The entities, or null if the manifest is for other links.
+     *
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static List<Object> readEntities(File file, List<String> keys, Jaxb2Marshaller marshaller) throws IOException
+    {
+        LoadAllManifest manifest = read(file, keys, marshaller);
+        return manifest == null ? null : manifest.getEntities();
+    }
+
+    /**
+     * Read a manifest in one pass.
+     *
+     * @param file The manifest file.
+     * @param expected The names of the entity files for the links asked for, or null
+     * to read the manifest whatever it is for.
+     * @param marshaller The JAXB marshaller.
+     *
+     * @return The manifest, or null if it is not for the expected links.
+     *
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    private static LoadAllManifest read(File file, List<String> expected, Jaxb2Marshaller marshaller) throws IOException
+    {
+        List<String> keys = new ArrayList<>(expected == null ? 16 : expected.size());
+        List<Object> entities = new ArrayList<>(expected == null ? 16 : expected.size());
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536))
+        {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try
+            {
+                reader.nextTag();
+                if (!ROOT_ELEMENT.equals(reader.getLocalName()))
+                {
+                    throw new IOException(file.getName() + " is not a loadAll manifest.");
+                }
+                reader.next();
+
+                Unmarshaller unmarshaller = null;
+                while (toNextTag(reader) == START_ELEMENT)
+                {
+                    String namespace = reader.getNamespaceURI();
+                    if (LINK_ELEMENT.equals(reader.getLocalName()) && (namespace == null || namespace.isEmpty()))
+                    {
+                        String key = reader.getAttributeValue(null, KEY_ATTRIBUTE);
+                        int index = keys.size();
+                        if (expected != null && (index >= expected.size() || !expected.get(index).equals(key)))
+                        {
+                            return null;
+                        }
+                        keys.add(key);
+                        reader.nextTag();
+                        reader.next();
+                    }
+                    else
+                    {
+                        if (unmarshaller == null)
+                        {
+                            if (expected != null && keys.size() != expected.size())
+                            {
+                                return null;
+                            }
+                            unmarshaller = marshaller.getJaxbContext().createUnmarshaller();
+                        }
+                        entities.add(JAXBIntrospector.getValue(unmarshaller.unmarshal(reader)));
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException | JAXBException e)
+        {
+            throw new IOException("Cannot read the loadAll manifest " + file.getName() + ": " + e.getMessage(), e);
+        }
+
+        if (expected != null && keys.size() != expected.size())
+        {
+            return null;
+        }
+
+        return new LoadAllManifest(keys, entities);
+    }
+
+    /**
+     * Move the reader on to the next start or end element, unless it is already on one.
+     *
+     * @param reader The reader.
+     *
+     * @return The event type the reader is on.
+     *
+     * @throws XMLStreamException if the document cannot be read.
+     */
+    private static int toNextTag(XMLStreamReader reader) throws XMLStreamException
+    {
+        int event = reader.getEventType();
+        while (event != START_ELEMENT && event != END_ELEMENT && reader.hasNext())
+        {
+            event = reader.next();
+        }
+        return event;
+    }
+}
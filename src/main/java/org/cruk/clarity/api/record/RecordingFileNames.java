@@ -0,0 +1,263 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import com.genologics.ri.ClarityEntity;
+import com.genologics.ri.LimsEntity;
+import com.genologics.ri.LimsEntityLink;
+import com.genologics.ri.Locatable;
+
+/**
+ * Builds the names of the recording files. The names are those described by
+ * {@link ClarityAPIRecordingAspect#FILENAME_PATTERN}, but are put together
+ * directly rather than through {@code MessageFormat}, and what is needed from
+ * each class (its short name and the length of any URI subsection) is worked
+ * out once and remembered.
+ *
+ * <p>
+ * This is shared by the recording and playback aspects, which must agree on the
+ * names, and is called for every entity read or written.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public final class RecordingFileNames
+{
+    /**
+     * The extension of the recording files.
+     */
+    public static final String EXTENSION = ".xml";
+
+    /**
+     * Matches the names of update files. The first group is the name of the entity's
+     * recording without the extension, and the second is the version number.
+     *
+     * @see #updateFileName(Class, String, int)
+     */
+    public static final Pattern UPDATE_FILE_NAME = Pattern.compile("([^.]+-[^.]+)\\.(\\d{3,})\\.xml");
+
+    /**
+     * What is needed to name the files of each class.
+     */
+    private static final ClassValue<ClassNaming> NAMING = new ClassValue<ClassNaming>()
+    {
+        @Override
+        protected ClassNaming computeValue(Class<?> type)
+        {
+            return new ClassNaming(type);
+        }
+    };
+
+
+    /**
+     * Static methods only.
+     */
+    private RecordingFileNames()
+    {
+    }
+
+    /**
+     * Get the name of the file recording an entity.
+     *
+     * @param type The class of the entity.
+     * @param limsid The LIMS id of the entity.
+     *
+     * @return The file name, "{@code <class>-<limsid>.xml}".
+     */
+    public static String entityFileName(Class<?> type, String limsid)
+    {
+        String prefix = NAMING.get(type).prefix;
+        return new StringBuilder(prefix.length() + limsid.length() + EXTENSION.length())
+                .append(prefix).append(limsid).append(EXTENSION).toString();
+    }
+
+    /**
+     * Get the name of the file recording an entity object.
+     *
+     * @param thing The entity, which must at least implement {@code Locatable}.
+     *
+     * @return The file name.
+     *
+     * @see #limsIdFromObject(Object)
+     */
+    public static String entityFileName(Object thing)
+    {
+        return entityFileName(thing.getClass(), limsIdFromObject(thing));
+    }
+
+    /**
+     * Get the name of the file recording a version of an updated entity.
+     *
+     * @param type The class of the entity.
+     * @param limsid The LIMS id of the entity.
+     * @param version The version number.
+     *
+     * @return The file name, "{@code <class>-<limsid>.<version>.xml}", with the
+     * version given as at least three digits.
+     */
+    public static String updateFileName(Class<?> type, String limsid, int version)
+    {
+        String prefix = NAMING.get(type).prefix;
+        StringBuilder name = new StringBuilder(prefix.length() + limsid.length() + EXTENSION.length() + 4);
+        name.append(prefix).append(limsid).append('.');
+        if (version < 100)
+        {
+            name.append(version < 10 ? "00" : "0");
+        }
+        return name.append(version).append(EXTENSION).toString();
+    }
+
+    /**
+     * Get the name of the file recording the list of a batch class.
+     *
+     * @param batchClass The batch class.
+     *
+     * @return The file name, "{@code <batch class>.xml}".
+     */
+    public static String listFileName(Class<?> batchClass)
+    {
+        return NAMING.get(batchClass).listFileName;
+    }
+
+    /**
+     * Get the prefix of the file names of a class's entity recordings.
+     *
+     * @param type The class of the entity.
+     *
+     * @return The class's short name followed by a hyphen.
+     */
+    public static String prefixFor(Class<?> type)
+    {
+        return NAMING.get(type).prefix;
+    }
+
+    /**
+     * Get the identifier from the name of an entity or search recording file:
+     * the LIMS id of an entity, or the hash of a search.
+     *
+     * @param fileName The name of the recording file.
+     *
+     * @return The part of the name after the type prefix and before the extension,
+     * or null if the name is not of an entity or search recording.
+     */
+    public static String idFromFileName(String fileName)
+    {
+        int separator = fileName.startsWith("search_") ? 6 : fileName.indexOf('-');
+        if (separator <= 0 || !fileName.endsWith(EXTENSION))
+        {
+            return null;
+        }
+        return fileName.substring(separator + 1, fileName.length() - EXTENSION.length());
+    }
+
+    /**
+     * Get the LIMS id out of a URI path. Removes trailing sections on the URI from
+     * classes like Demux and StepDetails.
+     *
+     * @param type The type of entity to obtain the LIMS id for.
+     * @param uri The URI in string form.
+     *
+     * @return The (single) LIMS id from the URI.
+     */
+    public static String limsIdFromUri(Class<?> type, String uri)
+    {
+        int toIndex = uri.length() - NAMING.get(type).subsectionLength;
+        int lastSlash = uri.lastIndexOf('/', toIndex - 1);
+        return uri.substring(lastSlash + 1, toIndex);
+    }
+
+    /**
+     * Get the LIMS id from an object, which must at least implement {@code Locatable}.
+     *
+     * @param thing The entity to get an id for.
+     *
+     * @return The LIMS id for the object.
+     */
+    public static String limsIdFromObject(Object thing)
+    {
+        assert thing != null : "Cannot get a name for null";
+
+        // This has got a lot more difficult thanks to Instrument not being consistent
+        // between the URI path and the lims id attribute, requiring a special case.
+        // See Redmine 7273.
+
+        String id = null;
+        Class<?> entityType = thing.getClass();
+
+        if (thing instanceof LimsEntity<?>)
+        {
+            id = ((LimsEntity<?>)thing).getLimsid();
+        }
+        else if (thing instanceof LimsEntityLink<?>)
+        {
+            LimsEntityLink<?> link = (LimsEntityLink<?>)thing;
+            id = link.getLimsid();
+            entityType = link.getEntityClass();
+        }
+
+        if (id == null)
+        {
+            id = limsIdFromUri(entityType, ((Locatable)thing).getUri().getPath());
+        }
+
+        return id;
+    }
+
+
+    /**
+     * The naming details of one class.
+     */
+    private static final class ClassNaming
+    {
+        /**
+         * The short class name followed by a hyphen.
+         */
+        final String prefix;
+
+        /**
+         * The name of the list file, should the class be a batch class.
+         */
+        final String listFileName;
+
+        /**
+         * The number of characters at the end of the URI path after the LIMS id:
+         * the URI subsection and its slash, or zero.
+         */
+        final int subsectionLength;
+
+        /**
+         * Constructor.
+         *
+         * @param type The class.
+         */
+        ClassNaming(Class<?> type)
+        {
+            String shortName = ClassUtils.getShortClassName(type);
+            prefix = shortName + '-';
+            listFileName = shortName + EXTENSION;
+
+            ClarityEntity anno = type.getAnnotation(ClarityEntity.class);
+            subsectionLength = anno == null || anno.uriSubsection().isEmpty() ? 0 : anno.uriSubsection().length() + 1;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes recording files so they are never seen half written. The content is
+ * written to a temporary file in the same directory, which is then renamed over
+ * the recording file. A playback aspect reading the directory at the same time,
+ * or a recording interrupted by a crash, sees either the old file or the new one.
+ *
+ * <p>
+ * How hard to try to get the files onto the disk is set by the {@link SyncPolicy}.
+ * The rename alone protects against readers and against the recorder dying, but
+ * not against the machine going down before the operating system has written
+ * its buffers out.
+ * </p>
+ *
+ * <p>
+ * The temporary file is created with the same default permissions as any other
+ * new file, so recordings stay readable by whoever could read them before.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public final class RecordingFileWriter
+{
+    /**
+     * The suffix of the temporary files.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Counter for naming the sync threads.
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * How much effort to make to get written files onto the disk.
+     */
+    public enum SyncPolicy
+    {
+        /**
+         * Leave it to the operating system. The fastest, and what the recorder has
+         * always done.
+         */
+        NONE,
+
+        /**
+         * Force each file's content to disk before it is renamed, and its directory
+         * after. Nothing reported as recorded is lost, at the cost of two disk syncs
+         * per file.
+         */
+        FILE,
+
+        /**
+         * Remember the files written and force them and their directories to disk
+         * together, once per sync interval while there are files waiting and whenever
+         * the recorder is flushed. The syncs are made by a background thread, so files
+         * are synced within an interval of being written even if no more are written.
+         * Up to an interval's files can be lost if the machine fails.
+         * As a file's content is not forced to disk before it is renamed, a file
+         * written since the last sync can also be left empty or partly written
+         * under its final name, depending on the file system.
+         */
+        BATCHED
+    }
+
+    /**
+     * A producer of file content.
+     */
+    @FunctionalInterface
+    public interface Content
+    {
+        /**
+         * Write the content to the stream. The stream must not be closed.
+         *
+         * @param out The stream to the temporary file.
+         *
+         * @throws IOException if the content cannot be written.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The sync policy.
+     */
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * The minimum time between batched syncs, in milliseconds.
+     */
+    private final long syncInterval;
+
+    /**
+     * The files written since the last batched sync.
+     */
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+
+    /**
+     * When the last batched sync was made.
+     */
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * The thread making the batched syncs, created when first needed.
+     * Guarded by {@link #unsynced}.
+     */
+    private ScheduledExecutorService syncTimer;
+
+    /**
+     * The batched sync waiting to be made, if any. Guarded by {@link #unsynced}.
+     */
+    private ScheduledFuture<?> pendingSync;
+
+    /**
+     * Whether the writer has been closed, after which files are synced as they
+     * are written. Guarded by {@link #unsynced}.
+     */
+    private boolean closed;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger = LoggerFactory.getLogger(RecordingFileWriter.class);
+
+
+    /**
+     * Constructor.
+     *
+     * @param syncPolicy How to get the files onto disk.
+     * @param syncInterval For {@code BATCHED}, the minimum time between syncs,
+     * in milliseconds.
+     */
+    public RecordingFileWriter(SyncPolicy syncPolicy, long syncInterval)
+    {
+        this.syncPolicy = syncPolicy == null ? SyncPolicy.NONE : syncPolicy;
+        this.syncInterval = Math.max(0L, syncInterval);
+    }
+
+    /**
+     * Get the sync policy.
+     *
+     * @return The sync policy.
+     */
+    public SyncPolicy getSyncPolicy()
+    {
+        return syncPolicy;
+    }
+
+    /**
+     * Write a file through a temporary file and an atomic rename.
+     *
+     * @param file The file to write.
+     * @param content The producer of the file's content.
+     *
+     * @throws IOException if the file cannot be written. The file is unchanged and
+     * the temporary file is removed.
+     */
+    public void write(File file, Content content) throws IOException
+    {
+        Path target = file.toPath().toAbsolutePath();
+        Path directory = target.getParent();
+        Path temp = tempFileFor(target);
+
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp, WRITE, CREATE_NEW))
+            {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+                content.writeTo(out);
+                out.flush();
+
+                if (syncPolicy == SyncPolicy.FILE)
+                {
+                    channel.force(true);
+                }
+            }
+
+            try
+            {
+                Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, target, REPLACE_EXISTING);
+            }
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            // Another writer's temporary file: not ours to remove.
+            throw e;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        switch (syncPolicy)
+        {
+            case FILE:
+                syncDirectory(directory);
+                break;
+
+            case BATCHED:
+                boolean due;
+                synchronized (unsynced)
+                {
+                    unsynced.add(target);
+                    long sinceSync = System.currentTimeMillis() - lastSync;
+                    due = closed || sinceSync >= syncInterval;
+                    if (!due)
+                    {
+                        scheduleSync(syncInterval - sinceSync);
+                    }
+                }
+                if (due)
+                {
+                    sync();
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Schedule a batched sync on the sync thread, unless one is already waiting.
+     * Must be called holding the lock on {@link #unsynced}.
+     *
+     * @param delay How long to wait before syncing, in milliseconds.
+     */
+    private void scheduleSync(long delay)
+    {
+        if (pendingSync == null)
+        {
+            if (syncTimer == null)
+            {
+                syncTimer = Executors.newSingleThreadScheduledExecutor(r ->
+                {
+                    Thread t = new Thread(r, "recording-sync-" + THREAD_COUNTER.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+
+            pendingSync = syncTimer.schedule(() ->
+            {
+                try
+                {
+                    sync();
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Could not sync recordings to disk: {}", e.getMessage());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get a name for a new temporary file next to a file. The temporary file is
+     * created by opening it with {@code CREATE_NEW} rather than through
+     * {@code Files.createTempFile}, which would make it readable only by its owner.
+     * The random part of the name makes a clash with another writer unlikely, and
+     * a clash makes the write fail rather than share the file.
+     *
+     * @param target The file to be written.
+     *
+     * @return The path for the temporary file.
+     */
+    private static Path tempFileFor(Path target)
+    {
+        String random = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return target.resolveSibling("." + target.getFileName() + "." + random + TEMP_SUFFIX);
+    }
+
+    /**
+     * Write a file whose whole content is already known, unless the file already
+     * holds exactly that content. Recorders writing the same entity, in this
+     * process or another, then leave the file (and its modification time) alone
+     * rather than replacing it with an identical copy.
+     *
+     * @param file The file to write.
+     * @param content The file's content.
+     *
+     * @return true if the file was written, false if it already held the content.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public boolean writeIfChanged(File file, byte[] content) throws IOException
+    {
+        if (file.length() == content.length && file.isFile())
+        {
+            try
+            {
+                if (Arrays.equals(content, Files.readAllBytes(file.toPath())))
+                {
+                    return false;
+                }
+            }
+            catch (NoSuchFileException e)
+            {
+                // Removed since the length was checked.
+            }
+        }
+
+        write(file, out -> out.write(content));
+        return true;
+    }
+
+    /**
+     * Get the number of files written but not yet synced. Only the {@code BATCHED}
+     * policy leaves files unsynced.
+     *
+     * @return The number of files waiting to be synced.
+     */
+    int getUnsyncedCount()
+    {
+        synchronized (unsynced)
+        {
+            return unsynced.size();
+        }
+    }
+
+    /**
+     * Force the files written since the last sync, and the directories holding
+     * them, to disk. Only does anything with the {@code BATCHED} policy.
+     *
+     * @throws IOException if a file cannot be synced.
+     */
+    public void sync() throws IOException
+    {
+        Path[] files;
+        synchronized (unsynced)
+        {
+            files = unsynced.toArray(new Path[unsynced.size()]);
+            unsynced.clear();
+            lastSync = System.currentTimeMillis();
+
+            if (pendingSync != null)
+            {
+                // Has no effect if this is the scheduled sync running.
+                pendingSync.cancel(false);
+                pendingSync = null;
+            }
+        }
+
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : files)
+        {
+            try (FileChannel channel = FileChannel.open(file, READ))
+            {
+                channel.force(true);
+            }
+            catch (NoSuchFileException e)
+            {
+                // Replaced or removed since. Its directory still needs syncing.
+            }
+            directories.add(file.getParent());
+        }
+
+        for (Path directory : directories)
+        {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Stop the background syncs and sync anything still waiting. Files written
+     * after this are synced as they are written.
+     *
+     * @throws IOException if a file cannot be synced.
+     */
+    public void close() throws IOException
+    {
+        synchronized (unsynced)
+        {
+            closed = true;
+            if (syncTimer != null)
+            {
+                syncTimer.shutdown();
+                syncTimer = null;
+            }
+        }
+
+        sync();
+    }
+
+    /**
+     * Force a directory's entries to disk, so a rename in it survives a crash.
+     * Not every platform allows a directory to be opened; where it can't be, the
+     * directory is left to the operating system.
+     *
+     * @param directory The directory.
+     */
+    private static void syncDirectory(Path directory)
+    {
+        try (FileChannel channel = FileChannel.open(directory, READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            // Not supported here (Windows).
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * How the recording files are arranged in the message directory.
+ *
+ * <p>
+ * In the {@code FLAT} layout every file is directly in the message directory.
+ * In the {@code SHARDED} layout, entity and search files are put in a directory
+ * for their type and then in one of 256 subdirectories chosen by a hash of the
+ * file name, for example {@code Sample/3f/Sample-GAO9862A146.xml} and
+ * {@code search/a0/search_1b2c3d4e.xml}. No directory then holds more than a
+ * small fraction of a large corpus. List files, their ranges files and the lock
+ * and marker files stay in the message directory itself.
+ * </p>
+ *
+ * <p>
+ * A sharded directory holds the marker file {@value #MARKER_FILE_NAME}, which is
+ * how playback tells the layouts apart.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public enum RecordingLayout
+{
+    /**
+     * All files directly in the message directory. The original layout.
+     */
+    FLAT,
+
+    /**
+     * Entity and search files in directories by type and hash prefix.
+     */
+    SHARDED;
+
+    /**
+     * The name of the file marking a message directory as sharded.
+     */
+    public static final String MARKER_FILE_NAME = ".sharded";
+
+    /**
+     * The name of the type directory holding the search files.
+     */
+    static final String SEARCH_DIRECTORY = "search";
+
+    /**
+     * Hex digits for the shard directory names.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    /**
+     * Work out the layout of a message directory from its marker file.
+     *
+     * @param directory The message directory.
+     *
+     * @return {@code SHARDED} if the directory has the marker file, {@code FLAT} otherwise.
+     */
+    public static RecordingLayout detect(File directory)
+    {
+        return directory != null && new File(directory, MARKER_FILE_NAME).isFile() ? SHARDED : FLAT;
+    }
+
+    /**
+     * Mark a message directory as using this layout. Marking a directory as
+     * {@code FLAT} does nothing: a directory without a marker is flat.
+     *
+     * @param directory The message directory.
+     *
+     * @throws IOException if the marker file cannot be written.
+     */
+    public void mark(File directory) throws IOException
+    {
+        if (this == SHARDED)
+        {
+            File marker = new File(directory, MARKER_FILE_NAME);
+            if (!marker.isFile())
+            {
+                Files.write(marker.toPath(), "sharded\n".getBytes(US_ASCII));
+            }
+        }
+    }
+
+    /**
+     * Get the path of a recording file in this layout, relative to the message directory.
+     *
+     * @param name The name of the recording file.
+     *
+     * @return The relative path, using '/' as the separator.
+     */
+    public String relativePath(String name)
+    {
+        if (this == FLAT)
+        {
+            return name;
+        }
+
+        String type = typeDirectory(name);
+        if (type == null)
+        {
+            return name;
+        }
+
+        int hash = name.hashCode();
+        return new StringBuilder(type.length() + name.length() + 4)
+                .append(type).append('/')
+                .append(HEX[(hash >>> 4) & 0xF]).append(HEX[hash & 0xF]).append('/')
+                .append(name).toString();
+    }
+
+    /**
+     * Get a recording file in this layout.
+     *
+     * @param directory The message directory.
+     * @param name The name of the recording file.
+     *
+     * @return The file.
+     */
+    public File fileFor(File directory, String name)
+    {
+        return this == FLAT ? new File(directory, name) : new File(directory, relativePath(name));
+    }
+
+    /**
+     * Get the depth of directories below the message directory holding recordings.
+     *
+     * @return The number of directory levels to search for recordings, one for
+     * the message directory itself.
+     */
+    public int getDepth()
+    {
+        return this == FLAT ? 1 : 3;
+    }
+
+    /**
+     * Get the type directory for a recording file.
+     *
+     * @param name The name of the recording file.
+     *
+     * @return The type directory's name, or null if the file is not sharded.
+     */
+    private static String typeDirectory(String name)
+    {
+        if (name.startsWith("search_"))
+        {
+            return SEARCH_DIRECTORY;
+        }
+
+        int hyphen = name.indexOf('-');
+        return hyphen > 0 && name.endsWith(RecordingFileNames.EXTENSION) ? name.substring(0, hyphen) : null;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks that keep search files consistent when several recorders, in this JVM
+ * or in other processes, write into the same message directory. A search file
+ * is read, merged with the new results and rewritten while its lock is held, so
+ * no recorder's results are lost.
+ *
+ * <p>
+ * Between processes, the locks are byte range locks on a single lock file in the
+ * message directory, {@value #LOCK_FILE_NAME}. Each search file name maps to one
+ * of {@value #REGIONS} one byte regions of the file, so unrelated searches rarely
+ * wait for each other and no lock file is left per search. The lock file is held
+ * open for as long as this object is open: on POSIX systems, closing any channel
+ * to a file drops all of the process's locks on it.
+ * </p>
+ *
+ * <p>
+ * File locks are held on behalf of the whole JVM, so threads in this JVM are
+ * kept apart by locks in memory as well, one for each region. Threads recording
+ * the same search take turns; threads recording searches in different regions
+ * don't wait for each other at all. Should two recorders in one JVM each have
+ * locks on the same directory, a region held by one is waited for by the other.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+final class SearchFileLocks implements Closeable
+{
+    /**
+     * The name of the lock file in the message directory.
+     */
+    static final String LOCK_FILE_NAME = ".searches.lock";
+
+    /**
+     * The number of regions of the lock file that the search files map to.
+     */
+    static final int REGIONS = 1024;
+
+    /**
+     * How long to wait before trying again for a region locked by another
+     * instance in this JVM, in milliseconds.
+     */
+    private static final long OVERLAP_WAIT = 5L;
+
+    /**
+     * The lock file.
+     */
+    private final File lockFile;
+
+    /**
+     * Locks keeping threads in this JVM apart, one for each region.
+     */
+    private final ReentrantLock[] threadLocks = new ReentrantLock[REGIONS];
+
+    /**
+     * The channel to the lock file, opened when first needed.
+     */
+    private FileChannel channel;
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory The message directory.
+     */
+    SearchFileLocks(File directory)
+    {
+        lockFile = new File(directory, LOCK_FILE_NAME);
+        for (int i = 0; i < REGIONS; i++)
+        {
+            threadLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock a search file, waiting for any other holder in this or another process.
+     *
+     * @param searchFileName The name of the search file.
+     *
+     * @return The lock held. It must be closed to release it.
+     *
+     * @throws IOException if the lock file cannot be opened or locked.
+     */
+    Held lock(String searchFileName) throws IOException
+    {
+        int region = Math.floorMod(searchFileName.hashCode(), REGIONS);
+        ReentrantLock threadLock = threadLocks[region];
+
+        threadLock.lock();
+        try
+        {
+            FileChannel lockChannel = openChannel();
+            while (true)
+            {
+                try
+                {
+                    return new Held(threadLock, lockChannel.lock(region, 1L, false));
+                }
+                catch (OverlappingFileLockException e)
+                {
+                    // Held by another recorder in this JVM with its own locks
+                    // on the same directory. Wait for it to finish.
+                    Thread.sleep(OVERLAP_WAIT);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            threadLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the lock on " + searchFileName);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            threadLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the channel to the lock file, opening it if needed.
+     *
+     * @return The channel.
+     *
+     * @throws IOException if the lock file cannot be opened.
+     */
+    private synchronized FileChannel openChannel() throws IOException
+    {
+        if (channel == null)
+        {
+            channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE);
+        }
+        return channel;
+    }
+
+    /**
+     * Close the lock file, releasing any locks still held.
+     *
+     * @throws IOException if the lock file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            finally
+            {
+                channel = null;
+            }
+        }
+    }
+
+
+    /**
+     * A lock on a search file.
+     */
+    static final class Held implements Closeable
+    {
+        /**
+         * The lock on the region for this JVM's threads.
+         */
+        private final ReentrantLock threadLock;
+
+        /**
+         * The lock on the region of the lock file.
+         */
+        private final FileLock fileLock;
+
+        /**
+         * Constructor.
+         *
+         * @param threadLock The lock on the region for this JVM's threads.
+         * @param fileLock The lock on the region of the lock file.
+         */
+        private Held(ReentrantLock threadLock, FileLock fileLock)
+        {
+            this.threadLock = threadLock;
+            this.fileLock = fileLock;
+        }
+
+        /**
+         * Release the lock.
+         *
+         * @throws IOException if the file lock cannot be released.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if (fileLock.isValid())
+                {
+                    fileLock.release();
+                }
+            }
+            finally
+            {
+                threadLock.unlock();
+            }
+        }
+    }
+}
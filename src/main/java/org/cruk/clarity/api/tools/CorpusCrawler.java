@@ -0,0 +1,855 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.cruk.clarity.api.ClarityAPI;
+import org.cruk.clarity.api.record.ClarityAPIRecordingAspect;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.Locatable;
+
+/**
+ * Builds a message directory by crawling the entity graph of a Clarity server,
+ * rather than by running real code against it with the recording aspect on.
+ *
+ * <p>
+ * The crawl starts from seed entities, given by type and LIMS id, and from the
+ * results of seed searches. These are depth zero. The links in each entity fetched
+ * (for example a sample's project, submitter and artifact) are followed to the
+ * next depth, up to the maximum depth set. Each depth's links are fetched with
+ * {@link ClarityAPI#loadAll(Collection)} in batches of one type of entity, the
+ * batches spread over a fixed number of threads. A batch that fails is retried
+ * a link at a time so one missing entity does not lose the rest. Each entity is
+ * fetched once however many times it is linked to.
+ * </p>
+ *
+ * <p>
+ * The crawler only fetches. The entities are recorded by the
+ * {@link ClarityAPIRecordingAspect} around the API it is given, which is how
+ * the command line tool is set up.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code java org.cruk.clarity.api.tools.CorpusCrawler <directory>
+ * [--credentials <file>] [--depth <n>] [--threads <n>] [--batch <n>] [--follow <type>]...
+ * [--sharded] <seed>...}, where each seed is either {@code Type:limsid} or
+ * {@code Type?term=value&...} for a search. Types are the short names of the
+ * entity classes or their full class names.
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public class CorpusCrawler
+{
+    /**
+     * The Spring context for the command line tool.
+     */
+    public static final String CONTEXT = "classpath:/org/cruk/clarity/api/clarity-crawler-context.xml";
+
+    /**
+     * The package the entity and link classes are all in, or under.
+     */
+    private static final String ENTITY_PACKAGE = "com.genologics.ri.";
+
+    /**
+     * The getters looked at for links, for each class.
+     */
+    private static final ConcurrentMap<Class<?>, List<Method>> GETTERS = new ConcurrentHashMap<>();
+
+    /**
+     * Counter for naming the crawling threads.
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(CorpusCrawler.class);
+
+    /**
+     * The API to fetch from.
+     */
+    private final ClarityAPI api;
+
+    /**
+     * Where the crawl starts.
+     */
+    private final List<Seed> seeds = new ArrayList<>();
+
+    /**
+     * The deepest links are followed to from the seeds.
+     */
+    private int maxDepth = 2;
+
+    /**
+     * The number of threads fetching batches.
+     */
+    private int threads = 4;
+
+    /**
+     * The most links fetched in one call to {@code loadAll}.
+     */
+    private int batchSize = 100;
+
+    /**
+     * The types of entity links are followed to. Empty for all types.
+     */
+    private Set<Class<?>> follow = Collections.emptySet();
+
+
+    /**
+     * Constructor.
+     *
+     * @param api The API to fetch from, wrapped by the recording aspect.
+     */
+    public CorpusCrawler(ClarityAPI api)
+    {
+        this.api = api;
+    }
+
+    /**
+     * Add a seed entity.
+     *
+     * @param type The type of entity.
+     * @param limsid The entity's LIMS id.
+     */
+    public void addSeed(Class<? extends Locatable> type, String limsid)
+    {
+        seeds.add(new Seed(type, limsid, null));
+    }
+
+    /**
+     * Add a seed search. The entities the search finds are seeds.
+     *
+     * @param searchTerms The search terms.
+     * @param type The type of entity searched for.
+     */
+    public void addSearch(Map<String, ?> searchTerms, Class<? extends Locatable> type)
+    {
+        seeds.add(new Seed(type, null, searchTerms));
+    }
+
+    /**
+     * Set how many links away from the seeds to go. The default is 2.
+     *
+     * @param maxDepth The maximum depth. Zero fetches only the seeds.
+     */
+    public void setMaxDepth(int maxDepth)
+    {
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    /**
+     * Set the number of threads fetching batches at once. The default is 4.
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the most links fetched in one call to {@code loadAll}. The default is 100.
+     *
+     * @param batchSize The batch size.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Limit the types of entity that links are followed to. Seeds are always fetched.
+     *
+     * @param types The entity classes to follow links to. Null or empty for all.
+     */
+    public void setFollow(Collection<Class<?>> types)
+    {
+        follow = types == null ? Collections.emptySet() : new HashSet<>(types);
+    }
+
+    /**
+     * Crawl from the seeds.
+     *
+     * @return What was fetched.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for
+     * the fetches to finish.
+     */
+    public Report crawl() throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        Report report = new Report();
+
+        Set<String> visited = ConcurrentHashMap.newKeySet();
+
+        List<Queue<LimsLink<?>>> levels = new ArrayList<>(maxDepth + 1);
+        for (int depth = 0; depth <= maxDepth; depth++)
+        {
+            levels.add(new ConcurrentLinkedQueue<>());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread t = new Thread(r, "clarity-crawler-" + THREAD_COUNTER.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<>(seeds.size());
+            for (Seed seed : seeds)
+            {
+                tasks.add(() ->
+                {
+                    fetchSeed(seed, visited, levels, report);
+                    return null;
+                });
+            }
+            runAll(pool, tasks);
+
+            for (int depth = 0; depth <= maxDepth; depth++)
+            {
+                Map<Class<?>, List<LimsLink<?>>> byType = new LinkedHashMap<>();
+                for (LimsLink<?> link : levels.get(depth))
+                {
+                    if (visited.add(keyFor(link)))
+                    {
+                        byType.computeIfAbsent(link.getEntityClass(), t -> new ArrayList<>()).add(link);
+                    }
+                }
+                if (byType.isEmpty())
+                {
+                    continue;
+                }
+
+                logger.debug("Crawling {} entities at depth {}.",
+                             byType.values().stream().mapToInt(List::size).sum(), depth);
+
+                tasks.clear();
+                for (List<LimsLink<?>> links : byType.values())
+                {
+                    for (int from = 0; from < links.size(); from += batchSize)
+                    {
+                        List<LimsLink<?>> batch = links.subList(from, Math.min(links.size(), from + batchSize));
+                        int batchDepth = depth;
+                        tasks.add(() ->
+                        {
+                            fetchBatch(batch, batchDepth, levels, report);
+                            return null;
+                        });
+                    }
+                }
+                runAll(pool, tasks);
+                report.depth = depth;
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        report.elapsed = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    /**
+     * Fetch a seed. A seed entity's links go to depth one; the results of a
+     * seed search are themselves at depth zero.
+     *
+     * @param seed The seed.
+     * @param visited The keys of the entities fetched or to be fetched.
+     * @param levels The links to fetch at each depth.
+     * @param report The report to count in.
+     */
+    private void fetchSeed(Seed seed, Set<String> visited, List<Queue<LimsLink<?>>> levels, Report report)
+    {
+        try
+        {
+            if (seed.searchTerms != null)
+            {
+                levels.get(0).addAll(api.find(seed.searchTerms, seed.type));
+            }
+            else
+            {
+                Locatable entity = api.load(seed.limsid, seed.type);
+                visited.add(RecordingFileNames.entityFileName(entity));
+                fetched(entity, 0, levels, report);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Could not fetch seed {}: {}", seed, e.getMessage());
+            report.failures.increment();
+        }
+    }
+
+    /**
+     * Fetch a batch of links of one type of entity. If the batch cannot be fetched
+     * as a whole, each link is fetched on its own.
+     *
+     * @param batch The links.
+     * @param depth The depth of the links.
+     * @param levels The links to fetch at each depth.
+     * @param report The report to count in.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void fetchBatch(List<LimsLink<?>> batch, int depth, List<Queue<LimsLink<?>>> levels, Report report)
+    {
+        report.batches.increment();
+        try
+        {
+            List<? extends Locatable> entities = api.loadAll((Collection)batch);
+            for (Locatable entity : entities)
+            {
+                fetched(entity, depth, levels, report);
+            }
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            if (batch.size() == 1)
+            {
+                logger.warn("Could not fetch {}: {}", batch.get(0).getUri(), e.getMessage());
+                report.failures.increment();
+                return;
+            }
+            logger.debug("Could not fetch a batch of {}, fetching one at a time: {}",
+                         batch.get(0).getEntityClass().getSimpleName(), e.getMessage());
+        }
+
+        for (LimsLink link : batch)
+        {
+            try
+            {
+                fetched((Locatable)api.load(link), depth, levels, report);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Could not fetch {}: {}", link.getUri(), e.getMessage());
+                report.failures.increment();
+            }
+        }
+    }
+
+    /**
+     * Count an entity fetched and, if there is a next depth to go to, queue
+     * the links in it that are to be followed.
+     *
+     * @param entity The entity.
+     * @param depth The depth of the entity.
+     * @param levels The links to fetch at each depth.
+     * @param report The report to count in.
+     */
+    private void fetched(Locatable entity, int depth, List<Queue<LimsLink<?>>> levels, Report report)
+    {
+        report.entities.increment();
+
+        if (depth < maxDepth)
+        {
+            Queue<LimsLink<?>> next = levels.get(depth + 1);
+            findLinks(entity, link ->
+            {
+                if (follow.isEmpty() || follow.contains(link.getEntityClass()))
+                {
+                    next.add(link);
+                }
+            });
+        }
+    }
+
+    /**
+     * Find the links in an entity. Every getter of the entity, and of the objects
+     * and lists of objects from the entity classes' packages it returns, is looked
+     * at, so links nested in (for example) process inputs and outputs are found.
+     *
+     * @param entity The entity.
+     * @param sink Receives each link that has a URI and entity class.
+     */
+    private static void findLinks(Object entity, Consumer<LimsLink<?>> sink)
+    {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(entity);
+
+        while (!pending.isEmpty())
+        {
+            Object thing = pending.pop();
+            if (!seen.add(thing))
+            {
+                continue;
+            }
+
+            if (thing != entity && thing instanceof LimsLink<?>)
+            {
+                LimsLink<?> link = (LimsLink<?>)thing;
+                if (link.getUri() != null && link.getEntityClass() != null)
+                {
+                    sink.accept(link);
+                }
+            }
+
+            for (Method getter : gettersOf(thing.getClass()))
+            {
+                Object value;
+                try
+                {
+                    value = getter.invoke(thing);
+                }
+                catch (ReflectiveOperationException | RuntimeException e)
+                {
+                    continue;
+                }
+
+                if (value instanceof Collection<?>)
+                {
+                    for (Object element : (Collection<?>)value)
+                    {
+                        if (isEntityObject(element))
+                        {
+                            pending.push(element);
+                        }
+                    }
+                }
+                else if (isEntityObject(value))
+                {
+                    pending.push(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the getters of a class that can return links or objects holding them.
+     *
+     * @param type The class.
+     *
+     * @return The getters.
+     */
+    private static List<Method> gettersOf(Class<?> type)
+    {
+        return GETTERS.computeIfAbsent(type, t ->
+            Stream.of(t.getMethods())
+                  .filter(m -> m.getParameterCount() == 0 && m.getName().startsWith("get"))
+                  .filter(m -> Collection.class.isAssignableFrom(m.getReturnType()) ||
+                               m.getReturnType().getName().startsWith(ENTITY_PACKAGE))
+                  .collect(Collectors.toList()));
+    }
+
+    /**
+     * Test whether an object is from the entity classes' packages, so may hold links.
+     *
+     * @param thing The object.
+     *
+     * @return true if the object should be looked in for links.
+     */
+    private static boolean isEntityObject(Object thing)
+    {
+        return thing != null && !thing.getClass().isEnum() && thing.getClass().getName().startsWith(ENTITY_PACKAGE);
+    }
+
+    /**
+     * Get the name of the recording file for the entity a link points to, which
+     * identifies the entity whatever form its URI takes.
+     *
+     * @param link The link.
+     *
+     * @return The key for the entity.
+     */
+    private static String keyFor(LimsLink<?> link)
+    {
+        Class<?> type = link.getEntityClass();
+        return RecordingFileNames.entityFileName(type, RecordingFileNames.limsIdFromUri(type, link.getUri().getPath()));
+    }
+
+    /**
+     * Run tasks on the pool and wait for them all to finish.
+     *
+     * @param pool The thread pool.
+     * @param tasks The tasks.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) throws InterruptedException
+    {
+        for (Future<Void> future : pool.invokeAll(tasks))
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Crawling task failed.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args The message directory, the options and the seeds.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            usage();
+        }
+
+        File directory = new File(args[0]);
+        Report report = null;
+
+        try (ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(CONTEXT))
+        {
+            ClarityAPI api = context.getBean("clarityAPI", ClarityAPI.class);
+            ClarityAPIRecordingAspect recorder = context.getBean(ClarityAPIRecordingAspect.class);
+            recorder.setMessageDirectory(directory);
+
+            CorpusCrawler crawler = new CorpusCrawler(api);
+            List<Class<?>> follow = new ArrayList<>();
+            int seedCount = 0;
+
+            for (int i = 1; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--credentials":
+                        Properties credentials = new Properties();
+                        try (InputStream in = new FileInputStream(argument(args, ++i)))
+                        {
+                            credentials.load(in);
+                        }
+                        api.setConfiguration(credentials);
+                        break;
+
+                    case "--depth":
+                        crawler.setMaxDepth(Integer.parseInt(argument(args, ++i)));
+                        break;
+
+                    case "--threads":
+                        crawler.setThreads(Integer.parseInt(argument(args, ++i)));
+                        break;
+
+                    case "--batch":
+                        crawler.setBatchSize(Integer.parseInt(argument(args, ++i)));
+                        break;
+
+                    case "--follow":
+                        follow.add(entityClass(argument(args, ++i)));
+                        break;
+
+                    case "--sharded":
+                        recorder.setLayout(RecordingLayout.SHARDED);
+                        break;
+
+                    default:
+                        if (args[i].startsWith("--"))
+                        {
+                            usage();
+                        }
+                        addSeed(crawler, args[i]);
+                        seedCount++;
+                }
+            }
+
+            if (seedCount == 0)
+            {
+                usage();
+            }
+
+            crawler.setFollow(follow);
+            report = crawler.crawl();
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cannot read credentials: " + e.getMessage());
+            System.exit(2);
+        }
+        catch (InterruptedException e)
+        {
+            System.err.println("Crawl interrupted.");
+            System.exit(2);
+        }
+
+        System.out.println(report);
+        System.exit(report.getFailures() == 0 ? 0 : 3);
+    }
+
+    /**
+     * Add a seed from the command line, either {@code Type:limsid} or
+     * {@code Type?term=value&term=value}.
+     *
+     * @param crawler The crawler.
+     * @param seed The seed argument.
+     *
+     * @throws IllegalArgumentException if the seed is badly formed.
+     */
+    private static void addSeed(CorpusCrawler crawler, String seed)
+    {
+        int query = seed.indexOf('?');
+        int colon = seed.indexOf(':');
+        if (query > 0)
+        {
+            Map<String, Object> terms = new LinkedHashMap<>();
+            for (String term : seed.substring(query + 1).split("&"))
+            {
+                int equals = term.indexOf('=');
+                if (equals <= 0)
+                {
+                    throw new IllegalArgumentException("Search term \"" + term + "\" is not name=value.");
+                }
+                terms.put(term.substring(0, equals), term.substring(equals + 1));
+            }
+            crawler.addSearch(terms, entityClass(seed.substring(0, query)));
+        }
+        else if (colon > 0)
+        {
+            crawler.addSeed(entityClass(seed.substring(0, colon)), seed.substring(colon + 1));
+        }
+        else
+        {
+            throw new IllegalArgumentException("Seed \"" + seed + "\" is neither Type:limsid nor Type?search.");
+        }
+    }
+
+    /**
+     * Find an entity class from its full name or its short name. A short name
+     * is looked for in the package named after it, as {@code Sample} is
+     * {@code com.genologics.ri.sample.Sample}.
+     *
+     * @param name The class name.
+     *
+     * @return The entity class.
+     *
+     * @throws IllegalArgumentException if there is no such entity class.
+     */
+    private static Class<? extends Locatable> entityClass(String name)
+    {
+        String className = name.indexOf('.') >= 0 ? name : ENTITY_PACKAGE + name.toLowerCase() + "." + name;
+        try
+        {
+            return Class.forName(className).asSubclass(Locatable.class);
+        }
+        catch (ClassNotFoundException | ClassCastException e)
+        {
+            throw new IllegalArgumentException("There is no entity class " + name + ".");
+        }
+    }
+
+    /**
+     * Get the value of a command line option.
+     *
+     * @param args The command line arguments.
+     * @param index The index of the value.
+     *
+     * @return The value.
+     */
+    private static String argument(String[] args, int index)
+    {
+        if (index >= args.length)
+        {
+            usage();
+        }
+        return args[index];
+    }
+
+    /**
+     * Print how to use the tool and exit.
+     */
+    private static void usage()
+    {
+        System.err.println("Usage: CorpusCrawler <directory> [--credentials <file>] [--depth <n>] [--threads <n>] " +
+                           "[--batch <n>] [--follow <type>]... [--sharded] <Type:limsid | Type?term=value&...>...");
+        System.exit(1);
+    }
+
+
+    /**
+     * Where a crawl starts: an entity or a search.
+     */
+    private static final class Seed
+    {
+        /**
+         * The type of entity.
+         */
+        final Class<? extends Locatable> type;
+
+        /**
+         * The LIMS id of a seed entity.
+         */
+        final String limsid;
+
+        /**
+         * The terms of a seed search.
+         */
+        final Map<String, ?> searchTerms;
+
+        /**
+         * Constructor.
+         *
+         * @param type The type of entity.
+         * @param limsid The LIMS id of a seed entity, or null for a search.
+         * @param searchTerms The terms of a seed search, or null for an entity.
+         */
+        Seed(Class<? extends Locatable> type, String limsid, Map<String, ?> searchTerms)
+        {
+            this.type = type;
+            this.limsid = limsid;
+            this.searchTerms = searchTerms;
+        }
+
+        @Override
+        public String toString()
+        {
+            return type.getSimpleName() + (searchTerms == null ? ":" + limsid : "?" + searchTerms);
+        }
+    }
+
+    /**
+     * What a crawl fetched.
+     */
+    public static final class Report
+    {
+        /**
+         * The entities fetched.
+         */
+        private final LongAdder entities = new LongAdder();
+
+        /**
+         * The batches fetched.
+         */
+        private final LongAdder batches = new LongAdder();
+
+        /**
+         * The seeds, batches and links that could not be fetched.
+         */
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * The deepest level links were fetched from.
+         */
+        private int depth;
+
+        /**
+         * How long the crawl took.
+         */
+        private long elapsed;
+
+        /**
+         * Get the number of entities fetched.
+         *
+         * @return The entity count.
+         */
+        public long getEntityCount()
+        {
+            return entities.sum();
+        }
+
+        /**
+         * Get the number of calls to {@code loadAll}, not counting seeds.
+         *
+         * @return The batch count.
+         */
+        public long getBatchCount()
+        {
+            return batches.sum();
+        }
+
+        /**
+         * Get the number of seeds and links that could not be fetched.
+         *
+         * @return The failure count.
+         */
+        public long getFailures()
+        {
+            return failures.sum();
+        }
+
+        /**
+         * Get the deepest level links were fetched from.
+         *
+         * @return The depth reached.
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /**
+         * Get how long the crawl took.
+         *
+         * @return The time taken, in milliseconds.
+         */
+        public long getElapsedMillis()
+        {
+            return elapsed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "crawled " + getEntityCount() + " entities to depth " + getDepth() + " in " +
+                   getBatchCount() + " batches with " + getFailures() + " failures in " + getElapsedMillis() + "ms";
+        }
+    }
+}
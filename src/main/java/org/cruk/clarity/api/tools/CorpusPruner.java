@@ -0,0 +1,725 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.cruk.clarity.api.playback.CoverageReport;
+import org.cruk.clarity.api.record.ListRanges;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingFileWriter;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.xstream.XStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.genologics.ri.Locatable;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+
+/**
+ * Shrinks a message directory, using several threads. It works in three steps:
+ *
+ * <ol>
+ * <li>Compacting updates: of the {@code Type-id.NNN.xml} update files for each
+ * entity, only the highest version is kept.</li>
+ * <li>Collapsing searches: search files holding the same search terms (for example
+ * copies in both the flat and sharded places, or files named with an old hash of
+ * the terms) are merged into the one file playback will look for.</li>
+ * <li>Pruning: if coverage reports are given, recordings that none of them
+ * used are removed. Update files are never pruned, as playback never reads them.</li>
+ * </ol>
+ *
+ * <p>
+ * Files removed are deleted, or moved into an archive directory keeping their
+ * path relative to the message directory. With a dry run, nothing is changed but
+ * the counts are still made, as they would be for the real run.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code java org.cruk.clarity.api.tools.CorpusPruner <directory> [--report <file>]...
+ * [--archive <directory>] [--threads <n>] [--dry-run]}
+ * </p>
+ *
+ * @see CoverageReport
+ *
+ * @since 2.31.7
+ */
+public class CorpusPruner
+{
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(CorpusPruner.class);
+
+    /**
+     * The message directory.
+     */
+    private final File directory;
+
+    /**
+     * The names of the recordings used, from the coverage reports. Null if no
+     * report has been given, in which case nothing is pruned.
+     */
+    private Set<String> used;
+
+    /**
+     * Where removed files are moved to. Null to delete them.
+     */
+    private File archiveDirectory;
+
+    /**
+     * Whether to only count what would be done.
+     */
+    private boolean dryRun;
+
+    /**
+     * The number of threads working on files.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * XStream, for reading and writing searches.
+     */
+    private XStream xstream;
+
+    /**
+     * The files removed, or that would have been on a dry run, by the steps run
+     * so far. Later steps leave them out, so a dry run counts each file once.
+     */
+    private final Set<Path> removed = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory The message directory.
+     */
+    public CorpusPruner(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Add the recordings used according to a coverage report. A recording used
+     * in any of the reports given is kept.
+     *
+     * @param report The coverage report file.
+     *
+     * @throws IOException if the report cannot be read.
+     */
+    public void addCoverageReport(File report) throws IOException
+    {
+        if (used == null)
+        {
+            used = new HashSet<>();
+        }
+        used.addAll(CoverageReport.readUsed(report));
+    }
+
+    /**
+     * Set the directory removed files are moved to. If not set, they are deleted.
+     *
+     * @param archiveDirectory The archive directory.
+     */
+    public void setArchiveDirectory(File archiveDirectory)
+    {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * Set whether to only count what would be done, changing nothing.
+     *
+     * @param dryRun true for a dry run.
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Set the number of threads working on files. The default is the number of processors.
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the XStream used to read and write searches. If not set, one is made
+     * by {@link XStreamFactory}.
+     *
+     * @param xstream The XStream serialiser.
+     */
+    public void setXStream(XStream xstream)
+    {
+        this.xstream = xstream;
+    }
+
+    /**
+     * Compact, collapse and prune the message directory.
+     *
+     * @return What was done.
+     *
+     * @throws IOException if the directory cannot be read or a file cannot be
+     * moved or removed.
+     */
+    public Result prune() throws IOException
+    {
+        if (!directory.isDirectory())
+        {
+            throw new IOException(directory.getAbsolutePath() + " is not a directory.");
+        }
+        if (xstream == null)
+        {
+            try
+            {
+                xstream = new XStreamFactory().getObject();
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Cannot create XStream: " + e.getMessage(), e);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        removed.clear();
+
+        RecordingLayout layout = RecordingLayout.detect(directory);
+
+        compactUpdates(listFiles(), result);
+        collapseSearches(listFiles(), layout, result);
+        if (used != null)
+        {
+            pruneUnused(listFiles(), result);
+        }
+
+        logger.info("{} {} in {}ms.", dryRun ? "Would have" : "Have", result, System.currentTimeMillis() - start);
+
+        return result;
+    }
+
+    /**
+     * Remove all but the highest version of each entity's update files.
+     *
+     * @param files The files in the message directory.
+     * @param result Counts of what has been done.
+     *
+     * @throws IOException if a file cannot be removed.
+     */
+    private void compactUpdates(List<Path> files, Result result) throws IOException
+    {
+        Map<String, Path> latest = new HashMap<>();
+        Map<String, Integer> versions = new HashMap<>();
+        List<Path> superseded = new ArrayList<>();
+
+        for (Path file : files)
+        {
+            Matcher m = RecordingFileNames.UPDATE_FILE_NAME.matcher(file.getFileName().toString());
+            if (m.matches())
+            {
+                String entity = m.group(1);
+                int version = Integer.parseInt(m.group(2));
+                Integer best = versions.get(entity);
+                if (best == null || version > best)
+                {
+                    if (best != null)
+                    {
+                        superseded.add(latest.get(entity));
+                    }
+                    versions.put(entity, version);
+                    latest.put(entity, file);
+                }
+                else
+                {
+                    superseded.add(file);
+                }
+            }
+        }
+
+        inParallel(superseded, file -> remove(file, result.supersededUpdates, result.bytesFreed));
+    }
+
+    /**
+     * Merge the search files holding the same search terms into the file named
+     * for those terms, in its place in the layout.
+     *
+     * @param files The files in the message directory.
+     * @param layout The layout of the message directory.
+     * @param result Counts of what has been done.
+     *
+     * @throws IOException if a search cannot be read, written or removed.
+     */
+    private void collapseSearches(List<Path> files, RecordingLayout layout, Result result) throws IOException
+    {
+        List<Path> searchFiles = files.stream()
+                .filter(f -> f.getFileName().toString().startsWith("search_"))
+                .filter(f -> f.getFileName().toString().endsWith(RecordingFileNames.EXTENSION))
+                .collect(Collectors.toList());
+
+        // Read the searches in parallel, grouping them by the file they belong in.
+        Map<String, List<Path>> byName = new ConcurrentHashMap<>();
+        Map<Path, Search<?>> searches = new ConcurrentHashMap<>();
+        inParallel(searchFiles, file ->
+        {
+            Search<?> search = readSearch(file);
+            if (search != null)
+            {
+                searches.put(file, search);
+                byName.computeIfAbsent(search.getSearchFileName(), n -> Collections.synchronizedList(new ArrayList<>())).add(file);
+            }
+        });
+
+        List<Map.Entry<String, List<Path>>> toCollapse = byName.entrySet().stream()
+                .filter(e -> e.getValue().size() > 1 ||
+                             !e.getValue().get(0).equals(layout.fileFor(directory, e.getKey()).toPath()))
+                .collect(Collectors.toList());
+
+        RecordingFileWriter writer = new RecordingFileWriter(RecordingFileWriter.SyncPolicy.NONE, 0L);
+
+        inParallel(toCollapse, entry ->
+        {
+            File target = layout.fileFor(directory, entry.getKey());
+            Search<?> merged = null;
+            for (Path file : entry.getValue())
+            {
+                merged = merged == null ? searches.get(file) : mergeSearches(merged, searches.get(file));
+            }
+
+            if (!dryRun)
+            {
+                Files.createDirectories(target.toPath().getParent());
+                writeSearch(writer, merged, target);
+            }
+
+            for (Path file : entry.getValue())
+            {
+                if (!file.equals(target.toPath()))
+                {
+                    remove(file, result.collapsedSearches, result.bytesFreed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the recordings none of the coverage reports used. Update files and
+     * hidden files (markers, locks) are left alone. A list's ranges file goes
+     * with its list.
+     *
+     * @param files The files in the message directory.
+     * @param result Counts of what has been done.
+     *
+     * @throws IOException if a file cannot be removed.
+     */
+    private void pruneUnused(List<Path> files, Result result) throws IOException
+    {
+        List<Path> unused = new ArrayList<>();
+        for (Path file : files)
+        {
+            String name = file.getFileName().toString();
+            if (name.endsWith(RecordingFileNames.EXTENSION) &&
+                !RecordingFileNames.UPDATE_FILE_NAME.matcher(name).matches() &&
+                !used.contains(name))
+            {
+                unused.add(file);
+            }
+            else if (name.endsWith(ListRanges.FILE_SUFFIX))
+            {
+                String listName = name.substring(0, name.length() - ListRanges.FILE_SUFFIX.length()) + RecordingFileNames.EXTENSION;
+                if (!used.contains(listName))
+                {
+                    unused.add(file);
+                }
+            }
+        }
+
+        inParallel(unused, file -> remove(file, result.unused, result.bytesFreed));
+    }
+
+    /**
+     * List the files in the message directory, in whichever layout.
+     *
+     * @return The files, not including hidden files or files already removed
+     * (which on a dry run are still there).
+     *
+     * @throws IOException if the directory cannot be read.
+     */
+    private List<Path> listFiles() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory.toPath(), RecordingLayout.SHARDED.getDepth()))
+        {
+            return paths.filter(Files::isRegularFile)
+                        .filter(p -> !p.getFileName().toString().startsWith("."))
+                        .filter(p -> !removed.contains(p))
+                        .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Read a search file.
+     *
+     * @param file The search file.
+     *
+     * @return The search, or null if the file cannot be deserialised.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private Search<?> readSearch(Path file) throws IOException
+    {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file), US_ASCII))
+        {
+            return (Search<?>)xstream.fromXML(reader);
+        }
+        catch (XStreamException | ClassCastException e)
+        {
+            logger.warn("Cannot read search {}: {}", file.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write a search file, as the recording aspect does.
+     *
+     * @param writer The file writer.
+     * @param search The search.
+     * @param file The file to write.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeSearch(RecordingFileWriter writer, Search<?> search, File file) throws IOException
+    {
+        writer.write(file, stream ->
+        {
+            Writer out = new OutputStreamWriter(stream, US_ASCII);
+            xstream.toXML(search, out);
+            out.write(System.lineSeparator());
+            out.flush();
+        });
+    }
+
+    /**
+     * Merge two searches for the same terms.
+     *
+     * @param <E> The type of entity searched for.
+     *
+     * @param into The search to merge into.
+     * @param other The search to merge in.
+     *
+     * @return {@code into}, with the results of {@code other} added.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Locatable> Search<E> mergeSearches(Search<E> into, Search<?> other)
+    {
+        into.merge((Search<E>)other);
+        return into;
+    }
+
+    /**
+     * Remove a file: delete it, or move it to the archive directory.
+     *
+     * @param file The file.
+     * @param count The count to add the file to.
+     * @param bytes The count of bytes freed.
+     *
+     * @throws IOException if the file cannot be removed.
+     */
+    private void remove(Path file, LongAdder count, LongAdder bytes) throws IOException
+    {
+        long size = Files.size(file);
+        removed.add(file);
+        if (!dryRun)
+        {
+            if (archiveDirectory == null)
+            {
+                Files.deleteIfExists(file);
+            }
+            else
+            {
+                Path destination = archiveDirectory.toPath().resolve(directory.toPath().relativize(file));
+                Files.createDirectories(destination.getParent());
+                try
+                {
+                    Files.move(file, destination, ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException e)
+                {
+                    Files.move(file, destination);
+                }
+            }
+        }
+        count.increment();
+        bytes.add(size);
+    }
+
+    /**
+     * Do something to each of a collection of items on this pruner's threads.
+     *
+     * @param <T> The type of item.
+     *
+     * @param items The items.
+     * @param action What to do with each.
+     *
+     * @throws IOException if the action fails for any item.
+     */
+    private <T> void inParallel(Collection<T> items, IOConsumer<T> action) throws IOException
+    {
+        Consumer<T> unchecked = item ->
+        {
+            try
+            {
+                action.accept(item);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.submit(() -> items.parallelStream().forEach(unchecked)).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while pruning " + directory.getAbsolutePath());
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+            {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            throw new IOException("Pruning failed: " + cause.getMessage(), cause);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args The message directory, followed by the options.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            usage();
+        }
+
+        try
+        {
+            CorpusPruner pruner = new CorpusPruner(new File(args[0]));
+            for (int i = 1; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--report":
+                        pruner.addCoverageReport(new File(argument(args, ++i)));
+                        break;
+
+                    case "--archive":
+                        pruner.setArchiveDirectory(new File(argument(args, ++i)));
+                        break;
+
+                    case "--threads":
+                        pruner.setThreads(Integer.parseInt(argument(args, ++i)));
+                        break;
+
+                    case "--dry-run":
+                        pruner.setDryRun(true);
+                        break;
+
+                    default:
+                        usage();
+                }
+            }
+
+            Result result = pruner.prune();
+            System.out.println((pruner.dryRun ? "Would have " : "Have ") + result + ".");
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Pruning failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Get the value of a command line option.
+     *
+     * @param args The command line arguments.
+     * @param index The index of the value.
+     *
+     * @return The value.
+     */
+    private static String argument(String[] args, int index)
+    {
+        if (index >= args.length)
+        {
+            usage();
+        }
+        return args[index];
+    }
+
+    /**
+     * Print how to use the tool and exit.
+     */
+    private static void usage()
+    {
+        System.err.println("Usage: CorpusPruner <directory> [--report <file>]... [--archive <directory>] [--threads <n>] [--dry-run]");
+        System.exit(1);
+    }
+
+
+    /**
+     * An action on one item that can fail with an {@code IOException}.
+     *
+     * @param <T> The type of item.
+     */
+    @FunctionalInterface
+    private interface IOConsumer<T>
+    {
+        /**
+         * Act on an item.
+         *
+         * @param item The item.
+         *
+         * @throws IOException if the action fails.
+         */
+        void accept(T item) throws IOException;
+    }
+
+    /**
+     * What a pruning run did, or would have done.
+     */
+    public static final class Result
+    {
+        /**
+         * Update files removed because a later version exists.
+         */
+        private final LongAdder supersededUpdates = new LongAdder();
+
+        /**
+         * Search files merged into another.
+         */
+        private final LongAdder collapsedSearches = new LongAdder();
+
+        /**
+         * Recordings removed because no coverage report used them.
+         */
+        private final LongAdder unused = new LongAdder();
+
+        /**
+         * The size of the files removed.
+         */
+        private final LongAdder bytesFreed = new LongAdder();
+
+        /**
+         * Get the number of update files removed because a later version exists.
+         *
+         * @return The number of superseded updates.
+         */
+        public long getSupersededUpdates()
+        {
+            return supersededUpdates.sum();
+        }
+
+        /**
+         * Get the number of search files merged into another.
+         *
+         * @return The number of collapsed searches.
+         */
+        public long getCollapsedSearches()
+        {
+            return collapsedSearches.sum();
+        }
+
+        /**
+         * Get the number of recordings removed because no coverage report used them.
+         *
+         * @return The number of unused recordings.
+         */
+        public long getUnused()
+        {
+            return unused.sum();
+        }
+
+        /**
+         * Get the total size of the files removed.
+         *
+         * @return The bytes freed.
+         */
+        public long getBytesFreed()
+        {
+            return bytesFreed.sum();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "removed " + getSupersededUpdates() + " superseded updates, " +
+                   getCollapsedSearches() + " redundant searches and " +
+                   getUnused() + " unused recordings, freeing " + getBytesFreed() + " bytes";
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.cruk.clarity.api.record.LoadAllManifest;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.xstream.XStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import com.genologics.ri.Locatable;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Reads every recording in a message directory, using several threads, to find
+ * the files playback would fail on before a test suite happens to ask for them.
+ *
+ * <p>
+ * Entity, update and list files are unmarshalled with the client's JAXB marshaller,
+ * and search files are deserialised with the XStream configuration the aspects use.
+ * {@code loadAll} manifests are read whole. Each file's name is then checked against
+ * its content: the type and LIMS id (from {@link RecordingFileNames#limsIdFromObject(Object)})
+ * of an entity, the batch class of a list, the hash of the search terms of a search
+ * and the hash of the links of a manifest. Every
+ * failure is reported, not just the first.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code java org.cruk.clarity.api.tools.CorpusVerifier <directory> [threads]}
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public class CorpusVerifier
+{
+    /**
+     * The Spring configuration providing the JAXB marshaller when run from the
+     * command line.
+     */
+    public static final String CONTEXT = "classpath:/org/cruk/clarity/api/clarity-verifier-context.xml";
+
+    /**
+     * The prefix of search file names.
+     */
+    private static final String SEARCH_PREFIX = "search_";
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(CorpusVerifier.class);
+
+    /**
+     * The message directory.
+     */
+    private final File directory;
+
+    /**
+     * The JAXB marshaller for entity and list recordings.
+     */
+    private final Jaxb2Marshaller marshaller;
+
+    /**
+     * XStream, for reading searches.
+     */
+    private XStream xstream;
+
+    /**
+     * The number of threads reading files.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory The message directory.
+     * @param marshaller The JAXB marshaller configured for the Clarity API classes.
+     */
+    public CorpusVerifier(File directory, Jaxb2Marshaller marshaller)
+    {
+        this.directory = directory;
+        this.marshaller = marshaller;
+    }
+
+    /**
+     * Set the number of threads reading files. The default is the number of processors.
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the XStream used to read searches. If not set, one is made by
+     * {@link XStreamFactory}.
+     *
+     * @param xstream The XStream serialiser.
+     */
+    public void setXStream(XStream xstream)
+    {
+        this.xstream = xstream;
+    }
+
+    /**
+     * Read and check every recording in the message directory.
+     *
+     * @return The outcome of the verification.
+     *
+     * @throws IOException if the directory cannot be read.
+     */
+    public Report verify() throws IOException
+    {
+        if (!directory.isDirectory())
+        {
+            throw new IOException(directory.getAbsolutePath() + " is not a directory.");
+        }
+        if (xstream == null)
+        {
+            try
+            {
+                xstream = new XStreamFactory().getObject();
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Cannot create XStream: " + e.getMessage(), e);
+            }
+        }
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory.toPath(), RecordingLayout.SHARDED.getDepth()))
+        {
+            files = paths.filter(Files::isRegularFile).filter(CorpusVerifier::isRecording).collect(Collectors.toList());
+        }
+
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.submit(() -> files.parallelStream().forEach(file -> check(file, report))).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying " + directory.getAbsolutePath());
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            throw new IOException("Verification failed: " + cause.getMessage(), cause);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        report.elapsedNanos = System.nanoTime() - start;
+
+        if (report.isValid())
+        {
+            logger.info("Verified {}", report);
+        }
+        else
+        {
+            logger.warn("Verified {}", report);
+        }
+
+        return report;
+    }
+
+    /**
+     * Read one recording and check its name against its content.
+     *
+     * @param file The recording file.
+     * @param report The report to add the outcome to.
+     */
+    private void check(Path file, Report report)
+    {
+        String name = file.getFileName().toString();
+        try
+        {
+            report.bytes.add(Files.size(file));
+
+            String problem;
+            if (name.startsWith(SEARCH_PREFIX))
+            {
+                problem = checkSearch(file, name);
+            }
+            else if (name.startsWith(LoadAllManifest.FILE_PREFIX))
+            {
+                problem = checkManifest(file, name);
+            }
+            else
+            {
+                problem = checkEntity(marshaller.unmarshal(new StreamSource(file.toFile())), name);
+            }
+
+            if (problem != null)
+            {
+                report.failures.add(new Failure(directory.toPath().relativize(file).toString(), problem));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            report.failures.add(new Failure(directory.toPath().relativize(file).toString(), describe(e)));
+        }
+        finally
+        {
+            report.files.increment();
+        }
+    }
+
+    /**
+     * Deserialise a search file and check it is named for its search terms.
+     *
+     * @param file The search file.
+     * @param name The name of the file.
+     *
+     * @return A description of what is wrong, or null if nothing is.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private String checkSearch(Path file, String name) throws IOException
+    {
+        Object thing;
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file), US_ASCII))
+        {
+            thing = xstream.fromXML(reader);
+        }
+
+        if (!(thing instanceof Search<?>))
+        {
+            return "Holds a " + thing.getClass().getName() + " rather than a search";
+        }
+
+        Search<?> search = (Search<?>)thing;
+        if (search.getSearchTerms() == null)
+        {
+            return "Search has no search terms";
+        }
+        String expected = search.getSearchFileName();
+        return expected.equals(name) ? null : "Search terms belong in " + expected;
+    }
+
+    /**
+     * Read a {@code loadAll} manifest and check it is named for the links it holds.
+     *
+     * @param file The manifest file.
+     * @param name The name of the file.
+     *
+     * @return A description of what is wrong, or null if nothing is.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private String checkManifest(Path file, String name) throws IOException
+    {
+        LoadAllManifest manifest = LoadAllManifest.read(file.toFile(), marshaller);
+        String expected = LoadAllManifest.fileName(manifest.getKeys());
+        return expected.equals(name) ? null : "Manifest links belong in " + expected;
+    }
+
+    /**
+     * Check an entity, update or list file is named for what it holds.
+     *
+     * @param thing The object unmarshalled from the file.
+     * @param name The name of the file.
+     *
+     * @return A description of what is wrong, or null if nothing is.
+     */
+    private static String checkEntity(Object thing, String name)
+    {
+        Matcher update = RecordingFileNames.UPDATE_FILE_NAME.matcher(name);
+        String stem = update.matches() ? update.group(1) + RecordingFileNames.EXTENSION : name;
+
+        String expected;
+        if (stem.indexOf('-') > 0)
+        {
+            String id = RecordingFileNames.limsIdFromObject(thing);
+            if (id == null)
+            {
+                return "Holds a " + thing.getClass().getSimpleName() + " with no LIMS id";
+            }
+            expected = RecordingFileNames.entityFileName(thing.getClass(), id);
+
+            // Instruments' LIMS ids differ from the id in their URIs, which is what
+            // playback is asked for. See Redmine 7273.
+            if (!expected.equals(stem) && thing instanceof Locatable && ((Locatable)thing).getUri() != null)
+            {
+                String uriId = RecordingFileNames.limsIdFromUri(thing.getClass(), ((Locatable)thing).getUri().getPath());
+                if (RecordingFileNames.entityFileName(thing.getClass(), uriId).equals(stem))
+                {
+                    return null;
+                }
+            }
+        }
+        else
+        {
+            expected = RecordingFileNames.listFileName(thing.getClass());
+        }
+
+        return expected.equals(stem) ? null : "Content belongs in " + expected;
+    }
+
+    /**
+     * Describe why a file could not be read. JAXB and XStream wrap the parser's
+     * message, so the innermost cause is used.
+     *
+     * @param e The exception.
+     *
+     * @return The message of the root cause.
+     */
+    private static String describe(Exception e)
+    {
+        Throwable t = e;
+        while (t.getCause() != null && t.getCause() != t)
+        {
+            t = t.getCause();
+        }
+        return t.getMessage() == null ? t.getClass().getName() : t.getClass().getSimpleName() + ": " + t.getMessage();
+    }
+
+    /**
+     * Test whether a file is a recording. Hidden files (the markers, locks and
+     * temporary files) and list range files are not.
+     *
+     * @param file The file.
+     *
+     * @return true if the file is a recording.
+     */
+    private static boolean isRecording(Path file)
+    {
+        String name = file.getFileName().toString();
+        return !name.startsWith(".") && name.endsWith(RecordingFileNames.EXTENSION);
+    }
+
+    /**
+     * Command line entry point. The exit code is zero if every recording is good,
+     * three if any is not.
+     *
+     * @param args The message directory, and optionally the number of threads.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println("Usage: CorpusVerifier <directory> [threads]");
+            System.exit(1);
+        }
+
+        Report report = null;
+        try (ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(CONTEXT))
+        {
+            CorpusVerifier verifier = new CorpusVerifier(new File(args[0]), context.getBean(Jaxb2Marshaller.class));
+            if (args.length > 1)
+            {
+                verifier.setThreads(Integer.parseInt(args[1]));
+            }
+            report = verifier.verify();
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.println("Bad thread count: " + args[1]);
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Verification failed: " + e.getMessage());
+            System.exit(2);
+        }
+
+        for (Failure failure : report.getFailures())
+        {
+            System.out.println(failure.getFile() + ": " + failure.getProblem());
+        }
+        System.out.println(report);
+
+        System.exit(report.isValid() ? 0 : 3);
+    }
+
+
+    /**
+     * A recording that could not be read, or is not named for its content.
+     */
+    public static final class Failure
+    {
+        /**
+         * The path of the file, relative to the message directory.
+         */
+        private final String file;
+
+        /**
+         * What is wrong with it.
+         */
+        private final String problem;
+
+        /**
+         * Constructor.
+         *
+         * @param file The path of the file, relative to the message directory.
+         * @param problem What is wrong with it.
+         */
+        Failure(String file, String problem)
+        {
+            this.file = file;
+            this.problem = problem;
+        }
+
+        /**
+         * Get the path of the file, relative to the message directory.
+         *
+         * @return The file path.
+         */
+        public String getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Get what is wrong with the file.
+         *
+         * @return A description of the problem.
+         */
+        public String getProblem()
+        {
+            return problem;
+        }
+
+        @Override
+        public String toString()
+        {
+            return file + ": " + problem;
+        }
+    }
+
+    /**
+     * The outcome of verifying a message directory.
+     */
+    public static final class Report
+    {
+        /**
+         * The number of files read.
+         */
+        private final LongAdder files = new LongAdder();
+
+        /**
+         * The number of bytes read.
+         */
+        private final LongAdder bytes = new LongAdder();
+
+        /**
+         * The files that failed.
+         */
+        private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+
+        /**
+         * How long verification took.
+         */
+        private long elapsedNanos;
+
+        /**
+         * Test whether every recording was good.
+         *
+         * @return true if there were no failures.
+         */
+        public boolean isValid()
+        {
+            return failures.isEmpty();
+        }
+
+        /**
+         * Get the number of recordings read.
+         *
+         * @return The number of files.
+         */
+        public long getFileCount()
+        {
+            return files.sum();
+        }
+
+        /**
+         * Get the total size of the recordings read.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesRead()
+        {
+            return bytes.sum();
+        }
+
+        /**
+         * Get how long verification took.
+         *
+         * @return The time in milliseconds.
+         */
+        public long getElapsedMillis()
+        {
+            return elapsedNanos / 1_000_000L;
+        }
+
+        /**
+         * Get the number of recordings read per second.
+         *
+         * @return The throughput in files per second.
+         */
+        public double getFilesPerSecond()
+        {
+            return elapsedNanos == 0L ? 0.0 : files.sum() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Get the recordings that failed, sorted by path.
+         *
+         * @return The failures.
+         */
+        public List<Failure> getFailures()
+        {
+            List<Failure> sorted = new ArrayList<>(failures);
+            sorted.sort(Comparator.comparing(Failure::getFile));
+            return Collections.unmodifiableList(sorted);
+        }
+
+        @Override
+        public String toString()
+        {
+            ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+            b.append("files", getFileCount());
+            b.append("failures", failures.size());
+            b.append("bytes", getBytesRead());
+            b.append("ms", getElapsedMillis());
+            b.append("filesPerSecond", Math.round(getFilesPerSecond()));
+            return b.toString();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingFileWriter;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.xstream.XStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.genologics.ri.Locatable;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+
+/**
+ * Moves the recordings in a message directory into another {@link RecordingLayout},
+ * using several threads.
+ *
+ * <p>
+ * When sharding, the directory is marked as sharded before any file is moved.
+ * Playback looks for a recording missing from its shard directly in the message
+ * directory, so the directory can be played back while it is being resharded.
+ * When flattening, the marker is removed only once every file has been moved,
+ * for the same reason. Files are moved with atomic renames within the directory;
+ * nothing is copied.
+ * </p>
+ *
+ * <p>
+ * A recording may already be at its destination: a recorder writing in the new
+ * layout leaves older copies where they were, and a reshard may be run again or
+ * resumed. A file is never moved over another. Of two copies of an entity, the
+ * more recently modified is kept and the other deleted. Two copies of a search
+ * are merged, as the recording aspect merges a search with what is already
+ * recorded, and the merged search written to the destination.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code java org.cruk.clarity.api.tools.Resharder <directory> [sharded|flat] [threads]}
+ * </p>
+ *
+ * @since 2.31.7
+ */
+public class Resharder
+{
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(Resharder.class);
+
+    /**
+     * The message directory.
+     */
+    private final File directory;
+
+    /**
+     * The layout to move the recordings into.
+     */
+    private final RecordingLayout target;
+
+    /**
+     * The number of threads moving files.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * XStream, for merging searches found in both places.
+     */
+    private XStream xstream;
+
+    /**
+     * Writes merged searches.
+     */
+    private final RecordingFileWriter writer = new RecordingFileWriter(RecordingFileWriter.SyncPolicy.NONE, 0L);
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory The message directory.
+     * @param target The layout to move the recordings into.
+     */
+    public Resharder(File directory, RecordingLayout target)
+    {
+        this.directory = directory;
+        this.target = target;
+    }
+
+    /**
+     * Get the number of threads moving files.
+     *
+     * @return The number of threads.
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads moving files. The default is the number of processors.
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the XStream used to read and write searches. If not set, one is made
+     * by {@link XStreamFactory}.
+     *
+     * @param xstream The XStream serialiser.
+     */
+    public void setXStream(XStream xstream)
+    {
+        this.xstream = xstream;
+    }
+
+    /**
+     * Move the recordings into the target layout.
+     *
+     * @return The number of files moved.
+     *
+     * @throws IOException if the directory cannot be read or a file cannot be moved.
+     */
+    public int reshard() throws IOException
+    {
+        if (!directory.isDirectory())
+        {
+            throw new IOException(directory.getAbsolutePath() + " is not a directory.");
+        }
+        if (xstream == null)
+        {
+            try
+            {
+                xstream = new XStreamFactory().getObject();
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Cannot create XStream: " + e.getMessage(), e);
+            }
+        }
+
+        target.mark(directory);
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory.toPath(), RecordingLayout.SHARDED.getDepth()))
+        {
+            files = paths.filter(Files::isRegularFile).filter(Resharder::isRecording).collect(Collectors.toList());
+        }
+
+        LongAdder moved = new LongAdder();
+        long start = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.submit(() -> files.parallelStream().forEach(file ->
+            {
+                try
+                {
+                    if (move(file))
+                    {
+                        moved.increment();
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resharding " + directory.getAbsolutePath());
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+            {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            throw new IOException("Resharding failed: " + cause.getMessage(), cause);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        if (target == RecordingLayout.FLAT)
+        {
+            removeEmptyDirectories();
+            Files.deleteIfExists(new File(directory, RecordingLayout.MARKER_FILE_NAME).toPath());
+        }
+
+        logger.info("Moved {} of {} recordings into the {} layout in {}ms.", moved.sum(), files.size(),
+                    target, System.currentTimeMillis() - start);
+
+        return moved.intValue();
+    }
+
+    /**
+     * Move a recording to where it belongs in the target layout. If there is
+     * already a recording there, the two are reconciled rather than one being
+     * renamed over the other.
+     *
+     * @param file The recording file.
+     *
+     * @return true if the file was moved or reconciled with the one in place,
+     * false if it is already in place.
+     *
+     * @throws IOException if the file cannot be moved.
+     */
+    private boolean move(Path file) throws IOException
+    {
+        String name = file.getFileName().toString();
+        Path destination = target.fileFor(directory, name).toPath().toAbsolutePath();
+        if (destination.equals(file.toAbsolutePath()))
+        {
+            return false;
+        }
+
+        Files.createDirectories(destination.getParent());
+
+        if (Files.exists(destination))
+        {
+            if (name.startsWith("search_"))
+            {
+                mergeSearch(file, destination);
+            }
+            else if (Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(destination)) > 0)
+            {
+                logger.debug("Replacing {} with the newer {}.", destination, file);
+                rename(file, destination);
+            }
+            else
+            {
+                logger.debug("Removing {}: {} is newer.", file, destination);
+                Files.delete(file);
+            }
+            return true;
+        }
+
+        rename(file, destination);
+        return true;
+    }
+
+    /**
+     * Rename a file, atomically if the file system can.
+     *
+     * @param file The file.
+     * @param destination Where it goes.
+     *
+     * @throws IOException if the file cannot be renamed.
+     */
+    private static void rename(Path file, Path destination) throws IOException
+    {
+        try
+        {
+            Files.move(file, destination, ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(file, destination);
+        }
+    }
+
+    /**
+     * Merge a search file into the file for the same search in the target layout,
+     * then delete it. If the two hold different search terms (the names' hashes
+     * colliding) or one cannot be read, the more recent readable file is kept,
+     * as the recording aspect replaces a search it cannot merge with.
+     *
+     * @param file The search file being moved.
+     * @param destination The search file already in place.
+     *
+     * @throws IOException if either file cannot be read or the merged search
+     * cannot be written.
+     */
+    private void mergeSearch(Path file, Path destination) throws IOException
+    {
+        Search<?> moving = readSearch(file);
+        Search<?> inPlace = readSearch(destination);
+
+        if (moving != null && inPlace != null && moving.getSearchTerms().equals(inPlace.getSearchTerms()))
+        {
+            if (mergeSearches(inPlace, moving))
+            {
+                writer.write(destination.toFile(), stream ->
+                {
+                    Writer out = new OutputStreamWriter(stream, US_ASCII);
+                    xstream.toXML(inPlace, out);
+                    out.write(System.lineSeparator());
+                    out.flush();
+                });
+            }
+            Files.delete(file);
+            return;
+        }
+
+        boolean keepMoving = inPlace == null ||
+            moving != null && Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(destination)) > 0;
+
+        logger.warn("Cannot merge search files {} and {}. Keeping {}.",
+                    file, destination, keepMoving ? file : destination);
+
+        if (keepMoving)
+        {
+            rename(file, destination);
+        }
+        else
+        {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Read a search file.
+     *
+     * @param file The search file.
+     *
+     * @return The search, or null if the file cannot be deserialised.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private Search<?> readSearch(Path file) throws IOException
+    {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file), US_ASCII))
+        {
+            return (Search<?>)xstream.fromXML(reader);
+        }
+        catch (XStreamException | ClassCastException e)
+        {
+            logger.warn("Cannot read search {}: {}", file.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Merge two searches for the same terms.
+     *
+     * @param <E> The type of entity searched for.
+     *
+     * @param into The search to merge into.
+     * @param other The search to merge in.
+     *
+     * @return true if {@code into} gained results.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Locatable> boolean mergeSearches(Search<E> into, Search<?> other)
+    {
+        return into.merge((Search<E>)other);
+    }
+
+    /**
+     * Remove the type and shard directories left empty after flattening.
+     *
+     * @throws IOException if the directory cannot be read.
+     */
+    private void removeEmptyDirectories() throws IOException
+    {
+        Path root = directory.toPath();
+        List<Path> directories;
+        try (Stream<Path> paths = Files.walk(root, RecordingLayout.SHARDED.getDepth() - 1))
+        {
+            directories = paths.filter(Files::isDirectory)
+                               .filter(p -> !p.equals(root))
+                               .sorted(Comparator.reverseOrder())
+                               .collect(Collectors.toList());
+        }
+        for (Path dir : directories)
+        {
+            try
+            {
+                Files.deleteIfExists(dir);
+            }
+            catch (DirectoryNotEmptyException e)
+            {
+                // Holds something other than recordings. Leave it.
+            }
+        }
+    }
+
+    /**
+     * Test whether a file is a recording that may be moved. Hidden files (the
+     * markers, locks and temporary files) are not.
+     *
+     * @param file The file.
+     *
+     * @return true if the file is a recording.
+     */
+    private static boolean isRecording(Path file)
+    {
+        String name = file.getFileName().toString();
+        return !name.startsWith(".") && name.endsWith(RecordingFileNames.EXTENSION);
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args The message directory, optionally followed by the layout
+     * ("sharded" or "flat", default sharded) and the number of threads.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1 || args.length > 3)
+        {
+            System.err.println("Usage: Resharder <directory> [sharded|flat] [threads]");
+            System.exit(1);
+        }
+
+        try
+        {
+            RecordingLayout layout = args.length > 1 ? RecordingLayout.valueOf(args[1].toUpperCase()) : RecordingLayout.SHARDED;
+
+            Resharder resharder = new Resharder(new File(args[0]), layout);
+            if (args.length > 2)
+            {
+                resharder.setThreads(Integer.parseInt(args[2]));
+            }
+
+            int moved = resharder.reshard();
+            System.out.println("Moved " + moved + " recordings into the " + layout + " layout.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Resharding failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
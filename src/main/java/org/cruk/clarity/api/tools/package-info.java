@@ -0,0 +1,4 @@
+/**
+ * Command line tools for looking after directories of recorded server exchanges.
+ */
+package org.cruk.clarity.api.tools;
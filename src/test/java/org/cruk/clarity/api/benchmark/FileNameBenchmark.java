@@ -0,0 +1,132 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.benchmark;
+
+import static org.apache.commons.lang3.StringUtils.isNotEmpty;
+import static org.cruk.clarity.api.record.ClarityAPIRecordingAspect.FILENAME_PATTERN;
+
+import java.text.MessageFormat;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.cruk.clarity.api.record.RecordingFileNames;
+
+import com.genologics.ri.ClarityEntity;
+import com.genologics.ri.artifact.Artifact;
+import com.genologics.ri.artifact.Demux;
+import com.genologics.ri.sample.Sample;
+import com.genologics.ri.step.StepDetails;
+
+/**
+ * Compares the time taken to build entity file names from URI paths with
+ * {@code MessageFormat}, as the aspects used to, against {@link RecordingFileNames}.
+ * This is not a unit test: run its {@code main} method from the IDE or with
+ * {@code mvn exec:java -Dexec.classpathScope=test}.
+ *
+ * <p>
+ * Each way is run for a number of warm up rounds before the measured rounds, so
+ * the results are for compiled code. The average time per name is printed.
+ * </p>
+ */
+public class FileNameBenchmark
+{
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private static final int ROUNDS = 10;
+
+    private static final int NAMES_PER_ROUND = 1_000_000;
+
+    private static final Class<?>[] TYPES = { Sample.class, Artifact.class, Demux.class, StepDetails.class };
+
+    private static final String[] PATHS = {
+        "/api/v2/samples/GAO9862A146",
+        "/api/v2/artifacts/2-5898189",
+        "/api/v2/artifacts/2-5898189/demux",
+        "/api/v2/steps/24-22245/details"
+    };
+
+    /**
+     * Defeats dead code elimination.
+     */
+    private static int sink;
+
+    public static void main(String[] args)
+    {
+        double formatted = 0;
+        double resolved = 0;
+
+        for (int round = -WARM_UP_ROUNDS; round < ROUNDS; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < NAMES_PER_ROUND; i++)
+            {
+                int which = i & 3;
+                sink += withMessageFormat(TYPES[which], PATHS[which]).length();
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < NAMES_PER_ROUND; i++)
+            {
+                int which = i & 3;
+                sink += withResolver(TYPES[which], PATHS[which]).length();
+            }
+            long end = System.nanoTime();
+
+            if (round >= 0)
+            {
+                formatted += (middle - start) / (double)NAMES_PER_ROUND;
+                resolved += (end - middle) / (double)NAMES_PER_ROUND;
+            }
+        }
+
+        formatted /= ROUNDS;
+        resolved /= ROUNDS;
+
+        System.out.printf("MessageFormat:      %8.1f ns per name%n", formatted);
+        System.out.printf("RecordingFileNames: %8.1f ns per name%n", resolved);
+        System.out.printf("Speed up:           %8.1fx%n", formatted / resolved);
+
+        if (sink == 42)
+        {
+            System.out.println();
+        }
+    }
+
+    /**
+     * The file name as the aspects built it before {@code RecordingFileNames}.
+     */
+    private static String withMessageFormat(Class<?> type, String uri)
+    {
+        ClarityEntity anno = type.getAnnotation(ClarityEntity.class);
+
+        int fromIndex = uri.length();
+        if (anno != null && isNotEmpty(anno.uriSubsection()))
+        {
+            fromIndex -= anno.uriSubsection().length() + 1;
+        }
+
+        int lastSlash = uri.lastIndexOf('/', fromIndex - 1);
+        String limsid = uri.substring(lastSlash + 1, fromIndex);
+
+        return MessageFormat.format(FILENAME_PATTERN, ClassUtils.getShortClassName(type), limsid);
+    }
+
+    private static String withResolver(Class<?> type, String uri)
+    {
+        return RecordingFileNames.entityFileName(type, RecordingFileNames.limsIdFromUri(type, uri));
+    }
+}
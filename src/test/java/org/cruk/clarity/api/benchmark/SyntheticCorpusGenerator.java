@@ -0,0 +1,473 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.benchmark;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingFileWriter;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.xstream.XStreamFactory;
+
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.artifact.Artifact;
+import com.genologics.ri.artifact.ArtifactLink;
+import com.genologics.ri.artifact.Artifacts;
+import com.genologics.ri.container.Container;
+import com.genologics.ri.container.Containers;
+import com.genologics.ri.process.ClarityProcess;
+import com.genologics.ri.process.Processes;
+import com.genologics.ri.sample.Sample;
+import com.genologics.ri.sample.SampleLink;
+import com.genologics.ri.sample.Samples;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Writes a message directory of made up recordings, as large as wanted, for
+ * benchmarking playback at scale without real LIMS data. This is not a unit
+ * test: run its {@code main} method from the IDE or with
+ * {@code mvn exec:java -Dexec.classpathScope=test}.
+ *
+ * <p>
+ * The corpus is built like a LIMS: samples are submitted in projects, each with
+ * a root artifact placed in a 96 well plate. Each plate is run through a process
+ * that takes the plate's artifacts as inputs and makes one derived artifact from
+ * each. Every entity links to the others as the real ones do. There is a sample
+ * search for each project, so searches get as large as the project size, and an
+ * artifact search for each plate. The lists of all samples, artifacts, containers
+ * and processes are written too.
+ * </p>
+ *
+ * <p>
+ * Files are written in parallel, with the same names, layout, writer and search
+ * serialisation as the recording aspect. The result can be checked with
+ * {@link org.cruk.clarity.api.tools.CorpusVerifier}.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code SyntheticCorpusGenerator <directory> [samples] [project size] [sharded|flat] [threads]}
+ * </p>
+ */
+public class SyntheticCorpusGenerator
+{
+    private static final String BASE_URI = "http://localhost/api/v2/";
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    private static final String EOL = System.getProperty("line.separator", "\n");
+
+    private static final int WELLS = 96;
+
+    private static final char[] ROWS = { 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H' };
+
+    private final File directory;
+
+    private int sampleCount = 10_000;
+
+    private int projectSize = 100_000;
+
+    private RecordingLayout layout = RecordingLayout.FLAT;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final RecordingFileWriter writer = new RecordingFileWriter(RecordingFileWriter.SyncPolicy.NONE, 0L);
+
+    private final LongAdder files = new LongAdder();
+
+    private XStream xstream;
+
+    public SyntheticCorpusGenerator(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the number of samples. There are twice as many artifacts, and a
+     * container and a process for every 96 samples.
+     */
+    public void setSampleCount(int sampleCount)
+    {
+        this.sampleCount = Math.max(1, sampleCount);
+    }
+
+    /**
+     * Set the number of samples in a project, which is the number of results
+     * in the largest searches.
+     */
+    public void setProjectSize(int projectSize)
+    {
+        this.projectSize = Math.max(1, projectSize);
+    }
+
+    public void setLayout(RecordingLayout layout)
+    {
+        this.layout = layout;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Write the corpus.
+     *
+     * @return The number of files written.
+     */
+    public long generate() throws Exception
+    {
+        xstream = new XStreamFactory().getObject();
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory.getAbsolutePath());
+        }
+        layout.mark(directory);
+
+        int plates = (sampleCount + WELLS - 1) / WELLS;
+        int projects = (sampleCount + projectSize - 1) / projectSize;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.submit(() ->
+            {
+                IntStream.range(0, sampleCount).parallel().forEach(this::writeSample);
+                IntStream.range(0, plates).parallel().forEach(this::writePlate);
+                IntStream.range(0, projects).parallel().forEach(this::writeProjectSearch);
+            }).get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+            {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            throw e;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        writeLists(plates);
+
+        return files.sum();
+    }
+
+    // Identifiers.
+
+    private String projectId(int sample)
+    {
+        return "SYN" + (sample / projectSize + 1);
+    }
+
+    private String sampleId(int sample)
+    {
+        return projectId(sample) + 'A' + (sample + 1);
+    }
+
+    private String rootArtifactId(int sample)
+    {
+        return sampleId(sample) + "PA1";
+    }
+
+    private static String derivedArtifactId(int sample)
+    {
+        return "2-" + (sample + 1);
+    }
+
+    private static String containerId(int plate)
+    {
+        return "27-" + (plate + 1);
+    }
+
+    private static String processId(int plate)
+    {
+        return "24-" + (plate + 1);
+    }
+
+    private static String well(int sample)
+    {
+        int position = sample % WELLS;
+        return ROWS[position % ROWS.length] + ":" + (position / ROWS.length + 1);
+    }
+
+    private static String uri(String section, String limsid)
+    {
+        return BASE_URI + section + '/' + limsid;
+    }
+
+    private static String link(String element, String section, String limsid)
+    {
+        return "<" + element + " uri=\"" + uri(section, limsid) + "\" limsid=\"" + limsid + "\"/>";
+    }
+
+    // Entities.
+
+    private void writeSample(int sample)
+    {
+        String id = sampleId(sample);
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_HEADER);
+        xml.append("<smp:sample xmlns:smp=\"http://genologics.com/ri/sample\" xmlns:udf=\"http://genologics.com/ri/userdefined\"");
+        xml.append(" limsid=\"").append(id).append("\" uri=\"").append(uri("samples", id)).append("\">\n");
+        xml.append("    <name>Synthetic ").append(sample + 1).append("</name>\n");
+        xml.append("    <date-received>2020-01-01</date-received>\n");
+        xml.append("    ").append(link("project", "projects", projectId(sample))).append('\n');
+        xml.append("    <submitter uri=\"").append(uri("researchers", "1")).append("\">\n");
+        xml.append("        <first-name>Synthetic</first-name>\n");
+        xml.append("        <last-name>Data</last-name>\n");
+        xml.append("    </submitter>\n");
+        xml.append("    ").append(link("artifact", "artifacts", rootArtifactId(sample))).append('\n');
+        xml.append("    <udf:field name=\"Sample Type\" type=\"String\">DNA</udf:field>\n");
+        xml.append("    <udf:field name=\"Read Length\" type=\"Numeric\">150</udf:field>\n");
+        xml.append("</smp:sample>\n");
+        write(RecordingFileNames.entityFileName(Sample.class, id), xml);
+
+        int plate = sample / WELLS;
+        write(RecordingFileNames.entityFileName(Artifact.class, rootArtifactId(sample)),
+              artifact(rootArtifactId(sample), "Synthetic " + (sample + 1), null, containerId(plate), well(sample), id));
+        write(RecordingFileNames.entityFileName(Artifact.class, derivedArtifactId(sample)),
+              artifact(derivedArtifactId(sample), "Synthetic " + (sample + 1) + " Library", processId(plate), null, null, id));
+    }
+
+    private static StringBuilder artifact(String id, String name, String parentProcess, String container, String well, String sample)
+    {
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_HEADER);
+        xml.append("<art:artifact xmlns:art=\"http://genologics.com/ri/artifact\"");
+        xml.append(" limsid=\"").append(id).append("\" uri=\"").append(uri("artifacts", id)).append("\">\n");
+        xml.append("    <name>").append(name).append("</name>\n");
+        xml.append("    <type>Analyte</type>\n");
+        xml.append("    <output-type>Analyte</output-type>\n");
+        if (parentProcess != null)
+        {
+            xml.append("    ").append(link("parent-process", "processes", parentProcess)).append('\n');
+        }
+        xml.append("    <qc-flag>PASSED</qc-flag>\n");
+        if (container != null)
+        {
+            xml.append("    <location>\n");
+            xml.append("        ").append(link("container", "containers", container)).append('\n');
+            xml.append("        <value>").append(well).append("</value>\n");
+            xml.append("    </location>\n");
+        }
+        xml.append("    <working-flag>true</working-flag>\n");
+        xml.append("    ").append(link("sample", "samples", sample)).append('\n');
+        xml.append("</art:artifact>\n");
+        return xml;
+    }
+
+    private void writePlate(int plate)
+    {
+        int first = plate * WELLS;
+        int last = Math.min(first + WELLS, sampleCount);
+
+        StringBuilder xml = new StringBuilder(16384);
+        xml.append(XML_HEADER);
+        xml.append("<con:container xmlns:con=\"http://genologics.com/ri/container\"");
+        xml.append(" limsid=\"").append(containerId(plate)).append("\" uri=\"").append(uri("containers", containerId(plate))).append("\">\n");
+        xml.append("    <name>SYNPLATE").append(plate + 1).append("</name>\n");
+        xml.append("    <type uri=\"").append(uri("containertypes", "1")).append("\" name=\"96 well plate\"/>\n");
+        xml.append("    <occupied-wells>").append(last - first).append("</occupied-wells>\n");
+        for (int sample = first; sample < last; sample++)
+        {
+            xml.append("    <placement uri=\"").append(uri("artifacts", rootArtifactId(sample)));
+            xml.append("\" limsid=\"").append(rootArtifactId(sample)).append("\">\n");
+            xml.append("        <value>").append(well(sample)).append("</value>\n");
+            xml.append("    </placement>\n");
+        }
+        xml.append("    <state>Populated</state>\n");
+        xml.append("</con:container>\n");
+        write(RecordingFileNames.entityFileName(Container.class, containerId(plate)), xml);
+
+        xml.setLength(0);
+        xml.append(XML_HEADER);
+        xml.append("<prc:process xmlns:prc=\"http://genologics.com/ri/process\"");
+        xml.append(" limsid=\"").append(processId(plate)).append("\" uri=\"").append(uri("processes", processId(plate))).append("\">\n");
+        xml.append("    <type uri=\"").append(uri("processtypes", "1")).append("\">Synthetic Library Prep</type>\n");
+        xml.append("    <date-run>2020-01-02</date-run>\n");
+        xml.append("    <technician uri=\"").append(uri("researchers", "1")).append("\">\n");
+        xml.append("        <first-name>Synthetic</first-name>\n");
+        xml.append("        <last-name>Data</last-name>\n");
+        xml.append("    </technician>\n");
+        for (int sample = first; sample < last; sample++)
+        {
+            xml.append("    <input-output-map>\n");
+            xml.append("        <input post-process-uri=\"").append(uri("artifacts", rootArtifactId(sample)));
+            xml.append("\" uri=\"").append(uri("artifacts", rootArtifactId(sample)));
+            xml.append("\" limsid=\"").append(rootArtifactId(sample)).append("\"/>\n");
+            xml.append("        <output uri=\"").append(uri("artifacts", derivedArtifactId(sample)));
+            xml.append("\" output-generation-type=\"PerInput\" output-type=\"Analyte\" limsid=\"");
+            xml.append(derivedArtifactId(sample)).append("\"/>\n");
+            xml.append("    </input-output-map>\n");
+        }
+        xml.append("</prc:process>\n");
+        write(RecordingFileNames.entityFileName(ClarityProcess.class, processId(plate)), xml);
+
+        List<LimsLink<Artifact>> artifacts = new ArrayList<>(last - first);
+        for (int sample = first; sample < last; sample++)
+        {
+            artifacts.add(new ArtifactLink(URI.create(uri("artifacts", rootArtifactId(sample)))));
+        }
+        Search<Artifact> search = new Search<>(Collections.singletonMap("containerlimsid", containerId(plate)), Artifact.class);
+        search.setResults(artifacts);
+        writeSearch(search);
+    }
+
+    private void writeProjectSearch(int project)
+    {
+        int first = project * projectSize;
+        int last = Math.min(first + projectSize, sampleCount);
+
+        List<LimsLink<Sample>> samples = new ArrayList<>(last - first);
+        for (int sample = first; sample < last; sample++)
+        {
+            samples.add(new SampleLink(URI.create(uri("samples", sampleId(sample)))));
+        }
+        Search<Sample> search = new Search<>(Collections.singletonMap("projectlimsid", projectId(first)), Sample.class);
+        search.setResults(samples);
+        writeSearch(search);
+    }
+
+    // Lists.
+
+    private void writeLists(int plates) throws IOException
+    {
+        writeList(Samples.class, "smp", "http://genologics.com/ri/sample", "sample", "samples",
+                  IntStream.range(0, sampleCount).mapToObj(this::sampleId));
+        writeList(Artifacts.class, "art", "http://genologics.com/ri/artifact", "artifact", "artifacts",
+                  IntStream.range(0, sampleCount).boxed()
+                      .flatMap(s -> Stream.of(rootArtifactId(s), derivedArtifactId(s))));
+        writeList(Containers.class, "con", "http://genologics.com/ri/container", "container", "containers",
+                  IntStream.range(0, plates).mapToObj(SyntheticCorpusGenerator::containerId));
+        writeList(Processes.class, "prc", "http://genologics.com/ri/process", "process", "processes",
+                  IntStream.range(0, plates).mapToObj(SyntheticCorpusGenerator::processId));
+    }
+
+    private void writeList(Class<?> batchClass, String prefix, String namespace, String element, String section,
+                           Stream<String> ids)
+        throws IOException
+    {
+        File file = new File(directory, RecordingFileNames.listFileName(batchClass));
+        writer.write(file, stream ->
+        {
+            Writer out = new OutputStreamWriter(stream, UTF_8);
+            out.write(XML_HEADER);
+            out.write("<" + prefix + ":" + section + " xmlns:" + prefix + "=\"" + namespace + "\">\n");
+            for (String id : (Iterable<String>)ids::iterator)
+            {
+                out.write("    " + link(element, section, id) + "\n");
+            }
+            out.write("</" + prefix + ":" + section + ">\n");
+            out.flush();
+        });
+        files.increment();
+    }
+
+    // Writing.
+
+    private void write(String name, CharSequence xml)
+    {
+        byte[] content = xml.toString().getBytes(UTF_8);
+        writeFile(name, stream -> stream.write(content));
+    }
+
+    private void writeSearch(Search<?> search)
+    {
+        writeFile(search.getSearchFileName(), stream ->
+        {
+            Writer out = new OutputStreamWriter(stream, US_ASCII);
+            xstream.toXML(search, out);
+            out.write(EOL);
+            out.flush();
+        });
+    }
+
+    private void writeFile(String name, RecordingFileWriter.Content content)
+    {
+        try
+        {
+            File file = layout.fileFor(directory, name);
+            if (layout == RecordingLayout.SHARDED)
+            {
+                file.getParentFile().mkdirs();
+            }
+            writer.write(file, content);
+            files.increment();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: SyntheticCorpusGenerator <directory> [samples] [project size] [sharded|flat] [threads]");
+            System.exit(1);
+        }
+
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(new File(args[0]));
+        if (args.length > 1)
+        {
+            generator.setSampleCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2)
+        {
+            generator.setProjectSize(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3)
+        {
+            generator.setLayout(RecordingLayout.valueOf(args[3].toUpperCase()));
+        }
+        if (args.length > 4)
+        {
+            generator.setThreads(Integer.parseInt(args[4]));
+        }
+
+        long start = System.nanoTime();
+        long written = generator.generate();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Wrote %d files in %.1fs (%.0f files per second).%n", written, seconds, written / seconds);
+    }
+}
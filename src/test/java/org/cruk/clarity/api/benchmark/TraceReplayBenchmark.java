@@ -0,0 +1,480 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.benchmark;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.cruk.clarity.api.ClarityAPI;
+import org.cruk.clarity.api.playback.ClarityAPIPlaybackAspect;
+import org.cruk.clarity.api.record.AccessTrace;
+import org.cruk.clarity.api.record.AccessTrace.Operation;
+import org.cruk.clarity.api.record.RecordingFileNames;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.unittests.ClarityClientRecorderPlaybackTestConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.Locatable;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Replays an access trace against the playback aspect from one thread up to
+ * many, to show where playback stops scaling with cores. This is not a unit
+ * test: run its {@code main} method from the IDE or with
+ * {@code mvn exec:java -Dexec.classpathScope=test}.
+ *
+ * <p>
+ * The trace is one written by the recording aspect, or a synthetic one drawn at
+ * random from the recordings in the message directory. Gets are replayed with
+ * {@code load}, searches with {@code find} followed by a {@code loadAll} of the
+ * results (as code using {@code find} usually does), and lists with {@code listAll}.
+ * Each worker replays the whole trace, starting at a different point, so every
+ * step does the same work per thread.
+ * </p>
+ *
+ * <p>
+ * For each thread count, the throughput, the latency percentiles and the time
+ * the platform threads spent blocked on monitors or waiting are printed. If the
+ * JVM has virtual threads, each step is repeated with a virtual thread per worker.
+ * The trace is replayed once on one thread before measuring, so the results are
+ * for compiled code and, unless {@code --cold} is given, a warm cache.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code TraceReplayBenchmark <directory> <trace file>|--synthetic <entries> [max threads] [--cold]}
+ * </p>
+ */
+public class TraceReplayBenchmark
+{
+    private static final long SEED = 20240101L;
+
+    private final ClarityAPI api;
+
+    private final ClarityAPIPlaybackAspect aspect;
+
+    private final Jaxb2Marshaller marshaller;
+
+    private final XStream xstream;
+
+    private final File directory;
+
+    private final RecordingLayout layout;
+
+    private boolean cold;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    public TraceReplayBenchmark(AnnotationConfigApplicationContext context, File directory) throws Exception
+    {
+        api = context.getBean(ClarityAPI.class);
+        aspect = context.getBean(ClarityAPIPlaybackAspect.class);
+        marshaller = context.getBean(Jaxb2Marshaller.class);
+        xstream = context.getBean(XStream.class);
+
+        // To prove it's from the recording.
+        api.setServer(new URL("http://localhost"));
+
+        this.directory = directory;
+        aspect.setMessageDirectory(directory);
+        layout = RecordingLayout.detect(directory);
+
+        if (threadBean.isThreadContentionMonitoringSupported())
+        {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+    }
+
+    public void setCold(boolean cold)
+    {
+        this.cold = cold;
+    }
+
+    // Building the calls.
+
+    /**
+     * Turn trace entries into the API calls that replay them.
+     */
+    public List<Runnable> compile(List<AccessTrace.Entry> trace) throws Exception
+    {
+        Map<String, Search<?>> searches = new HashMap<>();
+        List<Runnable> calls = new ArrayList<>(trace.size());
+
+        for (AccessTrace.Entry entry : trace)
+        {
+            switch (entry.getOperation())
+            {
+                case GET:
+                    Class<? extends Locatable> type = entityClass(entry.getEntityClassName());
+                    String id = RecordingFileNames.idFromFileName(entry.getKey());
+                    calls.add(() -> api.load(id, type));
+                    break;
+
+                case FIND:
+                    Search<?> search = searches.get(entry.getKey());
+                    if (search == null)
+                    {
+                        search = readSearch(entry.getKey());
+                        searches.put(entry.getKey(), search);
+                    }
+                    calls.add(findCall(search));
+                    break;
+
+                case LIST:
+                    Class<? extends Locatable> listType = entityClass(entry.getEntityClassName());
+                    calls.add(() -> api.listAll(listType));
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return calls;
+    }
+
+    private <E extends Locatable> Runnable findCall(Search<E> search)
+    {
+        Map<String, Object> terms = search.getSearchTerms().getSearchTerms();
+        Class<E> type = search.getSearchTerms().getEntityClass();
+        return () ->
+        {
+            List<LimsLink<E>> results = api.find(terms, type);
+            if (!results.isEmpty())
+            {
+                api.loadAll(results);
+            }
+        };
+    }
+
+    private Search<?> readSearch(String name) throws Exception
+    {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(layout.fileFor(directory, name).toPath()), US_ASCII))
+        {
+            return (Search<?>)xstream.fromXML(reader);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Locatable> entityClass(String name) throws ClassNotFoundException
+    {
+        return (Class<? extends Locatable>)Class.forName(name);
+    }
+
+    /**
+     * Make a trace by picking entity and search recordings in the message
+     * directory at random.
+     */
+    public List<AccessTrace.Entry> synthesise(int size) throws Exception
+    {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory.toPath(), RecordingLayout.SHARDED.getDepth()))
+        {
+            files = paths.filter(Files::isRegularFile)
+                         .filter(p -> RecordingFileNames.idFromFileName(p.getFileName().toString()) != null)
+                         .filter(p -> !RecordingFileNames.UPDATE_FILE_NAME.matcher(p.getFileName().toString()).matches())
+                         .collect(Collectors.toList());
+        }
+        if (files.isEmpty())
+        {
+            throw new IllegalArgumentException("No recordings in " + directory.getAbsolutePath());
+        }
+
+        // The class for each kind of file, found by reading one of them.
+        Map<String, String> classes = new HashMap<>();
+        List<AccessTrace.Entry> trace = new ArrayList<>(size);
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < size; i++)
+        {
+            Path file = files.get(random.nextInt(files.size()));
+            String name = file.getFileName().toString();
+            boolean search = name.startsWith("search_");
+            String kind = search ? name : name.substring(0, name.indexOf('-'));
+
+            String className = classes.get(kind);
+            if (className == null)
+            {
+                className = search ? readSearch(name).getSearchTerms().getEntityClass().getName()
+                                   : marshaller.unmarshal(new StreamSource(file.toFile())).getClass().getName();
+                classes.put(kind, className);
+            }
+
+            trace.add(new AccessTrace.Entry(search ? Operation.FIND : Operation.GET, name, className, null));
+        }
+
+        return trace;
+    }
+
+    // Running.
+
+    /**
+     * Replay the calls on a number of workers at once.
+     */
+    public Step run(List<Runnable> calls, int workers, ExecutorService executor) throws Exception
+    {
+        if (cold)
+        {
+            aspect.clearCache();
+        }
+
+        CountDownLatch ready = new CountDownLatch(workers);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<Worker>> futures = new ArrayList<>(workers);
+
+        for (int w = 0; w < workers; w++)
+        {
+            int offset = (int)((long)calls.size() * w / workers);
+            futures.add(executor.submit(() ->
+            {
+                Worker worker = new Worker(calls.size());
+                ready.countDown();
+                go.await();
+                worker.replay(calls, offset);
+                return worker;
+            }));
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+
+        Step step = new Step(workers);
+        for (Future<Worker> future : futures)
+        {
+            step.add(future.get());
+        }
+        step.elapsed = System.nanoTime() - start;
+        return step;
+    }
+
+    private final class Worker
+    {
+        final long[] latencies;
+
+        int errors;
+
+        long blockedCount = -1L;
+        long blockedMillis;
+        long waitedCount;
+        long waitedMillis;
+
+        Worker(int size)
+        {
+            latencies = new long[size];
+        }
+
+        void replay(List<Runnable> calls, int offset)
+        {
+            ThreadInfo before = threadBean.getThreadInfo(Thread.currentThread().getId());
+
+            for (int i = 0; i < latencies.length; i++)
+            {
+                Runnable call = calls.get((offset + i) % calls.size());
+                long start = System.nanoTime();
+                try
+                {
+                    call.run();
+                }
+                catch (RuntimeException e)
+                {
+                    ++errors;
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            // Virtual threads have no thread info.
+            ThreadInfo after = threadBean.getThreadInfo(Thread.currentThread().getId());
+            if (before != null && after != null)
+            {
+                blockedCount = after.getBlockedCount() - before.getBlockedCount();
+                blockedMillis = Math.max(0L, after.getBlockedTime() - before.getBlockedTime());
+                waitedCount = after.getWaitedCount() - before.getWaitedCount();
+                waitedMillis = Math.max(0L, after.getWaitedTime() - before.getWaitedTime());
+            }
+        }
+    }
+
+    private static final class Step
+    {
+        final int workers;
+
+        final List<long[]> latencies = new ArrayList<>();
+
+        long elapsed;
+        int errors;
+        boolean contention = true;
+        long blockedCount;
+        long blockedMillis;
+        long waitedCount;
+        long waitedMillis;
+
+        Step(int workers)
+        {
+            this.workers = workers;
+        }
+
+        void add(Worker worker)
+        {
+            latencies.add(worker.latencies);
+            errors += worker.errors;
+            if (worker.blockedCount < 0L)
+            {
+                contention = false;
+            }
+            blockedCount += worker.blockedCount;
+            blockedMillis += worker.blockedMillis;
+            waitedCount += worker.waitedCount;
+            waitedMillis += worker.waitedMillis;
+        }
+
+        String report(String kind)
+        {
+            long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            double throughput = all.length * 1e9 / elapsed;
+
+            String contended = contention
+                    ? String.format("%9d %9d %9d %9d", blockedCount, blockedMillis, waitedCount, waitedMillis)
+                    : String.format("%9s %9s %9s %9s", "-", "-", "-", "-");
+
+            return String.format("%7d %-8s %10d %12.0f %8.1f %8.1f %8.1f %9.1f %s %7d",
+                                 workers, kind, all.length, throughput,
+                                 percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+                                 all[all.length - 1] / 1e3, contended, errors);
+        }
+
+        private static double percentile(long[] sorted, double p)
+        {
+            return sorted[Math.min(sorted.length - 1, (int)(sorted.length * p))] / 1e3;
+        }
+    }
+
+    /**
+     * Make an executor giving each task a virtual thread, if this JVM has them.
+     * Called reflectively so this class still compiles for Java 11.
+     */
+    private static ExecutorService virtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    private static List<Integer> threadCounts(int max)
+    {
+        List<Integer> counts = new ArrayList<>();
+        for (int t = 1; t < max; t *= 2)
+        {
+            counts.add(t);
+        }
+        counts.add(max);
+        return counts;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: TraceReplayBenchmark <directory> <trace file>|--synthetic <entries> [max threads] [--cold]");
+            System.exit(1);
+        }
+
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean cold = arguments.remove("--cold");
+
+        File directory = new File(arguments.get(0));
+        boolean synthetic = "--synthetic".equals(arguments.get(1));
+        int next = synthetic ? 3 : 2;
+        int maxThreads = arguments.size() > next ? Integer.parseInt(arguments.get(next)) : Runtime.getRuntime().availableProcessors();
+
+        try (AnnotationConfigApplicationContext context =
+                new AnnotationConfigApplicationContext(ClarityClientRecorderPlaybackTestConfiguration.class))
+        {
+            TraceReplayBenchmark benchmark = new TraceReplayBenchmark(context, directory);
+            benchmark.setCold(cold);
+
+            List<AccessTrace.Entry> trace = synthetic ? benchmark.synthesise(Integer.parseInt(arguments.get(2)))
+                                                      : AccessTrace.read(new File(arguments.get(1)));
+            List<Runnable> calls = benchmark.compile(trace);
+            System.out.printf("Replaying %d calls from %s%n%n", calls.size(), synthetic ? "a synthetic trace" : arguments.get(1));
+
+            // Warm up.
+            ExecutorService single = Executors.newSingleThreadExecutor();
+            benchmark.run(calls, 1, single);
+            single.shutdown();
+
+            System.out.printf("%7s %-8s %10s %12s %8s %8s %8s %9s %9s %9s %9s %9s %7s%n",
+                              "threads", "kind", "calls", "calls/s", "p50 us", "p90 us", "p99 us", "max us",
+                              "blocked", "blockedms", "waited", "waitedms", "errors");
+
+            ExecutorService virtual = virtualThreadExecutor();
+            for (int threads : threadCounts(maxThreads))
+            {
+                ExecutorService platform = Executors.newFixedThreadPool(threads);
+                try
+                {
+                    System.out.println(benchmark.run(calls, threads, platform).report("platform"));
+                }
+                finally
+                {
+                    platform.shutdown();
+                }
+
+                if (virtual != null)
+                {
+                    System.out.println(benchmark.run(calls, threads, virtual).report("virtual"));
+                }
+            }
+            if (virtual != null)
+            {
+                virtual.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.hybrid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.cruk.clarity.api.ClarityAPI;
+import org.cruk.clarity.api.record.ListRanges;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.search.SearchTerms;
+import org.cruk.clarity.api.unittests.ClarityClientRecorderHybridTestConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.instrument.Instrument;
+import com.genologics.ri.lab.Lab;
+import com.genologics.ri.reagenttype.ReagentType;
+import com.genologics.ri.sample.Sample;
+import com.genologics.ri.sample.SampleLink;
+
+@SpringJUnitConfig(classes = ClarityClientRecorderHybridTestConfiguration.class)
+public class ClarityAPIHybridAspectTest
+{
+    @Autowired
+    private ClarityAPI api;
+
+    @Autowired
+    private ClarityAPIHybridAspect aspect;
+
+    @Autowired
+    private Jaxb2Marshaller marshaller;
+
+    private File messageDirectory = new File("target/hybridmessages");
+
+    public ClarityAPIHybridAspectTest()
+    {
+    }
+
+    @PostConstruct
+    public void completeWiring() throws MalformedURLException
+    {
+        // Anything not played back fails to reach this server.
+        api.setServer(new URL("http://localhost"));
+    }
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        FileUtils.deleteQuietly(messageDirectory);
+        FileUtils.copyDirectory(new File("src/test/messages"), messageDirectory);
+
+        aspect.setMessageDirectory(messageDirectory);
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        aspect.setDefaultTimeToLive(0L);
+        aspect.setTimeToLive(null);
+        aspect.getPlaybackAspect().clearCache();
+        FileUtils.deleteQuietly(messageDirectory);
+    }
+
+    @Test
+    public void testPlaybackWhenRecorded()
+    {
+        long fetched = aspect.getFetchedCount();
+
+        Sample s = api.load("GAO9862A146", Sample.class);
+        assertEquals("34_a", s.getName(), "Sample name wrong");
+
+        assertEquals(fetched, aspect.getFetchedCount(), "Recorded sample went to the server");
+    }
+
+    @Test
+    public void testFetchWhenMissing()
+    {
+        long fetched = aspect.getFetchedCount();
+
+        assertThrows(ResourceAccessException.class, () -> api.load("GAO9862A999", Sample.class),
+                     "Missing sample did not go to the server");
+
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Fetch not counted");
+    }
+
+    @Test
+    public void testFetchWhenExpired()
+    {
+        File sampleFile = new File(messageDirectory, "Sample-GAO9862A146.xml");
+        File labFile = new File(messageDirectory, "Lab-18.xml");
+        long anHourAgo = System.currentTimeMillis() - 3600000L;
+        sampleFile.setLastModified(anHourAgo);
+        labFile.setLastModified(anHourAgo);
+
+        aspect.setTimeToLive(Collections.singletonMap(Sample.class, 60000L));
+
+        long fetched = aspect.getFetchedCount();
+
+        assertThrows(ResourceAccessException.class, () -> api.load("GAO9862A146", Sample.class),
+                     "Expired sample did not go to the server");
+
+        Lab l = api.load("18", Lab.class);
+        assertEquals("CRUKCI", l.getName(), "Lab name wrong");
+
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Only the sample should have been fetched");
+    }
+
+    @Test
+    public void testPerTypeTimeToLive()
+    {
+        long anHourAgo = System.currentTimeMillis() - 3600000L;
+        new File(messageDirectory, "Sample-GAO9862A146.xml").setLastModified(anHourAgo);
+        new File(messageDirectory, "Lab-18.xml").setLastModified(anHourAgo);
+
+        // Everything expires after a minute, except labs, which never do.
+        aspect.setDefaultTimeToLive(60000L);
+        aspect.setTimeToLive(Collections.singletonMap(Lab.class, 0L));
+
+        long fetched = aspect.getFetchedCount();
+
+        Lab l = api.load("18", Lab.class);
+        assertEquals("CRUKCI", l.getName(), "Lab name wrong");
+        assertEquals(fetched, aspect.getFetchedCount(), "Lab that never expires went to the server");
+
+        assertThrows(ResourceAccessException.class, () -> api.load("GAO9862A146", Sample.class),
+                     "Sample past the default time to live did not go to the server");
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Only the sample should have been fetched");
+    }
+
+    @Test
+    public void testEntityRecordedUnderUriId() throws Throwable
+    {
+        File instrumentFile = new File(messageDirectory, "Instrument-5.xml");
+        Instrument instrument = (Instrument)marshaller.unmarshal(new StreamSource(instrumentFile));
+        FileUtils.forceDelete(instrumentFile);
+
+        // The instrument's LIMS id is 55-5, but it is asked for by the 5 in its URI.
+        ProceedingJoinPoint pjp = joinPoint("getForObject", instrument,
+                                            new URI("http://localhost/api/v2/instruments/5"), Instrument.class);
+        aspect.doGet(pjp);
+
+        assertTrue(instrumentFile.exists(), "Instrument not recorded under the id in its URI");
+
+        long fetched = aspect.getFetchedCount();
+
+        Instrument i = api.load("5", Instrument.class);
+        assertEquals("Luke-Leia [HWI-ST230]", i.getName(), "Instrument name wrong");
+        assertEquals(fetched, aspect.getFetchedCount(), "Recorded instrument went to the server");
+    }
+
+    @Test
+    public void testFindPlaybackWhenRecorded()
+    {
+        long fetched = aspect.getFetchedCount();
+
+        List<LimsLink<Sample>> samples = api.find(sampleSearchTerms(), Sample.class);
+        assertEquals(8, samples.size(), "Wrong number of samples returned from search");
+
+        assertEquals(fetched, aspect.getFetchedCount(), "Recorded search went to the server");
+    }
+
+    @Test
+    public void testFindKeepsExpiredSearchWhenFetchFails()
+    {
+        File searchFile = sampleSearchFile();
+        long length = searchFile.length();
+        searchFile.setLastModified(System.currentTimeMillis() - 3600000L);
+
+        aspect.setTimeToLive(Collections.singletonMap(Sample.class, 60000L));
+
+        assertThrows(ResourceAccessException.class, () -> api.find(sampleSearchTerms(), Sample.class),
+                     "Expired search did not go to the server");
+
+        assertTrue(searchFile.exists(), "Expired search removed when the server could not be reached");
+        assertEquals(length, searchFile.length(), "Expired search changed when the server could not be reached");
+    }
+
+    @Test
+    public void testFindReplacesExpiredSearch() throws Throwable
+    {
+        File searchFile = sampleSearchFile();
+        searchFile.setLastModified(System.currentTimeMillis() - 3600000L);
+
+        aspect.setTimeToLive(Collections.singletonMap(Sample.class, 60000L));
+
+        List<LimsLink<Sample>> found = new ArrayList<>();
+        found.add(new SampleLink(new URI("http://localhost/api/v2/samples/GAO9862A146")));
+
+        long fetched = aspect.getFetchedCount();
+
+        aspect.doFind(joinPoint("find", found, sampleSearchTerms(), Sample.class));
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Expired search not fetched");
+
+        List<LimsLink<Sample>> samples = api.find(sampleSearchTerms(), Sample.class);
+        assertEquals(1, samples.size(), "Expired search merged with rather than replaced");
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Refreshed search went to the server");
+    }
+
+    @Test
+    public void testListPageAddedToRecordedPages() throws Throwable
+    {
+        List<LimsLink<ReagentType>> all = api.listAll(ReagentType.class);
+        assertEquals(120, all.size(), "Wrong number of reagent types recorded");
+
+        File listFile = new File(messageDirectory, "ReagentTypes.xml");
+        FileUtils.forceDelete(listFile);
+        aspect.getPlaybackAspect().clearCache();
+
+        aspect.doList(joinPoint("listSome", all.subList(40, 60), ReagentType.class, 40, 20));
+        assertEquals("links\t20 40\t20", rangesOf(listFile), "Second page not recorded");
+
+        // As if in a new session, so what is recorded has to be read back from the file.
+        aspect.setMessageDirectory(messageDirectory);
+
+        long fetched = aspect.getFetchedCount();
+
+        aspect.doList(joinPoint("listSome", all.subList(0, 20), ReagentType.class, 0, 20));
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Unrecorded page not fetched");
+        assertEquals("links\t40 0\t20 40\t20", rangesOf(listFile), "Pages not merged");
+
+        List<LimsLink<ReagentType>> page = api.listSome(ReagentType.class, 40, 20);
+        assertEquals(all.subList(40, 60).get(0).getUri(), page.get(0).getUri(), "Earlier page lost");
+        assertEquals(20, page.size(), "Earlier page lost");
+
+        page = api.listSome(ReagentType.class, 0, 20);
+        assertEquals(all.get(0).getUri(), page.get(0).getUri(), "Fetched page not played back");
+
+        assertEquals(fetched + 1, aspect.getFetchedCount(), "Recorded pages went to the server");
+    }
+
+    private Map<String, Object> sampleSearchTerms()
+    {
+        Map<String, Object> terms = new HashMap<>();
+        terms.put("projectlimsid", new HashSet<String>(Arrays.asList("COH605", "SER1015")));
+        return terms;
+    }
+
+    private File sampleSearchFile()
+    {
+        SearchTerms<Sample> terms = new SearchTerms<>(sampleSearchTerms(), Sample.class);
+        return new File(messageDirectory, Search.getSearchFileName(terms));
+    }
+
+    private static String rangesOf(File listFile) throws IOException
+    {
+        File rangesFile = ListRanges.rangesFileFor(listFile);
+        assertTrue(rangesFile.exists(), "No ranges file for " + listFile.getName());
+
+        List<String> lines = new ArrayList<>();
+        for (String line : FileUtils.readLines(rangesFile, "US-ASCII"))
+        {
+            if (!line.startsWith("#"))
+            {
+                lines.add(line);
+            }
+        }
+        return String.join(" ", lines);
+    }
+
+    private static ProceedingJoinPoint joinPoint(String method, Object reply, Object... args) throws Throwable
+    {
+        Signature signature = mock(Signature.class);
+        when(signature.getName()).thenReturn(method);
+
+        ProceedingJoinPoint pjp = mock(ProceedingJoinPoint.class);
+        when(pjp.getSignature()).thenReturn(signature);
+        when(pjp.getArgs()).thenReturn(args);
+        when(pjp.proceed()).thenReturn(reply);
+        return pjp;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+
+import org.cruk.clarity.api.metrics.AspectMetrics.Operation;
+import org.cruk.clarity.api.metrics.AspectMetrics.Outcome;
+import org.junit.jupiter.api.Test;
+
+import com.genologics.ri.sample.Sample;
+
+public class AspectMetricsTest
+{
+    @Test
+    public void testCounts()
+    {
+        AspectMetrics metrics = new AspectMetrics(this);
+
+        metrics.record(Operation.GET, Outcome.HIT, 1_000L);
+        metrics.record(Operation.GET, Outcome.HIT, 3_000L);
+        metrics.record(Operation.GET, Outcome.LOAD, 200_000L);
+        metrics.record(Operation.GET, Outcome.MISS, 50_000L);
+        metrics.record(Operation.FIND, Outcome.ERROR, 10_000L);
+
+        OperationStatistics get = metrics.getStatistics(Operation.GET);
+        assertEquals(4L, get.getCalls(), "Wrong number of gets");
+        assertEquals(2L, get.getHits(), "Wrong number of hits");
+        assertEquals(1L, get.getLoads(), "Wrong number of loads");
+        assertEquals(1L, get.getMisses(), "Wrong number of misses");
+        assertEquals(0L, get.getErrors(), "Wrong number of errors");
+        assertEquals(63L, get.getMeanMicros(), "Wrong mean latency");
+        assertEquals(200L, get.getMaxMicros(), "Wrong maximum latency");
+        assertTrue(get.getMedianMicros() >= 3L && get.getMedianMicros() <= 6L, "Median not within a factor of two");
+
+        List<OperationStatistics> all = metrics.getOperations();
+        assertEquals(2, all.size(), "Operations never called reported");
+
+        metrics.unmarshalled(Sample.class, 5_000L, 1234L);
+        metrics.unmarshalled(Sample.class, 7_000L, 766L);
+        assertEquals(Long.valueOf(2L), metrics.getUnmarshalCounts().get("Sample"), "Wrong unmarshal count");
+        assertEquals(Long.valueOf(12L), metrics.getUnmarshalMicros().get("Sample"), "Wrong unmarshal time");
+        assertEquals(2000L, metrics.getBytesRead(), "Wrong bytes read");
+
+        metrics.addQueue("test", () -> 7L);
+        assertEquals(Long.valueOf(7L), metrics.getQueueDepths().get("test"), "Wrong queue depth");
+
+        metrics.reset();
+        assertEquals(0L, metrics.getStatistics(Operation.GET).getCalls(), "Counts not reset");
+        assertEquals(0L, metrics.getBytesRead(), "Bytes read not reset");
+        assertTrue(metrics.getUnmarshalCounts().isEmpty(), "Unmarshal counts not reset");
+    }
+
+    @Test
+    public void testJmx() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        AspectMetrics metrics = new AspectMetrics(this);
+        metrics.register();
+        try
+        {
+            assertTrue(server.isRegistered(metrics.getObjectName()), "Metrics not registered");
+
+            metrics.record(Operation.LIST, Outcome.LOAD, 20_000L);
+            metrics.marshalled(Sample.class, 1_000L, 512L);
+
+            CompositeData[] operations = (CompositeData[])server.getAttribute(metrics.getObjectName(), "Operations");
+            assertEquals(1, operations.length, "Wrong number of operations through JMX");
+            assertEquals("LIST", operations[0].get("operation"), "Wrong operation through JMX");
+            assertEquals(1L, operations[0].get("loads"), "Wrong load count through JMX");
+
+            assertEquals(512L, server.getAttribute(metrics.getObjectName(), "BytesWritten"), "Wrong bytes written through JMX");
+
+            server.invoke(metrics.getObjectName(), "reset", new Object[0], new String[0]);
+            assertEquals(0L, metrics.getBytesWritten(), "Not reset through JMX");
+        }
+        finally
+        {
+            metrics.unregister();
+        }
+
+        assertFalse(server.isRegistered(metrics.getObjectName()), "Metrics still registered");
+    }
+}
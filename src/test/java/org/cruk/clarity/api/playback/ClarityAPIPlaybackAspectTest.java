@@ -19,30 +19,47 @@
 package org.cruk.clarity.api.playback;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.http.conn.HttpHostConnectException;
+import org.aspectj.lang.ProceedingJoinPoint;
 import org.cruk.clarity.api.ClarityAPI;
 import org.cruk.clarity.api.ClarityException;
+import org.cruk.clarity.api.metrics.AspectMetrics.Operation;
+import org.cruk.clarity.api.metrics.AspectMetrics.Outcome;
+import org.cruk.clarity.api.record.ClarityAPIRecordingAspect;
+import org.cruk.clarity.api.record.ListRanges;
+import org.cruk.clarity.api.record.LoadAllManifest;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.tools.CorpusPruner;
+import org.cruk.clarity.api.tools.CorpusVerifier;
+import org.cruk.clarity.api.tools.Resharder;
 import org.cruk.clarity.api.unittests.ClarityClientRecorderPlaybackTestConfiguration;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -52,6 +69,10 @@ import org.springframework.oxm.jaxb.Jaxb2Marshaller;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
 import org.springframework.web.client.ResourceAccessException;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import com.genologics.ri.LimsLink;
 import com.genologics.ri.Locatable;
 import com.genologics.ri.artifact.Artifact;
@@ -116,6 +137,7 @@ public class ClarityAPIPlaybackAspectTest
     public void cleanup()
     {
         FileUtils.deleteQuietly(updateDirectory);
+        aspect.clearCache();
     }
 
     /**
@@ -430,12 +452,682 @@ public class ClarityAPIPlaybackAspectTest
             assertEquals(23, containerTypes.size(), "Wrong number of container types returned.");
 
             List<LimsLink<ReagentType>> reagentTypes = api.listSome(ReagentType.class, 20, 50);
-            assertEquals(120, reagentTypes.size(), "Wrong number of reagent types returned.");
+            assertEquals(50, reagentTypes.size(), "Wrong number of reagent types returned.");
+            assertEquals("https://limsdev.cruk.cam.ac.uk/api/v2/reagenttypes/21", reagentTypes.get(0).getUri().toString(),
+                         "Wrong first reagent type returned.");
+
+            reagentTypes = api.listSome(ReagentType.class, 100, 50);
+            assertEquals(20, reagentTypes.size(), "Wrong number of reagent types returned from the end of the list.");
+
+            // From the whole list held in memory.
+            assertEquals(120, api.listAll(ReagentType.class).size(), "Wrong number of reagent types returned.");
+            reagentTypes = api.listSome(ReagentType.class, 69, 10);
+            assertEquals(10, reagentTypes.size(), "Wrong number of reagent types returned from memory.");
+            assertEquals("https://limsdev.cruk.cam.ac.uk/api/v2/reagenttypes/70", reagentTypes.get(0).getUri().toString(),
+                         "Wrong first reagent type returned from memory.");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+    }
+
+    @Test
+    public void testListSomeReadsFileOnce()
+    {
+        long maxBytes = aspect.getPrefetchMaxBytes();
+        try
+        {
+            aspect.setAccessLogEnabled(true);
+
+            api.listSome(ReagentType.class, 0, 20);
+            List<LimsLink<ReagentType>> reagentTypes = api.listSome(ReagentType.class, 20, 20);
+            assertEquals(20, reagentTypes.size(), "Wrong number of reagent types returned.");
+            assertEquals("https://limsdev.cruk.cam.ac.uk/api/v2/reagenttypes/21", reagentTypes.get(0).getUri().toString(),
+                         "Wrong first reagent type returned.");
+
+            AccessLog log = aspect.getAccessLog();
+            assertEquals(1L, log.getCount("ReagentTypes.xml", Outcome.LOAD), "List file read more than once");
+            assertEquals(1L, log.getCount("ReagentTypes.xml", Outcome.HIT), "Second page not from memory");
+
+            // With no memory to keep the list in, each page is streamed from the file.
+            aspect.clearCache();
+            aspect.setPrefetchMaxBytes(0L);
+
+            api.listSome(ReagentType.class, 0, 20);
+            reagentTypes = api.listSome(ReagentType.class, 20, 20);
+            assertEquals(20, reagentTypes.size(), "Wrong number of reagent types streamed.");
+            assertEquals("https://limsdev.cruk.cam.ac.uk/api/v2/reagenttypes/21", reagentTypes.get(0).getUri().toString(),
+                         "Wrong first reagent type streamed.");
+
+            assertEquals(3L, log.getCount("ReagentTypes.xml", Outcome.LOAD), "Pages not streamed");
+            assertEquals(1L, log.getCount("ReagentTypes.xml", Outcome.HIT), "Page from memory");
         }
         catch (ResourceAccessException e)
         {
             realServerAccess(e);
         }
+        finally
+        {
+            aspect.setPrefetchMaxBytes(maxBytes);
+            aspect.setAccessLogEnabled(false);
+        }
+    }
+
+    @Test
+    public void testListRangesMismatchIsMiss() throws IOException
+    {
+        File rangesMessages = new File("target/rangesmessages");
+        try
+        {
+            FileUtils.deleteQuietly(rangesMessages);
+            FileUtils.copyDirectory(messageDirectory, rangesMessages);
+            aspect.setMessageDirectory(rangesMessages);
+
+            // Ranges for a different list than the one in the file, as when caught between the two being written.
+            File listFile = new File(rangesMessages, "ReagentTypes.xml");
+            FileUtils.writeStringToFile(ListRanges.rangesFileFor(listFile),
+                                        ListRanges.HEADER + "\nlinks\t20\n0\t20\n", "US-ASCII");
+
+            try
+            {
+                api.listSome(ReagentType.class, 0, 20);
+                fail("List not matching its ranges played back.");
+            }
+            catch (NoRecordingException e)
+            {
+                // Expected.
+            }
+
+            // Once the list is whole again it is played back.
+            FileUtils.forceDelete(ListRanges.rangesFileFor(listFile));
+            aspect.clearCache();
+            assertEquals(20, api.listSome(ReagentType.class, 0, 20).size(), "Wrong number of reagent types returned.");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(rangesMessages);
+        }
+    }
+
+    @Test
+    public void testWarmUp()
+    {
+        try
+        {
+            File[] recordings = messageDirectory.listFiles((dir, name) -> name.endsWith(".xml"));
+
+            WarmUpReport report = aspect.warmUp();
+            assertEquals(recordings.length, report.getFilesLoaded(), "Wrong number of recordings warmed up.");
+            assertEquals(0, report.getFailures(), "Some recordings failed to load.");
+
+            Sample s = api.load("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong");
+
+            // Changing the returned object must not change the one held.
+            s.setName("Changed");
+            s = api.load("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong on second load");
+
+            aspect.clearCache();
+
+            report = aspect.warmUp(List.<Class<?>>of(Sample.class));
+            assertEquals(2, report.getFilesLoaded(), "Wrong number of samples warmed up.");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException
+    {
+        File snapshotMessages = new File("target/snapshotmessages");
+        File image = new File("target/playback-snapshot.bin");
+        try
+        {
+            FileUtils.deleteQuietly(snapshotMessages);
+            FileUtils.copyDirectory(messageDirectory, snapshotMessages);
+            aspect.setMessageDirectory(snapshotMessages);
+
+            aspect.warmUp();
+            int written = aspect.writeSnapshot(image);
+            assertTrue(written > 0, "Nothing written to the snapshot.");
+
+            aspect.clearCache();
+            assertEquals(written, aspect.restoreSnapshot(image), "Wrong number of recordings restored.");
+
+            // Change a recording: its entry must not be restored.
+            File search = new File(snapshotMessages, "search_b373778d.xml");
+            assertTrue(search.setLastModified(search.lastModified() + 10000L), "Could not touch search file.");
+
+            aspect.clearCache();
+            assertEquals(written - 1, aspect.restoreSnapshot(image), "Stale recording restored.");
+
+            Map<String, Object> terms = new HashMap<String, Object>();
+            terms.put("inputartifactlimsid", "2-1108999");
+            List<LimsLink<ClarityProcess>> processes = api.find(terms, ClarityProcess.class);
+            assertEquals(4, processes.size(), "Wrong number of processes returned from search.");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(snapshotMessages);
+            FileUtils.deleteQuietly(image);
+        }
+    }
+
+    @Test
+    public void testRememberMisses() throws IOException
+    {
+        File missMessages = new File("target/missmessages");
+        try
+        {
+            FileUtils.deleteQuietly(missMessages);
+            FileUtils.copyDirectory(messageDirectory, missMessages);
+            aspect.setMessageDirectory(missMessages);
+            aspect.setRememberMisses(true);
+            aspect.setStacklessMisses(true);
+
+            try
+            {
+                api.load("GAO9862A999", Sample.class);
+                fail("Got a sample that has not been recorded.");
+            }
+            catch (ClarityException e)
+            {
+                e.throwUnlessNotFound();
+            }
+
+            FileUtils.copyFile(new File(missMessages, "Sample-GAO9862A146.xml"), new File(missMessages, "Sample-GAO9862A999.xml"));
+
+            try
+            {
+                api.load("GAO9862A999", Sample.class);
+                fail("Miss was not remembered.");
+            }
+            catch (ClarityException e)
+            {
+                e.throwUnlessNotFound();
+            }
+
+            aspect.forgetMiss("Sample-GAO9862A999.xml");
+
+            Sample s = api.load("GAO9862A999", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong after forgetting the miss");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setRememberMisses(false);
+            aspect.setStacklessMisses(false);
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(missMessages);
+        }
+    }
+
+    @Test
+    public void testLoadAllManifest() throws Exception
+    {
+        File manifestMessages = new File("target/manifestmessages");
+        try
+        {
+            FileUtils.deleteQuietly(manifestMessages);
+            FileUtils.copyDirectory(messageDirectory, manifestMessages);
+
+            List<LimsLink<Sample>> slinks = new ArrayList<>();
+            slinks.add(new SampleLink(new URI("https://limsdev.cruk.cam.ac.uk/api/v2/samples/GAO9862A146")));
+            slinks.add(new SampleLink(new URI("https://limsdev.cruk.cam.ac.uk/api/v2/samples/LEU10792A392")));
+
+            List<String> keys = LoadAllManifest.keysFor(slinks);
+            assertEquals(Arrays.asList("Sample-GAO9862A146.xml", "Sample-LEU10792A392.xml"), keys, "Wrong manifest keys");
+
+            List<Object> samples = new ArrayList<>();
+            for (String key : keys)
+            {
+                File sampleFile = new File(manifestMessages, key);
+                samples.add(marshaller.unmarshal(new StreamSource(sampleFile)));
+                sampleFile.delete();
+            }
+
+            File manifestFile = new File(manifestMessages, LoadAllManifest.fileName(keys));
+            try (OutputStream out = new FileOutputStream(manifestFile))
+            {
+                LoadAllManifest.write(out, keys, samples, marshaller);
+            }
+
+            aspect.setMessageDirectory(manifestMessages);
+
+            // The entity files are gone, so these can only come from the manifest.
+            List<Sample> loaded = api.loadAll(slinks);
+            assertEquals(2, loaded.size(), "Wrong number of samples from manifest");
+            assertEquals("34_a", loaded.get(0).getName(), "First sample name wrong");
+            assertEquals("LEU10792A392", loaded.get(1).getLimsid(), "Second sample id wrong");
+
+            aspect.setUseLoadAllManifests(false);
+            try
+            {
+                api.loadAll(slinks);
+                fail("Loaded samples without using the manifest.");
+            }
+            catch (NoRecordingException e)
+            {
+                // Correct.
+            }
+            aspect.setUseLoadAllManifests(true);
+
+            // Different links must not be answered from the manifest.
+            slinks.remove(1);
+            try
+            {
+                api.loadAll(slinks);
+                fail("Manifest used for different links.");
+            }
+            catch (NoRecordingException e)
+            {
+                // Correct.
+            }
+
+            CorpusVerifier.Report report = new CorpusVerifier(manifestMessages, marshaller).verify();
+            assertFalse(report.getFailures().stream().anyMatch(f -> f.getFile().equals(manifestFile.getName())),
+                        "Manifest failed verification");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setUseLoadAllManifests(true);
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(manifestMessages);
+        }
+    }
+
+    @Test
+    public void testLoadAllManifestRecorded() throws Throwable
+    {
+        File manifestMessages = new File("target/manifestrecorded");
+        ClarityAPIRecordingAspect recorder = null;
+        try
+        {
+            FileUtils.deleteQuietly(manifestMessages);
+            FileUtils.forceMkdir(manifestMessages);
+
+            List<LimsLink<Sample>> slinks = new ArrayList<>();
+            slinks.add(new SampleLink(new URI("https://limsdev.cruk.cam.ac.uk/api/v2/samples/GAO9862A146")));
+            slinks.add(new SampleLink(new URI("https://limsdev.cruk.cam.ac.uk/api/v2/samples/LEU10792A392")));
+
+            List<String> keys = LoadAllManifest.keysFor(slinks);
+            List<Object> samples = new ArrayList<>();
+            for (String key : keys)
+            {
+                samples.add(marshaller.unmarshal(new StreamSource(new File(messageDirectory, key))));
+            }
+
+            recorder = new ClarityAPIRecordingAspect(manifestMessages);
+            recorder.setJaxbMarshaller(marshaller);
+            recorder.setRecordLoadAllManifests(true);
+
+            // Stands in for the server's answer to the loadAll call.
+            ProceedingJoinPoint pjp = mock(ProceedingJoinPoint.class);
+            when(pjp.getArgs()).thenReturn(new Object[] { slinks });
+            when(pjp.proceed()).thenReturn(samples);
+            recorder.doLoadAll(pjp);
+
+            String manifestName = LoadAllManifest.fileName(keys);
+            File manifestFile = new File(manifestMessages, manifestName);
+            assertTrue(manifestFile.exists(), "Manifest not recorded");
+            for (String key : keys)
+            {
+                assertTrue(new File(manifestMessages, key).exists(), key + " not recorded with the manifest");
+            }
+
+            // Older than anything recorded from here on, whatever the file time resolution.
+            manifestFile.setLastModified(System.currentTimeMillis() - 3600000L);
+
+            aspect.setMessageDirectory(manifestMessages);
+            aspect.setAccessLogEnabled(true);
+            aspect.setMetricsEnabled(true);
+
+            long gets = aspect.getMetrics().getStatistics(Operation.GET).getLoads();
+
+            List<Sample> loaded = api.loadAll(slinks);
+            assertEquals(2, loaded.size(), "Wrong number of samples from manifest");
+            assertEquals("34_a", loaded.get(0).getName(), "First sample name wrong");
+
+            assertEquals(1L, aspect.getAccessLog().getCount(manifestName, Outcome.LOAD), "Manifest not used");
+            for (String key : keys)
+            {
+                assertEquals(1L, aspect.getAccessLog().getCount(key, Outcome.LOAD),
+                             key + " read from manifest not logged");
+            }
+            assertEquals(gets + 2, aspect.getMetrics().getStatistics(Operation.GET).getLoads(),
+                         "Entities read from manifest not counted");
+
+            // Record the first sample again, changed. The manifest's copy of it is now out of date.
+            Sample changed = (Sample)samples.get(0);
+            changed.setName("34_b");
+            recorder.recordEntity(changed);
+
+            loaded = api.loadAll(slinks);
+            assertEquals("34_b", loaded.get(0).getName(), "Sample from out of date manifest");
+            assertEquals(1L, aspect.getAccessLog().getCount(manifestName, Outcome.LOAD), "Out of date manifest used");
+        }
+        finally
+        {
+            if (recorder != null)
+            {
+                recorder.destroy();
+            }
+            aspect.setAccessLogEnabled(false);
+            aspect.setMetricsEnabled(false);
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(manifestMessages);
+        }
+    }
+
+    @Test
+    public void testShardedLayout() throws IOException
+    {
+        File shardedMessages = new File("target/shardedmessages");
+        try
+        {
+            FileUtils.deleteQuietly(shardedMessages);
+            FileUtils.copyDirectory(messageDirectory, shardedMessages);
+
+            Resharder resharder = new Resharder(shardedMessages, RecordingLayout.SHARDED);
+            resharder.setThreads(4);
+            assertTrue(resharder.reshard() > 0, "Nothing resharded");
+
+            File sampleFile = RecordingLayout.SHARDED.fileFor(shardedMessages, "Sample-GAO9862A146.xml");
+            assertTrue(sampleFile.exists(), "Sample not in its shard");
+            assertEquals(new File(shardedMessages, "Sample"), sampleFile.getParentFile().getParentFile(),
+                         "Sample not in its type directory");
+
+            aspect.setMessageDirectory(shardedMessages);
+            assertEquals(RecordingLayout.SHARDED, aspect.getLayout(), "Sharded layout not detected");
+
+            Sample s = testReplay("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong from sharded layout");
+
+            Map<String, Object> terms = new HashMap<String, Object>();
+            terms.put("inputartifactlimsid", "2-1108999");
+            assertEquals(4, api.find(terms, ClarityProcess.class).size(), "Wrong number of processes from sharded search");
+
+            assertEquals(23, api.listAll(ContainerType.class).size(), "Wrong number of container types from sharded layout");
+
+            // Back to flat.
+            aspect.setMessageDirectory(messageDirectory);
+            new Resharder(shardedMessages, RecordingLayout.FLAT).reshard();
+
+            assertTrue(new File(shardedMessages, "Sample-GAO9862A146.xml").exists(), "Sample not moved back");
+            assertEquals(RecordingLayout.FLAT, RecordingLayout.detect(shardedMessages), "Marker left after flattening");
+            assertFalse(new File(shardedMessages, "Sample").exists(), "Type directory left after flattening");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(shardedMessages);
+        }
+    }
+
+    @Test
+    public void testBinaryCache() throws IOException
+    {
+        File binaryMessages = new File("target/binarymessages");
+        File binaryCache = new File("target/binarycache");
+        try
+        {
+            FileUtils.deleteQuietly(binaryMessages);
+            FileUtils.deleteQuietly(binaryCache);
+            FileUtils.copyDirectory(messageDirectory, binaryMessages);
+            aspect.setMessageDirectory(binaryMessages);
+            aspect.setBinaryCacheDirectory(binaryCache);
+
+            Sample s = testReplay("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong");
+
+            File[] binaries = binaryCache.listFiles((dir, name) -> name.endsWith(".bin"));
+            assertNotNull(binaries, "Binary cache directory not created.");
+            assertEquals(1, binaries.length, "Wrong number of binary recordings.");
+
+            s = testReplay("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong from binary form");
+
+            // Edit the recording: the change must be seen, not the stale binary form.
+            File recording = new File(binaryMessages, "Sample-GAO9862A146.xml");
+            String xml = FileUtils.readFileToString(recording, "UTF-8");
+            FileUtils.writeStringToFile(recording, xml.replace(">34_a<", ">34_b<"), "UTF-8");
+
+            s = testReplay("GAO9862A146", Sample.class);
+            assertEquals("34_b", s.getName(), "Stale binary form used");
+        }
+        finally
+        {
+            aspect.setBinaryCacheDirectory(null);
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(binaryMessages);
+            FileUtils.deleteQuietly(binaryCache);
+        }
+    }
+
+    @Test
+    public void testCoverageReport() throws IOException
+    {
+        File reportFile = new File("target/coverage-report.txt");
+        try
+        {
+            aspect.setAccessLogEnabled(true);
+
+            testReplay("GAO9862A146", Sample.class);
+            testReplay("GAO9862A146", Sample.class);
+            try
+            {
+                api.load("0000", Sample.class);
+            }
+            catch (ClarityException e)
+            {
+                e.throwUnlessNotFound();
+            }
+
+            CoverageReport report = aspect.coverageReport();
+            assertEquals(Long.valueOf(2L), report.getUsed().get("Sample-GAO9862A146.xml"), "Wrong count for used sample");
+            assertEquals(Long.valueOf(1L), report.getMissing().get("Sample-0000.xml"), "Missing sample not reported");
+            assertFalse(report.getUnused().contains("Sample-GAO9862A146.xml"), "Used sample reported as unused");
+            assertTrue(report.getUnused().contains("Sample-LEU10792A392.xml"), "Unused sample not reported");
+            assertEquals(report.getRecordingCount(), report.getUsed().size() + report.getUnused().size(),
+                         "Used and unused do not add up");
+
+            assertEquals(3L, aspect.getAccessLog().getAccessCount(), "Wrong number of accesses logged");
+            assertEquals(3, aspect.getAccessLog().getRecent().size(), "Wrong number of recent accesses");
+
+            report.write(reportFile);
+            List<String> lines = FileUtils.readLines(reportFile, "UTF-8");
+            assertTrue(lines.contains("Sample-GAO9862A146.xml\t2"), "Used sample not in report file");
+            assertTrue(lines.contains("Sample-0000.xml\t1"), "Missing sample not in report file");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setAccessLogEnabled(false);
+            FileUtils.deleteQuietly(reportFile);
+        }
+    }
+
+    @Test
+    public void testCorpusPruner() throws IOException
+    {
+        File prunedMessages = new File("target/prunedmessages");
+        File archive = new File("target/prunedarchive");
+        File reportFile = new File("target/pruning-report.txt");
+        try
+        {
+            FileUtils.deleteQuietly(prunedMessages);
+            FileUtils.deleteQuietly(archive);
+            FileUtils.copyDirectory(messageDirectory, prunedMessages);
+
+            // A redundant copy of a search and two versions of an update.
+            FileUtils.copyFile(new File(prunedMessages, "search_a3f80acd.xml"), new File(prunedMessages, "search_00000000.xml"));
+            FileUtils.copyFile(new File(prunedMessages, "Sample-GAO9862A146.xml"), new File(prunedMessages, "Sample-GAO9862A146.001.xml"));
+            FileUtils.copyFile(new File(prunedMessages, "Sample-GAO9862A146.xml"), new File(prunedMessages, "Sample-GAO9862A146.002.xml"));
+
+            aspect.setAccessLogEnabled(true);
+            testReplay("GAO9862A146", Sample.class);
+            Map<String, Object> terms = new HashMap<String, Object>();
+            terms.put("inputartifactlimsid", "2-1108999");
+            assertEquals(4, api.find(terms, ClarityProcess.class).size(), "Wrong number of processes from search");
+            aspect.coverageReport().write(reportFile);
+
+            CorpusPruner dryRun = new CorpusPruner(prunedMessages);
+            dryRun.addCoverageReport(reportFile);
+            dryRun.setDryRun(true);
+            CorpusPruner.Result predicted = dryRun.prune();
+            assertTrue(new File(prunedMessages, "search_00000000.xml").exists(), "Dry run removed a file");
+
+            CorpusPruner pruner = new CorpusPruner(prunedMessages);
+            pruner.addCoverageReport(reportFile);
+            pruner.setArchiveDirectory(archive);
+            pruner.setThreads(4);
+            CorpusPruner.Result result = pruner.prune();
+
+            assertEquals(result.getSupersededUpdates(), predicted.getSupersededUpdates(),
+                         "Dry run counted superseded updates wrongly");
+            assertEquals(result.getCollapsedSearches(), predicted.getCollapsedSearches(),
+                         "Dry run counted collapsed searches wrongly");
+            assertEquals(result.getUnused(), predicted.getUnused(), "Dry run counted unused recordings wrongly");
+            assertEquals(result.getBytesFreed(), predicted.getBytesFreed(), "Dry run counted bytes freed wrongly");
+
+            assertEquals(1L, result.getSupersededUpdates(), "Wrong number of superseded updates");
+            assertTrue(result.getCollapsedSearches() >= 1L, "Redundant search not collapsed");
+            assertTrue(result.getUnused() > 0L, "No unused recordings pruned");
+            assertTrue(result.getBytesFreed() > 0L, "No bytes freed");
+
+            assertTrue(new File(prunedMessages, "Sample-GAO9862A146.xml").exists(), "Used sample pruned");
+            assertFalse(new File(prunedMessages, "Sample-LEU10792A392.xml").exists(), "Unused sample not pruned");
+            assertTrue(new File(archive, "Sample-LEU10792A392.xml").exists(), "Unused sample not archived");
+            assertFalse(new File(prunedMessages, "search_00000000.xml").exists(), "Redundant search left");
+            assertFalse(new File(prunedMessages, "Sample-GAO9862A146.001.xml").exists(), "Superseded update left");
+            assertTrue(new File(prunedMessages, "Sample-GAO9862A146.002.xml").exists(), "Latest update pruned");
+
+            // What was used still plays back from the pruned directory.
+            aspect.setMessageDirectory(prunedMessages);
+            aspect.clearCache();
+            Sample s = testReplay("GAO9862A146", Sample.class);
+            assertEquals("34_a", s.getName(), "Sample name wrong from pruned directory");
+            assertEquals(4, api.find(terms, ClarityProcess.class).size(), "Wrong number of processes from pruned search");
+        }
+        catch (ResourceAccessException e)
+        {
+            realServerAccess(e);
+        }
+        finally
+        {
+            aspect.setAccessLogEnabled(false);
+            aspect.setMessageDirectory(messageDirectory);
+            FileUtils.deleteQuietly(prunedMessages);
+            FileUtils.deleteQuietly(archive);
+            FileUtils.deleteQuietly(reportFile);
+        }
+    }
+
+    @Test
+    public void testCorpusVerifier() throws IOException
+    {
+        CorpusVerifier verifier = new CorpusVerifier(messageDirectory, marshaller);
+        verifier.setThreads(4);
+        CorpusVerifier.Report report = verifier.verify();
+        assertEquals(24L, report.getFileCount(), "Wrong number of recordings verified");
+        assertTrue(report.getBytesRead() > 0L, "No bytes counted");
+
+        // Two old copies of the process search are not named for their terms.
+        List<String> failed = report.getFailures().stream().map(CorpusVerifier.Failure::getFile).collect(Collectors.toList());
+        assertEquals(Arrays.asList("search_a3f80acd.xml", "search_f0ab4664.xml"), failed,
+                     "Wrong test messages failed verification");
+
+        File brokenMessages = new File("target/brokenmessages");
+        try
+        {
+            FileUtils.deleteQuietly(brokenMessages);
+            FileUtils.copyDirectory(messageDirectory, brokenMessages);
+
+            FileUtils.moveFile(new File(brokenMessages, "Sample-LEU10792A392.xml"), new File(brokenMessages, "Sample-LEU10792A393.xml"));
+            FileUtils.writeStringToFile(new File(brokenMessages, "Lab-18.xml"), "<lab:lab xmlns:lab=", "UTF-8");
+            FileUtils.moveFile(new File(brokenMessages, "search_a3f80acd.xml"), new File(brokenMessages, "search_00000000.xml"));
+
+            report = new CorpusVerifier(brokenMessages, marshaller).verify();
+            assertFalse(report.isValid(), "Broken messages passed verification");
+
+            failed = report.getFailures().stream().map(CorpusVerifier.Failure::getFile).collect(Collectors.toList());
+            assertEquals(Arrays.asList("Lab-18.xml", "Sample-LEU10792A393.xml", "search_00000000.xml", "search_f0ab4664.xml"), failed,
+                         "Wrong files failed verification");
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(brokenMessages);
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException
+    {
+        Path dump = new File("target/playback-events.jfr").toPath();
+        try (Recording recording = new Recording())
+        {
+            recording.enable("org.cruk.clarity.api.EntityLoad");
+            recording.enable("org.cruk.clarity.api.SearchLoad");
+            recording.start();
+
+            testReplay("GAO9862A146", Sample.class);
+            testReplay("GAO9862A146", Sample.class);
+
+            Map<String, Object> terms = new HashMap<String, Object>();
+            terms.put("inputartifactlimsid", "2-1108999");
+            api.find(terms, ClarityProcess.class);
+
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+
+        List<RecordedEvent> loads = events.stream()
+                .filter(e -> e.getEventType().getName().equals("org.cruk.clarity.api.EntityLoad"))
+                .collect(Collectors.toList());
+        assertEquals(2, loads.size(), "Wrong number of entity load events");
+        assertEquals("GAO9862A146", loads.get(0).getString("id"), "Wrong id in entity load event");
+        assertEquals(Sample.class.getName(), loads.get(0).getClass("entityClass").getName(), "Wrong class in entity load event");
+        assertEquals("LOAD", loads.get(0).getString("outcome"), "First load not from file");
+        assertEquals("HIT", loads.get(1).getString("outcome"), "Second load not from memory");
+        assertTrue(loads.get(0).getLong("bytes") > 0L, "No size in entity load event");
+
+        List<RecordedEvent> searches = events.stream()
+                .filter(e -> e.getEventType().getName().equals("org.cruk.clarity.api.SearchLoad"))
+                .collect(Collectors.toList());
+        assertEquals(1, searches.size(), "Wrong number of search load events");
+        assertEquals(4, searches.get(0).getInt("results"), "Wrong number of results in search load event");
+
+        FileUtils.deleteQuietly(dump.toFile());
     }
 
     private void realServerAccess(ResourceAccessException rae)
@@ -0,0 +1,140 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cruk.clarity.api.unittests.ClarityClientRecorderPlaybackTestConfiguration;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.genologics.ri.artifact.Artifact;
+import com.genologics.ri.sample.Sample;
+
+@SpringJUnitConfig(classes = ClarityClientRecorderPlaybackTestConfiguration.class)
+public class EntityCopierTest
+{
+    @Autowired
+    private Jaxb2Marshaller marshaller;
+
+    private File messageDirectory = new File("src/test/messages");
+
+    public EntityCopierTest()
+    {
+    }
+
+    private String toXml(Object thing)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        marshaller.marshal(thing, new StreamResult(bytes));
+        return bytes.toString();
+    }
+
+    @Test
+    public void testCopySample()
+    {
+        Sample original = (Sample)marshaller.unmarshal(new StreamSource(new File(messageDirectory, "Sample-GAO9862A146.xml")));
+
+        Sample copy = EntityCopier.copy(original);
+
+        assertNotSame(original, copy, "Copy is the original");
+        assertEquals(toXml(original), toXml(copy), "Copy is different to the original");
+        assertSame(original.getName(), copy.getName(), "Immutable name not shared");
+
+        copy.setName("Changed");
+        assertEquals("34_a", original.getName(), "Changing the copy changed the original");
+    }
+
+    @Test
+    public void testCopyArtifact()
+    {
+        Artifact original = (Artifact)marshaller.unmarshal(new StreamSource(new File(messageDirectory, "Artifact-2-5898189.xml")));
+
+        Artifact copy = EntityCopier.copy(original);
+
+        assertNotSame(original, copy, "Copy is the original");
+        assertEquals(toXml(original), toXml(copy), "Copy is different to the original");
+    }
+
+    @Test
+    public void testCopyCycle()
+    {
+        Node a = new Node();
+        Node b = new Node();
+        a.name = "a";
+        a.values = new int[] { 1, 2, 3 };
+        a.next = b;
+        a.children.add(b);
+        b.name = "b";
+        b.next = a;
+
+        Node copy = EntityCopier.copy(a);
+
+        assertNotSame(a, copy, "Copy is the original");
+        assertNotSame(a.values, copy.values, "Array shared");
+        assertEquals(3, copy.values[2], "Array content wrong");
+        assertNotSame(b, copy.next, "Referenced node shared");
+        assertSame(copy, copy.next.next, "Cycle not preserved");
+        assertSame(copy.next, copy.children.get(0), "Shared reference not preserved");
+    }
+
+    @Test
+    public void testCopyNull()
+    {
+        assertNull(EntityCopier.copy(null), "Copy of null not null");
+    }
+
+    @Test
+    public void testUncopyable()
+    {
+        assertThrows(UnsupportedOperationException.class, () -> EntityCopier.copy(new NoDefaultConstructor("x")));
+    }
+
+    static class Node
+    {
+        String name;
+        int[] values;
+        Node next;
+        List<Node> children = new ArrayList<>();
+    }
+
+    static class NoDefaultConstructor
+    {
+        String value;
+
+        NoDefaultConstructor(String value)
+        {
+            this.value = value;
+        }
+    }
+}
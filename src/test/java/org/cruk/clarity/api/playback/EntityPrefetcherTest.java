@@ -0,0 +1,112 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class EntityPrefetcherTest
+{
+    @Test
+    public void testStopsAtCacheLimit() throws Exception
+    {
+        PlaybackCache cache = new PlaybackCache();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loaded = new AtomicInteger();
+
+        EntityPrefetcher prefetcher = new EntityPrefetcher("test-prefetch", cache, key ->
+        {
+            release.await();
+            cache.put(key, key, 100L, 0L);
+            loaded.incrementAndGet();
+        }, 1, 250L);
+
+        try
+        {
+            // All queued while the cache is empty, behind the first load.
+            for (int i = 0; i < 50; i++)
+            {
+                assertTrue(prefetcher.prefetch("Sample-" + i + ".xml"), "Not queued before the cache is full");
+            }
+
+            release.countDown();
+            awaitIdle(prefetcher);
+
+            assertEquals(3, loaded.get(), "Queued recordings loaded after the cache was full");
+            assertEquals(300L, cache.getSourceBytes(), "Cache went past the limit by more than one recording");
+
+            assertTrue(prefetcher.isFull(), "Prefetcher does not see the cache as full");
+            assertFalse(prefetcher.prefetch("Sample-50.xml"), "Queued when the cache is full");
+        }
+        finally
+        {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueueBounded() throws Exception
+    {
+        PlaybackCache cache = new PlaybackCache();
+        CountDownLatch release = new CountDownLatch(1);
+
+        EntityPrefetcher prefetcher =
+                new EntityPrefetcher("test-prefetch", cache, key -> release.await(), 1, Long.MAX_VALUE);
+
+        try
+        {
+            int queued = 0;
+            for (int i = 0; i < EntityPrefetcher.QUEUED_PER_THREAD * 2; i++)
+            {
+                if (prefetcher.prefetch("Sample-" + i + ".xml"))
+                {
+                    ++queued;
+                }
+            }
+
+            // One being loaded (or about to be) and a full queue behind it.
+            assertTrue(queued <= EntityPrefetcher.QUEUED_PER_THREAD + 1, "Queue not bounded: " + queued + " queued");
+            assertTrue(prefetcher.getQueueDepth() <= EntityPrefetcher.QUEUED_PER_THREAD, "Queue deeper than its bound");
+
+            release.countDown();
+            awaitIdle(prefetcher);
+        }
+        finally
+        {
+            prefetcher.shutdown();
+        }
+    }
+
+    private static void awaitIdle(EntityPrefetcher prefetcher) throws InterruptedException
+    {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (prefetcher.getInFlightCount() > 0)
+        {
+            assertTrue(System.nanoTime() < end, "Prefetcher did not finish");
+            Thread.sleep(10L);
+        }
+    }
+}
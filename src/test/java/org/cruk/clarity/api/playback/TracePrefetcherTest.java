@@ -0,0 +1,92 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.playback;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cruk.clarity.api.record.AccessTrace;
+import org.cruk.clarity.api.record.AccessTrace.Operation;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+public class TracePrefetcherTest
+{
+    private List<AccessTrace.Entry> trace(String... keys)
+    {
+        List<AccessTrace.Entry> trace = new ArrayList<>();
+        for (String key : keys)
+        {
+            trace.add(new AccessTrace.Entry(Operation.GET, key, "com.genologics.ri.sample.Sample", null));
+        }
+        return trace;
+    }
+
+    @Test
+    public void testStartRequestsWindow()
+    {
+        EntityPrefetcher loader = mock(EntityPrefetcher.class);
+
+        TracePrefetcher prefetcher = new TracePrefetcher(trace("A", "B", "C", "D"), 2, loader);
+        prefetcher.start();
+
+        InOrder order = inOrder(loader);
+        order.verify(loader).prefetch("A");
+        order.verify(loader).prefetch("B");
+        verify(loader, never()).prefetch("C");
+        verify(loader, never()).prefetch("D");
+    }
+
+    @Test
+    public void testFollowsTrace()
+    {
+        EntityPrefetcher loader = mock(EntityPrefetcher.class);
+
+        TracePrefetcher prefetcher = new TracePrefetcher(trace("A", "B", "C", "A", "D"), 2, loader);
+
+        prefetcher.accessed("A");
+        assertEquals(1, prefetcher.getPosition(), "Position wrong after first access.");
+        verify(loader, times(1)).prefetch("B");
+        verify(loader, times(1)).prefetch("C");
+
+        prefetcher.accessed("C");
+        assertEquals(3, prefetcher.getPosition(), "Position wrong after skipping an access.");
+        verify(loader, times(1)).prefetch("A");
+        verify(loader, times(1)).prefetch("D");
+
+        // Not in the rest of the trace: should not move.
+        prefetcher.accessed("B");
+        assertEquals(3, prefetcher.getPosition(), "Position moved for an access not in the rest of the trace.");
+
+        // Unknown key.
+        prefetcher.accessed("X");
+        assertEquals(3, prefetcher.getPosition(), "Position moved for an unknown access.");
+
+        prefetcher.accessed("A");
+        assertEquals(4, prefetcher.getPosition(), "Position wrong after repeated key.");
+        verify(loader, times(2)).prefetch("D");
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cruk.clarity.api.unittests.ClarityClientRecorderPlaybackTestConfiguration;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.genologics.ri.Batch;
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.artifact.ArtifactLink;
+import com.genologics.ri.artifact.Artifacts;
+import com.genologics.ri.sample.SampleLink;
+import com.genologics.ri.sample.Samples;
+
+@SpringJUnitConfig(classes = ClarityClientRecorderPlaybackTestConfiguration.class)
+public class BatchListWriterTest
+{
+    @Autowired
+    private Jaxb2Marshaller marshaller;
+
+    public BatchListWriterTest()
+    {
+    }
+
+    @Test
+    public void testSamples() throws Exception
+    {
+        List<LimsLink<?>> links = new ArrayList<>();
+        links.add(new SampleLink(new URI("http://localhost/api/v2/samples/GAO9862A146")));
+        links.add(new SampleLink(new URI("http://localhost/api/v2/samples/LEU10792A392")));
+
+        checkSameAsJaxb(Samples.class, links);
+    }
+
+    @Test
+    public void testArtifacts() throws Exception
+    {
+        List<LimsLink<?>> links = new ArrayList<>();
+        links.add(new ArtifactLink(new URI("http://localhost/api/v2/artifacts/2-5898189")));
+        links.add(new ArtifactLink(new URI("http://localhost/api/v2/artifacts/2-6764648")));
+
+        checkSameAsJaxb(Artifacts.class, links);
+    }
+
+    @Test
+    public void testEmptyList() throws Exception
+    {
+        checkSameAsJaxb(Samples.class, new ArrayList<>());
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void checkSameAsJaxb(Class<?> batchClass, List<LimsLink<?>> links) throws Exception
+    {
+        String batchName = batchClass.getSimpleName();
+
+        BatchListWriter writer = BatchListWriter.forBatchClass(batchClass);
+        assertNotNull(writer, "No list writer for " + batchName);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (BatchListWriter.Output out = writer.open(streamed, marshaller))
+        {
+            for (LimsLink<?> link : links)
+            {
+                out.write(link);
+            }
+        }
+
+        Batch batch = (Batch)batchClass.getConstructor().newInstance();
+        batch.getList().addAll(links);
+
+        ByteArrayOutputStream jaxb = new ByteArrayOutputStream();
+        marshaller.marshal(batch, new StreamResult(jaxb));
+
+        // The elements must be named, and prefixed, as JAXB would write them.
+        Element streamedRoot = parse(streamed);
+        Element jaxbRoot = parse(jaxb);
+
+        assertEquals(jaxbRoot.getNamespaceURI(), streamedRoot.getNamespaceURI(),
+                     "Wrong root namespace for " + batchName);
+        assertEquals(jaxbRoot.getNodeName(), streamedRoot.getNodeName(), "Wrong root element for " + batchName);
+        assertEquals(elementNames(jaxbRoot), elementNames(streamedRoot), "Wrong link elements for " + batchName);
+
+        // And must read back as the same batch.
+        Object read = marshaller.unmarshal(new StreamSource(new ByteArrayInputStream(streamed.toByteArray())));
+        assertEquals(batchClass, read.getClass(), "Streamed list read as the wrong class");
+        assertEquals(links.size(), ((Batch)read).getList().size(), "Wrong number of links read from " + batchName);
+        assertEquals(toXml(batch), toXml(read), "Streamed " + batchName + " differs from JAXB's");
+    }
+
+    private String toXml(Object thing)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        marshaller.marshal(thing, new StreamResult(bytes));
+        return bytes.toString();
+    }
+
+    private static Element parse(ByteArrayOutputStream xml) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.toByteArray())).getDocumentElement();
+    }
+
+    private static List<String> elementNames(Element parent)
+    {
+        List<String> names = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+            {
+                names.add("{" + child.getNamespaceURI() + "}" + child.getNodeName());
+            }
+        }
+        return names;
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.cruk.clarity.api.record;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.cruk.clarity.api.record.ClarityAPIRecordingAspect.limsIdFromUri;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -26,15 +28,25 @@ import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.xml.transform.stream.StreamSource;
@@ -42,6 +54,8 @@ import javax.xml.transform.stream.StreamSource;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ClassUtils;
 import org.apache.http.conn.HttpHostConnectException;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
 import org.cruk.clarity.api.ClarityAPI;
 import org.cruk.clarity.api.http.AuthenticatingClientHttpRequestFactory;
 import org.cruk.clarity.api.search.Search;
@@ -62,6 +76,7 @@ import com.genologics.ri.Batch;
 import com.genologics.ri.LimsLink;
 import com.genologics.ri.Locatable;
 import com.genologics.ri.artifact.Artifact;
+import com.genologics.ri.artifact.SampleLink;
 import com.genologics.ri.artifact.Demux;
 import com.genologics.ri.container.Container;
 import com.genologics.ri.containertype.ContainerType;
@@ -72,6 +87,7 @@ import com.genologics.ri.process.ClarityProcess;
 import com.genologics.ri.project.Project;
 import com.genologics.ri.protocolconfiguration.Protocol;
 import com.genologics.ri.reagenttype.ReagentType;
+import com.genologics.ri.reagenttype.ReagentTypes;
 import com.genologics.ri.researcher.Researcher;
 import com.genologics.ri.role.Role;
 import com.genologics.ri.sample.Sample;
@@ -156,6 +172,23 @@ public class ClarityAPIRecordingAspectTest
         assertEquals(id, limsIdFromUri(StepDetails.class, uri), "StepDetails id from URI wrong.");
     }
 
+    @Test
+    public void testFileNames()
+    {
+        // The names must stay those MessageFormat gave with FILENAME_PATTERN.
+        assertEquals("Artifact-2-41.xml", RecordingFileNames.entityFileName(Artifact.class, "2-41"),
+                     "Artifact file name wrong.");
+        assertEquals("Sample-GAO9862A146.003.xml",
+                     RecordingFileNames.updateFileName(Sample.class, "GAO9862A146", 3), "Update file name wrong.");
+        assertEquals("Sample-GAO9862A146.1234.xml", RecordingFileNames.updateFileName(Sample.class, "GAO9862A146", 1234),
+                     "Long update file name wrong.");
+        assertEquals("ReagentTypes.xml", RecordingFileNames.listFileName(ReagentTypes.class), "List file name wrong.");
+
+        Artifact artifact = new Artifact();
+        artifact.setUri(api.limsIdToUri("2-41", Artifact.class));
+        assertEquals("Artifact-2-41.xml", RecordingFileNames.entityFileName(artifact), "File name from object wrong.");
+    }
+
     @Test
     public void testRecordInstrument()
     {
@@ -293,6 +326,7 @@ public class ClarityAPIRecordingAspectTest
         try
         {
             List<LimsLink<ContainerType>> ctLinks = api.listAll(ContainerType.class);
+            aspect.flush();
 
             File containerTypesFile = new File(messageDirectory, "ContainerTypes.xml");
             assertTrue(containerTypesFile.exists(), "Container types not recorded.");
@@ -307,6 +341,7 @@ public class ClarityAPIRecordingAspectTest
             List<LimsLink<ReagentType>> rtLinks = api.listSome(ReagentType.class, 0, 120);
 
             assertEquals(120, rtLinks.size(), "Wrong number of ReagentType links returned.");
+            aspect.flush();
 
             File reagentTypesFile = new File(messageDirectory, "ReagentTypes.xml");
             assertTrue(reagentTypesFile.exists(), "Reagent types not recorded.");
@@ -323,6 +358,61 @@ public class ClarityAPIRecordingAspectTest
         }
     }
 
+    @Test
+    public void testRecordListPages() throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Batch<? extends LimsLink<ReagentType>> recorded =
+                (Batch<? extends LimsLink<ReagentType>>)marshaller.unmarshal(
+                        new StreamSource(new File("src/test/messages/ReagentTypes.xml")));
+        List<LimsLink<ReagentType>> all = new ArrayList<>(recorded.getList());
+
+        File listFile = new File(messageDirectory, "ReagentTypes.xml");
+        File rangesFile = ListRanges.rangesFileFor(listFile);
+
+        // Start with nothing held from other tests.
+        aspect.setMessageDirectory(messageDirectory);
+        FileUtils.deleteQuietly(listFile);
+        FileUtils.deleteQuietly(rangesFile);
+
+        aspect.doList(listSome(all, ReagentType.class, 40, 20));
+        aspect.doList(listSome(all, ReagentType.class, 80, 20));
+        aspect.flush();
+
+        assertEquals("links\t40 40\t20 80\t20", rangesOf(rangesFile), "Pages not recorded as separate ranges");
+
+        // As if in a new session, so what is recorded has to be read back from the file.
+        aspect.setMessageDirectory(messageDirectory);
+
+        aspect.doList(listSome(all, ReagentType.class, 0, 20));
+        aspect.flush();
+
+        assertEquals("links\t60 0\t20 40\t20 80\t20", rangesOf(rangesFile), "Page not merged with recorded pages");
+
+        @SuppressWarnings("unchecked")
+        Batch<? extends LimsLink<ReagentType>> written =
+                (Batch<? extends LimsLink<ReagentType>>)marshaller.unmarshal(new StreamSource(listFile));
+        assertEquals(60, written.getSize(), "Wrong number of links in merged list file");
+        assertEquals(all.get(0).getUri(), written.getList().get(0).getUri(), "New page not first in list file");
+        assertEquals(all.get(40).getUri(), written.getList().get(20).getUri(), "Recorded page not kept");
+        assertEquals(all.get(80).getUri(), written.getList().get(40).getUri(), "Recorded page not kept");
+
+        // A whole list replaces the pages, and has no ranges file.
+        aspect.doList(listAll(all, ReagentType.class));
+        aspect.flush();
+
+        assertFalse(rangesFile.exists(), "Ranges file left for a whole list");
+
+        // Ranges that do not give the links in the list file cannot place them, so the list is recorded afresh.
+        FileUtils.writeStringToFile(rangesFile, ListRanges.HEADER + "\n0\t20\n", "US-ASCII");
+        aspect.setMessageDirectory(messageDirectory);
+
+        aspect.doList(listSome(all, ReagentType.class, 40, 20));
+        aspect.flush();
+
+        assertEquals("links\t20 40\t20", rangesOf(rangesFile), "List with mismatched ranges not recorded afresh");
+    }
+
     @Test
     public void testRecordSearch()
     {
@@ -444,6 +534,160 @@ public class ClarityAPIRecordingAspectTest
         }
     }
 
+    @Test
+    public void testConcurrentSearchRecording() throws Exception
+    {
+        final int threads = 16;
+        final int rounds = 40;
+        final int searches = 4;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++)
+            {
+                final int thread = t;
+                futures.add(executor.submit(() ->
+                {
+                    start.await();
+                    for (int round = 0; round < rounds; round++)
+                    {
+                        Map<String, Object> terms = Collections.singletonMap("projectlimsid", "STRESS" + round % searches);
+
+                        List<LimsLink<Sample>> results = new ArrayList<>();
+                        results.add(new SampleLink(new URI("http://localhost/api/v2/samples/T" + thread + "R" + round)));
+
+                        Search<Sample> search = new Search<Sample>(terms, Sample.class);
+                        search.setResults(results);
+
+                        aspect.recordSearch(search);
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> future : futures)
+            {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < searches; i++)
+        {
+            Search<Sample> search = new Search<Sample>(Collections.singletonMap("projectlimsid", "STRESS" + i), Sample.class);
+            File searchFile = new File(messageDirectory, search.getSearchFileName());
+
+            Search<?> recorded = (Search<?>)xstream.fromXML(searchFile);
+            assertEquals(threads * rounds / searches, recorded.getResults().size(),
+                         "Results lost from search " + i);
+        }
+    }
+
+    @Test
+    public void testSearchMergeWaitsForLockHeldElsewhere() throws Exception
+    {
+        // Opens the lock file afresh in the directory made for this test.
+        aspect.setMessageDirectory(messageDirectory);
+
+        Map<String, Object> terms = Collections.singletonMap("projectlimsid", "LOCKED1");
+
+        List<LimsLink<Sample>> firstResults = new ArrayList<>();
+        firstResults.add(new SampleLink(new URI("http://localhost/api/v2/samples/LOCKED1A1")));
+
+        Search<Sample> first = new Search<Sample>(terms, Sample.class);
+        first.setResults(firstResults);
+        aspect.recordSearch(first);
+
+        File searchFile = new File(messageDirectory, first.getSearchFileName());
+        File lockFile = new File(messageDirectory, SearchFileLocks.LOCK_FILE_NAME);
+        int region = Math.floorMod(searchFile.getName().hashCode(), SearchFileLocks.REGIONS);
+
+        List<LimsLink<Sample>> secondResults = new ArrayList<>();
+        secondResults.add(new SampleLink(new URI("http://localhost/api/v2/samples/LOCKED1A2")));
+
+        Search<Sample> second = new Search<Sample>(terms, Sample.class);
+        second.setResults(secondResults);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // Another channel to the lock file, standing in for another recorder.
+        try (FileChannel other = FileChannel.open(lockFile.toPath(), CREATE, WRITE))
+        {
+            FileLock held = other.lock(region, 1L, false);
+
+            Future<?> merge = executor.submit(() ->
+            {
+                aspect.recordSearch(second);
+                return null;
+            });
+
+            Thread.sleep(250L);
+
+            assertFalse(merge.isDone(), "Search merged while its lock was held elsewhere");
+            assertEquals(1, ((Search<?>)xstream.fromXML(searchFile)).getResults().size(),
+                         "Search file written while its lock was held elsewhere");
+
+            held.release();
+
+            merge.get(10, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Search<?> recorded = (Search<?>)xstream.fromXML(searchFile);
+        assertEquals(2, recorded.getResults().size(), "Results lost waiting for the lock");
+    }
+
+    @Test
+    public void testShardedSearchMergesWithFlatFile() throws Exception
+    {
+        Map<String, Object> terms = Collections.singletonMap("projectlimsid", "FLAT1");
+
+        List<LimsLink<Sample>> flatResults = new ArrayList<>();
+        flatResults.add(new SampleLink(new URI("http://localhost/api/v2/samples/FLAT1A1")));
+
+        Search<Sample> flatSearch = new Search<Sample>(terms, Sample.class);
+        flatSearch.setResults(flatResults);
+        aspect.recordSearch(flatSearch);
+
+        File flatFile = new File(messageDirectory, flatSearch.getSearchFileName());
+        assertTrue(flatFile.exists(), "Search not recorded in the flat layout");
+
+        try
+        {
+            aspect.setLayout(RecordingLayout.SHARDED);
+
+            List<LimsLink<Sample>> shardedResults = new ArrayList<>();
+            shardedResults.add(new SampleLink(new URI("http://localhost/api/v2/samples/FLAT1A2")));
+
+            Search<Sample> shardedSearch = new Search<Sample>(terms, Sample.class);
+            shardedSearch.setResults(shardedResults);
+            aspect.recordSearch(shardedSearch);
+
+            File shardedFile = RecordingLayout.SHARDED.fileFor(messageDirectory, flatSearch.getSearchFileName());
+            assertTrue(shardedFile.exists(), "Search not recorded in the sharded layout");
+            assertFalse(flatFile.exists(), "Flat search file left after merging into the sharded one");
+
+            Search<?> recorded = (Search<?>)xstream.fromXML(shardedFile);
+            assertEquals(2, recorded.getResults().size(), "Results in the flat search file not merged");
+        }
+        finally
+        {
+            aspect.setLayout(RecordingLayout.FLAT);
+        }
+    }
+
     @Test
     public void testSearchRecordNoResultsRecording()
     {
@@ -484,6 +728,45 @@ public class ClarityAPIRecordingAspectTest
         assertFalse(recorded.exists(), "Recorded search " + search);
     }
 
+    private static ProceedingJoinPoint listSome(List<? extends LimsLink<?>> all, Class<?> type, int start, int count)
+        throws Throwable
+    {
+        return listCall("listSome", all.subList(start, start + count), type, start, count);
+    }
+
+    private static ProceedingJoinPoint listAll(List<? extends LimsLink<?>> all, Class<?> type) throws Throwable
+    {
+        return listCall("listAll", all, type);
+    }
+
+    private static ProceedingJoinPoint listCall(String method, List<? extends LimsLink<?>> reply, Object... args)
+        throws Throwable
+    {
+        Signature signature = mock(Signature.class);
+        when(signature.getName()).thenReturn(method);
+
+        ProceedingJoinPoint pjp = mock(ProceedingJoinPoint.class);
+        when(pjp.getSignature()).thenReturn(signature);
+        when(pjp.getArgs()).thenReturn(args);
+        when(pjp.proceed()).thenReturn(new ArrayList<>(reply));
+        return pjp;
+    }
+
+    private static String rangesOf(File rangesFile) throws IOException
+    {
+        assertTrue(rangesFile.exists(), "No ranges file " + rangesFile.getName());
+
+        List<String> lines = new ArrayList<>();
+        for (String line : FileUtils.readLines(rangesFile, "US-ASCII"))
+        {
+            if (!line.startsWith("#"))
+            {
+                lines.add(line);
+            }
+        }
+        return String.join(" ", lines);
+    }
+
     private <L extends Locatable> File assertRecorded(L object)
     {
         String className = ClassUtils.getShortClassName(object.getClass());
@@ -0,0 +1,105 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+public class ListRangesTest
+{
+    @Test
+    public void testFromIndexes()
+    {
+        // Two pages: 0-4 and 10-14.
+        ListRanges ranges = ListRanges.fromIndexes(new int[] { 0, 1, 2, 3, 4, 10, 11, 12, 13, 14 });
+
+        assertEquals(2, ranges.getRangeCount(), "Wrong number of ranges");
+        assertEquals(10, ranges.getLinkCount(), "Wrong number of links");
+        assertFalse(ranges.isFromStart(), "Ranges with a gap are from the start");
+
+        assertArrayEquals(new int[] { 2, 3 }, ranges.toFileRange(2, 3), "Wrong file range in first page");
+        assertArrayEquals(new int[] { 5, 5 }, ranges.toFileRange(10, 5), "Wrong file range for second page");
+        assertArrayEquals(new int[] { 3, 4 }, ranges.toFileRange(3, 9), "Wrong file range across the gap");
+        assertArrayEquals(new int[] { 5, 0 }, ranges.toFileRange(5, 5), "Wrong file range in the gap");
+        assertArrayEquals(new int[] { 10, 0 }, ranges.toFileRange(20, 5), "Wrong file range after the end");
+
+        assertTrue(ranges.covers(10, 5), "Recorded page not covered");
+        assertFalse(ranges.covers(3, 9), "Range across the gap covered");
+    }
+
+    @Test
+    public void testFromStart()
+    {
+        ListRanges ranges = ListRanges.fromStart(20);
+        assertTrue(ranges.isFromStart(), "Whole list not from the start");
+        assertArrayEquals(new int[] { 15, 5 }, ranges.toFileRange(15, 50), "Wrong file range at the end");
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException
+    {
+        File rangesFile = new File("target/ranges-test" + ListRanges.FILE_SUFFIX);
+        try
+        {
+            ListRanges ranges = ListRanges.fromIndexes(new int[] { 5, 6, 7, 100, 101 });
+            ranges.write(rangesFile);
+
+            ListRanges read = ListRanges.read(rangesFile);
+            assertEquals(2, read.getRangeCount(), "Wrong number of ranges read");
+            assertEquals(5, read.getLinkCount(), "Wrong number of links read");
+            assertArrayEquals(new int[] { 3, 2 }, read.toFileRange(100, 2), "Wrong file range after reading");
+
+            assertEquals(new File("target/ReagentTypes.ranges"), ListRanges.rangesFileFor(new File("target/ReagentTypes.xml")),
+                         "Wrong ranges file for list file");
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(rangesFile);
+        }
+    }
+
+    @Test
+    public void testLinkCountChecked() throws IOException
+    {
+        File rangesFile = new File("target/ranges-count-test" + ListRanges.FILE_SUFFIX);
+        try
+        {
+            FileUtils.writeStringToFile(rangesFile, ListRanges.HEADER + "\nlinks\t6\n5\t3\n100\t2\n", US_ASCII);
+            assertThrows(IOException.class, () -> ListRanges.read(rangesFile), "Wrong link count not rejected");
+
+            // Files written before the count was recorded are still read.
+            FileUtils.writeStringToFile(rangesFile, ListRanges.HEADER + "\n5\t3\n100\t2\n", US_ASCII);
+            assertEquals(5, ListRanges.read(rangesFile).getLinkCount(), "Wrong number of links read");
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(rangesFile);
+        }
+    }
+}
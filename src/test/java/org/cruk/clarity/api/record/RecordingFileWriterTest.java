@@ -0,0 +1,150 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.record;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.cruk.clarity.api.record.RecordingFileWriter.SyncPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RecordingFileWriterTest
+{
+    private File directory = new File("target/atomicwrites");
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        FileUtils.deleteQuietly(directory);
+        FileUtils.forceMkdir(directory);
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testWrite() throws IOException
+    {
+        for (SyncPolicy policy : SyncPolicy.values())
+        {
+            RecordingFileWriter writer = new RecordingFileWriter(policy, 0L);
+
+            File file = new File(directory, "Sample-" + policy + ".xml");
+            writer.write(file, out -> out.write(policy.name().getBytes(US_ASCII)));
+            writer.sync();
+
+            assertEquals(policy.name(), FileUtils.readFileToString(file, US_ASCII), "Wrong content with " + policy);
+        }
+
+        assertEquals(SyncPolicy.values().length, directory.list().length, "Temporary files left behind");
+    }
+
+    @Test
+    public void testFailedWrite() throws IOException
+    {
+        RecordingFileWriter writer = new RecordingFileWriter(SyncPolicy.FILE, 0L);
+
+        File file = new File(directory, "Sample-1.xml");
+        writer.write(file, out -> out.write("first".getBytes(US_ASCII)));
+
+        assertThrows(IOException.class, () ->
+        {
+            writer.write(file, out ->
+            {
+                out.write("second".getBytes(US_ASCII));
+                throw new IOException("Failed part way");
+            });
+        });
+
+        assertEquals("first", FileUtils.readFileToString(file, US_ASCII), "Original file changed by failed write");
+        assertEquals(1, directory.list().length, "Temporary file left after failed write");
+    }
+
+    @Test
+    public void testBatchedSyncWithoutFurtherWrites() throws Exception
+    {
+        RecordingFileWriter writer = new RecordingFileWriter(SyncPolicy.BATCHED, 500L);
+        try
+        {
+            writer.write(new File(directory, "Sample-4.xml"), out -> out.write("<sample/>".getBytes(US_ASCII)));
+            assertEquals(1, writer.getUnsyncedCount(), "File synced before the interval");
+
+            // Nothing more is written, so only the background sync can clear it.
+            long giveUp = System.currentTimeMillis() + 10000L;
+            while (writer.getUnsyncedCount() > 0 && System.currentTimeMillis() < giveUp)
+            {
+                Thread.sleep(10L);
+            }
+            assertEquals(0, writer.getUnsyncedCount(), "File not synced in the background");
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        writer.write(new File(directory, "Sample-5.xml"), out -> out.write("<sample/>".getBytes(US_ASCII)));
+        assertEquals(0, writer.getUnsyncedCount(), "File written after closing not synced");
+    }
+
+    @Test
+    public void testWriteIfChanged() throws IOException
+    {
+        RecordingFileWriter writer = new RecordingFileWriter(SyncPolicy.NONE, 0L);
+
+        File file = new File(directory, "Sample-2.xml");
+        byte[] content = "<sample/>".getBytes(US_ASCII);
+
+        assertTrue(writer.writeIfChanged(file, content), "New file not written");
+        assertFalse(writer.writeIfChanged(file, content.clone()), "Unchanged file written again");
+        assertTrue(writer.writeIfChanged(file, "<sample2>".getBytes(US_ASCII)), "Changed file not written");
+        assertEquals("<sample2>", FileUtils.readFileToString(file, US_ASCII), "Wrong content after change");
+    }
+
+    @Test
+    public void testDefaultPermissions() throws IOException
+    {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"),
+                   "File permissions are only checked on POSIX file systems.");
+
+        Path plain = Files.createFile(new File(directory, "plain.xml").toPath());
+
+        RecordingFileWriter writer = new RecordingFileWriter(SyncPolicy.NONE, 0L);
+        File file = new File(directory, "Sample-3.xml");
+        writer.write(file, out -> out.write("<sample/>".getBytes(US_ASCII)));
+
+        assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(file.toPath()),
+                     "Recording not created with the default permissions");
+    }
+}
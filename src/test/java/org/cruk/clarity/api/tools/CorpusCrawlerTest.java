@@ -0,0 +1,116 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.cruk.clarity.api.ClarityAPI;
+import org.cruk.clarity.api.record.ClarityAPIRecordingAspect;
+import org.cruk.clarity.api.unittests.ClarityClientRecorderRecordTestConfiguration;
+import org.cruk.clarity.api.unittests.StandInClarityServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.genologics.ri.sample.Sample;
+
+// The API is pointed at the stand-in server, so the context cannot be reused.
+@SpringJUnitConfig(classes = ClarityClientRecorderRecordTestConfiguration.class)
+@DirtiesContext
+public class CorpusCrawlerTest
+{
+    @Autowired
+    private ClarityAPI api;
+
+    @Autowired
+    private ClarityAPIRecordingAspect aspect;
+
+    private static final String RESEARCHER = "/api/v2/researchers/5356";
+
+    private File messageDirectory = new File("target/crawledmessages");
+
+    public CorpusCrawlerTest()
+    {
+    }
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        FileUtils.deleteQuietly(messageDirectory);
+        FileUtils.forceMkdir(messageDirectory);
+        aspect.setMessageDirectory(messageDirectory);
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        FileUtils.deleteQuietly(messageDirectory);
+    }
+
+    @Test
+    public void testCrawlToDepth() throws Exception
+    {
+        try (StandInClarityServer server = new StandInClarityServer(new File("src/test/messages")))
+        {
+            api.setServer(server.getURL());
+
+            CorpusCrawler crawler = new CorpusCrawler(api);
+            crawler.addSeed(Sample.class, "GAO9862A146");
+            crawler.setMaxDepth(1);
+            crawler.setThreads(2);
+
+            CorpusCrawler.Report report = crawler.crawl();
+
+            assertTrue(new File(messageDirectory, "Sample-GAO9862A146.xml").exists(), "Seed not recorded");
+            assertTrue(new File(messageDirectory, "Project-GAO9862.xml").exists(), "Sample's project not recorded");
+            assertTrue(new File(messageDirectory, "Researcher-5356.xml").exists(), "Sample's submitter not recorded");
+            assertFalse(new File(messageDirectory, "Lab-18.xml").exists(), "Submitter's lab is beyond the depth limit");
+
+            assertEquals(3, report.getEntityCount(), "Wrong number of entities crawled");
+            assertEquals(3, report.getBatchCount(), "Not one batch each for project, researcher and artifact");
+            assertEquals(1, report.getFailures(), "The sample's artifact is not on the server");
+            assertEquals(1, report.getDepth(), "Wrong depth reached");
+            assertEquals(1, server.getRequestCount(RESEARCHER), "Researcher not fetched once");
+
+            FileUtils.cleanDirectory(messageDirectory);
+
+            int requests = server.getRequestCount();
+
+            crawler.setMaxDepth(2);
+            report = crawler.crawl();
+
+            assertTrue(new File(messageDirectory, "Lab-18.xml").exists(), "Submitter's lab not recorded");
+            assertTrue(new File(messageDirectory, "Researcher-5356.xml").exists(),
+                       "Researcher linked from both sample and project not recorded");
+            assertEquals(2, server.getRequestCount(RESEARCHER),
+                         "Researcher linked from both sample and project fetched more than once in a crawl");
+            assertTrue(server.getRequestCount() - requests > report.getBatchCount(),
+                       "Fewer requests than the seed and batches");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.tools;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.cruk.clarity.api.record.RecordingLayout;
+import org.cruk.clarity.api.search.Search;
+import org.cruk.clarity.api.xstream.XStreamFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.genologics.ri.LimsLink;
+import com.genologics.ri.artifact.SampleLink;
+import com.genologics.ri.sample.Sample;
+import com.thoughtworks.xstream.XStream;
+
+public class ResharderTest
+{
+    private static final long HOUR = 3600000L;
+
+    private File messageDirectory = new File("target/reshardmessages");
+
+    private XStream xstream;
+
+    public ResharderTest()
+    {
+    }
+
+    @BeforeEach
+    public void setup() throws Exception
+    {
+        FileUtils.deleteQuietly(messageDirectory);
+        FileUtils.forceMkdir(messageDirectory);
+        xstream = new XStreamFactory().getObject();
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        FileUtils.deleteQuietly(messageDirectory);
+    }
+
+    @Test
+    public void testShardedCopyKeptWhenNewer() throws IOException
+    {
+        File flat = new File(messageDirectory, "Sample-GAO9862A146.xml");
+        File sharded = RecordingLayout.SHARDED.fileFor(messageDirectory, flat.getName());
+
+        write(flat, "flat", -HOUR);
+        write(sharded, "sharded", 0L);
+
+        new Resharder(messageDirectory, RecordingLayout.SHARDED).reshard();
+
+        assertFalse(flat.exists(), "Stale flat copy left");
+        assertEquals("sharded", FileUtils.readFileToString(sharded, UTF_8), "Newer sharded copy replaced");
+
+        // Running again changes nothing.
+        new Resharder(messageDirectory, RecordingLayout.SHARDED).reshard();
+        assertEquals("sharded", FileUtils.readFileToString(sharded, UTF_8), "Sharded copy changed by a second run");
+    }
+
+    @Test
+    public void testFlatCopyKeptWhenNewer() throws IOException
+    {
+        File flat = new File(messageDirectory, "Sample-GAO9862A146.xml");
+        File sharded = RecordingLayout.SHARDED.fileFor(messageDirectory, flat.getName());
+
+        write(flat, "flat", 0L);
+        write(sharded, "sharded", -HOUR);
+
+        new Resharder(messageDirectory, RecordingLayout.SHARDED).reshard();
+
+        assertFalse(flat.exists(), "Flat copy not moved");
+        assertEquals("flat", FileUtils.readFileToString(sharded, UTF_8), "Newer flat copy not kept");
+    }
+
+    @Test
+    public void testSearchCopiesMerged() throws Exception
+    {
+        Search<Sample> flatSearch = search("http://localhost/api/v2/samples/RES1A1");
+        Search<Sample> shardedSearch = search("http://localhost/api/v2/samples/RES1A2");
+
+        File flat = new File(messageDirectory, flatSearch.getSearchFileName());
+        File sharded = RecordingLayout.SHARDED.fileFor(messageDirectory, flat.getName());
+
+        write(flat, xstream.toXML(flatSearch), 0L);
+        write(sharded, xstream.toXML(shardedSearch), -HOUR);
+
+        new Resharder(messageDirectory, RecordingLayout.SHARDED).reshard();
+
+        assertFalse(flat.exists(), "Flat search left after merging");
+
+        Search<?> merged = (Search<?>)xstream.fromXML(sharded);
+        assertEquals(2, merged.getResults().size(), "Search results not merged");
+    }
+
+    private static Search<Sample> search(String result) throws Exception
+    {
+        List<LimsLink<Sample>> results = new ArrayList<>();
+        results.add(new SampleLink(new URI(result)));
+
+        Search<Sample> search = new Search<Sample>(Collections.singletonMap("projectlimsid", "RES1"), Sample.class);
+        search.setResults(results);
+        return search;
+    }
+
+    private static void write(File file, String content, long age) throws IOException
+    {
+        FileUtils.writeStringToFile(file, content, US_ASCII);
+        file.setLastModified(System.currentTimeMillis() + age);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * CRUK-CI Clarity REST API Java Client.
+ * Copyright (C) 2013 Cancer Research UK Cambridge Institute.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cruk.clarity.api.unittests;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP server standing in for a Clarity server, serving the entities
+ * in a directory of recordings. Entities are found by the URI in their root element.
+ * The server the entities were recorded from is replaced with this one in everything
+ * served. Batch retrieves are answered too. Anything else is not found.
+ */
+public class StandInClarityServer implements AutoCloseable
+{
+    private static final Pattern ROOT = Pattern.compile("<(\\w+):\\w+\\s[^>]*>");
+
+    private static final Pattern URI = Pattern.compile("uri=\"(\\w+://[^/\"]+)([^\"?]*)[^\"]*\"");
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    private final ServerSocket socket;
+
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+
+    private final Map<String, String> entities = new ConcurrentHashMap<>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final Map<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<>();
+
+    public StandInClarityServer(File directory) throws IOException
+    {
+        socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        String base = getURL().toString();
+
+        for (File file : directory.listFiles((d, name) -> name.endsWith(".xml") && !name.startsWith("search_")))
+        {
+            String xml = new String(Files.readAllBytes(file.toPath()), UTF_8);
+            Matcher root = ROOT.matcher(xml);
+            if (root.find())
+            {
+                Matcher uri = URI.matcher(root.group());
+                if (uri.find())
+                {
+                    entities.put(uri.group(2), xml.replace(uri.group(1), base));
+                }
+            }
+        }
+
+        handlers.execute(this::accept);
+    }
+
+    public URL getURL() throws MalformedURLException
+    {
+        return new URL("http", "localhost", socket.getLocalPort(), "");
+    }
+
+    public int getRequestCount()
+    {
+        return requests.get();
+    }
+
+    public int getRequestCount(String path)
+    {
+        AtomicInteger count = requestsByPath.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+        handlers.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (!socket.isClosed())
+        {
+            try
+            {
+                Socket connection = socket.accept();
+                handlers.execute(() -> handle(connection));
+            }
+            catch (IOException e)
+            {
+                // Closed.
+            }
+        }
+    }
+
+    private void handle(Socket connection)
+    {
+        try (connection)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), ISO_8859_1));
+            String[] request = in.readLine().split(" ");
+            int length = 0;
+            String header;
+            while ((header = in.readLine()) != null && !header.isEmpty())
+            {
+                if (header.toLowerCase().startsWith("content-length:"))
+                {
+                    length = Integer.parseInt(header.substring(15).trim());
+                }
+            }
+            char[] body = new char[length];
+            for (int read = 0, n = 0; read < length && n >= 0; read += n)
+            {
+                n = in.read(body, read, length - read);
+            }
+
+            requests.incrementAndGet();
+
+            String path = request[1].replaceFirst("\\?.*", "");
+            requestsByPath.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            String reply;
+            if ("POST".equals(request[0]) && path.endsWith("/batch/retrieve"))
+            {
+                reply = batch(new String(body));
+            }
+            else
+            {
+                reply = "GET".equals(request[0]) ? entities.get(path) : null;
+            }
+
+            respond(connection.getOutputStream(), reply);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Connection dropped.
+        }
+    }
+
+    private String batch(String links)
+    {
+        List<String> found = new ArrayList<>();
+        Matcher uri = URI.matcher(links);
+        while (uri.find())
+        {
+            String xml = entities.get(uri.group(2));
+            if (xml == null)
+            {
+                return null;
+            }
+            found.add(xml.substring(xml.indexOf("?>") + 2).trim());
+        }
+        if (found.isEmpty())
+        {
+            return null;
+        }
+
+        Matcher root = ROOT.matcher(found.get(0));
+        root.find();
+        String prefix = root.group(1);
+        Matcher namespace = Pattern.compile("xmlns:" + prefix + "=\"([^\"]+)\"").matcher(root.group());
+        namespace.find();
+
+        StringBuilder details = new StringBuilder(DECLARATION);
+        details.append('<').append(prefix).append(":details xmlns:").append(prefix).append("=\"");
+        details.append(namespace.group(1)).append("\">\n");
+        found.forEach(xml -> details.append(xml).append('\n'));
+        details.append("</").append(prefix).append(":details>\n");
+        return details.toString();
+    }
+
+    private void respond(OutputStream out, String reply) throws IOException
+    {
+        String status = "200 OK";
+        if (reply == null)
+        {
+            status = "404 Not Found";
+            reply = DECLARATION +
+                    "<exc:exception xmlns:exc=\"http://genologics.com/ri/exception\" code=\"404\">\n" +
+                    "    <message>Not found</message>\n" +
+                    "</exc:exception>\n";
+        }
+
+        byte[] content = reply.getBytes(UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                      "Content-Type: application/xml\r\n" +
+                      "Content-Length: " + content.length + "\r\n" +
+                      "Connection: close\r\n\r\n";
+        out.write(head.getBytes(ISO_8859_1));
+        out.write(content);
+        out.flush();
+    }
+}